@@ -39,6 +39,13 @@ public class RandomRequestGenerator implements Generator<Records.Request> {
             OpCode.SET_DATA, 
             OpCode.SYNC);
     
+    // containers and TTL nodes may be deleted by the server
+    protected static final ImmutableList<CreateMode> BASIC_MODES = ImmutableList.of(
+            CreateMode.PERSISTENT,
+            CreateMode.PERSISTENT_SEQUENTIAL,
+            CreateMode.EPHEMERAL,
+            CreateMode.EPHEMERAL_SEQUENTIAL);
+    
     protected final Random random;
     protected final ZNodeCache<?,?,?> cache;
     protected final Generator<OpCode> opcodes;
@@ -95,7 +102,7 @@ public class RandomRequestGenerator implements Generator<Records.Request> {
             
             builder = Operations.Requests.fromOpCode(opcode);
             if (builder instanceof Operations.Requests.Create) {
-                CreateMode mode = CreateMode.values()[random.nextInt(CreateMode.values().length)];
+                CreateMode mode = BASIC_MODES.get(random.nextInt(BASIC_MODES.size()));
                 ZNodeLabel child = labels.next();
                 while (node.containsKey(child)) {
                     child = labels.next();
@@ -0,0 +1,100 @@
+package edu.uw.zookeeper.data;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.engio.mbassy.common.StrongConcurrentSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.ZNodeTrieExecutor;
+import edu.uw.zookeeper.client.SessionClientExecutor;
+import edu.uw.zookeeper.client.SubmitGenerator;
+import edu.uw.zookeeper.client.random.RandomRequestGenerator;
+import edu.uw.zookeeper.common.CountingGenerator;
+import edu.uw.zookeeper.common.Generator;
+import edu.uw.zookeeper.common.Pair;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.SessionListener;
+import edu.uw.zookeeper.protocol.proto.Records;
+import edu.uw.zookeeper.protocol.proto.Stats;
+import edu.uw.zookeeper.protocol.server.ZxidIncrementer;
+
+@RunWith(JUnit4.class)
+public class CopyOnWriteZNodeTrieTest {
+
+    public static Map<ZNodePath, Stats.ImmutableStat> statsOf(NameTrie<ZNodeNode> data) {
+        ImmutableMap.Builder<ZNodePath, Stats.ImmutableStat> stats = ImmutableMap.builder();
+        for (ZNodeNode node: data) {
+            stats.put(node.path(), node.asStat());
+        }
+        return stats.build();
+    }
+
+    protected final Logger logger = LogManager.getLogger();
+
+    @Test(timeout=10000)
+    public void testSnapshots() throws Exception {
+        CopyOnWriteZNodeTrie data = CopyOnWriteZNodeTrie.forRoot(ZNodeNode.root());
+        data.publish();
+        ZNodeTrieExecutor server = ZNodeTrieExecutor.newInstance(
+                data, ZxidIncrementer.fromZero(), new StrongConcurrentSet<SessionListener>());
+        LockableZNodeCache<ZNodeCache.SimpleCacheNode, Records.Request, Message.ServerResponse<?>> cache =
+                LockableZNodeCache.newInstance(SessionClientExecutor.create(1, server));
+        int iterations = 500;
+        Generator<Records.Request> requests = RandomRequestGenerator.fromCache(cache);
+        CountingGenerator<Pair<Records.Request, ListenableFuture<Message.ServerResponse<?>>>> operations = CountingGenerator.create(
+                iterations, iterations, SubmitGenerator.create(requests, cache), logger);
+        List<Pair<NameTrie<ZNodeNode>, Map<ZNodePath, Stats.ImmutableStat>>> snapshots = Lists.newArrayList();
+        for (int i=0; operations.hasNext(); ++i) {
+            operations.next().second().get(1000, TimeUnit.MILLISECONDS);
+            data.publish();
+            if (i % 50 == 0) {
+                NameTrie<ZNodeNode> snapshot = data.snapshot();
+                snapshots.add(Pair.create(snapshot, statsOf(snapshot)));
+            }
+        }
+        for (Pair<NameTrie<ZNodeNode>, Map<ZNodePath, Stats.ImmutableStat>> snapshot: snapshots) {
+            assertEquals(snapshot.second(), statsOf(snapshot.first()));
+        }
+        assertEquals(statsOf(data), statsOf(data.published()));
+    }
+
+    @Test
+    public void testPersistentHashMap() {
+        Random random = new Random();
+        Map<Long, Integer> expected = Maps.newHashMap();
+        PersistentHashMap<Long, Integer> map = PersistentHashMap.create();
+        List<Pair<Map<Long, Integer>, PersistentHashMap<Long, Integer>>> copies = Lists.newArrayList();
+        for (int i=0; i<10000; ++i) {
+            // few keys, and many with the same hash
+            Long key = Long.valueOf(((long) random.nextInt(16) << 32) | ((long) random.nextInt(16) << random.nextInt(8)));
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, Integer.valueOf(i)), map.put(key, Integer.valueOf(i)));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+            if (i % 1000 == 0) {
+                copies.add(Pair.<Map<Long, Integer>, PersistentHashMap<Long, Integer>>create(ImmutableMap.copyOf(expected), map.copy()));
+            }
+        }
+        assertEquals(expected, map);
+        assertEquals(expected.size(), map.size());
+        for (Pair<Map<Long, Integer>, PersistentHashMap<Long, Integer>> copy: copies) {
+            assertEquals(copy.first(), copy.second());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package edu.uw.zookeeper.data;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import net.engio.mbassy.common.StrongConcurrentSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.ZNodeTrieExecutor;
+import edu.uw.zookeeper.client.SessionClientExecutor;
+import edu.uw.zookeeper.client.SubmitGenerator;
+import edu.uw.zookeeper.client.random.RandomRequestGenerator;
+import edu.uw.zookeeper.common.CountingGenerator;
+import edu.uw.zookeeper.common.Generator;
+import edu.uw.zookeeper.common.Pair;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.SessionListener;
+import edu.uw.zookeeper.protocol.proto.Records;
+import edu.uw.zookeeper.protocol.server.ZxidIncrementer;
+
+@RunWith(JUnit4.class)
+public class IndexedZNodeTrieTest {
+
+    public static void assertIndexed(NameTrie<ZNodeNode> data) {
+        int count = 0;
+        for (ZNodeNode node: data) {
+            assertSame(node, data.get(node.path()));
+            ++count;
+        }
+        assertEquals(count, data.size());
+    }
+
+    protected final Logger logger = LogManager.getLogger();
+
+    @Test(timeout=10000)
+    public void testRandom() throws Exception {
+        IndexedZNodeTrie data = IndexedZNodeTrie.create();
+        ZNodeTrieExecutor server = ZNodeTrieExecutor.newInstance(
+                data, ZxidIncrementer.fromZero(), new StrongConcurrentSet<SessionListener>());
+        LockableZNodeCache<ZNodeCache.SimpleCacheNode, Records.Request, Message.ServerResponse<?>> cache =
+                LockableZNodeCache.newInstance(SessionClientExecutor.create(1, server));
+        int iterations = 500;
+        Generator<Records.Request> requests = RandomRequestGenerator.fromCache(cache);
+        CountingGenerator<Pair<Records.Request, ListenableFuture<Message.ServerResponse<?>>>> operations = CountingGenerator.create(
+                iterations, iterations, SubmitGenerator.create(requests, cache), logger);
+        while (operations.hasNext()) {
+            operations.next().second().get(1000, TimeUnit.MILLISECONDS);
+        }
+        assertIndexed(data);
+    }
+
+    @Test
+    public void testSubtrees() {
+        IndexedZNodeTrie data = IndexedZNodeTrie.create();
+        ZNodeLabel a = ZNodeLabel.fromString("a");
+        ZNodeLabel b = ZNodeLabel.fromString("b");
+        ZNodeNode first = ZNodeNode.child(a, data.root(), ZNodeNode.ZNodeState.defaults());
+        // built before it is attached
+        first.put(b, ZNodeNode.child(b, first, ZNodeNode.ZNodeState.defaults()));
+        data.root().put(a, first);
+        assertIndexed(data);
+        assertNotNull(data.get("/a/b"));
+
+        ZNodeNode second = ZNodeNode.child(a, data.root(), ZNodeNode.ZNodeState.defaults());
+        data.root().put(a, second);
+        assertIndexed(data);
+        assertSame(second, data.get("/a"));
+        assertNull(data.get("/a/b"));
+
+        assertTrue(second.remove());
+        assertIndexed(data);
+        assertNull(data.get("/a"));
+
+        data.root().put(a, first);
+        data.clear();
+        assertIndexed(data);
+        assertEquals(1, data.size());
+    }
+}
@@ -0,0 +1,125 @@
+package edu.uw.zookeeper.data;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Also reports bytes allocated per validated lookup.
+ */
+@RunWith(JUnit4.class)
+public class PathLookupTest {
+
+    public static final String[] PATHS = { "/", "/a", "/a/b/c", "/a/b/c/d/e", "/a/b/missing", "/missing" };
+
+    public static void populate(NameTrie<ZNodeNode> trie, String path) {
+        ZNodeNode node = trie.root();
+        for (ZNodeLabel label: ZNodePath.fromString(path)) {
+            ZNodeNode child = node.get(label);
+            if (child == null) {
+                child = ZNodeNode.child(label, node, ZNodeNode.ZNodeState.defaults());
+                node.put(label, child);
+            }
+            node = child;
+        }
+        // wide enough to use a hash map
+        for (int i=0; i<ZNodeNode.MAX_ARRAY_CHILDREN*2; ++i) {
+            ZNodeLabel label = ZNodeLabel.fromString(String.valueOf(i));
+            node.put(label, ZNodeNode.child(label, node, ZNodeNode.ZNodeState.defaults()));
+        }
+    }
+
+    protected final Logger logger = LogManager.getLogger();
+
+    @Test
+    public void testLookup() {
+        NameTrie<ZNodeNode> expected = SimpleLabelTrie.forRoot(ZNodeNode.root());
+        IndexedZNodeTrie indexed = IndexedZNodeTrie.create();
+        CopyOnWriteZNodeTrie copyOnWrite = CopyOnWriteZNodeTrie.forRoot(ZNodeNode.root());
+        for (NameTrie<ZNodeNode> trie: ImmutableList.<NameTrie<ZNodeNode>>of(expected, indexed, copyOnWrite)) {
+            populate(trie, "/a/b/c/d/e");
+        }
+        copyOnWrite.publish();
+        for (String path: PATHS) {
+            ZNodePath parent = ZNodePath.fromString(path);
+            for (String p: ImmutableList.of(path, parent.join(ZNodeLabel.fromString("3")).toString(), parent.join(ZNodeLabel.fromString("12")).toString())) {
+                ZNodePath node = pathOf(expected.get(p));
+                assertEquals(p, node, pathOf(indexed.get(p)));
+                assertEquals(p, node, pathOf(copyOnWrite.published().get(p)));
+                assertEquals(p, node, pathOf(copyOnWrite.get(p)));
+            }
+        }
+    }
+
+    /**
+     * Bounds are loose, since what escape analysis removes depends on the JVM.
+     */
+    @Test
+    public void testAllocation() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        NameTrie<ZNodeNode> labels = SimpleLabelTrie.forRoot(ZNodeNode.root());
+        IndexedZNodeTrie indexed = IndexedZNodeTrie.create();
+        CopyOnWriteZNodeTrie copyOnWrite = CopyOnWriteZNodeTrie.forRoot(ZNodeNode.root());
+        for (NameTrie<ZNodeNode> trie: ImmutableList.<NameTrie<ZNodeNode>>of(labels, indexed, copyOnWrite)) {
+            populate(trie, "/a/b/c/d/e");
+        }
+        copyOnWrite.publish();
+        final String path = "/a/b/c/d/e/12";
+
+        double validate = bytesPerOp(threads, new Function<String, Object>() {
+            @Override
+            public Object apply(String input) {
+                return ZNodePath.validate(input);
+            }
+        }, path);
+        double walk = bytesPerOp(threads, lookup(labels), path);
+        double index = bytesPerOp(threads, lookup(indexed), path);
+        double published = bytesPerOp(threads, lookup(copyOnWrite.published()), path);
+        logger.info("Bytes per op for {}: validate={} labels={} indexed={} published={}",
+                path, validate, walk, index, published);
+        assertTrue(String.valueOf(validate), validate < 1.0);
+        assertTrue(String.valueOf(index), index < 1.0);
+        assertTrue(published + " < " + walk, published < walk);
+    }
+
+    protected static ZNodePath pathOf(ZNodeNode node) {
+        return (node == null) ? null : node.path();
+    }
+
+    protected static Function<String, Object> lookup(final NameTrie<ZNodeNode> trie) {
+        return new Function<String, Object>() {
+            @Override
+            public Object apply(String input) {
+                return trie.get(input);
+            }
+        };
+    }
+
+    protected static double bytesPerOp(com.sun.management.ThreadMXBean threads, Function<String, Object> op, String input) {
+        int iterations = 100000;
+        long thread = Thread.currentThread().getId();
+        // warm up
+        for (int i=0; i<iterations; ++i) {
+            assertNotNull(op.apply(input));
+        }
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int i=0; i<iterations; ++i) {
+            op.apply(input);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - start;
+        return (double) allocated / iterations;
+    }
+}
@@ -0,0 +1,98 @@
+package edu.uw.zookeeper.data;
+
+import static org.junit.Assert.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Maps;
+
+import edu.uw.zookeeper.protocol.proto.ByteBufOutputArchive;
+import edu.uw.zookeeper.protocol.proto.IGetDataResponse;
+import edu.uw.zookeeper.protocol.proto.Stats;
+
+@RunWith(JUnit4.class)
+public class ZNodeNodeTest {
+
+    @Test
+    public void testChildren() {
+        Random random = new Random();
+        ZNodeNode root = ZNodeNode.root();
+        Map<ZNodeName, ZNodeNode> expected = Maps.newHashMap();
+        for (int i=0; i<1000; ++i) {
+            ZNodeLabel label = ZNodeLabel.fromString(String.valueOf(random.nextInt(ZNodeNode.MAX_ARRAY_CHILDREN * 2)));
+            if (random.nextBoolean()) {
+                ZNodeNode child = ZNodeNode.child(label, root, ZNodeNode.ZNodeState.defaults());
+                assertEquals(expected.put(label, child), root.put(label, child));
+            } else {
+                assertEquals(expected.remove(label), root.remove(label));
+            }
+            assertEquals(expected, root);
+        }
+        for (ZNodeNode child: root.values()) {
+            assertSame(root, child.parent().get());
+            assertEquals(ZNodePath.root().join(child.parent().name()), child.path());
+            ZNodeLabel label = ZNodeLabel.fromString("leaf");
+            ZNodeNode leaf = ZNodeNode.child(label, child, ZNodeNode.ZNodeState.defaults());
+            child.put(label, leaf);
+            assertEquals(child.path().join(label), leaf.path());
+            assertTrue(leaf.remove());
+            assertTrue(child.isEmpty());
+        }
+    }
+
+    @Test
+    public void testState() {
+        ZNodeNode.ZNodeState state = ZNodeNode.ZNodeState.defaults(1L);
+        state.getData().getStat().getAndIncrement(2L, 3L);
+        state.getData().setData(new byte[1]);
+        state.getChildren().getAndIncrement(4L);
+        state.getAcl().getAndIncrement();
+        Stats.ImmutableStat stat = state.asStat(5);
+        assertEquals(1L, stat.getCzxid());
+        assertEquals(2L, stat.getMzxid());
+        assertEquals(3L, stat.getMtime());
+        assertEquals(1, stat.getVersion());
+        assertEquals(1, stat.getDataLength());
+        assertEquals(4L, stat.getPzxid());
+        assertEquals(1, stat.getCversion());
+        assertEquals(1, stat.getAversion());
+        assertEquals(5, stat.getNumChildren());
+
+        ZNodeNode.ZNodeState copy = ZNodeNode.ZNodeState.copyOf(state);
+        state.getData().getStat().getAndIncrement(6L, 7L);
+        assertEquals(2L, copy.getMzxid());
+        assertEquals(6L, state.getMzxid());
+    }
+
+    @Test
+    public void testPayload() throws IOException {
+        byte[] bytes = new byte[64];
+        new Random().nextBytes(bytes);
+        ZNodeNode.ZNodeState state = ZNodeNode.ZNodeState.defaults(1L);
+        state.getData().setData(bytes);
+        OffHeapPayloads payloads = OffHeapPayloads.getInstance();
+        assertFalse(state.storeOffHeap(payloads, bytes.length + 1));
+        assertTrue(state.storeOffHeap(payloads, bytes.length));
+        assertNotNull(state.getPayload());
+        assertArrayEquals(bytes, state.getData().getData());
+        assertEquals(bytes.length, state.asStat(0).getDataLength());
+        ByteBuf expected = Unpooled.buffer();
+        new IGetDataResponse(bytes, state.asStat(0)).serialize(new ByteBufOutputArchive(expected), "");
+        ByteBuf actual = Unpooled.buffer();
+        PayloadGetDataResponse.of(state.getPayload(), state.asStat(0)).serialize(new ByteBufOutputArchive(actual), "");
+        assertEquals(expected, actual);
+        
+        ZNodeNode.ZNodeState copy = ZNodeNode.ZNodeState.copyOf(state);
+        state.getData().setData(new byte[1]);
+        assertNull(state.getPayload());
+        assertArrayEquals(bytes, copy.getData().getData());
+    }
+}
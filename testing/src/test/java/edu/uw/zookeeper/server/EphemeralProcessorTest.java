@@ -0,0 +1,78 @@
+package edu.uw.zookeeper.server;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableMap;
+
+import edu.uw.zookeeper.common.Processors;
+import edu.uw.zookeeper.data.AddWatchMode;
+import edu.uw.zookeeper.data.CreateMode;
+import edu.uw.zookeeper.data.IndexedZNodeTrie;
+import edu.uw.zookeeper.data.Operations;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.TxnRequest;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.data.ZNodePath;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.SessionRequest;
+import edu.uw.zookeeper.protocol.proto.IDisconnectResponse;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+@RunWith(JUnit4.class)
+public class EphemeralProcessorTest {
+
+    protected static Records.Response apply(EphemeralProcessor processor, long session, long zxid, Records.Request request) {
+        return processor.apply(TxnRequest.of(0L, zxid, SessionRequest.of(session, ProtocolRequestMessage.of(0, request))));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        IndexedZNodeTrie trie = IndexedZNodeTrie.create();
+        Map<OpCode, Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException>> processors = ZNodeNode.Operators.of(trie);
+        processors.put(OpCode.MULTI, ZNodeNode.MultiOperator.of(trie, ByOpcodeTxnRequestProcessor.create(ImmutableMap.copyOf(processors))));
+        processors.put(OpCode.CLOSE_SESSION,
+                new Processors.CheckedProcessor<TxnOperation.Request<?>, IDisconnectResponse, KeeperException>() {
+                    @Override
+                    public IDisconnectResponse apply(TxnOperation.Request<?> request) {
+                        return Records.newInstance(IDisconnectResponse.class);
+                    }
+        });
+        WatchesTest.Notifications notifications = new WatchesTest.Notifications();
+        EphemeralProcessor processor = EphemeralProcessor.create(
+                RequestErrorProcessor.<TxnOperation.Request<?>>create(
+                        WatcherEventProcessor.create(
+                                ByOpcodeTxnRequestProcessor.create(ImmutableMap.copyOf(processors)),
+                                Watches.create(notifications),
+                                Watches.create(notifications),
+                                Watches.persistent(notifications),
+                                Watches.persistent(notifications))));
+        long zxid = 0L;
+        apply(processor, 0L, ++zxid, Operations.Requests.create().setPath(ZNodePath.fromString("/a")).build());
+        apply(processor, 0L, ++zxid, Operations.Requests.create().setPath(ZNodePath.fromString("/b")).build());
+        int count = 100;
+        for (int i=0; i<count; ++i) {
+            String parent = (i % 2 == 0) ? "/a" : "/b";
+            apply(processor, 1L, ++zxid, Operations.Requests.create().setPath(ZNodePath.fromString(parent + "/" + i)).setMode(CreateMode.EPHEMERAL).build());
+        }
+        apply(processor, 2L, ++zxid, Operations.Requests.create().setPath(ZNodePath.fromString("/a/x")).setMode(CreateMode.EPHEMERAL).build());
+        apply(processor, 3L, ++zxid, Operations.Requests.addWatch().setPath(ZNodePath.fromString("/a")).setMode(AddWatchMode.PERSISTENT).build());
+        assertEquals(count, processor.bySession.get(1L).size());
+
+        apply(processor, 1L, ++zxid, Records.Requests.getInstance().get(OpCode.CLOSE_SESSION));
+        assertNull(processor.bySession.get(1L));
+        assertEquals(1, processor.byPath.size());
+        assertEquals(1, trie.get("/a").size());
+        assertTrue(trie.get("/b").isEmpty());
+        // the parent is notified once for all of its children
+        assertEquals(1, notifications.counts.get("/a").get());
+        assertEquals(zxid, trie.get("/a").state().getPzxid());
+    }
+}
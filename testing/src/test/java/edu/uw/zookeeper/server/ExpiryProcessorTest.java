@@ -0,0 +1,129 @@
+package edu.uw.zookeeper.server;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import edu.uw.zookeeper.data.CreateMode;
+import edu.uw.zookeeper.data.IndexedZNodeTrie;
+import edu.uw.zookeeper.data.Operations;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.TxnRequest;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.data.ZNodePath;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.SessionRequest;
+import edu.uw.zookeeper.protocol.proto.IDeleteRequest;
+import edu.uw.zookeeper.protocol.proto.Records;
+import edu.uw.zookeeper.protocol.proto.Stats;
+
+@RunWith(JUnit4.class)
+public class ExpiryProcessorTest {
+
+    protected static Records.Response apply(ExpiryProcessor processor, long time, Records.Request request) {
+        return processor.apply(TxnRequest.of(time, time, SessionRequest.of(1L, ProtocolRequestMessage.of(0, request))));
+    }
+
+    protected static List<String> paths(List<IDeleteRequest> deletes) {
+        ImmutableList.Builder<String> paths = ImmutableList.builder();
+        for (IDeleteRequest delete: deletes) {
+            paths.add(delete.getPath());
+        }
+        return paths.build();
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        IndexedZNodeTrie trie = IndexedZNodeTrie.create();
+        Expiries expiries = Expiries.create();
+        ExpiryProcessor processor = ExpiryProcessor.create(
+                expiries,
+                trie,
+                RequestErrorProcessor.<TxnOperation.Request<?>>create(
+                        ByOpcodeTxnRequestProcessor.create(ImmutableMap.copyOf(ZNodeNode.Operators.of(trie)))));
+        long ttl = 100L;
+        apply(processor, 1L, Operations.Requests.create().setPath(ZNodePath.fromString("/c")).setMode(CreateMode.CONTAINER).build());
+        apply(processor, 2L, Operations.Requests.create().setPath(ZNodePath.fromString("/e")).setMode(CreateMode.CONTAINER).build());
+        apply(processor, 3L, Operations.Requests.create().setPath(ZNodePath.fromString("/c/1")).build());
+        apply(processor, 4L, Operations.Requests.create().setPath(ZNodePath.fromString("/t")).setMode(CreateMode.PERSISTENT_WITH_TTL).setTtl(ttl).build());
+        apply(processor, 5L, Operations.Requests.create().setPath(ZNodePath.fromString("/p")).setMode(CreateMode.PERSISTENT_WITH_TTL).setTtl(ttl).build());
+        apply(processor, 6L, Operations.Requests.create().setPath(ZNodePath.fromString("/p/1")).build());
+        assertTrue(Stats.CreateStat.isContainer(trie.get("/c").state().getEphemeralOwner()));
+        assertEquals(ttl, Stats.CreateStat.ttlOf(trie.get("/t").state().getEphemeralOwner()));
+        assertFalse(trie.get("/t").state().isEphemeral());
+        assertTrue(expiries.expired(50L).isEmpty());
+
+        // a TTL mode without a TTL is rejected
+        assertTrue(apply(processor, 7L, Operations.Requests.create().setPath(ZNodePath.fromString("/x")).setMode(CreateMode.PERSISTENT_WITH_TTL).build()) instanceof Operation.Error);
+
+        // emptied containers, but not containers that never had a child
+        apply(processor, 8L, Operations.Requests.delete().setPath(ZNodePath.fromString("/c/1")).build());
+        apply(processor, 9L, Operations.Requests.setData().setPath(ZNodePath.fromString("/t")).setData(new byte[1]).build());
+        assertEquals(ImmutableList.of("/c"), paths(expiries.expired(60L)));
+        assertTrue(expiries.expired(60L).isEmpty());
+
+        // changes push back the deadline
+        List<IDeleteRequest> deletes = expiries.expired(105L);
+        assertEquals(ImmutableList.of("/p"), paths(deletes));
+        assertTrue(apply(processor, 105L, deletes.get(0)) instanceof Operation.Error);
+        deletes = expiries.expired(109L);
+        assertEquals(ImmutableList.of("/t"), paths(deletes));
+        assertEquals(1, deletes.get(0).getVersion());
+
+        // a TTL node that had children is queued again once it has none
+        assertTrue(expiries.expired(200L).isEmpty());
+        apply(processor, 200L, Operations.Requests.delete().setPath(ZNodePath.fromString("/p/1")).build());
+        deletes = expiries.expired(200L);
+        assertEquals(ImmutableList.of("/p"), paths(deletes));
+        assertFalse(apply(processor, 200L, deletes.get(0)) instanceof Operation.Error);
+        assertNull(trie.get("/p"));
+        assertFalse(expiries.isTtl("/p"));
+        assertNotNull(trie.get("/e"));
+    }
+
+    @Test
+    public void testReplaced() throws Exception {
+        IndexedZNodeTrie trie = IndexedZNodeTrie.create();
+        Expiries expiries = Expiries.create();
+        ExpiryProcessor processor = ExpiryProcessor.create(
+                expiries,
+                trie,
+                RequestErrorProcessor.<TxnOperation.Request<?>>create(
+                        ByOpcodeTxnRequestProcessor.create(ImmutableMap.copyOf(ZNodeNode.Operators.of(trie)))));
+        long ttl = 100L;
+        apply(processor, 1L, Operations.Requests.create().setPath(ZNodePath.fromString("/c")).setMode(CreateMode.CONTAINER).build());
+        apply(processor, 2L, Operations.Requests.create().setPath(ZNodePath.fromString("/c/1")).build());
+        apply(processor, 3L, Operations.Requests.delete().setPath(ZNodePath.fromString("/c/1")).build());
+        apply(processor, 4L, Operations.Requests.create().setPath(ZNodePath.fromString("/t")).setMode(CreateMode.PERSISTENT_WITH_TTL).setTtl(ttl).build());
+        List<IDeleteRequest> deletes = expiries.expired(200L);
+        assertEquals(ImmutableList.of("/c", "/t"), paths(deletes));
+
+        // replaced by ordinary nodes before the deletes are applied
+        apply(processor, 5L, Operations.Requests.delete().setPath(ZNodePath.fromString("/c")).build());
+        apply(processor, 6L, Operations.Requests.create().setPath(ZNodePath.fromString("/c")).build());
+        apply(processor, 7L, Operations.Requests.delete().setPath(ZNodePath.fromString("/t")).build());
+        apply(processor, 8L, Operations.Requests.create().setPath(ZNodePath.fromString("/t")).build());
+        for (IDeleteRequest delete: deletes) {
+            assertTrue(apply(processor, 200L, delete) instanceof Operation.Error);
+        }
+        assertNotNull(trie.get("/c"));
+        assertNotNull(trie.get("/t"));
+
+        // not expired by the time the delete is applied
+        apply(processor, 9L, Operations.Requests.create().setPath(ZNodePath.fromString("/u")).setMode(CreateMode.PERSISTENT_WITH_TTL).setTtl(ttl).build());
+        deletes = expiries.expired(200L);
+        assertEquals(ImmutableList.of("/u"), paths(deletes));
+        assertTrue(apply(processor, 50L, deletes.get(0)) instanceof Operation.Error);
+        assertNotNull(trie.get("/u"));
+        assertFalse(apply(processor, 200L, deletes.get(0)) instanceof Operation.Error);
+        assertNull(trie.get("/u"));
+    }
+}
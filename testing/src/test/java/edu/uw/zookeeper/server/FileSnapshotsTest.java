@@ -0,0 +1,101 @@
+package edu.uw.zookeeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.engio.mbassy.common.StrongConcurrentSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import edu.uw.zookeeper.ZNodeTrieExecutor;
+import edu.uw.zookeeper.client.SessionClientExecutor;
+import edu.uw.zookeeper.client.SubmitGenerator;
+import edu.uw.zookeeper.client.random.RandomRequestGenerator;
+import edu.uw.zookeeper.common.CountingGenerator;
+import edu.uw.zookeeper.common.Generator;
+import edu.uw.zookeeper.common.Pair;
+import edu.uw.zookeeper.data.Acls;
+import edu.uw.zookeeper.data.LockableZNodeCache;
+import edu.uw.zookeeper.data.NameTrie;
+import edu.uw.zookeeper.data.SimpleLabelTrie;
+import edu.uw.zookeeper.data.ZNodeCache;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.SessionListener;
+import edu.uw.zookeeper.protocol.proto.Records;
+import edu.uw.zookeeper.protocol.server.ZxidIncrementer;
+
+@RunWith(JUnit4.class)
+public class FileSnapshotsTest {
+
+    protected final Logger logger = LogManager.getLogger();
+
+    protected File dir;
+    protected ListeningExecutorService executor;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+        executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test(timeout=10000)
+    public void testRestore() throws Exception {
+        NameTrie<ZNodeNode> data = SimpleLabelTrie.forRoot(ZNodeNode.root());
+        ZNodeTrieExecutor server = ZNodeTrieExecutor.newInstance(
+                data, ZxidIncrementer.fromZero(), new StrongConcurrentSet<SessionListener>());
+        LockableZNodeCache<ZNodeCache.SimpleCacheNode, Records.Request, Message.ServerResponse<?>> cache =
+                LockableZNodeCache.newInstance(SessionClientExecutor.create(1, server));
+        int iterations = 500;
+        Generator<Records.Request> requests = RandomRequestGenerator.fromCache(cache);
+        CountingGenerator<Pair<Records.Request, ListenableFuture<Message.ServerResponse<?>>>> operations = CountingGenerator.create(
+                iterations, iterations, SubmitGenerator.create(requests, cache), logger);
+        while (operations.hasNext()) {
+             operations.next().second().get(1000, TimeUnit.MILLISECONDS);
+        }
+
+        // small sections, so that restoring uses several of them
+        FileSnapshots snapshots = FileSnapshots.open(dir, null, 1, 4, executor);
+        assertEquals(0L, snapshots.lastZxid());
+        assertEquals(Long.valueOf(iterations), snapshots.snapshot(data, iterations).get());
+        assertEquals(iterations, snapshots.lastZxid());
+        assertTrue(FileSnapshots.header(FileSnapshots.snapshots(dir).lastEntry().getValue()).sections() > 1);
+
+        NameTrie<ZNodeNode> restored = SimpleLabelTrie.forRoot(ZNodeNode.root());
+        snapshots = FileSnapshots.open(dir, null, 1, 4, executor);
+        assertEquals(iterations, snapshots.restore(restored));
+        assertEquals(data.keySet(), restored.keySet());
+        for (ZNodeNode node: data) {
+            ZNodeNode other = restored.get(node.path());
+            assertEquals(node.asStat(), other.asStat());
+            assertArrayEquals(node.state().getData().getData(), other.state().getData().getData());
+            assertEquals(Acls.Acl.asRecordList(node.state().getAcl().getAcl()), Acls.Acl.asRecordList(other.state().getAcl().getAcl()));
+        }
+    }
+}
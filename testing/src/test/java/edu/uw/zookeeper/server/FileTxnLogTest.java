@@ -0,0 +1,87 @@
+package edu.uw.zookeeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import edu.uw.zookeeper.data.Operations;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.TxnRequest;
+import edu.uw.zookeeper.data.ZNodePath;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.SessionRequest;
+
+@RunWith(JUnit4.class)
+public class FileTxnLogTest {
+
+    protected File dir;
+    protected ScheduledExecutorService executor;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test(timeout=10000)
+    public void testRecover() throws Exception {
+        int iterations = 100;
+        FileTxnLog log = open(FileTxnLog.SyncPolicy.always(), 1024);
+        assertEquals(0L, log.lastZxid());
+        List<TxnOperation.Request<?>> txns = Lists.newArrayListWithCapacity(iterations);
+        for (int i=1; i<=iterations; ++i) {
+            TxnOperation.Request<?> txn = TxnRequest.of(
+                    System.currentTimeMillis(), i,
+                    SessionRequest.of(1L,
+                            ProtocolRequestMessage.of(i,
+                                    Operations.Requests.create().setPath(ZNodePath.fromString("/" + i)).build())));
+            txns.add(txn);
+            log.append(txn);
+        }
+        log.sync().get(1000, TimeUnit.MILLISECONDS);
+        log.close();
+        assertTrue(FileTxnLog.segments(dir).size() > 1);
+
+        log = open(FileTxnLog.SyncPolicy.none(), 1024);
+        assertEquals(iterations, log.lastZxid());
+        Iterator<TxnOperation.Request<?>> recovered = log.from(0L);
+        for (TxnOperation.Request<?> txn: txns) {
+            assertEquals(txn, recovered.next());
+        }
+        assertFalse(recovered.hasNext());
+        recovered = log.from(iterations / 2);
+        assertEquals(iterations / 2 + 1, recovered.next().zxid());
+        log.close();
+    }
+
+    protected FileTxnLog open(FileTxnLog.SyncPolicy policy, long segmentSize) throws Exception {
+        return FileTxnLog.open(dir, policy, segmentSize, (ExecutorService) executor, executor);
+    }
+}
@@ -0,0 +1,134 @@
+package edu.uw.zookeeper.server;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableMap;
+
+import edu.uw.zookeeper.common.Processors;
+import edu.uw.zookeeper.data.CopyOnWriteZNodeTrie;
+import edu.uw.zookeeper.data.CreateMode;
+import edu.uw.zookeeper.data.Operations;
+import edu.uw.zookeeper.data.Quota;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.TxnRequest;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.data.ZNodePath;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.SessionRequest;
+import edu.uw.zookeeper.protocol.proto.IGetAllChildrenNumberResponse;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+@RunWith(JUnit4.class)
+public class QuotaProcessorTest {
+
+    protected static QuotaProcessor processor(CopyOnWriteZNodeTrie trie) {
+        Map<OpCode, Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException>> processors = ZNodeNode.Operators.of(trie);
+        processors.put(OpCode.MULTI, ZNodeNode.MultiOperator.of(trie, ByOpcodeTxnRequestProcessor.create(ImmutableMap.copyOf(processors))));
+        return QuotaProcessor.create(
+                trie, 
+                RequestErrorProcessor.<TxnOperation.Request<?>>create(
+                        ByOpcodeTxnRequestProcessor.create(ImmutableMap.copyOf(processors))));
+    }
+    
+    protected static Records.Response apply(QuotaProcessor processor, CopyOnWriteZNodeTrie trie, Records.Request request) {
+        Records.Response response = processor.apply(TxnRequest.of(0L, 0L, SessionRequest.of(1L, ProtocolRequestMessage.of(0, request))));
+        trie.publish();
+        return response;
+    }
+    
+    protected static Records.Request create(String path, byte[] data) {
+        return Operations.Requests.create().setPath(ZNodePath.fromString(path)).setData(data).build();
+    }
+    
+    protected static Operations.Requests.SetData setData(String path, byte[] data) {
+        return Operations.Requests.setData().setPath(ZNodePath.fromString(path)).setData(data);
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        CopyOnWriteZNodeTrie trie = CopyOnWriteZNodeTrie.forRoot(ZNodeNode.root());
+        trie.publish();
+        QuotaProcessor processor = processor(trie);
+        apply(processor, trie, create("/a", new byte[0]));
+        apply(processor, trie, create("/a/b", new byte[3]));
+        apply(processor, trie, Operations.Requests.create().setPath(ZNodePath.fromString("/a/e")).setMode(CreateMode.EPHEMERAL).setData(new byte[1]).build());
+        apply(processor, trie, setData("/a/b", new byte[5]).build());
+        int cversion = trie.published().get("/a").state().getChildren().getCversion();
+        // rolled back
+        apply(processor, trie, Operations.Requests.multi()
+                .add(Operations.Requests.create().setPath(ZNodePath.fromString("/a/c")).setData(new byte[7]))
+                .add(setData("/a/e", new byte[0]))
+                .add(Operations.Requests.delete().setPath(ZNodePath.fromString("/a/b")))
+                .add(Operations.Requests.check().setPath(ZNodePath.fromString("/a")).setVersion(1))
+                .build());
+        assertNull(trie.published().get("/a/c"));
+        assertEquals(5, trie.published().get("/a/b").state().getDataLength());
+        assertEquals(cversion, trie.published().get("/a").state().getChildren().getCversion());
+        
+        ZNodeNode root = trie.published().root();
+        assertEquals(3, root.numDescendants());
+        assertEquals(6L, root.subtreeDataLength());
+        assertEquals(1, root.subtreeEphemerals());
+        assertEquals(2, ((IGetAllChildrenNumberResponse) apply(processor, trie, Operations.Requests.getAllChildrenNumber().setPath(ZNodePath.fromString("/a")).build())).getTotalNumber());
+        
+        apply(processor, trie, Operations.Requests.delete().setPath(ZNodePath.fromString("/a/e")).build());
+        assertEquals(3, root.numDescendants());
+        root = trie.published().root();
+        assertEquals(2, root.numDescendants());
+        assertEquals(5L, root.subtreeDataLength());
+        assertEquals(0, root.subtreeEphemerals());
+        
+        ZNodeNode.recount(trie.root());
+        assertEquals(2, root.numDescendants());
+        assertEquals(5L, root.subtreeDataLength());
+        assertEquals(0, root.subtreeEphemerals());
+    }
+
+    @Test
+    public void testQuota() throws Exception {
+        CopyOnWriteZNodeTrie trie = CopyOnWriteZNodeTrie.forRoot(ZNodeNode.root());
+        trie.publish();
+        QuotaProcessor processor = processor(trie);
+        apply(processor, trie, create("/zookeeper", new byte[0]));
+        apply(processor, trie, create("/zookeeper/quota", new byte[0]));
+        apply(processor, trie, create("/zookeeper/quota/q", new byte[0]));
+        apply(processor, trie, create("/q", new byte[1]));
+        apply(processor, trie, create(Quota.limitsOf("/q"), "count=3,bytes=4".getBytes()));
+        assertEquals(Quota.of(3, 4L), trie.published().get("/q").state().getQuota());
+        assertEquals("/q", Quota.limitedBy(Quota.limitsOf("/q")));
+        assertNull(Quota.limitedBy("/zookeeper/quota/zookeeper_limits"));
+        
+        assertFalse(apply(processor, trie, create("/q/1", new byte[1])) instanceof Operation.Error);
+        assertFalse(apply(processor, trie, create("/q/2", new byte[1])) instanceof Operation.Error);
+        assertTrue(apply(processor, trie, create("/q/3", new byte[0])) instanceof Operation.Error);
+        assertTrue(apply(processor, trie, setData("/q/1", new byte[3]).build()) instanceof Operation.Error);
+        assertFalse(apply(processor, trie, setData("/q/1", new byte[2]).build()) instanceof Operation.Error);
+        
+        // limits outlive their node
+        apply(processor, trie, Operations.Requests.delete().setPath(ZNodePath.fromString("/q/2")).build());
+        apply(processor, trie, Operations.Requests.delete().setPath(ZNodePath.fromString("/q/1")).build());
+        apply(processor, trie, Operations.Requests.delete().setPath(ZNodePath.fromString("/q")).build());
+        apply(processor, trie, create("/q", new byte[5]));
+        assertTrue(apply(processor, trie, create("/q/1", new byte[0])) instanceof Operation.Error);
+        
+        apply(processor, trie, setData(Quota.limitsOf("/q"), "count=-1,bytes=-1".getBytes()).build());
+        assertNull(trie.published().get("/q").state().getQuota());
+        assertFalse(apply(processor, trie, create("/q/1", new byte[0])) instanceof Operation.Error);
+        
+        apply(processor, trie, setData(Quota.limitsOf("/q"), "count=2,bytes=-1".getBytes()).build());
+        trie.get("/q").state().setQuota(null);
+        assertEquals(1, QuotaProcessor.restore(trie));
+        assertTrue(apply(processor, trie, create("/q/2", new byte[0])) instanceof Operation.Error);
+        apply(processor, trie, Operations.Requests.delete().setPath(ZNodePath.fromString(Quota.limitsOf("/q"))).build());
+        assertFalse(apply(processor, trie, create("/q/2", new byte[0])) instanceof Operation.Error);
+    }
+}
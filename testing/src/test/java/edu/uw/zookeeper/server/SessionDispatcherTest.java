@@ -0,0 +1,97 @@
+package edu.uw.zookeeper.server;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import edu.uw.zookeeper.protocol.NotificationListener;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.SharedResponseMessage;
+import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
+import edu.uw.zookeeper.protocol.proto.OpCodeXid;
+
+@RunWith(JUnit4.class)
+public class SessionDispatcherTest {
+
+    @Test(timeout=30000)
+    public void testOrder() throws Exception {
+        final int sessions = 32;
+        final int rounds = 500;
+        final List<List<String>> delivered = Lists.newArrayListWithCapacity(sessions);
+        ImmutableList.Builder<Long> all = ImmutableList.builder();
+        for (int i=0; i<sessions; ++i) {
+            delivered.add(Lists.<String>newArrayList());
+            all.add(Long.valueOf(i));
+        }
+        DeferredNotifications notifications = DeferredNotifications.create(
+                new Function<Long, NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>>() {
+                    @Override
+                    public NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> apply(final Long session) {
+                        return new NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>() {
+                            @Override
+                            public void handleNotification(Operation.ProtocolResponse<IWatcherEvent> notification) {
+                                delivered.get(session.intValue()).add(notification.record().getPath());
+                            }
+                        };
+                    }
+                });
+        final AtomicInteger done = new AtomicInteger();
+        Runnable counter = new Runnable() {
+            @Override
+            public void run() {
+                done.incrementAndGet();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        SessionDispatcher dispatcher = SessionDispatcher.create(4, executor);
+        try {
+            for (int i=0; i<rounds; ++i) {
+                // alternate notifications of every session, of one session, and responses
+                final String path = "/" + i;
+                List<Long> targets = (i % 3 == 0) ? ImmutableList.of(Long.valueOf(i % sessions)) : all.build();
+                dispatcher.dispatch(
+                        notifications.new Notification(
+                                SharedResponseMessage.of(OpCodeXid.NOTIFICATION.xid(), OpCodeXid.NOTIFICATION_ZXID, WatcherEventProcessor.data(path)),
+                                targets),
+                        counter);
+                final int session = i % sessions;
+                dispatcher.executorOf(session).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        delivered.get(session).add("response" + path);
+                    }
+                });
+            }
+        } finally {
+            dispatcher.stop();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        assertEquals(rounds, done.get());
+        for (int session=0; session<sessions; ++session) {
+            List<String> expected = Lists.newArrayList();
+            for (int i=0; i<rounds; ++i) {
+                String path = "/" + i;
+                if ((i % 3 != 0) || (i % sessions == session)) {
+                    expected.add(path);
+                }
+                if (i % sessions == session) {
+                    expected.add("response" + path);
+                }
+            }
+            assertEquals(expected, delivered.get(session));
+        }
+    }
+}
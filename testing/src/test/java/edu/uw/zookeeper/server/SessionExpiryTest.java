@@ -0,0 +1,63 @@
+package edu.uw.zookeeper.server;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import edu.uw.zookeeper.common.TimeValue;
+
+@RunWith(JUnit4.class)
+public class SessionExpiryTest {
+
+    public static class Expired extends CountDownLatch implements Runnable {
+
+        public Expired() {
+            super(1);
+        }
+
+        @Override
+        public void run() {
+            countDown();
+        }
+    }
+
+    @Test(timeout=10000)
+    public void testExpiry() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            SessionExpiry expiry = SessionExpiry.create(TimeValue.milliseconds(10L), 4, scheduler);
+            long timeOut = 100L;
+            Expired idle = new Expired();
+            Expired touched = new Expired();
+            Expired cancelled = new Expired();
+            Expired never = new Expired();
+            long start = System.nanoTime();
+            SessionExpiry.Entry idleEntry = expiry.register(timeOut, idle);
+            expiry.register(timeOut, cancelled).cancel();
+            expiry.register(0L, never);
+
+            assertTrue(idle.await(timeOut * 10, TimeUnit.MILLISECONDS));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= timeOut);
+            assertTrue(idleEntry.isDone());
+            SessionExpiry.Entry touchedEntry = expiry.register(timeOut, touched);
+            // longer than the wheel, so entries wrap around
+            for (int i=0; i<10; ++i) {
+                touchedEntry.touch();
+                Thread.sleep(timeOut / 4);
+            }
+            assertFalse(touchedEntry.isDone());
+            assertTrue(touched.await(timeOut * 10, TimeUnit.MILLISECONDS));
+            assertFalse(cancelled.await(timeOut, TimeUnit.MILLISECONDS));
+            assertEquals(1L, never.getCount());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package edu.uw.zookeeper.server;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import edu.uw.zookeeper.DefaultRuntimeModule;
+import edu.uw.zookeeper.common.ConcurrentLongHashMap;
+import edu.uw.zookeeper.common.Processor;
+import edu.uw.zookeeper.common.RuntimeModule;
+import edu.uw.zookeeper.data.CopyOnWriteZNodeTrie;
+import edu.uw.zookeeper.data.NameTrie;
+import edu.uw.zookeeper.data.Operations;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.data.ZNodePath;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.NotificationListener;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.SessionOperation;
+import edu.uw.zookeeper.protocol.SessionRequest;
+import edu.uw.zookeeper.protocol.proto.IErrorResponse;
+import edu.uw.zookeeper.protocol.proto.IGetDataResponse;
+import edu.uw.zookeeper.protocol.proto.ISetDataRequest;
+import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
+import edu.uw.zookeeper.protocol.proto.Records;
+import edu.uw.zookeeper.protocol.server.SessionExecutor;
+import edu.uw.zookeeper.protocol.server.ZxidGenerator;
+
+@RunWith(JUnit4.class)
+public class SimpleServerTest {
+
+    /**
+     * Server without a log, snapshots, or connections.
+     */
+    public static class Builder extends SimpleServer.Builder<Builder> {
+
+        public static Builder defaults(
+                Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners) {
+            return new Builder(null, null, null, null,
+                    TxnLog.Disabled.DISABLED, Snapshots.Disabled.DISABLED,
+                    null, null, DeferredNotifications.create(listeners),
+                    DefaultRuntimeModule.defaults());
+        }
+
+        protected Builder(
+                ZxidGenerator zxids,
+                NameTrie<ZNodeNode> data,
+                SessionManager sessions,
+                ReentrantReadWriteLock lock,
+                TxnLog txnLog,
+                Snapshots snapshots,
+                Watches dataWatches,
+                Watches childWatches,
+                Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners,
+                RuntimeModule runtime) {
+            super(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
+        }
+
+        @Override
+        protected Builder newInstance(
+                ZxidGenerator zxids,
+                NameTrie<ZNodeNode> data,
+                SessionManager sessions,
+                ReentrantReadWriteLock lock,
+                TxnLog txnLog,
+                Snapshots snapshots,
+                Watches dataWatches,
+                Watches childWatches,
+                Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners,
+                RuntimeModule runtime) {
+            return new Builder(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
+        }
+
+        @Override
+        protected Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> getDefaultListeners() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected SessionManager getDefaultSessions() {
+            return SimpleSessionManager.fromConfiguration(
+                    (short) 0,
+                    ConcurrentLongHashMap.<SessionExecutor>create(),
+                    null,
+                    getRuntimeModule().getConfiguration());
+        }
+    }
+
+    public static enum Ignored implements Function<Long, NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>>, NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> {
+        IGNORED;
+
+        @Override
+        public void handleNotification(Operation.ProtocolResponse<IWatcherEvent> notification) {
+        }
+
+        @Override
+        public NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> apply(Long input) {
+            return this;
+        }
+    }
+
+    /**
+     * Counts the notifications of one session.
+     */
+    public static class Counted implements Function<Long, NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>>, NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> {
+
+        protected final long session;
+        protected final AtomicInteger count;
+
+        public Counted(long session) {
+            this.session = session;
+            this.count = new AtomicInteger();
+        }
+
+        public int count() {
+            return count.get();
+        }
+
+        @Override
+        public void handleNotification(Operation.ProtocolResponse<IWatcherEvent> notification) {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> apply(Long input) {
+            return (input.longValue() == session) ? this : Ignored.IGNORED;
+        }
+    }
+
+    public static SessionOperation.Request<?> request(long session, int xid, Records.Request record) {
+        return SessionRequest.of(session, ProtocolRequestMessage.of(xid, record));
+    }
+
+    @Test(timeout=10000)
+    public void testPublishPerBatch() throws Exception {
+        Builder builder = Builder.defaults(Ignored.IGNORED).setDefaults();
+        final CopyOnWriteZNodeTrie data = (CopyOnWriteZNodeTrie) builder.getData();
+        data.publish();
+        final Processor<SessionOperation.Request<?>, Message.ServerResponse<?>> delegate = builder.getDefaultProcessor(Expiries.create());
+        // published views seen by writes
+        final Set<ZNodeNode> published = Collections.newSetFromMap(new IdentityHashMap<ZNodeNode, Boolean>());
+        Processor<SessionOperation.Request<?>, Message.ServerResponse<?>> processor = new Processor<SessionOperation.Request<?>, Message.ServerResponse<?>>() {
+            @Override
+            public Message.ServerResponse<?> apply(SessionOperation.Request<?> input) throws Exception {
+                published.add(data.published().root());
+                return delegate.apply(input);
+            }
+        };
+        int batchSize = 64;
+        SimpleServer server = SimpleServer.newInstance(
+                builder.getLock(), builder.getTxnLog(), processor, null,
+                null, Integer.MAX_VALUE, batchSize, Integer.MAX_VALUE, 1,
+                (DeferredNotifications) builder.getListeners(), data,
+                builder.getRuntimeModule().getExecutors().get(ExecutorService.class));
+        try {
+            int iterations = batchSize * 4;
+            List<ListenableFuture<Message.ServerResponse<?>>> futures = Lists.newArrayListWithCapacity(iterations);
+            // requests queue up while the lock is held
+            builder.getLock().writeLock().lock();
+            try {
+                for (int i=0; i<iterations; ++i) {
+                    futures.add(server.submit(request(1L, i, Operations.Requests.create().setPath(ZNodePath.fromString("/" + i)).build())));
+                }
+            } finally {
+                builder.getLock().writeLock().unlock();
+            }
+            for (ListenableFuture<Message.ServerResponse<?>> future: futures) {
+                Operations.unlessError(future.get(5, TimeUnit.SECONDS).record());
+            }
+            // at most one batch waits for the lock before the rest are queued
+            assertTrue(String.valueOf(published.size()), published.size() <= 1 + (iterations + batchSize - 1) / batchSize);
+            for (int i=0; i<iterations; ++i) {
+                assertNotNull(data.published().get(ZNodePath.fromString("/" + i)));
+            }
+        } finally {
+            server.stop();
+            builder.getRuntimeModule().shutdown();
+        }
+    }
+
+    /**
+     * A session that watches a node gets the notification of a change
+     * before any read of the changed node.
+     */
+    @Test(timeout=30000)
+    public void testNotificationBeforeRead() throws Exception {
+        final long writer = 1L;
+        final long reader = 2L;
+        final Counted notifications = new Counted(reader);
+        Builder builder = Builder.defaults(notifications);
+        SimpleServer server = builder.build();
+        try {
+            ZNodePath path = ZNodePath.fromString("/x");
+            int xid = 0;
+            Operations.unlessError(server.submit(request(writer, ++xid, Operations.Requests.create().setPath(path).build())).get().record());
+            int iterations = 200;
+            for (int i=0; i<iterations; ++i) {
+                IGetDataResponse watched = (IGetDataResponse) Operations.unlessError(server.submit(request(reader, ++xid, Operations.Requests.getData().setPath(path).setWatch(true).build())).get().record());
+                assertEquals(i, watched.getStat().getVersion());
+                ListenableFuture<Message.ServerResponse<?>> written = server.submit(request(writer, ++xid, Operations.Requests.setData().setPath(path).setData(new byte[1]).build()));
+                int version;
+                do {
+                    final ListenableFuture<Message.ServerResponse<?>> future = server.submit(request(reader, ++xid, Operations.Requests.getData().setPath(path).build()));
+                    // notifications delivered when the response is released
+                    final SettableFuture<Integer> delivered = SettableFuture.create();
+                    future.addListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            delivered.set(notifications.count());
+                        }
+                    }, MoreExecutors.directExecutor());
+                    version = ((IGetDataResponse) Operations.unlessError(future.get().record())).getStat().getVersion();
+                    if (version > i) {
+                        assertEquals(i + 1, delivered.get().intValue());
+                    }
+                } while (version == i);
+                Operations.unlessError(written.get().record());
+            }
+        } finally {
+            server.stop();
+            builder.getRuntimeModule().shutdown();
+        }
+    }
+
+    /**
+     * A read waits for the earlier writes of its session, 
+     * but not for the writes of other sessions.
+     */
+    @Test(timeout=30000)
+    public void testSessionOrder() throws Exception {
+        final long writer = 1L;
+        final long reader = 2L;
+        Builder builder = Builder.defaults(Ignored.IGNORED).setDefaults();
+        CopyOnWriteZNodeTrie data = (CopyOnWriteZNodeTrie) builder.getData();
+        data.publish();
+        // the write actor blocks a thread while the lock is held
+        ExecutorService executor = Executors.newCachedThreadPool();
+        SimpleServer server = SimpleServer.newInstance(
+                builder.getLock(), builder.getTxnLog(), 
+                builder.getDefaultProcessor(Expiries.create()), builder.getDefaultReadProcessor(),
+                builder.getDefaultPrepProcessor(), 4, 1, Integer.MAX_VALUE, 1,
+                (DeferredNotifications) builder.getListeners(), data, executor);
+        try {
+            ZNodePath path = ZNodePath.fromString("/x");
+            int xid = 0;
+            Operations.unlessError(server.submit(request(writer, ++xid, Operations.Requests.create().setPath(path).build())).get().record());
+            for (int i=0; i<16; ++i) {
+                ListenableFuture<Message.ServerResponse<?>> written;
+                ListenableFuture<Message.ServerResponse<?>> ordered;
+                // writes wait for the lock
+                builder.getLock().writeLock().lock();
+                try {
+                    written = server.submit(request(writer, ++xid, Operations.Requests.setData().setPath(path).setData(new byte[1]).build()));
+                    ordered = server.submit(request(writer, ++xid, Operations.Requests.getData().setPath(path).build()));
+                    IGetDataResponse concurrent = (IGetDataResponse) Operations.unlessError(server.submit(request(reader, ++xid, Operations.Requests.getData().setPath(path).build())).get().record());
+                    assertEquals(i, concurrent.getStat().getVersion());
+                    assertFalse(written.isDone());
+                    assertFalse(ordered.isDone());
+                } finally {
+                    builder.getLock().writeLock().unlock();
+                }
+                assertEquals(i + 1, ((IGetDataResponse) Operations.unlessError(ordered.get().record())).getStat().getVersion());
+                assertTrue(written.isDone());
+            }
+        } finally {
+            server.stop();
+            executor.shutdown();
+            builder.getRuntimeModule().shutdown();
+        }
+    }
+
+    /**
+     * A write with a malformed path is rejected without the write lock.
+     */
+    @Test(timeout=30000)
+    public void testPrepRejects() throws Exception {
+        Builder builder = Builder.defaults(Ignored.IGNORED).setDefaults();
+        CopyOnWriteZNodeTrie data = (CopyOnWriteZNodeTrie) builder.getData();
+        data.publish();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        SimpleServer server = SimpleServer.newInstance(
+                builder.getLock(), builder.getTxnLog(), 
+                builder.getDefaultProcessor(Expiries.create()), builder.getDefaultReadProcessor(),
+                builder.getDefaultPrepProcessor(), 4, 1, Integer.MAX_VALUE, 1,
+                (DeferredNotifications) builder.getListeners(), data, executor);
+        try {
+            builder.getLock().writeLock().lock();
+            try {
+                Records.Response response = server.submit(request(1L, 1, new ISetDataRequest("//x", new byte[1], -1))).get().record();
+                assertEquals(KeeperException.Code.BADARGUMENTS, ((IErrorResponse) response).error());
+            } finally {
+                builder.getLock().writeLock().unlock();
+            }
+        } finally {
+            server.stop();
+            executor.shutdown();
+            builder.getRuntimeModule().shutdown();
+        }
+    }
+}
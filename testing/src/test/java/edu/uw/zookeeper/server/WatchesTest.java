@@ -0,0 +1,241 @@
+package edu.uw.zookeeper.server;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.base.Function;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.SetMultimap;
+
+import edu.uw.zookeeper.common.Processors;
+import edu.uw.zookeeper.data.AddWatchMode;
+import edu.uw.zookeeper.data.IndexedZNodeTrie;
+import edu.uw.zookeeper.data.Operations;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.TxnRequest;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.data.ZNodePath;
+import edu.uw.zookeeper.protocol.NotificationListener;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.SessionRequest;
+import edu.uw.zookeeper.protocol.proto.IAddWatchRequest;
+import edu.uw.zookeeper.protocol.proto.ISetWatchesRequest;
+import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+@RunWith(JUnit4.class)
+public class WatchesTest {
+
+    public static class Notifications implements Function<Long, NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> {
+
+        protected final SetMultimap<String, Long> notified = HashMultimap.create();
+        protected final ConcurrentMap<String, AtomicInteger> counts = new MapMaker().makeMap();
+
+        @Override
+        public NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> apply(final Long session) {
+            return new NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>() {
+                @Override
+                public void handleNotification(Operation.ProtocolResponse<IWatcherEvent> notification) {
+                    String path = notification.record().getPath();
+                    synchronized (notified) {
+                        notified.put(path, session);
+                    }
+                    AtomicInteger count = counts.get(path);
+                    if (count == null) {
+                        counts.putIfAbsent(path, new AtomicInteger());
+                        count = counts.get(path);
+                    }
+                    count.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    protected static Records.Response apply(WatcherEventProcessor processor, long session, Records.Request request) throws KeeperException {
+        return processor.apply(TxnRequest.of(0L, 0L, SessionRequest.of(session, ProtocolRequestMessage.of(0, request))));
+    }
+
+    @Test
+    public void testRandom() {
+        Random random = new Random(1L);
+        Notifications notifications = new Notifications();
+        Watches watches = Watches.create(notifications);
+        SetMultimap<String, Long> expected = HashMultimap.create();
+        for (int i=0; i<20000; ++i) {
+            // enough sessions on a few paths to switch to bitsets
+            long session = random.nextInt(200);
+            String path = "/" + random.nextInt(8);
+            switch (random.nextInt(10)) {
+            case 0:
+            {
+                notifications.notified.clear();
+                watches.post(WatcherEventProcessor.data(path));
+                assertEquals(expected.removeAll(path), notifications.notified.get(path));
+                break;
+            }
+            case 1:
+                assertEquals(expected.remove(path, session), watches.remove(session, path));
+                break;
+            case 2:
+            {
+                int count = 0;
+                for (String p: expected.keySet().toArray(new String[0])) {
+                    if (expected.remove(p, session)) {
+                        ++count;
+                    }
+                }
+                assertEquals(count, watches.remove(session));
+                break;
+            }
+            default:
+                assertEquals(expected.put(path, session), watches.put(session, path));
+                break;
+            }
+        }
+        assertEquals(expected, watches.byPath());
+    }
+
+    @Test
+    public void testPersistent() throws Exception {
+        Notifications notifications = new Notifications();
+        Watches dataWatches = Watches.create(notifications);
+        WatcherEventProcessor processor = WatcherEventProcessor.create(
+                new Processors.CheckedProcessor<TxnOperation.Request<?>, Records.Response, KeeperException>() {
+                    @Override
+                    public Records.Response apply(TxnOperation.Request<?> input) {
+                        switch (input.record().opcode()) {
+                        case CREATE:
+                            return Operations.Responses.create().setPath(ZNodePath.fromString(((Records.PathGetter) input.record()).getPath())).build();
+                        case SET_DATA:
+                            return Operations.Responses.setData().build();
+                        default:
+                            return Operations.Responses.disconnect().build();
+                        }
+                    }
+                }, 
+                dataWatches, 
+                Watches.create(notifications), 
+                Watches.persistent(notifications), 
+                Watches.persistent(notifications));
+        String path = "/a/b";
+        apply(processor, 1L, Operations.Requests.addWatch().setPath(ZNodePath.fromString("/a")).setMode(AddWatchMode.PERSISTENT).build());
+        apply(processor, 2L, Operations.Requests.addWatch().setPath(ZNodePath.root()).setMode(AddWatchMode.PERSISTENT_RECURSIVE).build());
+        try {
+            apply(processor, 4L, new IAddWatchRequest("/a/", AddWatchMode.PERSISTENT.intValue()));
+            fail();
+        } catch (KeeperException.BadArgumentsException e) {}
+        dataWatches.put(2L, path);
+        dataWatches.put(3L, path);
+
+        // the persistent watch sees the children change, and the recursive watch sees the descendant
+        apply(processor, 0L, Operations.Requests.create().setPath(ZNodePath.fromString(path)).build());
+        assertEquals(ImmutableSetMultimap.of(path, 2L, path, 3L, "/a", 1L), notifications.notified);
+        // once per session
+        assertEquals(2, notifications.counts.get(path).get());
+        
+        for (int i=0; i<2; ++i) {
+            notifications.notified.clear();
+            apply(processor, 0L, Operations.Requests.setData().setPath(ZNodePath.fromString(path)).build());
+            assertEquals(ImmutableSetMultimap.of(path, 2L), notifications.notified);
+        }
+        
+        notifications.notified.clear();
+        apply(processor, 2L, Operations.Requests.removeWatches().setPath(ZNodePath.root()).setType(Watcher.WatcherType.Any).build());
+        apply(processor, 1L, Operations.Requests.disconnect().build());
+        apply(processor, 0L, Operations.Requests.create().setPath(ZNodePath.fromString("/a/c")).build());
+        assertTrue(notifications.notified.isEmpty());
+    }
+
+    @Test
+    public void testSetWatches() throws Exception {
+        Notifications notifications = new Notifications();
+        Watches dataWatches = Watches.create(notifications);
+        Watches childWatches = Watches.create(notifications);
+        IndexedZNodeTrie trie = IndexedZNodeTrie.create();
+        Map<OpCode, Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException>> operators = ZNodeNode.Operators.of(trie);
+        operators.put(OpCode.SET_WATCHES, SetWatchesProcessor.create(trie, dataWatches, childWatches));
+        Processors.CheckedProcessor<TxnOperation.Request<?>, Records.Response, KeeperException> processor = ByOpcodeTxnRequestProcessor.create(ImmutableMap.copyOf(operators));
+        processor.apply(TxnRequest.of(0L, 1L, SessionRequest.of(0L, ProtocolRequestMessage.of(0, Operations.Requests.create().setPath(ZNodePath.fromString("/a")).build()))));
+        processor.apply(TxnRequest.of(0L, 2L, SessionRequest.of(0L, ProtocolRequestMessage.of(0, Operations.Requests.create().setPath(ZNodePath.fromString("/a/b")).build()))));
+        processor.apply(TxnRequest.of(0L, 3L, SessionRequest.of(0L, ProtocolRequestMessage.of(0, Operations.Requests.create().setPath(ZNodePath.fromString("/c")).build()))));
+        processor.apply(TxnRequest.of(0L, 4L, SessionRequest.of(0L, ProtocolRequestMessage.of(0, Operations.Requests.setData().setPath(ZNodePath.fromString("/a")).build()))));
+
+        // the client last saw zxid 2
+        processor.apply(TxnRequest.of(0L, 4L, SessionRequest.of(1L, ProtocolRequestMessage.from(new ISetWatchesRequest(
+                2L, 
+                ImmutableList.of("/a", "/a/b", "/gone"), 
+                ImmutableList.of("/c", "/d"), 
+                ImmutableList.of("/a"))))));
+        assertEquals(ImmutableSetMultimap.of("/a", 1L, "/gone", 1L, "/c", 1L), notifications.notified);
+        assertEquals(ImmutableSetMultimap.of("/a/b", 1L, "/d", 1L), dataWatches.byPath());
+        assertEquals(ImmutableSetMultimap.of("/a", 1L), childWatches.byPath());
+    }
+
+    @Test(timeout=30000)
+    public void testConcurrent() throws Exception {
+        final Notifications notifications = new Notifications();
+        final Watches watches = Watches.create(notifications);
+        final int threads = 4;
+        final int paths = 16;
+        final int rounds = 2000;
+        final AtomicInteger added = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        try {
+            List<Future<?>> futures = Lists.newArrayList();
+            for (int t=0; t<threads; ++t) {
+                final long session = t;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i=0; i<rounds; ++i) {
+                            if (watches.put(session, "/" + (i % paths))) {
+                                added.incrementAndGet();
+                            }
+                        }
+                    }
+                }));
+            }
+            Future<?> poster = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i=0; i<rounds; ++i) {
+                        watches.post(WatcherEventProcessor.data("/" + (i % paths)));
+                    }
+                }
+            });
+            for (Future<?> future: futures) {
+                future.get();
+            }
+            poster.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        // every watch is either triggered once or still registered
+        int triggered = 0;
+        for (AtomicInteger count: notifications.counts.values()) {
+            triggered += count.get();
+        }
+        assertEquals(added.get(), triggered + watches.byPath().size());
+    }
+}
@@ -332,6 +332,8 @@ public class TreeWalker<V> extends AbstractActor<ZNodePath> implements Listenabl
     // not thread safe
     protected final Builder<V> builder;
     protected final Queue<SubmittedRequest<Records.Request,?>> pending;
+    // responses being handled, which may be nested when a request completes as it is submitted
+    protected int handling;
     
     protected final Promise<Optional<V>> future;
     
@@ -342,6 +344,7 @@ public class TreeWalker<V> extends AbstractActor<ZNodePath> implements Listenabl
         this.builder = checkNotNull(builder);
         this.future = promise;
         this.pending = Queues.newArrayDeque();
+        this.handling = 0;
         
         addListener(this, builder.getExecutor());
     }
@@ -406,7 +409,7 @@ public class TreeWalker<V> extends AbstractActor<ZNodePath> implements Listenabl
 
     @Override
     protected synchronized void doRun() throws Exception {
-        if (isDone() || pending.isEmpty()) {
+        if (isDone() || (pending.isEmpty() && (handling == 0))) {
             // We're done!
             stop();
         }
@@ -429,6 +432,7 @@ public class TreeWalker<V> extends AbstractActor<ZNodePath> implements Listenabl
         assert (request.isDone());
         pending.remove(request);
         if (!isDone() && (state() != State.TERMINATED)) {
+            ++handling;
             try {
                 Optional<V> value = builder.getResult().apply(Optional.of(request));
                 if (value.isPresent()) {
@@ -441,6 +445,8 @@ public class TreeWalker<V> extends AbstractActor<ZNodePath> implements Listenabl
                 }
             } catch (Exception e) {
                 future.setException(e);
+            } finally {
+                --handling;
             }
             run();
         }
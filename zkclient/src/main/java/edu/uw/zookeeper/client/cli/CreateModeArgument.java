@@ -3,7 +3,7 @@ package edu.uw.zookeeper.client.cli;
 import edu.uw.zookeeper.data.CreateMode;
 
 public enum CreateModeArgument {
-    P, PS, E, ES;
+    P, PS, E, ES, C;
     
     public static CreateModeArgument fromString(String value) {
         for (CreateModeArgument e : values()) {
@@ -24,6 +24,8 @@ public enum CreateModeArgument {
             return CreateMode.EPHEMERAL;
         case ES:
             return CreateMode.EPHEMERAL_SEQUENTIAL;
+        case C:
+            return CreateMode.CONTAINER;
         }
         throw new AssertionError();
     }
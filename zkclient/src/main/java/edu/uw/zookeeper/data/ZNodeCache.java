@@ -346,6 +346,7 @@ public class ZNodeCache<E extends AbstractNameTrie.SimpleNode<E> & ZNodeCache.Ca
                 switch (request.opcode()) {
                 case CREATE:
                 case CREATE2:
+                case CREATE_TTL:
                 {
                     path = ((AbsoluteZNodePath) path).parent();
                 }
@@ -353,6 +354,7 @@ public class ZNodeCache<E extends AbstractNameTrie.SimpleNode<E> & ZNodeCache.Ca
                 case DELETE:
                 case EXISTS:
                 case GET_ACL:
+                case GET_ALL_CHILDREN_NUMBER:
                 case GET_CHILDREN:
                 case GET_CHILDREN2:
                 case GET_DATA:
@@ -380,6 +382,7 @@ public class ZNodeCache<E extends AbstractNameTrie.SimpleNode<E> & ZNodeCache.Ca
             switch (response.opcode()) {
             case CREATE:
             case CREATE2:
+            case CREATE_TTL:
             {
                 ZNodePath path = (ZNodePath) ZNodeLabelVector.fromString(((Records.PathGetter) response).getPath());
                 update(path, zxid, events, request, response);
@@ -17,6 +17,7 @@ import edu.uw.zookeeper.net.NetClientModule;
 import edu.uw.zookeeper.netty.client.NettyClientModule;
 import edu.uw.zookeeper.protocol.Message;
 import edu.uw.zookeeper.protocol.ProtocolCodec;
+import edu.uw.zookeeper.protocol.ProtocolState;
 
 public class ClientConnectionFactoryBuilder implements ZooKeeperApplication.RuntimeBuilder<ClientConnectionFactory<? extends ClientProtocolConnection<Message.ClientSession, Message.ServerSession,?,?>>, ClientConnectionFactoryBuilder> {
 
@@ -146,10 +147,11 @@ public class ClientConnectionFactoryBuilder implements ZooKeeperApplication.Runt
     }
     
     protected Factory<? extends ProtocolCodec<Message.ClientSession, Message.ServerSession, Message.ClientSession, Message.ServerSession>> getDefaultCodecFactory() {
+        final int minSliceLength = ClientProtocolCodec.ConfigurableSliceDataMinLength.get(runtime.getConfiguration());
         return new Factory<ClientProtocolCodec>(){
             @Override
             public ClientProtocolCodec get() {
-                return ClientProtocolCodec.defaults();
+                return ClientProtocolCodec.newInstance(ProtocolState.ANONYMOUS, minSliceLength);
             }
         };
     }
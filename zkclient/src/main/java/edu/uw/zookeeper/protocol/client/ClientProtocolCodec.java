@@ -11,9 +11,12 @@ import org.apache.logging.log4j.LogManager;
 import com.google.common.base.Function;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Optional;
+import com.typesafe.config.ConfigValueType;
 
 import edu.uw.zookeeper.common.Automaton;
 import edu.uw.zookeeper.common.Automatons;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
 import edu.uw.zookeeper.common.Pair;
 import edu.uw.zookeeper.common.Reference;
 import edu.uw.zookeeper.common.Stateful;
@@ -21,6 +24,7 @@ import edu.uw.zookeeper.common.Automatons.AutomatonListener;
 import edu.uw.zookeeper.net.Decoder;
 import edu.uw.zookeeper.net.Encoder;
 import edu.uw.zookeeper.protocol.ConnectMessage;
+import edu.uw.zookeeper.protocol.Encodable;
 import edu.uw.zookeeper.protocol.Frame;
 import edu.uw.zookeeper.protocol.Message;
 import edu.uw.zookeeper.protocol.Operation;
@@ -30,6 +34,7 @@ import edu.uw.zookeeper.protocol.ProtocolState;
 import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
 import edu.uw.zookeeper.protocol.proto.OpCode;
 import edu.uw.zookeeper.protocol.proto.OpCodeXid;
+import edu.uw.zookeeper.protocol.proto.SizeOutputArchive;
 
 /**
  * Implemented for the case where encode is called by a different thread than decode,
@@ -37,13 +42,23 @@ import edu.uw.zookeeper.protocol.proto.OpCodeXid;
  * threads to call decode.
  */
 public class ClientProtocolCodec
-    implements ProtocolCodec<Message.ClientSession, Message.ServerSession, Message.ClientSession, Message.ServerSession> {
+    implements ProtocolCodec<Message.ClientSession, Message.ServerSession, Message.ClientSession, Message.ServerSession>,
+        Encoder.Sized<Message.ClientSession, Message.ClientSession>,
+        Decoder.Pending<Optional<? extends Message.ServerSession>, Message.ServerSession> {
 
     public static ClientProtocolCodec defaults() {
         return newInstance(ProtocolState.ANONYMOUS);
     }
     
     public static ClientProtocolCodec newInstance(ProtocolState state) {
+        return newInstance(state, -1);
+    }
+    
+    /**
+     * @param minSliceLength response data at least this long is decoded as a slice of its frame
+     *        rather than copied, and a negative length disables it
+     */
+    public static ClientProtocolCodec newInstance(ProtocolState state, int minSliceLength) {
         Automatons.SynchronizedEventfulAutomaton<ProtocolState, Object,?> automaton =
                 Automatons.createSynchronizedEventful(
                         Automatons.createEventful(
@@ -51,16 +66,31 @@ public class ClientProtocolCodec
                                         LogManager.getLogger(ClientProtocolCodec.class), 
                                         ProtocolMessageAutomaton.asAutomaton(state))));
         Pending pending = Pending.newInstance();
-        Encoder<? super Message.ClientSession, ?> encoder = 
+        Encoder.Sized<? super Message.ClientSession, ?> encoder = 
                 Frame.FramedEncoder.create(
                         ClientProtocolEncoder.newInstance(automaton));
-        Decoder<Optional<Message.ServerSession>, ?> decoder =
+        Decoder.Pending<Optional<Message.ServerSession>, ?> decoder =
                 Frame.FramedDecoder.create(
                         Frame.FrameDecoder.getDefault(),
-                        ClientProtocolDecoder.newInstance(automaton, pending));
+                        ClientProtocolDecoder.newInstance(automaton, pending, minSliceLength));
         return new ClientProtocolCodec(automaton, encoder, decoder, pending.get());
     }
     
+    /**
+     * GET_DATA response data at least this long is decoded as a slice of its frame,
+     * and a negative length disables it.
+     */
+    @Configurable(path="client", key="sliceDataMinLength", value="-1", type=ConfigValueType.NUMBER)
+    public static abstract class ConfigurableSliceDataMinLength {
+
+        public static int get(Configuration configuration) {
+            Configurable configurable = ConfigurableSliceDataMinLength.class.getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+    
     protected static class Pending implements Function<Integer, OpCode>, Reference<Queue<Pair<Integer, OpCode>>> {
         public static Pending newInstance() {
             return new Pending(new ConcurrentLinkedQueue<Pair<Integer, OpCode>>());
@@ -93,14 +123,14 @@ public class ClientProtocolCodec
     }
 
     protected final Automatons.EventfulAutomaton<ProtocolState, Object> automaton;
-    protected final Encoder<? super Message.ClientSession, ?> encoder;
-    protected final Decoder<Optional<Message.ServerSession>, ?> decoder;
+    protected final Encoder.Sized<? super Message.ClientSession, ?> encoder;
+    protected final Decoder.Pending<Optional<Message.ServerSession>, ?> decoder;
     protected final Queue<Pair<Integer, OpCode>> pending;
     
     protected ClientProtocolCodec(
             Automatons.EventfulAutomaton<ProtocolState, Object> automaton,
-            Encoder<? super Message.ClientSession, ?> encoder,
-            Decoder<Optional<Message.ServerSession>, ?> decoder,
+            Encoder.Sized<? super Message.ClientSession, ?> encoder,
+            Decoder.Pending<Optional<Message.ServerSession>, ?> decoder,
             Queue<Pair<Integer, OpCode>> pending) {
         this.automaton = automaton;
         this.encoder = encoder;
@@ -147,6 +177,16 @@ public class ClientProtocolCodec
         }
     }
 
+    @Override
+    public int encodedSize(Message.ClientSession input) throws IOException {
+        return encoder.encodedSize(input);
+    }
+
+    @Override
+    public int pendingBytes() {
+        return decoder.pendingBytes();
+    }
+
     /**
      * Don't call concurrently!
      */
@@ -186,7 +226,7 @@ public class ClientProtocolCodec
 
     public static class ClientProtocolEncoder implements 
             Stateful<ProtocolState>,
-            Encoder<Message.ClientSession, Message.ClientSession> {
+            Encoder.Sized<Message.ClientSession, Message.ClientSession> {
 
         public static ClientProtocolEncoder newInstance(
                 Stateful<ProtocolState> stateful) {
@@ -224,6 +264,17 @@ public class ClientProtocolCodec
                 throw new IllegalStateException(state.toString());
             }
         }
+
+        /**
+         * @return negative unless <code>input</code> is worth counting
+         */
+        @Override
+        public int encodedSize(Message.ClientSession input) throws IOException {
+            return ((input instanceof Encodable.Sized) 
+                    && (input instanceof Operation.ProtocolRequest) 
+                    && SizeOutputArchive.isSized(((Operation.ProtocolRequest<?>) input).record())) ? 
+                            ((Encodable.Sized) input).encodedSize() : -1;
+        }
     }
     
     public static class ClientProtocolDecoder implements 
@@ -233,17 +284,27 @@ public class ClientProtocolCodec
         public static ClientProtocolDecoder newInstance(
                 Stateful<ProtocolState> stateful,
                 Function<Integer, OpCode> xidToOpCode) {
-            return new ClientProtocolDecoder(stateful, xidToOpCode);
+            return newInstance(stateful, xidToOpCode, -1);
+        }
+
+        public static ClientProtocolDecoder newInstance(
+                Stateful<ProtocolState> stateful,
+                Function<Integer, OpCode> xidToOpCode,
+                int minSliceLength) {
+            return new ClientProtocolDecoder(stateful, xidToOpCode, minSliceLength);
         }
 
         private final Stateful<ProtocolState> stateful;
         private final Function<Integer, OpCode> xidToOpCode;
+        private final int minSliceLength;
         
         private ClientProtocolDecoder(
                 Stateful<ProtocolState> stateful,
-                Function<Integer, OpCode> xidToOpCode) {
+                Function<Integer, OpCode> xidToOpCode,
+                int minSliceLength) {
             this.stateful = stateful;
             this.xidToOpCode = xidToOpCode;
+            this.minSliceLength = minSliceLength;
         }
 
         @Override
@@ -266,7 +327,7 @@ public class ClientProtocolCodec
                 break;
             case CONNECTED:
             case DISCONNECTING:
-                out = ProtocolResponseMessage.decode(xidToOpCode, input);
+                out = ProtocolResponseMessage.decode(xidToOpCode, input, minSliceLength);
                 break;
             default:
                 throw new IllegalStateException(state.toString());
@@ -0,0 +1,426 @@
+package edu.uw.zookeeper.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.base.Objects;
+
+/**
+ * Concurrent map with primitive long keys, such as session ids,
+ * that doesn't box keys or allocate entries.
+ *
+ * Keys are striped over sections, each an open-addressing table
+ * with linear probing that is modified while holding the section's lock.
+ * Lookups don't lock.
+ * A slot is never reused for a different key, so removed keys leave
+ * a tombstone until the section is rehashed into a new table,
+ * which lets a lookup trust the key of any slot that has a value.
+ *
+ * The Map methods box keys, so use the primitive methods where it matters.
+ * Null values aren't supported, and iterators are weakly consistent.
+ */
+public final class ConcurrentLongHashMap<V> extends AbstractMap<Long, V> implements ConcurrentMap<Long, V> {
+
+    public static <V> ConcurrentLongHashMap<V> create() {
+        return create(16, 16);
+    }
+
+    public static <V> ConcurrentLongHashMap<V> create(int expectedSize, int concurrencyLevel) {
+        checkArgument(expectedSize >= 0);
+        checkArgument(concurrencyLevel > 0);
+        int sections = 1;
+        while (sections < concurrencyLevel) {
+            sections <<= 1;
+        }
+        return new ConcurrentLongHashMap<V>(sections, expectedSize / sections);
+    }
+
+    /**
+     * Murmur3 finalizer, since ids often differ only in a few bits.
+     */
+    public static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    protected static final Object TOMBSTONE = new Object();
+    protected static final int MIN_CAPACITY = 4;
+
+    private final Section[] sections;
+
+    protected ConcurrentLongHashMap(int sections, int expectedSize) {
+        this.sections = new Section[sections];
+        for (int i=0; i<sections; ++i) {
+            this.sections[i] = new Section(expectedSize);
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int hash = hash(key);
+        return (V) sectionFor(hash).get(key, hash);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        int hash = hash(key);
+        return (V) sectionFor(hash).put(key, hash, checkNotNull(value), false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(long key, V value) {
+        int hash = hash(key);
+        return (V) sectionFor(hash).put(key, hash, checkNotNull(value), true);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int hash = hash(key);
+        return (V) sectionFor(hash).replace(key, hash, null, null);
+    }
+
+    public boolean remove(long key, Object value) {
+        if (value == null) {
+            return false;
+        }
+        int hash = hash(key);
+        return sectionFor(hash).replace(key, hash, value, null) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V replace(long key, V value) {
+        int hash = hash(key);
+        return (V) sectionFor(hash).replace(key, hash, null, checkNotNull(value));
+    }
+
+    public boolean replace(long key, V oldValue, V newValue) {
+        int hash = hash(key);
+        return sectionFor(hash).replace(key, hash, checkNotNull(oldValue), checkNotNull(newValue)) != null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (key instanceof Long) && containsKey(((Long) key).longValue());
+    }
+
+    @Override
+    public V get(Object key) {
+        return (key instanceof Long) ? get(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public V put(Long key, V value) {
+        return put(key.longValue(), value);
+    }
+
+    @Override
+    public V putIfAbsent(Long key, V value) {
+        return putIfAbsent(key.longValue(), value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return (key instanceof Long) ? remove(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return (key instanceof Long) && remove(((Long) key).longValue(), value);
+    }
+
+    @Override
+    public V replace(Long key, V value) {
+        return replace(key.longValue(), value);
+    }
+
+    @Override
+    public boolean replace(Long key, V oldValue, V newValue) {
+        return replace(key.longValue(), oldValue, newValue);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Section section: sections) {
+            size += section.size;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Section section: sections) {
+            if (section.size > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        for (Section section: sections) {
+            section.clear();
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<Long, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    protected Section sectionFor(int hash) {
+        return sections[(hash >>> 16) & (sections.length - 1)];
+    }
+
+    protected static final class Table {
+
+        public static Table forSize(int size) {
+            int capacity = MIN_CAPACITY;
+            // at most a third full after a rehash
+            while (capacity < size * 3) {
+                capacity <<= 1;
+            }
+            return new Table(capacity);
+        }
+
+        // a key is written once, before the first value of its slot
+        private final long[] keys;
+        // null if never used, TOMBSTONE if removed
+        private final AtomicReferenceArray<Object> values;
+
+        private Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new AtomicReferenceArray<Object>(capacity);
+        }
+
+        public int capacity() {
+            return keys.length;
+        }
+    }
+
+    protected static final class Section {
+
+        private volatile Table table;
+        private volatile int size;
+        // live and removed slots, guarded by this
+        private int used;
+
+        public Section(int expectedSize) {
+            this.table = Table.forSize(expectedSize);
+            this.size = 0;
+            this.used = 0;
+        }
+
+        public Object get(long key, int hash) {
+            Table table = this.table;
+            int mask = table.capacity() - 1;
+            int i = hash & mask;
+            for (int n=0; n<=mask; ++n) {
+                Object value = table.values.get(i);
+                if (value == null) {
+                    return null;
+                } else if ((value != TOMBSTONE) && (table.keys[i] == key)) {
+                    return value;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        public synchronized Object put(long key, int hash, Object value, boolean ifAbsent) {
+            Table table = this.table;
+            int mask = table.capacity() - 1;
+            int i = hash & mask;
+            while (true) {
+                Object existing = table.values.get(i);
+                if (existing == null) {
+                    break;
+                } else if (table.keys[i] == key) {
+                    if (existing == TOMBSTONE) {
+                        table.values.set(i, value);
+                        ++size;
+                        return null;
+                    } else {
+                        if (! ifAbsent) {
+                            table.values.set(i, value);
+                        }
+                        return existing;
+                    }
+                }
+                i = (i + 1) & mask;
+            }
+            // keep at least half of the slots empty so that probes terminate quickly
+            if ((used + 1) * 2 > table.capacity()) {
+                table = rehash(size + 1);
+                mask = table.capacity() - 1;
+                i = hash & mask;
+                while (table.values.get(i) != null) {
+                    i = (i + 1) & mask;
+                }
+            }
+            table.keys[i] = key;
+            table.values.set(i, value);
+            ++used;
+            ++size;
+            return null;
+        }
+
+        /**
+         * @param expected value to replace, or null for any
+         * @param value replacement, or null to remove
+         * @return replaced value, or null if none
+         */
+        public synchronized Object replace(long key, int hash, Object expected, Object value) {
+            Table table = this.table;
+            int mask = table.capacity() - 1;
+            int i = hash & mask;
+            for (int n=0; n<=mask; ++n) {
+                Object existing = table.values.get(i);
+                if (existing == null) {
+                    return null;
+                } else if (table.keys[i] == key) {
+                    if ((existing == TOMBSTONE) || ((expected != null) && ! Objects.equal(expected, existing))) {
+                        return null;
+                    }
+                    if (value == null) {
+                        table.values.set(i, TOMBSTONE);
+                        --size;
+                    } else {
+                        table.values.set(i, value);
+                    }
+                    return existing;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        public synchronized void clear() {
+            table = Table.forSize(0);
+            used = 0;
+            size = 0;
+        }
+
+        // copies live entries into a new table, since slots aren't reused in place
+        private Table rehash(int size) {
+            Table from = this.table;
+            Table to = Table.forSize(size);
+            int mask = to.capacity() - 1;
+            int count = 0;
+            for (int j=0; j<from.capacity(); ++j) {
+                Object value = from.values.get(j);
+                if ((value != null) && (value != TOMBSTONE)) {
+                    long key = from.keys[j];
+                    int i = hash(key) & mask;
+                    while (to.values.get(i) != null) {
+                        i = (i + 1) & mask;
+                    }
+                    to.keys[i] = key;
+                    to.values.lazySet(i, value);
+                    ++count;
+                }
+            }
+            this.used = count;
+            this.table = to;
+            return to;
+        }
+    }
+
+    protected final class EntrySet extends AbstractSet<Map.Entry<Long, V>> {
+
+        @Override
+        public Iterator<Map.Entry<Long, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentLongHashMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentLongHashMap.this.clear();
+        }
+    }
+
+    protected final class EntryIterator implements Iterator<Map.Entry<Long, V>> {
+
+        private int section;
+        private Table table;
+        private int index;
+        private Map.Entry<Long, V> next;
+        private Map.Entry<Long, V> last;
+
+        public EntryIterator() {
+            this.section = 0;
+            this.table = sections[0].table;
+            this.index = 0;
+            this.next = null;
+            this.last = null;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<Long, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            advance();
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            ConcurrentLongHashMap.this.remove(last.getKey().longValue(), last.getValue());
+            last = null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (next == null) {
+                if (index == table.capacity()) {
+                    if (++section == sections.length) {
+                        return;
+                    }
+                    table = sections[section].table;
+                    index = 0;
+                    continue;
+                }
+                Object value = table.values.get(index);
+                if ((value != null) && (value != TOMBSTONE)) {
+                    next = new AbstractMap.SimpleImmutableEntry<Long, V>(Long.valueOf(table.keys[index]), (V) value);
+                }
+                ++index;
+            }
+        }
+    }
+}
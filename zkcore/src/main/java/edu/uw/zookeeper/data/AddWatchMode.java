@@ -0,0 +1,45 @@
+package edu.uw.zookeeper.data;
+
+/**
+ * Modes of watches that aren't removed when triggered.
+ */
+public enum AddWatchMode {
+    /**
+     * Triggered by changes to the node and its children.
+     */
+    PERSISTENT(0, 4), 
+    /**
+     * Triggered by changes to the node and its descendants, but not by changes to children lists.
+     */
+    PERSISTENT_RECURSIVE(1, 5);
+
+    public static AddWatchMode valueOf(int value) {
+        switch (value) {
+        case 0:
+            return PERSISTENT;
+        case 1:
+            return PERSISTENT_RECURSIVE;
+        default:
+            throw new IllegalArgumentException(String.valueOf(value));
+        }
+    }
+
+    private final int value;
+    private final int watcherType;
+    
+    private AddWatchMode(int value, int watcherType) {
+        this.value = value;
+        this.watcherType = watcherType;
+    }
+    
+    public int intValue() {
+        return value;
+    }
+
+    /**
+     * @return watcher type that removes watches of this mode
+     */
+    public int watcherType() {
+        return watcherType;
+    }
+}
@@ -1,7 +1,11 @@
 package edu.uw.zookeeper.data;
 
+/**
+ * TTL is not a bit of a ZooKeeper create mode,
+ * so the modes with a TTL have values of their own.
+ */
 public enum CreateFlag {
-    PERSISTENT(0), EPHEMERAL(1), SEQUENTIAL(2);
+    PERSISTENT(0), EPHEMERAL(1), SEQUENTIAL(2), CONTAINER(4), TTL(8);
 
     public static CreateFlag valueOf(int value) {
         switch (value) {
@@ -11,6 +15,10 @@ public enum CreateFlag {
             return EPHEMERAL;
         case 2:
             return SEQUENTIAL;
+        case 4:
+            return CONTAINER;
+        case 8:
+            return TTL;
         default:
             throw new IllegalArgumentException(String.valueOf(value));
         }
@@ -2,11 +2,17 @@ package edu.uw.zookeeper.data;
 
 import com.google.common.collect.ImmutableSet;
 
+/**
+ * Values match ZooKeeper's, where containers and TTLs are >= 3.5.3.
+ */
 public enum CreateMode {
-    PERSISTENT(CreateFlag.PERSISTENT),
-    PERSISTENT_SEQUENTIAL(CreateFlag.PERSISTENT, CreateFlag.SEQUENTIAL),
-    EPHEMERAL(CreateFlag.EPHEMERAL),
-    EPHEMERAL_SEQUENTIAL(CreateFlag.EPHEMERAL, CreateFlag.SEQUENTIAL);
+    PERSISTENT(0, CreateFlag.PERSISTENT),
+    PERSISTENT_SEQUENTIAL(2, CreateFlag.PERSISTENT, CreateFlag.SEQUENTIAL),
+    EPHEMERAL(1, CreateFlag.EPHEMERAL),
+    EPHEMERAL_SEQUENTIAL(3, CreateFlag.EPHEMERAL, CreateFlag.SEQUENTIAL),
+    CONTAINER(4, CreateFlag.CONTAINER),
+    PERSISTENT_WITH_TTL(5, CreateFlag.PERSISTENT, CreateFlag.TTL),
+    PERSISTENT_SEQUENTIAL_WITH_TTL(6, CreateFlag.PERSISTENT, CreateFlag.SEQUENTIAL, CreateFlag.TTL);
 
     public static CreateMode valueOf(int value) {
         switch (value) {
@@ -18,6 +24,12 @@ public enum CreateMode {
             return PERSISTENT_SEQUENTIAL;
         case 3: 
             return EPHEMERAL_SEQUENTIAL;
+        case 4:
+            return CONTAINER;
+        case 5:
+            return PERSISTENT_WITH_TTL;
+        case 6:
+            return PERSISTENT_SEQUENTIAL_WITH_TTL;
         default:
             throw new IllegalArgumentException(String.valueOf(value));
         }
@@ -26,12 +38,8 @@ public enum CreateMode {
     private final ImmutableSet<CreateFlag> flags;
     private final int value;
 
-    private CreateMode(CreateFlag...flags) {
+    private CreateMode(int value, CreateFlag...flags) {
         this.flags = ImmutableSet.copyOf(flags);
-        int value = 0;
-        for (CreateFlag f: flags) {
-            value = value | f.intValue();
-        }
         this.value = value;
     }
     
@@ -45,6 +53,8 @@ public enum CreateMode {
             return PERSISTENT_SEQUENTIAL;
         case EPHEMERAL:
             return EPHEMERAL_SEQUENTIAL;
+        case PERSISTENT_WITH_TTL:
+            return PERSISTENT_SEQUENTIAL_WITH_TTL;
         default:
             return this;
         }
@@ -69,6 +79,14 @@ public enum CreateMode {
         return contains(CreateFlag.SEQUENTIAL);
     }
     
+    public boolean isContainer() {
+        return contains(CreateFlag.CONTAINER);
+    }
+    
+    public boolean isTtl() {
+        return contains(CreateFlag.TTL);
+    }
+    
     public int intValue() {
         return value;
     }
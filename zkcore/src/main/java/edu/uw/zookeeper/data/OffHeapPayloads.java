@@ -0,0 +1,183 @@
+package edu.uw.zookeeper.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Stores znode payloads in pooled direct buffers,
+ * so that large payloads don't count towards the heap.
+ *
+ * A buffer is returned to the pool once its payload is unreachable,
+ * rather than when it is replaced or deleted, because published views,
+ * snapshots and responses may still refer to it.
+ * So each payload costs a few small objects on the heap
+ * regardless of its length, and payloads shorter than that aren't worth moving.
+ *
+ * Payloads decoded as slices of a frame share the frame's buffer instead,
+ * which is released the same way.
+ *
+ * Threadsafe.
+ */
+public final class OffHeapPayloads {
+
+    public static OffHeapPayloads getInstance() {
+        return Holder.INSTANCE.get();
+    }
+
+    public static OffHeapPayloads create(ByteBufAllocator allocator) {
+        return new OffHeapPayloads(allocator);
+    }
+
+    public static enum Holder implements Supplier<OffHeapPayloads> {
+        INSTANCE(create(PooledByteBufAllocator.DEFAULT));
+
+        private final OffHeapPayloads instance;
+
+        private Holder(OffHeapPayloads instance) {
+            this.instance = instance;
+        }
+
+        @Override
+        public OffHeapPayloads get() {
+            return instance;
+        }
+    }
+
+    private final ByteBufAllocator allocator;
+    private final ReferenceQueue<Payload> unreachable;
+    // keeps reclaimers reachable until their payload isn't
+    private final Reclaimer reclaimers;
+
+    protected OffHeapPayloads(ByteBufAllocator allocator) {
+        this.allocator = allocator;
+        this.unreachable = new ReferenceQueue<Payload>();
+        this.reclaimers = new Reclaimer();
+    }
+
+    public Payload store(byte[] bytes) {
+        return wrap(allocator.directBuffer(bytes.length, bytes.length).writeBytes(bytes));
+    }
+
+    /**
+     * Takes over a reference to <code>buffer</code> without copying it,
+     * such as a retained slice of a decoded frame.
+     */
+    public Payload wrap(ByteBuf buffer) {
+        reclaim();
+        Payload payload = new Payload(buffer);
+        new Reclaimer(payload, buffer, unreachable).link(reclaimers);
+        return payload;
+    }
+
+    /**
+     * Called by <code>wrap</code>.
+     *
+     * @return number of buffers returned to the pool
+     */
+    public int reclaim() {
+        int count = 0;
+        Reference<? extends Payload> next;
+        while ((next = unreachable.poll()) != null) {
+            Reclaimer reclaimer = (Reclaimer) next;
+            reclaimer.unlink(reclaimers);
+            reclaimer.release();
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Immutable.
+     */
+    public static final class Payload {
+
+        private final ByteBuf buffer;
+
+        protected Payload(ByteBuf buffer) {
+            this.buffer = buffer;
+        }
+
+        public int length() {
+            return buffer.writerIndex();
+        }
+
+        /**
+         * Writes this payload to <code>output</code> without copying it to the heap.
+         */
+        public void writeTo(ByteBuf output) {
+            output.writeBytes(buffer, 0, length());
+        }
+
+        /**
+         * @return read-only view with its own reference, for the caller to release
+         */
+        public ByteBuf retainedBuffer() {
+            return Unpooled.unmodifiableBuffer(buffer.slice(0, length())).retain();
+        }
+
+        public byte[] toByteArray() {
+            byte[] bytes = new byte[length()];
+            buffer.getBytes(0, bytes);
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Payload(%d)", length());
+        }
+    }
+
+    /**
+     * Doubly-linked so that unlinking is constant time.
+     * Links are guarded by the list head.
+     */
+    protected static final class Reclaimer extends PhantomReference<Payload> {
+
+        private final ByteBuf buffer;
+        private Reclaimer previous;
+        private Reclaimer next;
+
+        // list head
+        protected Reclaimer() {
+            super(null, null);
+            this.buffer = null;
+            this.previous = this;
+            this.next = this;
+        }
+
+        protected Reclaimer(Payload payload, ByteBuf buffer, ReferenceQueue<Payload> queue) {
+            super(payload, queue);
+            this.buffer = buffer;
+        }
+
+        protected void link(Reclaimer head) {
+            synchronized (head) {
+                previous = head;
+                next = head.next;
+                head.next.previous = this;
+                head.next = this;
+            }
+        }
+
+        protected void unlink(Reclaimer head) {
+            synchronized (head) {
+                previous.next = next;
+                next.previous = previous;
+                previous = null;
+                next = null;
+            }
+        }
+
+        protected void release() {
+            buffer.release();
+        }
+    }
+}
@@ -189,6 +189,42 @@ public abstract class Operations {
             }
         }
 
+        public static class AddWatch extends AbstractPath<IAddWatchRequest, AddWatch> {
+
+            public static AddWatch fromRecord(IAddWatchRequest request) {
+                ZNodePath path = (ZNodePath) ZNodeLabelVector.fromString(request.getPath());
+                AddWatchMode mode = AddWatchMode.valueOf(request.getMode());
+                return new AddWatch(path, mode);
+            }
+            
+            protected AddWatchMode mode;
+            
+            public AddWatch() {
+                super(OpCode.ADD_WATCH);
+                this.mode = AddWatchMode.PERSISTENT;
+            }
+
+            public AddWatch(ZNodePath path, AddWatchMode mode) {
+                super(OpCode.ADD_WATCH, path);
+                this.mode = mode;
+            }
+            
+            public AddWatchMode getMode() {
+                return mode;
+            }
+            
+            public AddWatch setMode(AddWatchMode mode) {
+                this.mode = checkNotNull(mode);
+                return this;
+            }
+            
+            @Override
+            public IAddWatchRequest build() {
+                return new IAddWatchRequest(
+                        getPath().toString(), getMode().intValue());
+            }
+        }
+
         public static class Check extends AbstractVersion<ICheckVersionRequest, Check> {
 
             public static Check fromRecord(ICheckVersionRequest request) {
@@ -286,42 +322,75 @@ public abstract class Operations {
                 byte[] data = record.getData();
                 CreateMode mode = CreateMode.valueOf(record.getFlags());
                 List<Acls.Acl> acl = Acls.Acl.fromRecordList(record.getAcl());
-                return new Create(opcode, path, data, mode, acl);
+                long ttl = (record instanceof ICreateTTLRequest) ? ((ICreateTTLRequest) record).getTtl() : 0L;
+                return new Create(opcode, path, data, mode, acl, ttl);
             }
             
             protected CreateMode mode;
             protected List<Acls.Acl> acl;
+            protected long ttl;
             
             public Create() {
                 super(OpCode.CREATE);
                 this.mode = CreateMode.PERSISTENT;
                 this.acl = Acls.Definition.ANYONE_ALL.asList();
+                this.ttl = 0L;
             }
 
             public Create(OpCode opcode, ZNodePath path, byte[] data, CreateMode mode, List<Acls.Acl> acl) {
+                this(opcode, path, data, mode, acl, 0L);
+            }
+
+            public Create(OpCode opcode, ZNodePath path, byte[] data, CreateMode mode, List<Acls.Acl> acl, long ttl) {
                 super(opcode, path, data);
                 this.mode = mode;
                 this.acl = acl;
+                this.ttl = ttl;
             }
             
             public CreateMode getMode() {
                 return mode;
             }
             
+            /**
+             * A mode with a TTL is created by a CREATE_TTL request.
+             */
             public Create setMode(CreateMode mode) {
                 this.mode = checkNotNull(mode);
+                if (mode.isTtl()) {
+                    setOpCode(OpCode.CREATE_TTL);
+                } else if (getOpCode() == OpCode.CREATE_TTL) {
+                    setOpCode(OpCode.CREATE2);
+                }
+                return this;
+            }
+            
+            public long getTtl() {
+                return ttl;
+            }
+            
+            /**
+             * >= 3.5.3
+             * 
+             * @param ttl milliseconds since the last change 
+             *      after which a node with a TTL mode and no children is deleted
+             */
+            public Create setTtl(long ttl) {
+                this.ttl = ttl;
                 return this;
             }
             
             public boolean getStat() {
-                return (getOpCode() == OpCode.CREATE2);
+                return (getOpCode() == OpCode.CREATE2) || (getOpCode() == OpCode.CREATE_TTL);
             }
             
             /**
              * >= 3.5.0
              */
             public Create setStat(boolean getStat) {
-                setOpCode(getStat? OpCode.CREATE2 : OpCode.CREATE);
+                if (getOpCode() != OpCode.CREATE_TTL) {
+                    setOpCode(getStat? OpCode.CREATE2 : OpCode.CREATE);
+                }
                 return this;
             }
             
@@ -340,6 +409,9 @@ public abstract class Operations {
                 byte[] data = getData();
                 List<ACL> acls = Acls.Acl.asRecordList(getAcl());
                 int mode = getMode().intValue();
+                if (getOpCode() == OpCode.CREATE_TTL) {
+                    return new ICreateTTLRequest(path, data, acls, mode, getTtl());
+                }
                 Records.Request record = getStat() 
 //                        ? new ICreate2Request(path, data, acls, mode)
                         ? new ICreateRequest(path, data, acls, mode)
@@ -439,6 +511,27 @@ public abstract class Operations {
             }
         }
         
+        public static class GetAllChildrenNumber extends AbstractPath<IGetAllChildrenNumberRequest, GetAllChildrenNumber> {
+
+            public static GetAllChildrenNumber fromRecord(IGetAllChildrenNumberRequest request) {
+                ZNodePath path = (ZNodePath) ZNodeLabelVector.fromString(request.getPath());
+                return new GetAllChildrenNumber(path);
+            }
+            
+            public GetAllChildrenNumber() {
+                super(OpCode.GET_ALL_CHILDREN_NUMBER);
+            }
+
+            public GetAllChildrenNumber(ZNodePath path) {
+                super(OpCode.GET_ALL_CHILDREN_NUMBER, path);
+            }
+
+            @Override
+            public IGetAllChildrenNumberRequest build() {
+                return new IGetAllChildrenNumberRequest(getPath().toString());
+            }
+        }
+        
         public static class GetChildren extends AbstractWatch<Records.Request, GetChildren> {
 
             public static GetChildren fromRecord(Records.Request request) {
@@ -757,12 +850,15 @@ public abstract class Operations {
         
         public static Builder<? extends Records.Request> fromRecord(Records.Request record) {
             switch (record.opcode()) {
+            case ADD_WATCH:
+                return AddWatch.fromRecord((IAddWatchRequest) record);
             case CHECK:
                 return Check.fromRecord((ICheckVersionRequest) record);
             case CREATE_SESSION:
                 return Connect.fromRecord((ConnectMessage.Request) record);
             case CREATE:
             case CREATE2:
+            case CREATE_TTL:
                 return Create.fromRecord(record);
             case CLOSE_SESSION:
                 return Disconnect.fromRecord((IDisconnectRequest) record);
@@ -772,6 +868,8 @@ public abstract class Operations {
                 return Exists.fromRecord((IExistsRequest) record);
             case GET_ACL:
                 return GetAcl.fromRecord((IGetACLRequest) record);
+            case GET_ALL_CHILDREN_NUMBER:
+                return GetAllChildrenNumber.fromRecord((IGetAllChildrenNumberRequest) record);
             case GET_CHILDREN:
             case GET_CHILDREN2:
                 return GetChildren.fromRecord(record);
@@ -794,6 +892,8 @@ public abstract class Operations {
 
         public static Builder<? extends Records.Request> fromOpCode(OpCode opcode) {
             switch (opcode) {
+            case ADD_WATCH:
+                return addWatch();
             case CHECK:
                 return check();
             case CREATE_SESSION:
@@ -804,12 +904,16 @@ public abstract class Operations {
                 return create();
             case CREATE2:
                 return create().setStat(true);
+            case CREATE_TTL:
+                return create().setMode(CreateMode.PERSISTENT_WITH_TTL);
             case DELETE:
                 return delete();
             case EXISTS:
                 return exists();
             case GET_ACL:
                 return getAcl();
+            case GET_ALL_CHILDREN_NUMBER:
+                return getAllChildrenNumber();
             case GET_CHILDREN:
                 return getChildren();
             case GET_CHILDREN2:
@@ -831,6 +935,10 @@ public abstract class Operations {
             }
         }
 
+        public static AddWatch addWatch() {
+            return new AddWatch();
+        }
+
         public static Connect connect() {
             return new Connect();
         }
@@ -858,6 +966,10 @@ public abstract class Operations {
         public static GetAcl getAcl() {
             return new GetAcl();
         }
+
+        public static GetAllChildrenNumber getAllChildrenNumber() {
+            return new GetAllChildrenNumber();
+        }
         
         public static GetChildren getChildren() {
             return new GetChildren();
@@ -970,6 +1082,28 @@ public abstract class Operations {
             }
         }
 
+        public static enum AddWatch implements Builder<IAddWatchResponse> {
+            ADD_WATCH;
+            
+            public static AddWatch getInstance() {
+                return ADD_WATCH;
+            }
+            
+            public static AddWatch fromRecord(IAddWatchResponse request) {
+                return getInstance();
+            }
+
+            @Override
+            public OpCode getOpCode() {
+                return OpCode.ADD_WATCH;
+            }
+
+            @Override
+            public IAddWatchResponse build() {
+                return Records.getShared(IAddWatchResponse.class);
+            }
+        }
+    
         public static class Check extends AbstractStat<ICheckVersionResponse, Check> {
 
             public static Check fromRecord(ICheckVersionResponse record) {
@@ -1028,16 +1162,39 @@ public abstract class Operations {
     
             @Override
             public Create setStat(Stat stat) {
-                setOpCode((stat != null) ? OpCode.CREATE2 : OpCode.CREATE);
+                if (getOpCode() != OpCode.CREATE_TTL) {
+                    setOpCode((stat != null) ? OpCode.CREATE2 : OpCode.CREATE);
+                }
                 super.setStat(stat);
                 return this;
             }
             
+            /**
+             * >= 3.5.3
+             */
+            public Create setTtl(boolean ttl) {
+                if (ttl) {
+                    setOpCode(OpCode.CREATE_TTL);
+                } else if (getOpCode() == OpCode.CREATE_TTL) {
+                    setOpCode(OpCode.CREATE2);
+                }
+                return this;
+            }
+            
             @Override
             public Records.Response build() {
-                Records.Response record = (getOpCode() == OpCode.CREATE2)
-                        ? new ICreate2Response(getPath().toString(), getStat())
-                        : new ICreateResponse(getPath().toString());
+                Records.Response record;
+                switch (getOpCode()) {
+                case CREATE2:
+                    record = new ICreate2Response(getPath().toString(), getStat());
+                    break;
+                case CREATE_TTL:
+                    record = new ICreateTTLResponse(getPath().toString(), getStat());
+                    break;
+                default:
+                    record = new ICreateResponse(getPath().toString());
+                    break;
+                }
                 return record;
             }
         }
@@ -1174,6 +1331,38 @@ public abstract class Operations {
             }
         }
         
+        public static class GetAllChildrenNumber extends AbstractBuilder<IGetAllChildrenNumberResponse> {
+
+            public static GetAllChildrenNumber fromRecord(IGetAllChildrenNumberResponse record) {
+                return new GetAllChildrenNumber(record.getTotalNumber());
+            }
+            
+            protected int totalNumber;
+            
+            public GetAllChildrenNumber() {
+                this(0);
+            }
+            
+            public GetAllChildrenNumber(int totalNumber) {
+                super(OpCode.GET_ALL_CHILDREN_NUMBER);
+                this.totalNumber = totalNumber;
+            }
+    
+            public int getTotalNumber() {
+                return totalNumber;
+            }
+            
+            public GetAllChildrenNumber setTotalNumber(int totalNumber) {
+                this.totalNumber = totalNumber;
+                return this;
+            }
+            
+            @Override
+            public IGetAllChildrenNumberResponse build() {
+                return new IGetAllChildrenNumberResponse(getTotalNumber());
+            }
+        }
+    
         public static class GetChildren extends AbstractStat<Records.Response, GetChildren> {
 
             public static GetChildren fromRecord(Records.Response record) {
@@ -1465,10 +1654,13 @@ public abstract class Operations {
 
         public static Builder<? extends Records.Response> fromRecord(Records.Response record) {
             switch (record.opcode()) {
+            case ADD_WATCH:
+                return AddWatch.fromRecord((IAddWatchResponse) record);
             case CHECK:
                 return Check.fromRecord((ICheckVersionResponse) record);
             case CREATE:
             case CREATE2:
+            case CREATE_TTL:
                 return Create.fromRecord(record);
             case CREATE_SESSION:
                 return Connect.fromRecord((ConnectMessage.Response) record);
@@ -1482,6 +1674,8 @@ public abstract class Operations {
                 return Exists.fromRecord((IExistsResponse) record);
             case GET_ACL:
                 return GetAcl.fromRecord((IGetACLResponse) record);
+            case GET_ALL_CHILDREN_NUMBER:
+                return GetAllChildrenNumber.fromRecord((IGetAllChildrenNumberResponse) record);
             case GET_CHILDREN:
             case GET_CHILDREN2:
                 return GetChildren.fromRecord(record);
@@ -1506,12 +1700,16 @@ public abstract class Operations {
         
         public static Builder<? extends Records.Response> fromOpCode(OpCode opcode) {
             switch (opcode) {
+            case ADD_WATCH:
+                return addWatch();
             case CHECK:
                 return check();
             case CREATE:
                 return create();
             case CREATE2:
                 return create().setStat(Stats.ImmutableStat.uninitialized());
+            case CREATE_TTL:
+                return create().setTtl(true).setStat(Stats.ImmutableStat.uninitialized());
             case CREATE_SESSION:
                 return connect();
             case CLOSE_SESSION:
@@ -1524,6 +1722,8 @@ public abstract class Operations {
                 return exists();
             case GET_ACL:
                 return getAcl();
+            case GET_ALL_CHILDREN_NUMBER:
+                return getAllChildrenNumber();
             case GET_CHILDREN:
                 return getChildren();
             case GET_CHILDREN2:
@@ -1547,6 +1747,10 @@ public abstract class Operations {
             }
         }
 
+        public static AddWatch addWatch() {
+            return AddWatch.getInstance();
+        }
+        
         public static Check check() {
             return new Check();
         }
@@ -1578,6 +1782,10 @@ public abstract class Operations {
         public static GetAcl getAcl() {
             return new GetAcl();
         }
+
+        public static GetAllChildrenNumber getAllChildrenNumber() {
+            return new GetAllChildrenNumber();
+        }
     
         public static GetChildren getChildren() {
             return new GetChildren();
@@ -23,7 +23,7 @@ public final class ZNodeLabel extends AbstractZNodeLabel {
             char c = label.charAt(i);
             if (c == SLASH) {
                 throw new IllegalArgumentException(String.format("Slash at index %d of %s", i, label));
-            } else if (ILLEGAL_CHARACTERS.matches(c)) {
+            } else if (isIllegal(c)) {
                 throw new IllegalArgumentException(String.format("Illegal character at index %d of %s", i, label));
             }
         }
@@ -38,6 +38,10 @@ public final class ZNodeLabel extends AbstractZNodeLabel {
         return fromString(validate(label, start, end));
     }
     
+    public static boolean isIllegal(char c) {
+        return ILLEGAL_CHARACTERS.matches(c);
+    }
+    
     @Serializes(from=String.class, to=ZNodeLabel.class)
     public static ZNodeLabel fromString(String label) {
         assert(! label.isEmpty());
@@ -20,27 +20,44 @@ public abstract class ZNodePath extends ZNodeLabelVector {
         return validate(path, 0, path.length());
     }
 
+    /**
+     * Checks slashes, characters and reserved labels in a single pass
+     * without allocating labels.
+     */
     @SuppressWarnings("unchecked")
     public static <T extends CharSequence> T validate(T path, int start, int end) {
-        if (start < end) {
-            if (path.charAt(start) != SLASH) {
-                throw new IllegalArgumentException(String.format("Missing slash at index %d for %s", start, path));
-            }
-            if ((start + 1) < end) {
-                int j = start+1;
-                while (j<end && (path.charAt(j) != SLASH)) {
-                    j++;
-                }
-                if (j < end) {
-                    RelativeZNodePath.validate(path, start+1, end);
-                } else {
-                    ZNodeLabel.validate(path, start+1, end);
-                }
-            }
-            return ((start > 0) || (end < path.length() - 1)) ? (T) path.subSequence(start, end) : path;
-        } else {
+        if (start >= end) {
             throw new IllegalArgumentException(String.format("Empty index range [%d,%d) for %s", start, end, path));
         }
+        if (path.charAt(start) != SLASH) {
+            throw new IllegalArgumentException(String.format("Missing slash at index %d for %s", start, path));
+        }
+        int labelStart = start+1;
+        for (int i=labelStart; i<end; ++i) {
+            char c = path.charAt(i);
+            if (c == SLASH) {
+                validateLabel(path, labelStart, i);
+                labelStart = i+1;
+            } else if (ZNodeLabel.isIllegal(c)) {
+                throw new IllegalArgumentException(String.format("Illegal character at index %d of %s", i, path));
+            }
+        }
+        if (labelStart < end) {
+            validateLabel(path, labelStart, end);
+        } else if (labelStart > start+1) {
+            throw new IllegalArgumentException(String.format("Trailing slash at index %d in %s", end-1, path));
+        }
+        return ((start > 0) || (end < path.length() - 1)) ? (T) path.subSequence(start, end) : path;
+    }
+
+    protected static void validateLabel(CharSequence path, int start, int end) {
+        if (start == end) {
+            throw new IllegalArgumentException(String.format("Empty label at index %d in %s", start, path));
+        }
+        // self or parent
+        if ((end - start <= 2) && (path.charAt(start) == '.') && (path.charAt(end-1) == '.')) {
+            throw new IllegalArgumentException(String.format("Illegal label at index %d in %s", start, path));
+        }
     }
 
     public static ZNodePath validated(String path) {
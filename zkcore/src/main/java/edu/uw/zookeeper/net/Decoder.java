@@ -7,4 +7,16 @@ import java.io.IOException;
 public interface Decoder<O,T> {
     Class<? extends T> decodeType();
     O decode(ByteBuf input) throws IOException;
+    
+    /**
+     * Decoder that knows how much more input a partially decoded message needs,
+     * so that the input can be grown once rather than on every read.
+     */
+    public static interface Pending<O,T> extends Decoder<O,T> {
+        
+        /**
+         * @return bytes missing from the input of the last decode, or zero if no message is pending
+         */
+        int pendingBytes();
+    }
 }
@@ -8,4 +8,28 @@ import java.io.IOException;
 public interface Encoder<I,T> {
     Class<? extends T> encodeType();
     void encode(I input, ByteBuf output) throws IOException;
+    
+    /**
+     * Encoder of messages that may already be encoded,
+     * such as a message written to many connections.
+     */
+    public static interface Shared<I,T> extends Encoder<I,T> {
+        
+        /**
+         * @return buffer to write instead of encoding <code>input</code>, or null to encode it
+         */
+        ByteBuf encoded(I input) throws IOException;
+    }
+    
+    /**
+     * Encoder that can compute the length of an encoding up front,
+     * so that the output is allocated once at its final size.
+     */
+    public static interface Sized<I,T> extends Encoder<I,T> {
+        
+        /**
+         * @return encoded length of <code>input</code>, or negative if unknown
+         */
+        int encodedSize(I input) throws IOException;
+    }
 }
@@ -63,7 +63,22 @@ public class DecoderHandler extends ByteToMessageDecoder {
                     logger.trace(LoggingMarker.NET_MARKER.get(), "DECODED {} ({})", message, ctx.channel());
                 }
                 output.add(message);
+            } else if (decoder instanceof Decoder.Pending) {
+                reserve(input, ((Decoder.Pending<?,?>) decoder).pendingBytes());
             }
         }
     }
+    
+    /**
+     * Grows the cumulated input once to fit the rest of a partially received message,
+     * rather than letting it grow with each read.
+     */
+    protected void reserve(ByteBuf input, int pendingBytes) {
+        // a shared cumulation is copied on the next read anyway
+        if ((pendingBytes > input.writableBytes())
+                && (pendingBytes <= input.maxWritableBytes())
+                && (input.refCnt() == 1)) {
+            input.ensureWritable(pendingBytes);
+        }
+    }
 }
@@ -12,6 +12,8 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.EncoderException;
 import io.netty.handler.codec.MessageToByteEncoder;
 
 public class EncoderHandler<I> extends MessageToByteEncoder<I> {
@@ -60,6 +62,47 @@ public class EncoderHandler<I> extends MessageToByteEncoder<I> {
         super.read(ctx);
     }
     
+    /**
+     * Writes a buffer that is already encoded as is, 
+     * rather than copying it to a new buffer.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if ((encoder instanceof Encoder.Shared) && acceptOutboundMessage(msg)) {
+            ByteBuf encoded;
+            try {
+                encoded = ((Encoder.Shared<? super I, ?>) encoder).encoded((I) msg);
+            } catch (Throwable e) {
+                throw new EncoderException(e);
+            }
+            if (encoded != null) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace(LoggingMarker.NET_MARKER.get(), "ENCODED {} ({})", msg, ctx.channel());
+                }
+                ctx.write(encoded, promise);
+                return;
+            }
+        }
+        super.write(ctx, msg, promise);
+    }
+    
+    /**
+     * Allocates the output at its final size if the encoder can compute it,
+     * rather than letting it grow while encoding.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, I msg, boolean preferDirect) throws Exception {
+        if (encoder instanceof Encoder.Sized) {
+            int length = ((Encoder.Sized<? super I, ?>) encoder).encodedSize(msg);
+            if (length >= 0) {
+                return preferDirect ? ctx.alloc().ioBuffer(length) : ctx.alloc().heapBuffer(length);
+            }
+        }
+        return super.allocateBuffer(ctx, msg, preferDirect);
+    }
+    
     @Override
     protected void encode(ChannelHandlerContext ctx, I message, ByteBuf output) throws IOException {
         if (logger.isTraceEnabled()) {
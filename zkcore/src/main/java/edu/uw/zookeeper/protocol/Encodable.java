@@ -6,4 +6,11 @@ import java.io.IOException;
 
 public interface Encodable {
     void encode(ByteBuf output) throws IOException;
+
+    /**
+     * Encodable whose length can be computed without encoding it.
+     */
+    public static interface Sized extends Encodable {
+        int encodedSize() throws IOException;
+    }
 }
@@ -8,7 +8,7 @@ import com.google.common.base.Supplier;
 
 import edu.uw.zookeeper.net.Encoder;
 
-public class EncodableEncoder implements Encoder<Encodable, Encodable> {
+public class EncodableEncoder implements Encoder.Sized<Encodable, Encodable> {
     
     public static EncodableEncoder getInstance() {
         return Holder.INSTANCE.get();
@@ -40,4 +40,9 @@ public class EncodableEncoder implements Encoder<Encodable, Encodable> {
     public void encode(Encodable input, ByteBuf output) throws IOException {
         input.encode(output);
     }
+
+    @Override
+    public int encodedSize(Encodable input) throws IOException {
+        return (input instanceof Encodable.Sized) ? ((Encodable.Sized) input).encodedSize() : -1;
+    }
 }
@@ -9,6 +9,8 @@ import java.io.IOException;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.apache.zookeeper.client.ZKClientConfig;
+import org.apache.zookeeper.common.ZKConfig;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
@@ -30,7 +32,7 @@ public final class Frame extends AbstractPair<IntHeader, ByteBuf> implements Enc
         return new Frame(header, buffer);
     }
     
-    public static final class FramedEncoder<I,T> implements Encoder<I,T> {
+    public static final class FramedEncoder<I,T> implements Encoder.Sized<I,T> {
 
         public static <I,T> FramedEncoder<I,T> create(Encoder<I,T> messageEncoder) {
             return new FramedEncoder<I,T>(messageEncoder);
@@ -53,6 +55,19 @@ public final class Frame extends AbstractPair<IntHeader, ByteBuf> implements Enc
             return messageEncoder.encodeType();
         }
 
+        /**
+         * @return negative unless the message encoder can compute its length
+         */
+        @SuppressWarnings("unchecked")
+        @Override
+        public int encodedSize(I input) throws IOException {
+            if (! (messageEncoder instanceof Encoder.Sized)) {
+                return -1;
+            }
+            int length = ((Encoder.Sized<I,T>) messageEncoder).encodedSize(input);
+            return (length < 0) ? length : IntHeader.length() + length;
+        }
+
         @Override
         public void encode(I input, ByteBuf output) throws IOException {
             int beginIndex = output.writerIndex();
@@ -80,12 +95,18 @@ public final class Frame extends AbstractPair<IntHeader, ByteBuf> implements Enc
     }
 
     /**
-     * Shareable
+     * Not shareable, because it remembers the length of a partially received frame.
      */
-    public static final class FrameDecoder implements Decoder<Optional<Frame>, Frame> {
+    public static final class FrameDecoder implements Decoder.Pending<Optional<Frame>, Frame> {
+
+        /**
+         * Same limit as the ZooKeeper client.
+         */
+        public static final int DEFAULT_MAX_LENGTH = Integer.getInteger(
+                ZKConfig.JUTE_MAXBUFFER, ZKClientConfig.CLIENT_MAX_PACKET_LENGTH_DEFAULT);
 
         public static FrameDecoder getDefault() {
-            return create(Range.atLeast(Integer.valueOf(0)));
+            return create(Range.closed(Integer.valueOf(0), Integer.valueOf(DEFAULT_MAX_LENGTH)));
         }
         
         public static FrameDecoder create(Range<Integer> bounds) {
@@ -93,9 +114,14 @@ public final class Frame extends AbstractPair<IntHeader, ByteBuf> implements Enc
         }
         
         private final Range<Integer> bounds;
+        // negative until a header is read
+        private int length;
+        private int pendingBytes;
         
         public FrameDecoder(Range<Integer> bounds) {
             this.bounds = checkNotNull(bounds);
+            this.length = -1;
+            this.pendingBytes = 0;
         }
         
         public Range<Integer> bounds() {
@@ -107,41 +133,52 @@ public final class Frame extends AbstractPair<IntHeader, ByteBuf> implements Enc
             return Frame.class;
         }
 
+        @Override
+        public int pendingBytes() {
+            return pendingBytes;
+        }
+
         /**
+         * Doesn't consume input until the whole frame is readable,
+         * but only reads the header of a frame once.
+         * 
          * DO NOT discard read bytes until you are done with the returned Frame.
          * Make sure to release() the returned Frame when you are done with it.
          */
         @Override
         public Optional<Frame> decode(ByteBuf input) {
-            Optional<Frame> output = Optional.absent();
-            input.markReaderIndex();
-            try {
-                Optional<IntHeader> headerOutput = IntHeader.decode(input);
-                if (headerOutput.isPresent()) {
-                    IntHeader header = headerOutput.get();
-                    int length = header.intValue();
-                    if (! bounds.contains(length)) {
-                        throw new IllegalArgumentException(String.format("Out of bounds frame header %s (%s)", header, bounds));
-                    }
-                    if (input.readableBytes() >= length) {
-                        ByteBuf buffer = (length > 0) 
-                                ? input.readSlice(length)
-                                : Unpooled.EMPTY_BUFFER;
-                        input.retain();
-                        Frame frame = Frame.of(header, buffer);
-                        output = Optional.of(frame);
-                    }
+            int headerLength = IntHeader.length();
+            if (length < 0) {
+                if (input.readableBytes() < headerLength) {
+                    return Optional.absent();
                 }
-            } finally {
-                if (! output.isPresent()) {
-                    input.resetReaderIndex();
+                int value = input.getInt(input.readerIndex());
+                if (! bounds.contains(value)) {
+                    throw new IllegalArgumentException(String.format("Out of bounds frame header %s (%s)", IntHeader.of(value), bounds));
                 }
+                length = value;
             }
-            return output;
+            int missing = headerLength + length - input.readableBytes();
+            if (missing > 0) {
+                pendingBytes = missing;
+                return Optional.absent();
+            }
+            input.skipBytes(headerLength);
+            ByteBuf buffer;
+            if (length > 0) {
+                buffer = input.readSlice(length);
+                input.retain();
+            } else {
+                buffer = Unpooled.EMPTY_BUFFER;
+            }
+            Frame frame = Frame.of(IntHeader.of(length), buffer);
+            length = -1;
+            pendingBytes = 0;
+            return Optional.of(frame);
         }
     }
     
-    public static final class FramedDecoder<O,T> implements Decoder<Optional<O>, T> {
+    public static final class FramedDecoder<O,T> implements Decoder.Pending<Optional<O>, T> {
         
         public static <O,T> FramedDecoder<O,T> create(
                 FrameDecoder frameDecoder,
@@ -174,6 +211,11 @@ public final class Frame extends AbstractPair<IntHeader, ByteBuf> implements Enc
             return messageDecoder.decodeType();
         }
 
+        @Override
+        public int pendingBytes() {
+            return frameDecoder.pendingBytes();
+        }
+
         @Override
         public Optional<O> decode(ByteBuf input) throws IOException {
             Optional<O> output = Optional.absent(); 
@@ -13,9 +13,10 @@ import edu.uw.zookeeper.protocol.proto.ByteBufOutputArchive;
 import edu.uw.zookeeper.protocol.proto.IRequestHeader;
 import edu.uw.zookeeper.protocol.proto.OpCode;
 import edu.uw.zookeeper.protocol.proto.Records;
+import edu.uw.zookeeper.protocol.proto.SizeOutputArchive;
 
 
-public class ProtocolRequestMessage<T extends Records.Request> extends AbstractPair<IRequestHeader, T> implements Message.ClientRequest<T> {
+public class ProtocolRequestMessage<T extends Records.Request> extends AbstractPair<IRequestHeader, T> implements Message.ClientRequest<T>, Encodable.Sized {
 
     public static <T extends Records.Request> ProtocolRequestMessage<T> from(
             T request) {
@@ -40,7 +41,15 @@ public class ProtocolRequestMessage<T extends Records.Request> extends AbstractP
     }
 
     public static ProtocolRequestMessage<?> decode(ByteBuf input) throws IOException {
-        return deserialize(new ByteBufInputArchive(input));
+        return decode(input, -1);
+    }
+
+    /**
+     * @param minSliceLength data at least this long is decoded as a slice of <code>input</code>,
+     *        and a negative length disables it
+     */
+    public static ProtocolRequestMessage<?> decode(ByteBuf input, int minSliceLength) throws IOException {
+        return deserialize(new ByteBufInputArchive(input, minSliceLength));
     }
 
     public static ProtocolRequestMessage<?> deserialize(InputArchive archive) throws IOException {
@@ -92,6 +101,13 @@ public class ProtocolRequestMessage<T extends Records.Request> extends AbstractP
         serialize(archive);
     }
     
+    @Override
+    public int encodedSize() throws IOException {
+        SizeOutputArchive archive = new SizeOutputArchive();
+        serialize(archive);
+        return archive.size();
+    }
+    
     public void serialize(OutputArchive archive) throws IOException {
         Records.Requests.Headers.serialize(first, archive);
         Records.Requests.serialize(second, archive);
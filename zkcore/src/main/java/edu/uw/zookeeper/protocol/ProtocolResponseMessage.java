@@ -18,9 +18,10 @@ import edu.uw.zookeeper.protocol.proto.IReplyHeader;
 import edu.uw.zookeeper.protocol.proto.OpCode;
 import edu.uw.zookeeper.protocol.proto.OpCodeXid;
 import edu.uw.zookeeper.protocol.proto.Records;
+import edu.uw.zookeeper.protocol.proto.SizeOutputArchive;
 
 
-public class ProtocolResponseMessage<T extends Records.Response> extends AbstractPair<IReplyHeader, T> implements Message.ServerResponse<T> {
+public class ProtocolResponseMessage<T extends Records.Response> extends AbstractPair<IReplyHeader, T> implements Message.ServerResponse<T>, Encodable.Sized {
 
     public static <T extends Records.Response> ProtocolResponseMessage<T> of(
             int xid,
@@ -82,7 +83,17 @@ public class ProtocolResponseMessage<T extends Records.Response> extends Abstrac
     public static ProtocolResponseMessage<?> decode(
             Function<Integer, OpCode> xidToOpCode, ByteBuf input)
             throws IOException {
-        return deserialize(xidToOpCode, new ByteBufInputArchive(input));
+        return decode(xidToOpCode, input, -1);
+    }
+
+    /**
+     * @param minSliceLength data at least this long is decoded as a slice of <code>input</code>,
+     *        and a negative length disables it
+     */
+    public static ProtocolResponseMessage<?> decode(
+            Function<Integer, OpCode> xidToOpCode, ByteBuf input, int minSliceLength)
+            throws IOException {
+        return deserialize(xidToOpCode, new ByteBufInputArchive(input, minSliceLength));
     }
 
     public static ProtocolResponseMessage<?> deserialize(
@@ -146,6 +157,13 @@ public class ProtocolResponseMessage<T extends Records.Response> extends Abstrac
         serialize(archive);
     }
     
+    @Override
+    public int encodedSize() throws IOException {
+        SizeOutputArchive archive = new SizeOutputArchive();
+        serialize(archive);
+        return archive.size();
+    }
+    
     public void serialize(OutputArchive archive) throws IOException {
         Records.Responses.Headers.serialize(first, archive);
         // don't serialize errors
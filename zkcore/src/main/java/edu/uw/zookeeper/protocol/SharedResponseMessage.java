@@ -0,0 +1,61 @@
+package edu.uw.zookeeper.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+
+import org.apache.zookeeper.KeeperException;
+
+import edu.uw.zookeeper.net.Encoder;
+import edu.uw.zookeeper.protocol.proto.IReplyHeader;
+import edu.uw.zookeeper.protocol.proto.Records;
+import edu.uw.zookeeper.protocol.proto.SizeOutputArchive;
+
+/**
+ * Response that is written to many connections, such as a notification,
+ * which is framed and encoded once when it is first written,
+ * and then written to each connection as a duplicate of the same frame.
+ *
+ * The frame is an unreleasable heap buffer,
+ * so that any number of writes can release their duplicates
+ * without any one of them owning it.
+ */
+public class SharedResponseMessage<T extends Records.Response> extends ProtocolResponseMessage<T> {
+
+    public static <T extends Records.Response> SharedResponseMessage<T> of(
+            int xid,
+            long zxid,
+            T response) {
+        KeeperException.Code code = (response instanceof Operation.Error) ? ((Operation.Error) response).error() : KeeperException.Code.OK;
+        IReplyHeader header = Records.Responses.Headers.newInstance(xid, zxid, code);
+        return new SharedResponseMessage<T>(header, response);
+    }
+
+    protected static final Encoder.Sized<Encodable, ?> FRAMED = Frame.FramedEncoder.create(EncodableEncoder.getInstance());
+
+    private volatile ByteBuf frame;
+
+    protected SharedResponseMessage(IReplyHeader header, T response) {
+        super(header, response);
+        this.frame = null;
+    }
+
+    /**
+     * Threadsafe.
+     *
+     * @return new duplicate of the frame, including its length header
+     */
+    public ByteBuf frame() throws IOException {
+        ByteBuf frame = this.frame;
+        if (frame == null) {
+            // concurrent writers may each encode the same frame
+            ByteBuf buffer = SizeOutputArchive.isSized(record()) ? 
+                    Unpooled.buffer(FRAMED.encodedSize(this)) : Unpooled.buffer();
+            FRAMED.encode(this, buffer);
+            frame = Unpooled.unreleasableBuffer(buffer);
+            this.frame = frame;
+        }
+        return frame.duplicate();
+    }
+}
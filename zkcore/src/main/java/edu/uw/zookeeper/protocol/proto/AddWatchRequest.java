@@ -0,0 +1,83 @@
+package edu.uw.zookeeper.protocol.proto;
+
+import java.io.IOException;
+
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.jute.Record;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+/**
+ * Wire format of the ZooKeeper 3.6 addWatch request,
+ * which the 3.5 library doesn't define.
+ */
+public final class AddWatchRequest implements Record {
+
+    private String path;
+    private int mode;
+
+    public AddWatchRequest() {
+        this(null, 0);
+    }
+
+    public AddWatchRequest(String path, int mode) {
+        this.path = path;
+        this.mode = mode;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public void setMode(int mode) {
+        this.mode = mode;
+    }
+
+    @Override
+    public void serialize(OutputArchive archive, String tag) throws IOException {
+        archive.startRecord(this, tag);
+        archive.writeString(path, "path");
+        archive.writeInt(mode, "mode");
+        archive.endRecord(this, tag);
+    }
+
+    @Override
+    public void deserialize(InputArchive archive, String tag) throws IOException {
+        archive.startRecord(tag);
+        path = archive.readString("path");
+        mode = archive.readInt("mode");
+        archive.endRecord(tag);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("path", path).add("mode", mode).toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (! (obj instanceof AddWatchRequest)) {
+            return false;
+        }
+        AddWatchRequest other = (AddWatchRequest) obj;
+        return Objects.equal(path, other.path) && (mode == other.mode);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(path, mode);
+    }
+}
@@ -8,13 +8,26 @@ import org.apache.jute.Index;
 import org.apache.jute.InputArchive;
 import org.apache.jute.Record;
 
+import edu.uw.zookeeper.data.OffHeapPayloads;
+
 /**
  * Based on org.apache.jute.BinaryInputArchive
+ * 
+ * Buffers of at least <code>minSliceLength</code> bytes may be read
+ * as payloads that share the input rather than as copies,
+ * and a negative length disables it.
  */
 public class ByteBufInputArchive extends ByteBufArchive implements InputArchive {
 
+    protected final int minSliceLength;
+
     public ByteBufInputArchive(ByteBuf buffer) {
+        this(buffer, -1);
+    }
+
+    public ByteBufInputArchive(ByteBuf buffer, int minSliceLength) {
         super(buffer);
+        this.minSliceLength = minSliceLength;
     }
     
     @Override
@@ -53,9 +66,10 @@ public class ByteBufInputArchive extends ByteBufArchive implements InputArchive
         if (len == -1) {
             return null;
         }
-        byte b[] = new byte[len];
-        buffer.readBytes(b);
-        return new String(b, CHARSET);
+        // decodes in place rather than copying to a byte array first
+        int index = buffer.readerIndex();
+        buffer.skipBytes(len);
+        return buffer.toString(index, len, CHARSET);
     }
 
     @Override
@@ -69,6 +83,24 @@ public class ByteBufInputArchive extends ByteBufArchive implements InputArchive
         return b;
     }
 
+    /**
+     * A slice pins the whole buffer that it shares,
+     * so only a buffer that is at least half of it is sliced.
+     * 
+     * @return null without reading anything unless the buffer is sliced
+     */
+    public OffHeapPayloads.Payload readPayload(String tag) throws IOException {
+        if (minSliceLength < 0) {
+            return null;
+        }
+        int len = buffer.getInt(buffer.readerIndex());
+        if ((len < minSliceLength) || (len < capacityOf(buffer) / 2)) {
+            return null;
+        }
+        buffer.skipBytes(4);
+        return OffHeapPayloads.getInstance().wrap(buffer.readSlice(len).retain());
+    }
+
     @Override
     public void readRecord(Record r, String tag) throws IOException {
         r.deserialize(this, tag);
@@ -104,6 +136,13 @@ public class ByteBufInputArchive extends ByteBufArchive implements InputArchive
     public void endMap(String tag) throws IOException {
     }
     
+    protected static int capacityOf(ByteBuf buffer) {
+        while (buffer.unwrap() != null) {
+            buffer = buffer.unwrap();
+        }
+        return buffer.capacity();
+    }
+    
     public static class BufferIndex implements Index {
         
         private int nleft;
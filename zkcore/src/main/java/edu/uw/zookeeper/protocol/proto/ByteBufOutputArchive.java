@@ -1,18 +1,20 @@
 package edu.uw.zookeeper.protocol.proto;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 
 import java.io.IOException;
 import java.util.List;
 import java.util.TreeMap;
 
-import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
 
+import edu.uw.zookeeper.data.OffHeapPayloads;
+
 /**
  * Based on org.apache.jute.BinaryOutputArchive
  */
-public class ByteBufOutputArchive extends ByteBufArchive implements OutputArchive {
+public class ByteBufOutputArchive extends ByteBufArchive implements PayloadOutputArchive {
 
     public ByteBufOutputArchive(ByteBuf buffer) {
         super(buffer);
@@ -69,6 +71,25 @@ public class ByteBufOutputArchive extends ByteBufArchive implements OutputArchiv
         buffer.writeBytes(bytes);
     }
 
+    /**
+     * A composite output gathers the payload as a component rather than copying it,
+     * and later writes go to components after it.
+     */
+    @Override
+    public void writePayload(OffHeapPayloads.Payload payload, String tag) throws IOException {
+        int length = payload.length();
+        buffer.writeInt(length);
+        if ((buffer instanceof CompositeByteBuf) && (length > 0)) {
+            CompositeByteBuf composite = (CompositeByteBuf) buffer;
+            // drops unwritten capacity so that the payload follows what was written
+            composite.capacity(composite.writerIndex());
+            composite.addComponent(payload.retainedBuffer());
+            composite.writerIndex(composite.writerIndex() + length);
+        } else {
+            payload.writeTo(buffer);
+        }
+    }
+
     @Override
     public void writeRecord(Record r, String tag) throws IOException {
         r.serialize(this, tag);
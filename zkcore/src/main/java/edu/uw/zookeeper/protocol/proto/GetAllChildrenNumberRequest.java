@@ -0,0 +1,71 @@
+package edu.uw.zookeeper.protocol.proto;
+
+import java.io.IOException;
+
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.jute.Record;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+/**
+ * Wire format of the ZooKeeper 3.6 getAllChildrenNumber request,
+ * which the 3.5 library doesn't define.
+ */
+public final class GetAllChildrenNumberRequest implements Record {
+
+    private String path;
+
+    public GetAllChildrenNumberRequest() {
+        this(null);
+    }
+
+    public GetAllChildrenNumberRequest(String path) {
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public void serialize(OutputArchive archive, String tag) throws IOException {
+        archive.startRecord(this, tag);
+        archive.writeString(path, "path");
+        archive.endRecord(this, tag);
+    }
+
+    @Override
+    public void deserialize(InputArchive archive, String tag) throws IOException {
+        archive.startRecord(tag);
+        path = archive.readString("path");
+        archive.endRecord(tag);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("path", path).toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (! (obj instanceof GetAllChildrenNumberRequest)) {
+            return false;
+        }
+        GetAllChildrenNumberRequest other = (GetAllChildrenNumberRequest) obj;
+        return Objects.equal(path, other.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(path);
+    }
+}
@@ -0,0 +1,69 @@
+package edu.uw.zookeeper.protocol.proto;
+
+import java.io.IOException;
+
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.jute.Record;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Wire format of the ZooKeeper 3.6 getAllChildrenNumber response,
+ * which the 3.5 library doesn't define.
+ */
+public final class GetAllChildrenNumberResponse implements Record {
+
+    private int totalNumber;
+
+    public GetAllChildrenNumberResponse() {
+        this(0);
+    }
+
+    public GetAllChildrenNumberResponse(int totalNumber) {
+        this.totalNumber = totalNumber;
+    }
+
+    public int getTotalNumber() {
+        return totalNumber;
+    }
+
+    public void setTotalNumber(int totalNumber) {
+        this.totalNumber = totalNumber;
+    }
+
+    @Override
+    public void serialize(OutputArchive archive, String tag) throws IOException {
+        archive.startRecord(this, tag);
+        archive.writeInt(totalNumber, "totalNumber");
+        archive.endRecord(this, tag);
+    }
+
+    @Override
+    public void deserialize(InputArchive archive, String tag) throws IOException {
+        archive.startRecord(tag);
+        totalNumber = archive.readInt("totalNumber");
+        archive.endRecord(tag);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("totalNumber", totalNumber).toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (! (obj instanceof GetAllChildrenNumberResponse)) {
+            return false;
+        }
+        return totalNumber == ((GetAllChildrenNumberResponse) obj).totalNumber;
+    }
+
+    @Override
+    public int hashCode() {
+        return totalNumber;
+    }
+}
@@ -0,0 +1,26 @@
+package edu.uw.zookeeper.protocol.proto;
+
+@Operational(value=OpCode.ADD_WATCH)
+public class IAddWatchRequest extends IOperationalRecord<AddWatchRequest> implements Records.Request, Records.PathGetter {
+
+    public IAddWatchRequest() {
+        this(new AddWatchRequest());
+    }
+    
+    public IAddWatchRequest(String path, int mode) {
+        this(new AddWatchRequest(path, mode));
+    }
+    
+    public IAddWatchRequest(AddWatchRequest record) {
+        super(record);
+    }
+
+    @Override
+    public String getPath() {
+        return record.getPath();
+    }
+    
+    public int getMode() {
+        return record.getMode();
+    }
+}
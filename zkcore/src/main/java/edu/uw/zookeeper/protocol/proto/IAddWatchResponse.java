@@ -0,0 +1,9 @@
+package edu.uw.zookeeper.protocol.proto;
+
+@Operational(value=OpCode.ADD_WATCH)
+@Shared
+public class IAddWatchResponse extends IOperationalRecord<EmptyRecord> implements Records.Response {
+    public IAddWatchResponse() {
+        super(EmptyRecord.getInstance());
+    }
+}
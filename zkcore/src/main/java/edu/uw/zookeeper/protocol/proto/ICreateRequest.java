@@ -1,23 +1,35 @@
 package edu.uw.zookeeper.protocol.proto;
 
+import java.io.IOException;
 import java.util.List;
 
+import org.apache.jute.Index;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.proto.CreateRequest;
 
+import com.google.common.collect.Lists;
+
+import edu.uw.zookeeper.data.OffHeapPayloads;
+
 @Operational(value=OpCode.CREATE)
-public class ICreateRequest extends IOperationalRecord<CreateRequest> implements Records.Request, Records.CreateModeGetter, Records.MultiOpRequest {
+public class ICreateRequest extends IOperationalRecord<CreateRequest> implements Records.Request, Records.CreateModeGetter, Records.PayloadGetter, Records.MultiOpRequest {
+
+    // only set by deserialize
+    protected OffHeapPayloads.Payload payload;
 
     public ICreateRequest() {
         this(new CreateRequest());
     }
-    
+
     public ICreateRequest(String path, byte[] data, List<ACL> acl, int flags) {
         this(new CreateRequest(path, data, acl, flags));
     }
 
     public ICreateRequest(CreateRequest record) {
         super(record);
+        this.payload = null;
     }
 
     @Override
@@ -27,7 +39,18 @@ public class ICreateRequest extends IOperationalRecord<CreateRequest> implements
 
     @Override
     public byte[] getData() {
-        return record.getData();
+        return (payload != null) ? payload.toByteArray() : record.getData();
+    }
+
+    @Override
+    public OffHeapPayloads.Payload getPayload() {
+        return payload;
+    }
+
+    @Override
+    public int getDataLength() {
+        return (payload != null) ? payload.length() :
+            ((record.getData() != null) ? record.getData().length : 0);
     }
 
     @Override
@@ -39,4 +62,74 @@ public class ICreateRequest extends IOperationalRecord<CreateRequest> implements
     public int getFlags() {
         return record.getFlags();
     }
+
+    @Override
+    public void serialize(OutputArchive archive, String tag) throws IOException {
+        if (payload == null) {
+            super.serialize(archive, tag);
+        } else if (archive instanceof PayloadOutputArchive) {
+            archive.startRecord(record, tag);
+            archive.writeString(getPath(), "path");
+            ((PayloadOutputArchive) archive).writePayload(payload, "data");
+            List<ACL> acl = getAcl();
+            archive.startVector(acl, "acl");
+            if (acl != null) {
+                for (ACL e: acl) {
+                    archive.writeRecord(e, "e1");
+                }
+            }
+            archive.endVector(acl, "acl");
+            archive.writeInt(getFlags(), "flags");
+            archive.endRecord(record, tag);
+        } else {
+            heapRecord().serialize(archive, tag);
+        }
+    }
+
+    @Override
+    public void deserialize(InputArchive archive, String tag)
+            throws IOException {
+        if (! (archive instanceof ByteBufInputArchive)) {
+            super.deserialize(archive, tag);
+            return;
+        }
+        archive.startRecord(tag);
+        record.setPath(archive.readString("path"));
+        payload = ((ByteBufInputArchive) archive).readPayload("data");
+        record.setData((payload == null) ? archive.readBuffer("data") : null);
+        List<ACL> acl = null;
+        Index index = archive.startVector("acl");
+        if (index != null) {
+            acl = Lists.newArrayList();
+            for (; !index.done(); index.incr()) {
+                ACL e = new ACL();
+                archive.readRecord(e, "e1");
+                acl.add(e);
+            }
+        }
+        archive.endVector("acl");
+        record.setAcl(acl);
+        record.setFlags(archive.readInt("flags"));
+        archive.endRecord(tag);
+    }
+
+    @Override
+    public int hashCode() {
+        return heapRecord().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if ((obj == null) || (getClass() != obj.getClass())) {
+            return false;
+        }
+        return heapRecord().equals(((ICreateRequest) obj).heapRecord());
+    }
+
+    protected CreateRequest heapRecord() {
+        return (payload != null) ? new CreateRequest(getPath(), getData(), getAcl(), getFlags()) : record;
+    }
 }
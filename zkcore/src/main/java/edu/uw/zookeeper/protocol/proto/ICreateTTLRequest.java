@@ -0,0 +1,46 @@
+package edu.uw.zookeeper.protocol.proto;
+
+import java.util.List;
+
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.proto.CreateTTLRequest;
+
+@Operational(value=OpCode.CREATE_TTL)
+public class ICreateTTLRequest extends IOperationalRecord<CreateTTLRequest> implements Records.Request, Records.CreateModeGetter {
+
+    public ICreateTTLRequest() {
+        this(new CreateTTLRequest());
+    }
+    
+    public ICreateTTLRequest(String path, byte[] data, List<ACL> acl, int flags, long ttl) {
+        this(new CreateTTLRequest(path, data, acl, flags, ttl));
+    }
+
+    public ICreateTTLRequest(CreateTTLRequest record) {
+        super(record);
+    }
+
+    @Override
+    public String getPath() {
+        return record.getPath();
+    }
+
+    @Override
+    public byte[] getData() {
+        return record.getData();
+    }
+
+    @Override
+    public List<ACL> getAcl() {
+        return record.getAcl();
+    }
+
+    @Override
+    public int getFlags() {
+        return record.getFlags();
+    }
+    
+    public long getTtl() {
+        return record.getTtl();
+    }
+}
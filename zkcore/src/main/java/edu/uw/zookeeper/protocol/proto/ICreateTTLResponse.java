@@ -0,0 +1,30 @@
+package edu.uw.zookeeper.protocol.proto;
+
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.Create2Response;
+
+@Operational(value=OpCode.CREATE_TTL)
+public class ICreateTTLResponse extends IOperationalRecord<Create2Response> implements Records.Response, Records.PathGetter, Records.StatGetter {
+
+    public ICreateTTLResponse() {
+        this(new Create2Response());
+    }
+    
+    public ICreateTTLResponse(String path, Stat stat) {
+        this(new Create2Response(path, stat));
+    }
+        
+    public ICreateTTLResponse(Create2Response record) {
+        super(record);
+    }
+
+    @Override
+    public String getPath() {
+        return record.getPath();
+    }
+
+    @Override
+    public Stat getStat() {
+        return record.getStat();
+    }
+}
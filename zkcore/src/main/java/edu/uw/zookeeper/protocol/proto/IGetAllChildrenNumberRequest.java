@@ -0,0 +1,22 @@
+package edu.uw.zookeeper.protocol.proto;
+
+@Operational(value=OpCode.GET_ALL_CHILDREN_NUMBER)
+public class IGetAllChildrenNumberRequest extends IOperationalRecord<GetAllChildrenNumberRequest> implements Records.Request, Records.PathGetter {
+
+    public IGetAllChildrenNumberRequest() {
+        this(new GetAllChildrenNumberRequest());
+    }
+    
+    public IGetAllChildrenNumberRequest(String path) {
+        this(new GetAllChildrenNumberRequest(path));
+    }
+    
+    public IGetAllChildrenNumberRequest(GetAllChildrenNumberRequest record) {
+        super(record);
+    }
+
+    @Override
+    public String getPath() {
+        return record.getPath();
+    }
+}
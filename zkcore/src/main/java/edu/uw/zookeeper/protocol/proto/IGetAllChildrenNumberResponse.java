@@ -0,0 +1,21 @@
+package edu.uw.zookeeper.protocol.proto;
+
+@Operational(value=OpCode.GET_ALL_CHILDREN_NUMBER)
+public class IGetAllChildrenNumberResponse extends IOperationalRecord<GetAllChildrenNumberResponse> implements Records.Response {
+
+    public IGetAllChildrenNumberResponse() {
+        this(new GetAllChildrenNumberResponse());
+    }
+    
+    public IGetAllChildrenNumberResponse(int totalNumber) {
+        this(new GetAllChildrenNumberResponse(totalNumber));
+    }
+    
+    public IGetAllChildrenNumberResponse(GetAllChildrenNumberResponse record) {
+        super(record);
+    }
+
+    public int getTotalNumber() {
+        return record.getTotalNumber();
+    }
+}
@@ -1,21 +1,38 @@
 package edu.uw.zookeeper.protocol.proto;
 
+import java.io.IOException;
+
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.proto.GetDataResponse;
 
+import edu.uw.zookeeper.data.OffHeapPayloads;
+
 @Operational(value=OpCode.GET_DATA)
-public class IGetDataResponse extends IOperationalRecord<GetDataResponse> implements Records.Response, Records.DataGetter, Records.StatGetter {
-    
+public class IGetDataResponse extends IOperationalRecord<GetDataResponse> implements Records.Response, Records.PayloadGetter, Records.StatGetter {
+
+    protected OffHeapPayloads.Payload payload;
+
     public IGetDataResponse() {
         this(new GetDataResponse());
     }
-    
+
     public IGetDataResponse(byte[] data, Stat stat) {
         this(new GetDataResponse(data, stat));
     }
 
+    /**
+     * Encoded from <code>payload</code> rather than from a copy on the heap.
+     */
+    public IGetDataResponse(OffHeapPayloads.Payload payload, Stat stat) {
+        this(new GetDataResponse(null, stat));
+        this.payload = payload;
+    }
+
     public IGetDataResponse(GetDataResponse record) {
         super(record);
+        this.payload = null;
     }
 
     @Override
@@ -25,6 +42,67 @@ public class IGetDataResponse extends IOperationalRecord<GetDataResponse> implem
 
     @Override
     public byte[] getData() {
-        return record.getData();
+        return (payload != null) ? payload.toByteArray() : record.getData();
+    }
+
+    @Override
+    public OffHeapPayloads.Payload getPayload() {
+        return payload;
+    }
+
+    @Override
+    public int getDataLength() {
+        return (payload != null) ? payload.length() :
+            ((record.getData() != null) ? record.getData().length : 0);
+    }
+
+    @Override
+    public void serialize(OutputArchive archive, String tag) throws IOException {
+        if (payload == null) {
+            super.serialize(archive, tag);
+        } else if (archive instanceof PayloadOutputArchive) {
+            archive.startRecord(record, tag);
+            ((PayloadOutputArchive) archive).writePayload(payload, "data");
+            archive.writeRecord(getStat(), "stat");
+            archive.endRecord(record, tag);
+        } else {
+            heapRecord().serialize(archive, tag);
+        }
+    }
+
+    @Override
+    public void deserialize(InputArchive archive, String tag)
+            throws IOException {
+        if (! (archive instanceof ByteBufInputArchive)) {
+            super.deserialize(archive, tag);
+            return;
+        }
+        archive.startRecord(tag);
+        payload = ((ByteBufInputArchive) archive).readPayload("data");
+        record.setData((payload == null) ? archive.readBuffer("data") : null);
+        Stat stat = new Stat();
+        archive.readRecord(stat, "stat");
+        record.setStat(stat);
+        archive.endRecord(tag);
+    }
+
+    @Override
+    public int hashCode() {
+        return heapRecord().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if ((obj == null) || (getClass() != obj.getClass())) {
+            return false;
+        }
+        return heapRecord().equals(((IGetDataResponse) obj).heapRecord());
+    }
+
+    protected GetDataResponse heapRecord() {
+        return (payload != null) ? new GetDataResponse(getData(), getStat()) : record;
     }
-}
\ No newline at end of file
+}
@@ -1,20 +1,30 @@
 package edu.uw.zookeeper.protocol.proto;
 
+import java.io.IOException;
+
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
 import org.apache.zookeeper.proto.SetDataRequest;
 
+import edu.uw.zookeeper.data.OffHeapPayloads;
+
 @Operational(value=OpCode.SET_DATA)
-public class ISetDataRequest extends IOperationalRecord<SetDataRequest> implements Records.Request, Records.PathGetter, Records.DataGetter, Records.VersionGetter, Records.MultiOpRequest {
-    
+public class ISetDataRequest extends IOperationalRecord<SetDataRequest> implements Records.Request, Records.PathGetter, Records.PayloadGetter, Records.VersionGetter, Records.MultiOpRequest {
+
+    // only set by deserialize
+    protected OffHeapPayloads.Payload payload;
+
     public ISetDataRequest() {
         this(new SetDataRequest());
     }
-    
+
     public ISetDataRequest(String path, byte[] data, int version) {
         this(new SetDataRequest(path, data, version));
     }
 
     public ISetDataRequest(SetDataRequest record) {
         super(record);
+        this.payload = null;
     }
 
     @Override
@@ -24,11 +34,72 @@ public class ISetDataRequest extends IOperationalRecord<SetDataRequest> implemen
 
     @Override
     public byte[] getData() {
-        return record.getData();
+        return (payload != null) ? payload.toByteArray() : record.getData();
+    }
+
+    @Override
+    public OffHeapPayloads.Payload getPayload() {
+        return payload;
+    }
+
+    @Override
+    public int getDataLength() {
+        return (payload != null) ? payload.length() :
+            ((record.getData() != null) ? record.getData().length : 0);
     }
 
     @Override
     public String getPath() {
         return record.getPath();
     }
+
+    @Override
+    public void serialize(OutputArchive archive, String tag) throws IOException {
+        if (payload == null) {
+            super.serialize(archive, tag);
+        } else if (archive instanceof PayloadOutputArchive) {
+            archive.startRecord(record, tag);
+            archive.writeString(getPath(), "path");
+            ((PayloadOutputArchive) archive).writePayload(payload, "data");
+            archive.writeInt(getVersion(), "version");
+            archive.endRecord(record, tag);
+        } else {
+            heapRecord().serialize(archive, tag);
+        }
+    }
+
+    @Override
+    public void deserialize(InputArchive archive, String tag)
+            throws IOException {
+        if (! (archive instanceof ByteBufInputArchive)) {
+            super.deserialize(archive, tag);
+            return;
+        }
+        archive.startRecord(tag);
+        record.setPath(archive.readString("path"));
+        payload = ((ByteBufInputArchive) archive).readPayload("data");
+        record.setData((payload == null) ? archive.readBuffer("data") : null);
+        record.setVersion(archive.readInt("version"));
+        archive.endRecord(tag);
+    }
+
+    @Override
+    public int hashCode() {
+        return heapRecord().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if ((obj == null) || (getClass() != obj.getClass())) {
+            return false;
+        }
+        return heapRecord().equals(((ISetDataRequest) obj).heapRecord());
+    }
+
+    protected SetDataRequest heapRecord() {
+        return (payload != null) ? new SetDataRequest(getPath(), getData(), getVersion()) : record;
+    }
 }
@@ -78,6 +78,16 @@ public enum OpCode {
     },
 
     REMOVE_WATCHES(ZooDefs.OpCode.removeWatches) {
+    },
+
+    CREATE_TTL(ZooDefs.OpCode.createTTL) {
+    },
+
+    // defined by ZooKeeper 3.6
+    GET_ALL_CHILDREN_NUMBER(104) {
+    },
+
+    ADD_WATCH(106) {
     };
 
     private static final ImmutableMap<Integer, OpCode> byInt = Maps
@@ -0,0 +1,18 @@
+package edu.uw.zookeeper.protocol.proto;
+
+import java.io.IOException;
+
+import org.apache.jute.OutputArchive;
+
+import edu.uw.zookeeper.data.OffHeapPayloads;
+
+/**
+ * Archive that writes off-heap payloads without copying them to the heap.
+ */
+public interface PayloadOutputArchive extends OutputArchive {
+
+    /**
+     * Writes <code>payload</code> like a buffer.
+     */
+    void writePayload(OffHeapPayloads.Payload payload, String tag) throws IOException;
+}
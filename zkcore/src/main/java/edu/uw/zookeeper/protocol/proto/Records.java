@@ -9,8 +9,6 @@ import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nullable;
 
@@ -25,11 +23,11 @@ import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.EnumHashBiMap;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
 
 import edu.uw.zookeeper.common.ParameterizedFactory;
+import edu.uw.zookeeper.data.OffHeapPayloads;
 import edu.uw.zookeeper.protocol.Operation;
 
 
@@ -147,6 +145,22 @@ public abstract class Records {
     public static interface DataSetter extends DataGetter {
         void setData(byte[] data);     
     }
+
+    /**
+     * Data that may have been decoded as an off-heap payload,
+     * which <code>getData()</code> copies to the heap.
+     */
+    public static interface PayloadGetter extends DataGetter {
+        /**
+         * @return null if data is on the heap
+         */
+        OffHeapPayloads.Payload getPayload();
+
+        /**
+         * @return length of data without copying it, or zero if there is none
+         */
+        int getDataLength();
+    }
     
     public static interface AclGetter {
         List<ACL> getAcl();     
@@ -201,31 +215,16 @@ public abstract class Records {
     public static final String LEN_TAG = "len";
     
     public static OpCode opCodeOf(Class<?> type) {
-        Operational operational = type.getAnnotation(Operational.class);
-        if (operational == null) {
-            OpCodeXid xid = opCodeXidOf(type);
-            if (xid != null) {
-                return xid.opcode();
-            } else {
-                return null;
-            }
-        } else {
-            return operational.value()[0];
-        }
+        return opCodes.get(type);
     }
     
     public static OpCodeXid opCodeXidOf(Class<?> type) {
-        OperationalXid operationalXid = type.getAnnotation(OperationalXid.class);
-        if (operationalXid != null) {
-            return operationalXid.value();
-        } else {
-            return null;
-        }
+        return opCodeXids.get(type);
     }
 
     public static <T extends Record> T newInstance(Class<T> type) {
         T instance;
-        if (type.getAnnotation(Shared.class) != null) {
+        if (shared.get(type).booleanValue()) {
             return getShared(type);
         } else {
             try {
@@ -237,22 +236,8 @@ public abstract class Records {
         return instance;
     }
     
-    @SuppressWarnings("unchecked")
     public static <T extends Record> T getShared(Class<T> type) {
-        T instance = (T) sharedInstances.get(type);
-        if (instance == null) {
-            if (type.getAnnotation(Shared.class) == null) {
-                throw new IllegalArgumentException(type.toString());
-            }
-            try {
-                instance = type.getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new AssertionError(e);
-            }
-            sharedInstances.putIfAbsent(type, instance);
-            instance = (T) sharedInstances.get(type);
-        }
-        return instance;
+        return type.cast(sharedInstances.get(type));
     }
 
     /**
@@ -318,8 +303,56 @@ public abstract class Records {
                 .append(']').toString();
     }
     
-    private static final ConcurrentMap<Class<? extends Record>, Record> sharedInstances = 
-            new ConcurrentHashMap<Class<? extends Record>, Record>();
+    // annotations are only read once per type
+    private static final ClassValue<OpCode> opCodes = new ClassValue<OpCode>() {
+        @Override
+        protected OpCode computeValue(Class<?> type) {
+            Operational operational = type.getAnnotation(Operational.class);
+            if (operational == null) {
+                OpCodeXid xid = opCodeXidOf(type);
+                if (xid != null) {
+                    return xid.opcode();
+                } else {
+                    return null;
+                }
+            } else {
+                return operational.value()[0];
+            }
+        }
+    };
+
+    private static final ClassValue<OpCodeXid> opCodeXids = new ClassValue<OpCodeXid>() {
+        @Override
+        protected OpCodeXid computeValue(Class<?> type) {
+            OperationalXid operationalXid = type.getAnnotation(OperationalXid.class);
+            if (operationalXid != null) {
+                return operationalXid.value();
+            } else {
+                return null;
+            }
+        }
+    };
+    
+    private static final ClassValue<Boolean> shared = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return Boolean.valueOf(type.getAnnotation(Shared.class) != null);
+        }
+    };
+    
+    private static final ClassValue<Record> sharedInstances = new ClassValue<Record>() {
+        @Override
+        protected Record computeValue(Class<?> type) {
+            if (! shared.get(type).booleanValue()) {
+                throw new IllegalArgumentException(type.toString());
+            }
+            try {
+                return (Record) type.getConstructor().newInstance();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+    };
 
     public static abstract class Headers {
 
@@ -336,36 +369,72 @@ public abstract class Records {
             return INSTANCE;
         }
 
-        @SuppressWarnings("unchecked")
-        private static final BiMap<OpCode, Class<? extends Records.Request>> requestTypes = 
-                Maps.unmodifiableBiMap(EnumHashBiMap.create(
-                        Maps.<OpCode, Class<? extends Records.Request>>uniqueIndex(
-                                ImmutableList.<Class<? extends Records.Request>>of(
-                                        ICreateRequest.class,
-//                                        ICreate2Request.class,
-                                        IDeleteRequest.class,
-                                        IExistsRequest.class,
-                                        IGetDataRequest.class,
-                                        ISetDataRequest.class,
-                                        IGetACLRequest.class,
-                                        ISetACLRequest.class,
-                                        IGetChildrenRequest.class,
-                                        ISyncRequest.class,
-                                        IPingRequest.class,
-                                        IGetChildren2Request.class,
-                                        ICheckVersionRequest.class,
-                                        IAuthRequest.class,
-                                        ISetWatchesRequest.class,
-                                        IConnectRequest.class,
-                                        IDisconnectRequest.class,
-                                        IMultiRequest.class,
-                                        IReconfigRequest.class,
-                                        IRemoveWatchesRequest.class),
-                                new Function<Class<?>, OpCode>() {
-                                   @Override public OpCode apply(Class<?> type) {
-                                       return opCodeOf(type);
-                                   }
-                                })));
+        private static final BiMap<OpCode, Class<? extends Records.Request>> requestTypes;
+        static {
+            BiMap<OpCode, Class<? extends Records.Request>> types = EnumHashBiMap.create(OpCode.class);
+            for (OpCode opcode: OpCode.values()) {
+                Records.Request record = newRecord(opcode);
+                if (record != null) {
+                    types.put(opcode, record.getClass());
+                }
+            }
+            requestTypes = Maps.unmodifiableBiMap(types);
+        }
+        
+        /**
+         * Dispatches on <code>opcode</code> without reflection, 
+         * because this is called for every decoded message.
+         */
+        protected static Records.Request newRecord(OpCode opcode) {
+            switch (opcode) {
+            case CREATE:
+                return new ICreateRequest();
+            case DELETE:
+                return new IDeleteRequest();
+            case EXISTS:
+                return new IExistsRequest();
+            case GET_DATA:
+                return new IGetDataRequest();
+            case SET_DATA:
+                return new ISetDataRequest();
+            case GET_ACL:
+                return new IGetACLRequest();
+            case SET_ACL:
+                return new ISetACLRequest();
+            case GET_CHILDREN:
+                return new IGetChildrenRequest();
+            case SYNC:
+                return new ISyncRequest();
+            case PING:
+                return getShared(IPingRequest.class);
+            case GET_CHILDREN2:
+                return new IGetChildren2Request();
+            case CHECK:
+                return new ICheckVersionRequest();
+            case AUTH:
+                return new IAuthRequest();
+            case SET_WATCHES:
+                return new ISetWatchesRequest();
+            case CREATE_SESSION:
+                return new IConnectRequest();
+            case CLOSE_SESSION:
+                return getShared(IDisconnectRequest.class);
+            case MULTI:
+                return new IMultiRequest();
+            case RECONFIG:
+                return new IReconfigRequest();
+            case REMOVE_WATCHES:
+                return new IRemoveWatchesRequest();
+            case GET_ALL_CHILDREN_NUMBER:
+                return new IGetAllChildrenNumberRequest();
+            case ADD_WATCH:
+                return new IAddWatchRequest();
+            case CREATE_TTL:
+                return new ICreateTTLRequest();
+            default:
+                return null;
+            }
+        }
 
         public static String tagOf(OpCode op) {
             String tag;
@@ -400,12 +469,11 @@ public abstract class Records {
         
         @Override
         public Records.Request get(OpCode opcode) {
-            Class<? extends Records.Request> type = typeOf(opcode);
-            if (type == null) {
+            Records.Request record = newRecord(opcode);
+            if (record == null) {
                 throw new IllegalArgumentException(
                         String.format("No type for %s", opcode));
             }
-            Records.Request record = Records.newInstance(type);
             return record;
         }
 
@@ -447,37 +515,76 @@ public abstract class Records {
             return INSTANCE;
         }
 
-        @SuppressWarnings("unchecked")
-        private static final BiMap<OpCode, Class<? extends Records.Response>> responseTypes = 
-                Maps.unmodifiableBiMap(EnumHashBiMap.create(
-                        Maps.<OpCode, Class<? extends Records.Response>>uniqueIndex(
-                                ImmutableList.<Class<? extends Records.Response>>of(
-                                        IAuthResponse.class,
-                                        ICheckVersionResponse.class,
-                                        ICreateResponse.class,
-                                        ICreate2Response.class,
-                                        IDeleteResponse.class,
-                                        IDisconnectResponse.class,
-                                        IExistsResponse.class,
-                                        IGetDataResponse.class,
-                                        ISetDataResponse.class,
-                                        IGetACLResponse.class,
-                                        ISetACLResponse.class,
-                                        IGetChildrenResponse.class,
-                                        ISyncResponse.class,
-                                        IGetChildren2Response.class,
-                                        IPingResponse.class,
-                                        IConnectResponse.class,
-                                        IWatcherEvent.class,
-                                        ISetWatchesResponse.class,
-                                        IErrorResponse.class,
-                                        IMultiResponse.class,
-                                        IRemoveWatchesResponse.class),
-                                new Function<Class<?>, OpCode>() {
-                                    @Override public OpCode apply(Class<?> type) {
-                                        return opCodeOf(type);
-                                    }
-                                 })));
+        private static final BiMap<OpCode, Class<? extends Records.Response>> responseTypes;
+        static {
+            BiMap<OpCode, Class<? extends Records.Response>> types = EnumHashBiMap.create(OpCode.class);
+            for (OpCode opcode: OpCode.values()) {
+                Records.Response record = newRecord(opcode);
+                if (record != null) {
+                    types.put(opcode, record.getClass());
+                }
+            }
+            responseTypes = Maps.unmodifiableBiMap(types);
+        }
+        
+        /**
+         * Dispatches on <code>opcode</code> without reflection, 
+         * because this is called for every decoded message.
+         */
+        protected static Records.Response newRecord(OpCode opcode) {
+            switch (opcode) {
+            case AUTH:
+                return getShared(IAuthResponse.class);
+            case CHECK:
+                return getShared(ICheckVersionResponse.class);
+            case CREATE:
+                return new ICreateResponse();
+            case CREATE2:
+                return new ICreate2Response();
+            case DELETE:
+                return getShared(IDeleteResponse.class);
+            case CLOSE_SESSION:
+                return getShared(IDisconnectResponse.class);
+            case EXISTS:
+                return new IExistsResponse();
+            case GET_DATA:
+                return new IGetDataResponse();
+            case SET_DATA:
+                return new ISetDataResponse();
+            case GET_ACL:
+                return new IGetACLResponse();
+            case SET_ACL:
+                return new ISetACLResponse();
+            case GET_CHILDREN:
+                return new IGetChildrenResponse();
+            case SYNC:
+                return new ISyncResponse();
+            case GET_CHILDREN2:
+                return new IGetChildren2Response();
+            case PING:
+                return getShared(IPingResponse.class);
+            case CREATE_SESSION:
+                return new IConnectResponse();
+            case NOTIFICATION:
+                return new IWatcherEvent();
+            case SET_WATCHES:
+                return getShared(ISetWatchesResponse.class);
+            case ERROR:
+                return new IErrorResponse();
+            case MULTI:
+                return new IMultiResponse();
+            case REMOVE_WATCHES:
+                return getShared(IRemoveWatchesResponse.class);
+            case GET_ALL_CHILDREN_NUMBER:
+                return new IGetAllChildrenNumberResponse();
+            case ADD_WATCH:
+                return getShared(IAddWatchResponse.class);
+            case CREATE_TTL:
+                return new ICreateTTLResponse();
+            default:
+                return null;
+            }
+        }
         
         public static String tagOf(OpCode op) {
             String tag;
@@ -516,14 +623,12 @@ public abstract class Records {
         
         @Override
         public Records.Response get(OpCode opcode) {
-            Class<? extends Records.Response> type = typeOf(opcode);
-            if (type == null) {
+            Records.Response record = newRecord(opcode);
+            if (record == null) {
                 throw new IllegalArgumentException(
                         String.format("No type for %s", opcode));
-            } else {
-                Records.Response record = Records.newInstance(type);
-                return record;
             }
+            return record;
         }
 
         public static class Headers extends Records.Headers {
@@ -0,0 +1,154 @@
+package edu.uw.zookeeper.protocol.proto;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.jute.Record;
+
+import edu.uw.zookeeper.data.OffHeapPayloads;
+
+/**
+ * Counts the bytes that ByteBufOutputArchive would write without writing them,
+ * so that an output can be allocated once at its final size.
+ */
+public class SizeOutputArchive implements PayloadOutputArchive {
+
+    /**
+     * Smallest payload worth counting, which is the length
+     * that a default buffer holds without growing.
+     */
+    public static final int MIN_SIZED_PAYLOAD = 256;
+
+    /**
+     * Counting paths and names costs more than growing the output,
+     * so only records with a large payload are worth counting.
+     */
+    public static boolean isSized(Record record) {
+        return (record instanceof Records.PayloadGetter) 
+                && (((Records.PayloadGetter) record).getDataLength() >= MIN_SIZED_PAYLOAD);
+    }
+
+    public static int sizeOf(Record record, String tag) throws IOException {
+        SizeOutputArchive archive = new SizeOutputArchive();
+        archive.writeRecord(record, tag);
+        return archive.size();
+    }
+
+    /**
+     * @return length of <code>s</code> encoded as UTF-8,
+     *         where an unpaired surrogate is replaced by one byte
+     */
+    public static int utf8Length(String s) {
+        int length = s.length();
+        int bytes = length;
+        for (int i=0; i<length; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            } else if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && (i+1 < length) && Character.isLowSurrogate(s.charAt(i+1))) {
+                    bytes += 2;
+                    ++i;
+                }
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    protected int size;
+
+    public SizeOutputArchive() {
+        this.size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void writeByte(byte b, String tag) throws IOException {
+        size += 1;
+    }
+
+    @Override
+    public void writeBool(boolean b, String tag) throws IOException {
+        size += 1;
+    }
+
+    @Override
+    public void writeInt(int i, String tag) throws IOException {
+        size += 4;
+    }
+
+    @Override
+    public void writeLong(long l, String tag) throws IOException {
+        size += 8;
+    }
+
+    @Override
+    public void writeFloat(float f, String tag) throws IOException {
+        size += 4;
+    }
+
+    @Override
+    public void writeDouble(double d, String tag) throws IOException {
+        size += 8;
+    }
+
+    @Override
+    public void writeString(String s, String tag) throws IOException {
+        size += 4;
+        if (s != null) {
+            size += utf8Length(s);
+        }
+    }
+
+    @Override
+    public void writeBuffer(byte[] bytes, String tag) throws IOException {
+        size += 4;
+        if (bytes != null) {
+            size += bytes.length;
+        }
+    }
+
+    @Override
+    public void writePayload(OffHeapPayloads.Payload payload, String tag) throws IOException {
+        size += 4 + payload.length();
+    }
+
+    @Override
+    public void writeRecord(Record r, String tag) throws IOException {
+        r.serialize(this, tag);
+    }
+
+    @Override
+    public void startRecord(Record r, String tag) throws IOException {
+    }
+
+    @Override
+    public void endRecord(Record r, String tag) throws IOException {
+    }
+
+    @Override
+    public void startVector(List<?> v, String tag) throws IOException {
+        size += 4;
+    }
+
+    @Override
+    public void endVector(List<?> v, String tag) throws IOException {
+    }
+
+    @Override
+    public void startMap(TreeMap<?, ?> v, String tag) throws IOException {
+        size += 4;
+    }
+
+    @Override
+    public void endMap(TreeMap<?, ?> v, String tag) throws IOException {
+    }
+}
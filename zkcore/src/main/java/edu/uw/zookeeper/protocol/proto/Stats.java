@@ -1,5 +1,7 @@
 package edu.uw.zookeeper.protocol.proto;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import org.apache.jute.InputArchive;
 import org.apache.zookeeper.data.Stat;
 
@@ -42,12 +44,54 @@ public class Stats {
         }
     }
     
+    /**
+     * Containers and TTL nodes are marked by ephemeral owners 
+     * that no session id has, as by ZooKeeper, 
+     * where a TTL node's owner has the top byte set and the TTL in its low 40 bits.
+     */
     public static class CreateStat implements Records.CreateStatGetter {
 
         public static long ephemeralOwnerNone() {
             return 0L;
         }
 
+        public static long ephemeralOwnerContainer() {
+            return Long.MIN_VALUE;
+        }
+
+        public static long ephemeralOwnerTtl(long ttl) {
+            checkArgument((ttl > 0L) && (ttl <= maxTtl()), String.valueOf(ttl));
+            return EXTENDED_OWNER | ttl;
+        }
+        
+        public static long maxTtl() {
+            return TTL_MASK;
+        }
+        
+        public static boolean isContainer(long ephemeralOwner) {
+            return ephemeralOwnerContainer() == ephemeralOwner;
+        }
+        
+        public static boolean isTtl(long ephemeralOwner) {
+            return (ephemeralOwner & ~TTL_MASK) == EXTENDED_OWNER;
+        }
+        
+        /**
+         * @return milliseconds, or 0 if not a TTL node
+         */
+        public static long ttlOf(long ephemeralOwner) {
+            return isTtl(ephemeralOwner) ? (ephemeralOwner & TTL_MASK) : 0L;
+        }
+        
+        public static boolean isEphemeral(long ephemeralOwner) {
+            return (ephemeralOwnerNone() != ephemeralOwner) 
+                    && ! isContainer(ephemeralOwner) 
+                    && ! isTtl(ephemeralOwner);
+        }
+        
+        private static final long EXTENDED_OWNER = 0xff00000000000000L;
+        private static final long TTL_MASK = 0x000000ffffffffffL;
+
         public static CreateStat nonEphemeral(long czxid) {
             return nonEphemeral(czxid, Stats.getTime());
         }
@@ -98,7 +142,7 @@ public class Stats {
         }
         
         public boolean isEphemeral() {
-            return ephemeralOwnerNone() != getEphemeralOwner();
+            return isEphemeral(getEphemeralOwner());
         }
         
         @Override
@@ -0,0 +1,100 @@
+package edu.uw.zookeeper.common;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+@RunWith(JUnit4.class)
+public class ConcurrentLongHashMapTest {
+
+    @Test
+    public void testRandom() {
+        Random random = new Random(1L);
+        ConcurrentLongHashMap<String> map = ConcurrentLongHashMap.create(0, 2);
+        Map<Long, String> expected = Maps.newHashMap();
+        for (int i=0; i<100000; ++i) {
+            // few enough keys that removed slots are revisited
+            long key = random.nextInt(512) | ((long) random.nextInt(4) << 40);
+            String value = String.valueOf(random.nextInt(4));
+            switch (random.nextInt(5)) {
+            case 0:
+                assertEquals(expected.put(key, value), map.put(key, value));
+                break;
+            case 1:
+                assertEquals(expected.containsKey(key) ? expected.get(key) : null, map.putIfAbsent(key, value));
+                if (! expected.containsKey(key)) {
+                    expected.put(key, value);
+                }
+                break;
+            case 2:
+                assertEquals(expected.remove(key), map.remove(key));
+                break;
+            case 3:
+                boolean removed = value.equals(expected.get(key));
+                if (removed) {
+                    expected.remove(key);
+                }
+                assertEquals(removed, map.remove(key, value));
+                break;
+            default:
+                assertEquals(expected.get(key), map.get(key));
+                assertEquals(expected.get(key), map.get(Long.valueOf(key)));
+                break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertEquals(expected, map);
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test(timeout=30000)
+    public void testConcurrent() throws Exception {
+        final ConcurrentLongHashMap<Long> map = ConcurrentLongHashMap.create();
+        final int threads = 4;
+        final int keys = 10000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = Lists.newArrayListWithCapacity(threads);
+            for (int t=0; t<threads; ++t) {
+                final long offset = (long) t * keys;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int round=0; round<4; ++round) {
+                            for (long key=offset; key<offset+keys; ++key) {
+                                assertNull(map.put(key, Long.valueOf(key)));
+                            }
+                            for (long key=0; key<threads*keys; ++key) {
+                                // a value is only ever found under its own key
+                                Long value = map.get(key);
+                                assertTrue((value == null) || (value.longValue() == key));
+                            }
+                            for (long key=offset; key<offset+keys; ++key) {
+                                assertEquals(Long.valueOf(key), map.remove(key));
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future: futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(map.isEmpty());
+    }
+}
@@ -20,4 +20,17 @@ public class ZNodePathTest {
         assertEquals("/a", ZNodePath.canonicalize("/a/."));
         assertEquals("/", ZNodePath.canonicalize("/a/.."));
     }
+
+    @Test
+    public void testValidate() {
+        for (String path: new String[] { "/", "/a", "/a/b", "/.a/a./...", "/zookeeper/quota" }) {
+            assertSame(path, ZNodePath.validate(path));
+        }
+        for (String path: new String[] { "", "a", "a/b", "//", "/a/", "/a//b", "/.", "/..", "/a/.", "/a/../b" }) {
+            try {
+                ZNodePath.validate(path);
+                fail(path);
+            } catch (IllegalArgumentException e) {}
+        }
+    }
 }
@@ -10,8 +10,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import com.google.common.collect.Range;
+
 import edu.uw.zookeeper.net.StringDecoder;
 import edu.uw.zookeeper.net.StringEncoder;
+import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
+import edu.uw.zookeeper.protocol.proto.OpCodeXid;
 
 
 @RunWith(JUnit4.class)
@@ -58,4 +62,49 @@ public class FrameTest {
         assertEquals(input, output);
         assertEquals(0, buf.readableBytes());
     }
+
+    @Test
+    public void testPendingFrame() throws IOException {
+        Frame.FrameDecoder decoder = Frame.FrameDecoder.create(Range.closed(Integer.valueOf(0), Integer.valueOf(16)));
+        ByteBuf buf = Unpooled.buffer(4);
+        buf.writeInt(8);
+        assertFalse(decoder.decode(buf).isPresent());
+        assertEquals(8, decoder.pendingBytes());
+        assertEquals(0, buf.readerIndex());
+        buf.writeLong(1L);
+        Frame frame = decoder.decode(buf).orNull();
+        assertEquals(8, frame.header().intValue());
+        assertEquals(0, decoder.pendingBytes());
+        assertEquals(0, buf.readableBytes());
+        assertFalse(frame.release());
+        
+        buf.writeInt(0);
+        frame = decoder.decode(buf).orNull();
+        assertEquals(0, frame.buffer().readableBytes());
+        assertEquals(1, buf.refCnt());
+        
+        buf.writeInt(17);
+        try {
+            decoder.decode(buf);
+            fail();
+        } catch (IllegalArgumentException e) {}
+    }
+
+    @Test
+    public void testSharedFrame() throws IOException {
+        IWatcherEvent event = new IWatcherEvent(3, 3, "/a");
+        SharedResponseMessage<IWatcherEvent> shared = SharedResponseMessage.of(OpCodeXid.NOTIFICATION.xid(), OpCodeXid.NOTIFICATION_ZXID, event);
+        Frame.FramedEncoder<Encodable,Encodable> encoder = Frame.FramedEncoder.create(EncodableEncoder.getInstance());
+        ByteBuf expected = Unpooled.buffer();
+        encoder.encode(ProtocolResponseMessage.of(OpCodeXid.NOTIFICATION.xid(), OpCodeXid.NOTIFICATION_ZXID, event), expected);
+        
+        ByteBuf first = shared.frame();
+        ByteBuf second = shared.frame();
+        assertEquals(expected, first);
+        // duplicates can be consumed and released independently
+        first.skipBytes(first.readableBytes());
+        first.release();
+        assertEquals(expected, second);
+        assertEquals(expected, shared.frame());
+    }
 }
@@ -0,0 +1,126 @@
+package edu.uw.zookeeper.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.uw.zookeeper.data.Operations;
+import edu.uw.zookeeper.data.ZNodePath;
+import edu.uw.zookeeper.net.Encoder;
+import edu.uw.zookeeper.protocol.proto.IGetDataResponse;
+
+/**
+ * Compares framing a message into a buffer that grows while encoding
+ * with framing it into a buffer allocated at its encoded size,
+ * which is what the codecs do for records that are 
+ * {@link edu.uw.zookeeper.protocol.proto.SizeOutputArchive#isSized(org.apache.jute.Record) worth counting}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramedEncoderBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FramedEncoderBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    public static enum Messages {
+        GET_DATA_SMALL {
+            @Override
+            public Encodable get() {
+                return ProtocolResponseMessage.of(1, 1L, new IGetDataResponse(new byte[100], new Stat()));
+            }
+        },
+        GET_DATA_MEDIUM {
+            @Override
+            public Encodable get() {
+                return ProtocolResponseMessage.of(1, 1L, new IGetDataResponse(new byte[8 * 1024], new Stat()));
+            }
+        },
+        GET_DATA_LARGE {
+            @Override
+            public Encodable get() {
+                return ProtocolResponseMessage.of(1, 1L, new IGetDataResponse(new byte[256 * 1024], new Stat()));
+            }
+        },
+        CREATE {
+            @Override
+            public Encodable get() {
+                return ProtocolRequestMessage.of(1, Operations.Requests.create().setPath(ZNodePath.fromString("/some/longer/path/node")).setData(new byte[16]).build());
+            }
+        },
+        MULTI {
+            @Override
+            public Encodable get() {
+                Operations.Responses.Multi multi = Operations.Responses.multi();
+                for (int i=0; i<1000; ++i) {
+                    multi.add(Operations.Responses.create().setPath(ZNodePath.fromString("/some/longer/path/node" + i)));
+                }
+                return ProtocolResponseMessage.of(1, 1L, multi.build());
+            }
+        };
+
+        public abstract Encodable get();
+    }
+
+    @Param
+    public Messages messages;
+
+    protected Encodable message;
+    protected Encoder.Sized<Encodable, ?> encoder;
+    protected ByteBufAllocator allocator;
+
+    @Setup
+    public void setup() {
+        message = messages.get();
+        encoder = Frame.FramedEncoder.create(EncodableEncoder.getInstance());
+        allocator = PooledByteBufAllocator.DEFAULT;
+    }
+
+    @Benchmark
+    public int grown() throws IOException {
+        ByteBuf output = allocator.ioBuffer();
+        try {
+            encoder.encode(message, output);
+            return output.readableBytes();
+        } finally {
+            output.release();
+        }
+    }
+
+    @Benchmark
+    public int sized() throws IOException {
+        int length = encoder.encodedSize(message);
+        ByteBuf output = (length < 0) ? allocator.ioBuffer() : allocator.ioBuffer(length);
+        try {
+            encoder.encode(message, output);
+            return output.readableBytes();
+        } finally {
+            output.release();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package edu.uw.zookeeper.protocol.proto;
+
+import static org.junit.Assert.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+
+@RunWith(JUnit4.class)
+public class ByteBufInputArchiveTest {
+
+    protected static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+
+    protected static ByteBuf encode(ProtocolRequestMessage<?> message) throws IOException {
+        ByteBuf buffer = Unpooled.buffer();
+        message.encode(buffer);
+        // sized to the message
+        return Unpooled.copiedBuffer(buffer);
+    }
+
+    @Test
+    public void testRequests() throws IOException {
+        byte[] bytes = randomBytes(4096);
+        ProtocolRequestMessage<?> expected = ProtocolRequestMessage.of(1, new ISetDataRequest("/a", bytes, 1));
+        ByteBuf buffer = encode(expected);
+        ProtocolRequestMessage<?> actual = ProtocolRequestMessage.decode(buffer.duplicate(), 1024);
+        ISetDataRequest record = (ISetDataRequest) actual.record();
+        assertNotNull(record.getPayload());
+        assertEquals(bytes.length, record.getDataLength());
+        assertArrayEquals(bytes, record.getData());
+        assertEquals(expected.record(), record);
+        assertEquals(2, buffer.refCnt());
+        assertEquals(buffer, encode(actual));
+
+        // not sliced
+        assertNull(((ISetDataRequest) ProtocolRequestMessage.decode(buffer.duplicate()).record()).getPayload());
+        assertNull(((ISetDataRequest) ProtocolRequestMessage.decode(buffer.duplicate(), bytes.length + 1).record()).getPayload());
+        ByteBuf larger = Unpooled.buffer(buffer.readableBytes() * 4).writeBytes(buffer.duplicate());
+        assertNull(((ISetDataRequest) ProtocolRequestMessage.decode(larger, 1024).record()).getPayload());
+
+        expected = ProtocolRequestMessage.of(2, new ICreateRequest("/b", bytes, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0));
+        buffer = encode(expected);
+        actual = ProtocolRequestMessage.decode(buffer.duplicate(), 1024);
+        assertNotNull(((ICreateRequest) actual.record()).getPayload());
+        assertEquals(expected.record(), actual.record());
+        assertEquals(buffer, encode(actual));
+    }
+
+    @Test
+    public void testResponse() throws IOException {
+        byte[] bytes = randomBytes(4096);
+        Stat stat = new Stat(1L, 1L, 1L, 1L, 1, 0, 0, 0L, bytes.length, 0, 1L);
+        ByteBuf buffer = Unpooled.buffer();
+        ProtocolResponseMessage.of(1, 1L, new IGetDataResponse(bytes, stat)).encode(buffer);
+        IGetDataResponse record = (IGetDataResponse) ProtocolResponseMessage.decode(
+                ProtocolResponseMessage.ExpectedOpcode.create(OpCode.GET_DATA), Unpooled.copiedBuffer(buffer), 1024).record();
+        assertNotNull(record.getPayload());
+        assertEquals(stat, record.getStat());
+        ByteBuf view = record.getPayload().retainedBuffer();
+        assertEquals(Unpooled.wrappedBuffer(bytes), view);
+        assertFalse(view.release());
+        assertEquals(new IGetDataResponse(bytes, stat), record);
+    }
+}
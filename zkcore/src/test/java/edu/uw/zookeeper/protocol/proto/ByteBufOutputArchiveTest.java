@@ -0,0 +1,74 @@
+package edu.uw.zookeeper.protocol.proto;
+
+import static org.junit.Assert.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.uw.zookeeper.data.OffHeapPayloads;
+import edu.uw.zookeeper.data.Operations;
+import edu.uw.zookeeper.data.ZNodePath;
+import edu.uw.zookeeper.net.Encoder;
+import edu.uw.zookeeper.protocol.Encodable;
+import edu.uw.zookeeper.protocol.EncodableEncoder;
+import edu.uw.zookeeper.protocol.Frame;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+
+@RunWith(JUnit4.class)
+public class ByteBufOutputArchiveTest {
+
+    @Test
+    public void testComposite() throws IOException {
+        byte[] bytes = new byte[4096];
+        new Random().nextBytes(bytes);
+        Stat stat = new Stat(1L, 1L, 1L, 1L, 1, 0, 0, 0L, bytes.length, 0, 1L);
+        Encoder<Encodable, ?> encoder = Frame.FramedEncoder.create(EncodableEncoder.getInstance());
+        ByteBuf expected = Unpooled.buffer();
+        encoder.encode(ProtocolResponseMessage.of(1, 1L, new IGetDataResponse(bytes, stat)), expected);
+
+        OffHeapPayloads.Payload payload = OffHeapPayloads.getInstance().store(bytes);
+        CompositeByteBuf actual = PooledByteBufAllocator.DEFAULT.compositeDirectBuffer();
+        encoder.encode(ProtocolResponseMessage.of(1, 1L, new IGetDataResponse(payload, stat)), actual);
+        assertEquals(expected, actual);
+        // header, payload, and stat
+        assertEquals(3, actual.numComponents());
+        assertEquals(bytes.length, actual.component(1).readableBytes());
+        assertTrue(actual.release());
+    }
+
+    @Test
+    public void testSize() throws IOException {
+        Encoder.Sized<Encodable, ?> encoder = Frame.FramedEncoder.create(EncodableEncoder.getInstance());
+        Stat stat = new Stat(1L, 1L, 1L, 1L, 1, 0, 0, 0L, 0, 2, 1L);
+        ZNodePath path = ZNodePath.fromString("/\u00e9/\u4e2d/\ud83d\ude00");
+        Encodable[] messages = {
+                ProtocolRequestMessage.of(1, new ISetDataRequest(path.toString(), new byte[100], 1)),
+                ProtocolRequestMessage.of(2, Operations.Requests.multi()
+                        .add(Operations.Requests.create().setPath(path).setData(new byte[10]))
+                        .add(Operations.Requests.delete().setPath(path))
+                        .build()),
+                ProtocolResponseMessage.of(3, 1L, new IGetChildren2Response(
+                        ImmutableList.of("a", "\u00e9\u00e9", "\ud83d\ude00", "\ud83d"), stat)),
+                ProtocolResponseMessage.of(4, 1L, new IGetDataResponse(OffHeapPayloads.getInstance().store(new byte[100]), stat)),
+                ProtocolResponseMessage.of(5, 1L, new IErrorResponse(KeeperException.Code.NONODE)),
+        };
+        for (Encodable message: messages) {
+            ByteBuf output = Unpooled.buffer();
+            encoder.encode(message, output);
+            assertEquals(message.toString(), output.readableBytes(), encoder.encodedSize(message));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package edu.uw.zookeeper.protocol.proto;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RecordsTest {
+
+    @Test
+    public void testFactories() {
+        for (OpCode opcode: OpCode.values()) {
+            Class<? extends Records.Request> requestType = Records.Requests.typeOf(opcode);
+            if (requestType != null) {
+                Records.Request request = Records.Requests.getInstance().get(opcode);
+                assertSame(requestType, request.getClass());
+                assertEquals(opcode, request.opcode());
+                assertEquals(opcode, Records.opCodeOf(requestType));
+            }
+            Class<? extends Records.Response> responseType = Records.Responses.typeOf(opcode);
+            if (responseType != null) {
+                Records.Response response = Records.Responses.getInstance().get(opcode);
+                assertSame(responseType, response.getClass());
+                assertEquals(opcode, response.opcode());
+                assertEquals(opcode, Records.opCodeOf(responseType));
+            }
+        }
+        assertNull(Records.Requests.typeOf(OpCode.SASL));
+        assertNotNull(Records.Responses.typeOf(OpCode.NOTIFICATION));
+        assertSame(Records.getShared(IPingRequest.class), Records.Requests.getInstance().get(OpCode.PING));
+        assertSame(Records.getShared(IPingResponse.class), Records.newInstance(IPingResponse.class));
+        assertNotSame(Records.newInstance(ICreateRequest.class), Records.newInstance(ICreateRequest.class));
+        assertEquals(OpCodeXid.PING, Records.opCodeXidOf(IPingRequest.class));
+        assertNull(Records.opCodeXidOf(ICreateRequest.class));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNoType() {
+        Records.Requests.getInstance().get(OpCode.SASL);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNotShared() {
+        Records.getShared(ICreateRequest.class);
+    }
+}
@@ -0,0 +1,242 @@
+package edu.uw.zookeeper.data;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+
+/**
+ * NameTrie that doesn't modify nodes once they are published.
+ *
+ * Nodes on the path to a modified node are copied the first time they are
+ * looked up after a publish, and <code>publish()</code> makes the modified tree
+ * visible to readers with a single volatile write.
+ * So views returned by <code>published()</code> and <code>snapshot()</code>
+ * are consistent and may be read without locking.
+ * Copies share children through a PersistentHashMap,
+ * so a write copies O(depth) nodes regardless of fan-out.
+ * Nodes keep weak parent links and store their paths,
+ * since strong links from shared children would keep every
+ * superseded copy of their parent alive.
+ *
+ * Nodes are modified in place until the first publish, so that a tree can be
+ * restored without copying.
+ * Node data and ACL lists must be replaced rather than modified.
+ *
+ * Only one thread may modify the trie.
+ */
+public class CopyOnWriteZNodeTrie extends SimpleLabelTrie<ZNodeNode> {
+
+    /**
+     * Copies the root, which must not be modified afterwards.
+     */
+    public static CopyOnWriteZNodeTrie forRoot(ZNodeNode root) {
+        return new CopyOnWriteZNodeTrie(
+                new Node(EmptyZNodeLabel.getInstance(), null, RootZNodePath.getInstance(), 
+                        copyOf(root.state()), copyOfChildren(root.delegate())));
+    }
+
+    /**
+     * Shares data and ACLs, which are replaced rather than modified.
+     */
+    public static ZNodeNode.ZNodeState copyOf(ZNodeNode.ZNodeState state) {
+        return ZNodeNode.ZNodeState.shallowCopyOf(state);
+    }
+
+    /**
+     * Small maps are copied, and others share structure.
+     */
+    public static Map<ZNodeName, ZNodeNode> copyOfChildren(Map<ZNodeName, ZNodeNode> children) {
+        if (children.isEmpty()) {
+            return null;
+        } else if (children.size() <= ZNodeNode.MAX_ARRAY_CHILDREN) {
+            return SmallArrayMap.copyOf(children);
+        } else {
+            return PersistentHashMap.copyOf(children);
+        }
+    }
+
+    // nodes that are reachable from root but not published
+    private final Set<ZNodeNode> unpublished;
+    private ZNodeNode root;
+    private volatile ZNodeNode published;
+    private boolean shared;
+
+    protected CopyOnWriteZNodeTrie(ZNodeNode root) {
+        super(root);
+        this.root = root;
+        this.published = root;
+        this.unpublished = Sets.newIdentityHashSet();
+        this.shared = false;
+    }
+
+    /**
+     * Doesn't copy, so the root must not be modified after the first publish.
+     */
+    @Override
+    public ZNodeNode root() {
+        return root;
+    }
+
+    /**
+     * @return view of the latest published tree
+     */
+    public View published() {
+        return new View(root) {
+            @Override
+            public ZNodeNode root() {
+                return published;
+            }
+        };
+    }
+
+    /**
+     * Later writes copy the current tree, whether or not it is published.
+     * 
+     * @return view of the current tree
+     */
+    public View snapshot() {
+        shared = true;
+        unpublished.clear();
+        return new View(root);
+    }
+
+    public void publish() {
+        published = root;
+        shared = true;
+        unpublished.clear();
+    }
+
+    /**
+     * @return a node that may be modified until the next publish
+     */
+    @Override
+    public ZNodeNode get(Object k) {
+        ZNodeNode node = ZNodeNode.find(root, k.toString());
+        if ((node == null) || !shared || unpublished.contains(node)) {
+            return node;
+        }
+        ZNodePath path = toPath(k);
+        node = writableRoot();
+        for (ZNodeLabel label: path) {
+            ZNodeNode child = node.get(label);
+            if (! unpublished.contains(child)) {
+                child = copy(child, node);
+                node.put(label, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    @Override
+    public boolean containsKey(Object k) {
+        return ZNodeNode.find(root, k.toString()) != null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return root.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        if (shared) {
+            writableRoot().clear();
+        } else {
+            root.clear();
+        }
+    }
+
+    @Override
+    public Iterator<ZNodeNode> iterator() {
+        return preOrder(root);
+    }
+
+    protected ZNodeNode writableRoot() {
+        if (! unpublished.contains(root)) {
+            root = copy(root, null);
+        }
+        return root;
+    }
+
+    protected ZNodeNode copy(ZNodeNode node, ZNodeNode parent) {
+        ZNodeNode copy = new Node(
+                node.parent().name(),
+                parent,
+                node.path(),
+                copyOf(node.state()),
+                copyOfChildren(node.delegate()));
+        unpublished.add(copy);
+        return copy;
+    }
+    
+    protected static final class Node extends ZNodeNode {
+        
+        private final WeakReference<ZNodeNode> parent;
+        private final ZNodePath path;
+        
+        protected Node(ZNodeName label, ZNodeNode parent, ZNodePath path, ZNodeNode.ZNodeState state, Map<ZNodeName, ZNodeNode> children) {
+            super(label, null, state, children);
+            this.parent = (parent == null) ? null : new WeakReference<ZNodeNode>(parent);
+            this.path = path;
+        }
+        
+        @Override
+        public ZNodePath path() {
+            return path;
+        }
+        
+        @Override
+        protected ZNodeNode parentNode() {
+            return (parent == null) ? null : parent.get();
+        }
+        
+        @Override
+        protected ZNodeNode newChild(ZNodeLabel label, ZNodeNode.ZNodeState state) {
+            return new Node(label, this, path.join(label), state, null);
+        }
+    }
+
+    /**
+     * Read-only.
+     */
+    public static class View extends SimpleLabelTrie<ZNodeNode> {
+
+        protected View(ZNodeNode root) {
+            super(root);
+        }
+
+        @Override
+        public ZNodeNode get(Object k) {
+            return ZNodeNode.find(root(), k.toString());
+        }
+
+        @Override
+        public ZNodeNode put(ZNodePath k, ZNodeNode v) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ZNodeNode remove(Object k) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return root().isEmpty();
+        }
+
+        @Override
+        public Iterator<ZNodeNode> iterator() {
+            return preOrder(root());
+        }
+    }
+}
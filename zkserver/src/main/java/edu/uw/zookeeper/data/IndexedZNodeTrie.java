@@ -0,0 +1,113 @@
+package edu.uw.zookeeper.data;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Label trie that also indexes every node by its path,
+ * so that point lookups are a single hash lookup
+ * and the trie is only walked for structural operations.
+ *
+ * The index is maintained by the nodes, so nodes may be added and removed
+ * either through the trie or directly through their parent.
+ * Keys are compared as path strings, so they must be canonical.
+ *
+ * Lookups are threadsafe, and modifications are not,
+ * except that detached subtrees may be built concurrently.
+ */
+public class IndexedZNodeTrie extends SimpleLabelTrie<ZNodeNode> {
+
+    public static IndexedZNodeTrie create() {
+        return create(ZNodeNode.ZNodeState.defaults());
+    }
+
+    public static IndexedZNodeTrie create(ZNodeNode.ZNodeState state) {
+        ConcurrentMap<String, ZNodeNode> index = Maps.newConcurrentMap();
+        Node root = new Node(EmptyZNodeLabel.getInstance(), null, state, index);
+        index.put(RootZNodePath.getInstance().toString(), root);
+        return new IndexedZNodeTrie(root, index);
+    }
+
+    private final ConcurrentMap<String, ZNodeNode> index;
+
+    protected IndexedZNodeTrie(ZNodeNode root, ConcurrentMap<String, ZNodeNode> index) {
+        super(root);
+        this.index = index;
+    }
+
+    @Override
+    public ZNodeNode get(Object k) {
+        return index.get(k.toString());
+    }
+
+    @Override
+    public boolean containsKey(Object k) {
+        return index.containsKey(k.toString());
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Indexes a child when it is added to a node,
+     * and unindexes the subtree of a child when it is removed.
+     */
+    protected static final class Node extends ZNodeNode {
+
+        private final ConcurrentMap<String, ZNodeNode> index;
+
+        protected Node(ZNodeName label, ZNodeNode parent, ZNodeNode.ZNodeState state, ConcurrentMap<String, ZNodeNode> index) {
+            super(label, parent, state, null);
+            this.index = index;
+        }
+
+        @Override
+        public ZNodeNode put(ZNodeName k, ZNodeNode v) {
+            ZNodeNode prev = super.put(k, v);
+            if (prev != v) {
+                ZNodePath path = path().join(k);
+                if (prev != null) {
+                    unindex(path, prev);
+                }
+                index.put(path.toString(), v);
+            }
+            return prev;
+        }
+
+        @Override
+        public ZNodeNode remove(Object k) {
+            ZNodeNode child = super.remove(k);
+            if (child != null) {
+                unindex(path().join(child.parent().name()), child);
+            }
+            return child;
+        }
+
+        @Override
+        public void clear() {
+            if (! isEmpty()) {
+                ZNodePath path = path();
+                for (Map.Entry<ZNodeName, ZNodeNode> child: entrySet()) {
+                    unindex(path.join(child.getKey()), child.getValue());
+                }
+            }
+            super.clear();
+        }
+
+        @Override
+        protected ZNodeNode newChild(ZNodeLabel label, ZNodeNode.ZNodeState state) {
+            return new Node(label, this, state, index);
+        }
+
+        protected void unindex(ZNodePath path, ZNodeNode node) {
+            index.remove(path.toString(), node);
+            for (Map.Entry<ZNodeName, ZNodeNode> child: node.entrySet()) {
+                unindex(path.join(child.getKey()), child.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package edu.uw.zookeeper.data;
+
+/**
+ * Lookup key for a label within a path, so that children
+ * can be looked up without allocating a label for each step.
+ *
+ * Only equal to a label when compared from the probe's side,
+ * which is how HashMap, SmallArrayMap and PersistentHashMap compare keys.
+ * Must not be stored in a map.
+ *
+ * Not threadsafe.
+ */
+final class LabelProbe {
+
+    private final String path;
+    private int start;
+    private int end;
+    private int hash;
+
+    public LabelProbe(String path) {
+        this.path = path;
+        this.start = 0;
+        this.end = 0;
+        this.hash = 0;
+    }
+
+    /**
+     * Hashes the label between <code>start</code> and <code>end</code>
+     * the same way String does.
+     */
+    public LabelProbe set(int start, int end) {
+        int h = 0;
+        for (int i=start; i<end; ++i) {
+            h = 31*h + path.charAt(i);
+        }
+        this.start = start;
+        this.end = end;
+        this.hash = h;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (! (obj instanceof ZNodeName)) {
+            return false;
+        }
+        String other = obj.toString();
+        return (other.length() == end - start) && path.regionMatches(start, other, 0, end - start);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return path.substring(start, end);
+    }
+}
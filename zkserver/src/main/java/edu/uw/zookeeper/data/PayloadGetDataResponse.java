@@ -0,0 +1,42 @@
+package edu.uw.zookeeper.data;
+
+import java.util.Arrays;
+
+import org.apache.zookeeper.data.Stat;
+
+import com.google.common.base.Objects;
+
+import edu.uw.zookeeper.protocol.proto.IGetDataResponse;
+
+/**
+ * GET_DATA response for an off-heap payload,
+ * which is encoded from the payload rather than from a copy on the heap.
+ */
+public class PayloadGetDataResponse extends IGetDataResponse {
+
+    public static PayloadGetDataResponse of(OffHeapPayloads.Payload payload, Stat stat) {
+        return new PayloadGetDataResponse(payload, stat);
+    }
+
+    public PayloadGetDataResponse(OffHeapPayloads.Payload payload, Stat stat) {
+        super(payload, stat);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(Arrays.hashCode(getData()), getStat());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (! (obj instanceof IGetDataResponse)) {
+            return false;
+        }
+        IGetDataResponse other = (IGetDataResponse) obj;
+        return Arrays.equals(getData(), other.getData())
+                && Objects.equal(getStat(), other.getStat());
+    }
+}
@@ -0,0 +1,391 @@
+package edu.uw.zookeeper.data;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Hash array mapped trie behind a mutable Map.
+ *
+ * Copies share structure, so <code>copy()</code> takes constant time
+ * and modifying a map copies only the trie nodes on the path to the modified key.
+ * A map that is no longer modified may be read concurrently with modifications to its copies.
+ *
+ * Null keys and values aren't supported.
+ *
+ * Not threadsafe.
+ */
+public final class PersistentHashMap<K,V> extends AbstractMap<K,V> {
+
+    public static <K,V> PersistentHashMap<K,V> create() {
+        return new PersistentHashMap<K,V>(null, 0);
+    }
+
+    public static <K,V> PersistentHashMap<K,V> copyOf(Map<? extends K, ? extends V> map) {
+        if (map instanceof PersistentHashMap) {
+            @SuppressWarnings("unchecked")
+            PersistentHashMap<K,V> copy = ((PersistentHashMap<K,V>) map).copy();
+            return copy;
+        }
+        PersistentHashMap<K,V> copy = create();
+        copy.putAll(map);
+        return copy;
+    }
+
+    protected static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private TrieNode root;
+    private int size;
+
+    private PersistentHashMap(TrieNode root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public PersistentHashMap<K,V> copy() {
+        return new PersistentHashMap<K,V>(root, size);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        if ((root == null) || (key == null)) {
+            return null;
+        }
+        return (V) root.find(key, hash(key), 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(K key, V value) {
+        checkNotNull(key);
+        checkNotNull(value);
+        Result result = new Result();
+        root = ((root == null) ? BitmapNode.EMPTY : root).put(key, value, hash(key), 0, result);
+        if (result.added) {
+            ++size;
+        }
+        return (V) result.previous;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(Object key) {
+        if ((root == null) || (key == null)) {
+            return null;
+        }
+        Result result = new Result();
+        TrieNode updated = root.remove(key, hash(key), 0, result);
+        if (result.previous != null) {
+            root = updated;
+            --size;
+        }
+        return (V) result.previous;
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        return new EntrySet();
+    }
+
+    protected final class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+
+        @Override
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator(root);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Iterates over the trie as of when it was created.
+     */
+    protected final class EntryIterator implements Iterator<Map.Entry<K,V>> {
+
+        private final ArrayDeque<TrieNode> pending;
+        private Object[] array;
+        private int index;
+        private Object last;
+
+        public EntryIterator(TrieNode root) {
+            this.pending = new ArrayDeque<TrieNode>();
+            this.array = (root == null) ? BitmapNode.EMPTY.array : root.array;
+            this.index = 0;
+            this.last = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            advance();
+            return index < array.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Map.Entry<K,V> next() {
+            advance();
+            if (index >= array.length) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K,V> next = new AbstractMap.SimpleImmutableEntry<K,V>((K) array[index], (V) array[index+1]);
+            last = array[index];
+            index += 2;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            checkState(last != null);
+            PersistentHashMap.this.remove(last);
+            last = null;
+        }
+
+        private void advance() {
+            while (true) {
+                while ((index < array.length) && (array[index] == null)) {
+                    pending.push((TrieNode) array[index+1]);
+                    index += 2;
+                }
+                if ((index < array.length) || pending.isEmpty()) {
+                    return;
+                }
+                array = pending.pop().array;
+                index = 0;
+            }
+        }
+    }
+
+    protected static final class Result {
+        public Object previous = null;
+        public boolean added = false;
+    }
+
+    /**
+     * Immutable; <code>array</code> alternates keys and values,
+     * and a null key means that the value is a subtrie.
+     */
+    protected static abstract class TrieNode {
+
+        protected final Object[] array;
+
+        protected TrieNode(Object[] array) {
+            this.array = array;
+        }
+
+        public abstract Object find(Object key, int hash, int shift);
+
+        public abstract TrieNode put(Object key, Object value, int hash, int shift, Result result);
+
+        /**
+         * @return null if empty
+         */
+        public abstract TrieNode remove(Object key, int hash, int shift, Result result);
+    }
+
+    protected static final class BitmapNode extends TrieNode {
+
+        public static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        public static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & 0x1f);
+        }
+
+        public static TrieNode pair(Object k1, Object v1, int h1, Object k2, Object v2, int h2, int shift) {
+            if (h1 == h2) {
+                return new CollisionNode(h1, new Object[] {k1, v1, k2, v2});
+            }
+            Result result = new Result();
+            return EMPTY.put(k1, v1, h1, shift, result).put(k2, v2, h2, shift, result);
+        }
+
+        private final int bitmap;
+
+        public BitmapNode(int bitmap, Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        public Object find(Object key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int i = index(bit);
+            Object k = array[i];
+            if (k == null) {
+                return ((TrieNode) array[i+1]).find(key, hash, shift + 5);
+            }
+            return key.equals(k) ? array[i+1] : null;
+        }
+
+        @Override
+        public TrieNode put(Object key, Object value, int hash, int shift, Result result) {
+            int bit = bit(hash, shift);
+            int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] updated = new Object[array.length + 2];
+                System.arraycopy(array, 0, updated, 0, i);
+                updated[i] = key;
+                updated[i+1] = value;
+                System.arraycopy(array, i, updated, i + 2, array.length - i);
+                result.added = true;
+                return new BitmapNode(bitmap | bit, updated);
+            }
+            Object k = array[i];
+            Object v = array[i+1];
+            if (k == null) {
+                TrieNode child = ((TrieNode) v).put(key, value, hash, shift + 5, result);
+                return (child == v) ? this : with(i, null, child);
+            } else if (key.equals(k)) {
+                result.previous = v;
+                return (value == v) ? this : with(i, k, value);
+            } else {
+                result.added = true;
+                return with(i, null, pair(k, v, hash(k), key, value, hash, shift + 5));
+            }
+        }
+
+        @Override
+        public TrieNode remove(Object key, int hash, int shift, Result result) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = index(bit);
+            Object k = array[i];
+            Object v = array[i+1];
+            if (k == null) {
+                TrieNode child = ((TrieNode) v).remove(key, hash, shift + 5, result);
+                if (child == v) {
+                    return this;
+                } else if (child != null) {
+                    return with(i, null, child);
+                }
+            } else if (key.equals(k)) {
+                result.previous = v;
+            } else {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] updated = new Object[array.length - 2];
+            System.arraycopy(array, 0, updated, 0, i);
+            System.arraycopy(array, i + 2, updated, i, array.length - i - 2);
+            return new BitmapNode(bitmap & ~bit, updated);
+        }
+
+        private int index(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private BitmapNode with(int i, Object key, Object value) {
+            Object[] updated = array.clone();
+            updated[i] = key;
+            updated[i+1] = value;
+            return new BitmapNode(bitmap, updated);
+        }
+    }
+
+    /**
+     * Keys with the same hash.
+     */
+    protected static final class CollisionNode extends TrieNode {
+
+        private final int hash;
+
+        public CollisionNode(int hash, Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        @Override
+        public Object find(Object key, int hash, int shift) {
+            if (hash == this.hash) {
+                for (int i=0; i<array.length; i+=2) {
+                    if (key.equals(array[i])) {
+                        return array[i+1];
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public TrieNode put(Object key, Object value, int hash, int shift, Result result) {
+            if (hash != this.hash) {
+                return new BitmapNode(BitmapNode.bit(this.hash, shift), new Object[] {null, this})
+                    .put(key, value, hash, shift, result);
+            }
+            for (int i=0; i<array.length; i+=2) {
+                if (key.equals(array[i])) {
+                    result.previous = array[i+1];
+                    if (value == array[i+1]) {
+                        return this;
+                    }
+                    Object[] updated = array.clone();
+                    updated[i+1] = value;
+                    return new CollisionNode(hash, updated);
+                }
+            }
+            Object[] updated = new Object[array.length + 2];
+            System.arraycopy(array, 0, updated, 0, array.length);
+            updated[array.length] = key;
+            updated[array.length + 1] = value;
+            result.added = true;
+            return new CollisionNode(hash, updated);
+        }
+
+        @Override
+        public TrieNode remove(Object key, int hash, int shift, Result result) {
+            if (hash != this.hash) {
+                return this;
+            }
+            for (int i=0; i<array.length; i+=2) {
+                if (key.equals(array[i])) {
+                    result.previous = array[i+1];
+                    if (array.length == 4) {
+                        int j = (i == 0) ? 2 : 0;
+                        return BitmapNode.EMPTY.put(array[j], array[j+1], hash, shift, new Result());
+                    }
+                    Object[] updated = new Object[array.length - 2];
+                    System.arraycopy(array, 0, updated, 0, i);
+                    System.arraycopy(array, i + 2, updated, i, array.length - i - 2);
+                    return new CollisionNode(hash, updated);
+                }
+            }
+            return this;
+        }
+    }
+}
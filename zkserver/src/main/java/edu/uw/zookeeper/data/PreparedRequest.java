@@ -0,0 +1,63 @@
+package edu.uw.zookeeper.data;
+
+import com.google.common.base.MoreObjects;
+
+import edu.uw.zookeeper.common.Reference;
+import edu.uw.zookeeper.protocol.SessionOperation;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Request whose path was validated and parsed before it was applied,
+ * so that operators don't parse it again under the write lock.
+ */
+public class PreparedRequest<T extends Records.Request> implements SessionOperation.Request<T>, Reference<SessionOperation.Request<T>> {
+
+    public static <T extends Records.Request> PreparedRequest<T> of(
+            SessionOperation.Request<T> request, ZNodePath path) {
+        return new PreparedRequest<T>(request, path);
+    }
+
+    protected final SessionOperation.Request<T> request;
+    protected final ZNodePath path;
+
+    public PreparedRequest(
+            SessionOperation.Request<T> request, ZNodePath path) {
+        this.request = request;
+        this.path = path;
+    }
+
+    @Override
+    public SessionOperation.Request<T> get() {
+        return request;
+    }
+
+    /**
+     * @return validated path of the request
+     */
+    public ZNodePath path() {
+        return path;
+    }
+
+    @Override
+    public long getSessionId() {
+        return request.getSessionId();
+    }
+
+    @Override
+    public int xid() {
+        return request.xid();
+    }
+
+    @Override
+    public T record() {
+        return request.record();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("request", get())
+                .add("path", path())
+                .toString();
+    }
+}
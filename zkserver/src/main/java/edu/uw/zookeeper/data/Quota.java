@@ -0,0 +1,105 @@
+package edu.uw.zookeeper.data;
+
+import org.apache.zookeeper.Quotas;
+import org.apache.zookeeper.StatsTrack;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+/**
+ * Limits on the number of nodes and data bytes of a subtree, including its root,
+ * that are set by ZooKeeper's <code>zookeeper_limits</code> nodes.
+ * A negative limit is unlimited.
+ */
+public final class Quota {
+
+    public static Quota of(int count, long bytes) {
+        return new Quota(count, bytes);
+    }
+
+    /**
+     * @param data in the format of <code>StatsTrack</code>
+     * @throws IllegalArgumentException
+     */
+    public static Quota fromBytes(byte[] data) {
+        StatsTrack stats;
+        try {
+            stats = new StatsTrack(new String(data));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException(new String(data), e);
+        }
+        return of(stats.getCount(), stats.getBytes());
+    }
+
+    /**
+     * @return path of the node that sets the limits of <code>path</code>
+     */
+    public static String limitsOf(String path) {
+        return new StringBuilder(Quotas.quotaZookeeper.length() + path.length() + Quotas.limitNode.length() + 1)
+                .append(Quotas.quotaZookeeper).append(path).append(ZNodeName.SLASH).append(Quotas.limitNode).toString();
+    }
+
+    /**
+     * @return path that is limited by the node at <code>path</code>, 
+     *          or null if it isn't a limits node
+     */
+    public static String limitedBy(String path) {
+        int start = Quotas.quotaZookeeper.length();
+        int end = path.length() - Quotas.limitNode.length() - 1;
+        if ((end <= start + 1) 
+                || ! path.startsWith(Quotas.quotaZookeeper)
+                || ! path.endsWith(Quotas.limitNode)
+                || (path.charAt(start) != ZNodeName.SLASH)
+                || (path.charAt(end) != ZNodeName.SLASH)) {
+            return null;
+        }
+        return path.substring(start, end);
+    }
+
+    private final int count;
+    private final long bytes;
+
+    protected Quota(int count, long bytes) {
+        this.count = count;
+        this.bytes = bytes;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public boolean isUnlimited() {
+        return (count < 0) && (bytes < 0L);
+    }
+
+    public boolean isExceeded(long count, long bytes) {
+        return ((this.count >= 0) && (count > this.count)) 
+                || ((this.bytes >= 0L) && (bytes > this.bytes));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (! (obj instanceof Quota)) {
+            return false;
+        }
+        Quota other = (Quota) obj;
+        return (count == other.count) && (bytes == other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(count, bytes);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("count", count).add("bytes", bytes).toString();
+    }
+}
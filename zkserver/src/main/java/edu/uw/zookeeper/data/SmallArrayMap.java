@@ -0,0 +1,176 @@
+package edu.uw.zookeeper.data;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map that keeps entries in a single array and looks keys up by linear scan,
+ * for maps that usually hold a handful of entries.
+ *
+ * Null keys and values aren't supported.
+ *
+ * Not threadsafe.
+ */
+public final class SmallArrayMap<K,V> extends AbstractMap<K,V> {
+
+    public static <K,V> SmallArrayMap<K,V> create() {
+        return new SmallArrayMap<K,V>(new Object[2], 0);
+    }
+
+    public static <K,V> SmallArrayMap<K,V> copyOf(Map<? extends K, ? extends V> map) {
+        if (map instanceof SmallArrayMap) {
+            SmallArrayMap<?,?> other = (SmallArrayMap<?,?>) map;
+            return new SmallArrayMap<K,V>(Arrays.copyOf(other.array, Math.max(2, other.size*2)), other.size);
+        }
+        SmallArrayMap<K,V> copy = new SmallArrayMap<K,V>(new Object[Math.max(2, map.size()*2)], 0);
+        copy.putAll(map);
+        return copy;
+    }
+
+    // alternating keys and values
+    private Object[] array;
+    private int size;
+
+    private SmallArrayMap(Object[] array, int size) {
+        this.array = array;
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        int i = indexOf(key);
+        return (i < 0) ? null : (V) array[i+1];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(K key, V value) {
+        checkNotNull(key);
+        checkNotNull(value);
+        int i = indexOf(key);
+        if (i >= 0) {
+            V prev = (V) array[i+1];
+            array[i+1] = value;
+            return prev;
+        }
+        i = size*2;
+        if (i == array.length) {
+            array = Arrays.copyOf(array, array.length*2);
+        }
+        array[i] = key;
+        array[i+1] = value;
+        ++size;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(Object key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        V prev = (V) array[i+1];
+        removeAt(i);
+        return prev;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(array, 0, size*2, null);
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        return new EntrySet();
+    }
+
+    protected int indexOf(Object key) {
+        if (key == null) {
+            return -1;
+        }
+        int hash = key.hashCode();
+        for (int i=0; i<size*2; i+=2) {
+            Object k = array[i];
+            // compared from the key's side, like HashMap
+            if ((k == key) || ((k.hashCode() == hash) && key.equals(k))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // moves the last entry into the hole
+    protected void removeAt(int i) {
+        int last = (size-1)*2;
+        array[i] = array[last];
+        array[i+1] = array[last+1];
+        array[last] = null;
+        array[last+1] = null;
+        --size;
+    }
+
+    protected final class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+    }
+
+    protected final class EntryIterator implements Iterator<Map.Entry<K,V>> {
+
+        private int next = 0;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size*2;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Map.Entry<K,V> next() {
+            if (! hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next += 2;
+            return new AbstractMap.SimpleImmutableEntry<K,V>((K) array[last], (V) array[last+1]);
+        }
+
+        @Override
+        public void remove() {
+            checkState(last >= 0);
+            removeAt(last);
+            // the last entry was moved into the hole
+            next = last;
+            last = -1;
+        }
+    }
+}
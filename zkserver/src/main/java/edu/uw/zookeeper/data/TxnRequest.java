@@ -47,6 +47,13 @@ public class TxnRequest<T extends Records.Request> implements TxnOperation.Reque
         return request.record();
     }
     
+    /**
+     * @return path validated when the request was prepared, or null
+     */
+    public ZNodePath path() {
+        return (request instanceof PreparedRequest) ? ((PreparedRequest<?>) request).path() : null;
+    }
+    
     @Override
     public String toString() {
         return Records.toBeanString(this);
@@ -11,6 +11,7 @@ import java.util.Set;
 import org.apache.zookeeper.KeeperException;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.ForwardingMap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
@@ -25,44 +26,226 @@ import edu.uw.zookeeper.protocol.SessionRequest;
 import edu.uw.zookeeper.protocol.proto.*;
 import edu.uw.zookeeper.server.ByOpcodeTxnRequestProcessor;
 
-public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
+/**
+ * Compact node of the server's data tree.
+ * 
+ * Paths are computed from strong parent links rather than stored,
+ * children are allocated with the first child and kept in a
+ * small array until there are more than <code>MAX_ARRAY_CHILDREN</code>,
+ * and stats are packed into the primitive fields of <code>ZNodeState</code>.
+ * 
+ * Each node also keeps the number of nodes, data bytes and ephemeral nodes
+ * below it, which the operators update along the ancestor chain
+ * of every node that they add, remove or resize,
+ * so the totals of a subtree are read without walking it.
+ */
+public class ZNodeNode extends ForwardingMap<ZNodeName, ZNodeNode> implements NameTrie.Node<ZNodeNode> {
+
+    public static final int MAX_ARRAY_CHILDREN = 8;
 
     public static ZNodeNode root() {
         return root(ZNodeState.defaults());
     }
     
     public static ZNodeNode root(ZNodeState state) {
-        NameTrie.Pointer<ZNodeNode> pointer = SimpleLabelTrie.strongPointer(EmptyZNodeLabel.getInstance(), null);
         return new ZNodeNode(
-                pointer, 
-                state);
+                EmptyZNodeLabel.getInstance(), 
+                null,
+                state,
+                null);
     }
     
     public static ZNodeNode child(ZNodeLabel label, ZNodeNode parent, ZNodeState state) {
-        NameTrie.Pointer<ZNodeNode> pointer = SimpleLabelTrie.weakPointer(label, parent);
-        return new ZNodeNode(
-                pointer, 
-                state);
+        return parent.newChild(label, state);
+    }
+    
+    /**
+     * Walks from <code>root</code> without allocating labels.
+     * 
+     * @param path canonical path
+     */
+    public static ZNodeNode find(ZNodeNode root, String path) {
+        int length = path.length();
+        if (length <= 1) {
+            return root;
+        }
+        LabelProbe probe = new LabelProbe(path);
+        ZNodeNode node = root;
+        int start = 1;
+        while ((node != null) && (start < length)) {
+            int end = path.indexOf(ZNodeName.SLASH, start);
+            if (end < 0) {
+                end = length;
+            }
+            node = (node.children == null) ? null : node.children.get(probe.set(start, end));
+            start = end + 1;
+        }
+        return node;
     }
 
+    private final ZNodeName label;
+    private final ZNodeNode parent;
     private final ZNodeState state;
+    private Map<ZNodeName, ZNodeNode> children;
     
-    protected ZNodeNode(NameTrie.Pointer<? extends ZNodeNode> parent, ZNodeState state) {
-        super(SimpleLabelTrie.pathOf(parent), parent, Maps.<ZNodeName, ZNodeNode>newHashMap());
+    protected ZNodeNode(ZNodeName label, ZNodeNode parent, ZNodeState state, Map<ZNodeName, ZNodeNode> children) {
+        this.label = label;
+        this.parent = parent;
         this.state = state;
+        this.children = children;
     }
 
     public ZNodeState state() {
         return state;
     }
+
+    /**
+     * Not stored, so avoid calling it repeatedly for deep nodes.
+     */
+    @Override
+    public ZNodePath path() {
+        ZNodeNode parent = parentNode();
+        return (parent == null) ? RootZNodePath.getInstance() : parent.path().join(label);
+    }
+
+    @Override
+    public NameTrie.Pointer<ZNodeNode> parent() {
+        return SimpleLabelTrie.strongPointer(label, parentNode());
+    }
     
     public Stats.ImmutableStat asStat() {
-        int dataLength = state.getData().getDataLength();
-        int numChildren = size();
-        return Stats.ImmutableStat.copyOf(Stats.CompositeStatGetter.of(
-                state.asStatPersisted(), dataLength, numChildren));
+        return state.asStat(size());
+    }
+
+    /**
+     * @return number of nodes below this node
+     */
+    public int numDescendants() {
+        return state.descendants;
+    }
+
+    /**
+     * @return data length of this node and the nodes below it
+     */
+    public long subtreeDataLength() {
+        return state.getDataLength() + state.descendantDataLength;
+    }
+
+    /**
+     * @return number of ephemeral nodes among this node and the nodes below it
+     */
+    public int subtreeEphemerals() {
+        return (state.isEphemeral() ? 1 : 0) + state.descendantEphemerals;
+    }
+
+    /**
+     * Adds the totals of this subtree to its ancestors 
+     * after it is put in its parent.
+     */
+    public void countAdded() {
+        addToAncestors(numDescendants() + 1, subtreeDataLength(), subtreeEphemerals());
+    }
+
+    /**
+     * Subtracts the totals of this subtree from its ancestors 
+     * after it is removed from its parent.
+     */
+    public void countRemoved() {
+        addToAncestors(-(numDescendants() + 1), -subtreeDataLength(), -subtreeEphemerals());
+    }
+
+    /**
+     * Adds the change in the data length of this node to its ancestors.
+     */
+    public void countResized(int delta) {
+        if (delta != 0) {
+            addToAncestors(0, delta, 0);
+        }
+    }
+
+    /**
+     * Recomputes the totals of a tree that was built without counting,
+     * such as a restored snapshot, in one pass without recursion.
+     */
+    public static void recount(ZNodeNode root) {
+        List<ZNodeNode> nodes = Lists.newArrayList();
+        List<ZNodeNode> parents = Lists.newArrayList();
+        nodes.add(root);
+        parents.add(null);
+        // children follow their parents
+        for (int i=0; i<nodes.size(); ++i) {
+            ZNodeNode node = nodes.get(i);
+            node.state.descendants = 0;
+            node.state.descendantDataLength = 0L;
+            node.state.descendantEphemerals = 0;
+            for (ZNodeNode child: node.values()) {
+                nodes.add(child);
+                parents.add(node);
+            }
+        }
+        for (int i=nodes.size()-1; i>0; --i) {
+            ZNodeNode node = nodes.get(i);
+            ZNodeState parent = parents.get(i).state;
+            parent.descendants += node.numDescendants() + 1;
+            parent.descendantDataLength += node.subtreeDataLength();
+            parent.descendantEphemerals += node.subtreeEphemerals();
+        }
+    }
+    
+    public boolean remove() {
+        ZNodeNode parent = parentNode();
+        if ((parent != null) && (this == parent.get(label))) {
+            ZNodeNode child = parent.remove(label);
+            assert(child == this);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (children != null) && children.containsKey(AbstractNameTrie.SimpleNode.toName(key));
+    }
+
+    @Override
+    public ZNodeNode get(Object k) {
+        return (children == null) ? null : children.get(AbstractNameTrie.SimpleNode.toName(k));
+    }
+
+    @Override
+    public ZNodeNode put(ZNodeName k, ZNodeNode v) {
+        if (children == null) {
+            children = SmallArrayMap.create();
+        } else if ((children instanceof SmallArrayMap) 
+                && (children.size() >= MAX_ARRAY_CHILDREN) 
+                && ! children.containsKey(k)) {
+            children = Maps.newHashMap(children);
+        }
+        return children.put(k, v);
+    }
+
+    @Override
+    public void putAll(Map<? extends ZNodeName, ? extends ZNodeNode> m) {
+        standardPutAll(m);
+    }
+
+    @Override
+    public ZNodeNode remove(Object k) {
+        if (children == null) {
+            return null;
+        }
+        ZNodeNode child = children.remove(AbstractNameTrie.SimpleNode.toName(k));
+        if (children.isEmpty()) {
+            children = null;
+        }
+        return child;
     }
 
+    @Override
+    public void clear() {
+        children = null;
+    }
+    
     @Override
     public String toString() {
         return MoreObjects.toStringHelper("")
@@ -72,11 +255,45 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
                 .toString();
     }
     
+    protected ZNodeNode parentNode() {
+        return parent;
+    }
+    
+    protected ZNodeNode newChild(ZNodeLabel label, ZNodeState state) {
+        return new ZNodeNode(label, this, state, null);
+    }
+    
+    protected void addToAncestors(int nodes, long bytes, int ephemerals) {
+        for (ZNodeNode ancestor = parentNode(); ancestor != null; ancestor = ancestor.parentNode()) {
+            ancestor.state.descendants += nodes;
+            ancestor.state.descendantDataLength += bytes;
+            ancestor.state.descendantEphemerals += ephemerals;
+        }
+    }
+
+    @Override
+    protected Map<ZNodeName, ZNodeNode> delegate() {
+        return (children == null) ? ImmutableMap.<ZNodeName, ZNodeNode>of() : children;
+    }
+    
     public static interface Operator<V extends Records.Response> extends Reference<NameTrie<ZNodeNode>>, Processors.CheckedProcessor<TxnOperation.Request<?>, V, KeeperException> {
     }
 
     public static abstract class AbstractProcessor<V> implements Processors.CheckedProcessor<TxnOperation.Request<?>, V, KeeperException>, Reference<NameTrie<ZNodeNode>> {
 
+        /**
+         * Uses the path validated when <code>request</code> was prepared, if any.
+         */
+        public static ZNodePath getPath(TxnOperation.Request<?> request) throws KeeperException.BadArgumentsException {
+            if (request instanceof TxnRequest) {
+                ZNodePath path = ((TxnRequest<?>) request).path();
+                if (path != null) {
+                    return path;
+                }
+            }
+            return getPath((Records.PathGetter) request.record());
+        }
+        
         public static ZNodePath getPath(Records.PathGetter record) throws KeeperException.BadArgumentsException {
             try {
                 return ZNodePath.validated(record.getPath());
@@ -93,6 +310,44 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
             return node;
         }
         
+        /**
+         * Doesn't copy a payload to the heap.
+         */
+        public static int getDataLength(Records.DataGetter record) {
+            if (record instanceof Records.PayloadGetter) {
+                return ((Records.PayloadGetter) record).getDataLength();
+            }
+            return (record.getData() == null) ? 0 : record.getData().length;
+        }
+        
+        /**
+         * @return null if the data of <code>record</code> is on the heap
+         */
+        public static OffHeapPayloads.Payload getPayload(Records.DataGetter record) {
+            return (record instanceof Records.PayloadGetter) ? ((Records.PayloadGetter) record).getPayload() : null;
+        }
+        
+        /**
+         * Checks the quotas of <code>node</code> and its ancestors
+         * before their subtrees grow by <code>nodes</code> and <code>bytes</code>.
+         * 
+         * ZooKeeper 3.5 has no error code for an exceeded quota,
+         * so it is reported as a bad argument.
+         */
+        public static void checkQuotas(ZNodeNode node, int nodes, long bytes, ZNodeName path) throws KeeperException.BadArgumentsException {
+            if ((nodes <= 0) && (bytes <= 0L)) {
+                return;
+            }
+            for (; node != null; node = node.parentNode()) {
+                Quota quota = node.state().getQuota();
+                if ((quota != null) && quota.isExceeded(
+                        node.numDescendants() + 1L + nodes, 
+                        node.subtreeDataLength() + bytes)) {
+                    throw new KeeperException.BadArgumentsException(path.toString());
+                }
+            }
+        }
+        
         protected final NameTrie<ZNodeNode> trie;
         
         protected AbstractProcessor(NameTrie<ZNodeNode> trie) {
@@ -114,19 +369,34 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
         @Override
         public V apply(TxnOperation.Request<?> request) throws KeeperException {
             Records.CreateModeGetter record = (Records.CreateModeGetter) request.record();
-            ZNodePath path = getPath(record);
+            ZNodePath path = getPath(request);
             if (path.isRoot()) {
                 throw new KeeperException.BadArgumentsException(path.toString());
             }
-            CreateMode mode = CreateMode.valueOf(record.getFlags());
+            CreateMode mode;
+            try {
+                mode = CreateMode.valueOf(record.getFlags());
+            } catch (IllegalArgumentException e) {
+                throw new KeeperException.BadArgumentsException(path.toString());
+            }
+            if (mode.isTtl() != (record instanceof ICreateTTLRequest)) {
+                throw new KeeperException.BadArgumentsException(path.toString());
+            }
+            if (mode.isTtl()) {
+                long ttl = ((ICreateTTLRequest) record).getTtl();
+                if ((ttl <= 0L) || (ttl > Stats.CreateStat.maxTtl())) {
+                    throw new KeeperException.BadArgumentsException(path.toString());
+                }
+            }
             if (! mode.contains(CreateFlag.SEQUENTIAL) && get().containsKey(path)) {
                 throw new KeeperException.NodeExistsException(path.toString());
             }
             ZNodeName parentPath = ((AbsoluteZNodePath) path).parent();
             ZNodeNode parent = getNode(get(), parentPath);
-            if (parent.state().getCreate().isEphemeral()) {
+            if (parent.state().isEphemeral()) {
                 throw new KeeperException.NoChildrenForEphemeralsException(parentPath.toString());
             }
+            checkQuotas(parent, 1, getDataLength(record), path);
             
             return doCreate(request, record, mode, parent, (AbsoluteZNodePath) path);
         }
@@ -150,7 +420,7 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
         public V apply(TxnOperation.Request<?> request)
                 throws KeeperException {
             IDeleteRequest record = (IDeleteRequest) request.record();
-            ZNodePath path = getPath(record);
+            ZNodePath path = getPath(request);
             if (path.isRoot()) {
                 throw new KeeperException.BadArgumentsException(path.toString());
             }
@@ -161,7 +431,7 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
             if (! node.state().getData().getStat().compareVersion(record.getVersion())) {
                 throw new KeeperException.BadVersionException(path.toString());
             }
-            ZNodeNode parent = getNode(get(), ((AbsoluteZNodePath) path).parent());
+            ZNodeNode parent = node.parent().get();
             
             return doDelete(request, record, path, node, parent);
         }
@@ -185,11 +455,12 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
         public V apply(TxnOperation.Request<?> request)
                 throws KeeperException {
             ISetDataRequest record = (ISetDataRequest) request.record();
-            ZNodeLabelVector path = getPath(record);
+            ZNodeLabelVector path = getPath(request);
             ZNodeNode node = getNode(get(), path);
             if (! node.state().getData().getStat().compareVersion(record.getVersion())) {
                 throw new KeeperException.BadVersionException(path.toString());
             }
+            checkQuotas(node, 0, getDataLength(record) - node.state().getDataLength(), path);
             
             return doSetData(request, record, path, node);
         }
@@ -248,7 +519,7 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
             public ICheckVersionResponse apply(TxnOperation.Request<?> request)
                     throws KeeperException {
                 ICheckVersionRequest record = (ICheckVersionRequest) request.record();
-                ZNodeLabelVector path = getPath(record);
+                ZNodeLabelVector path = getPath(request);
                 ZNodeNode node = getNode(get(), path);
                 if (! node.state().getData().getStat().compareVersion(record.getVersion())) {
                     throw new KeeperException.BadVersionException(path.toString());
@@ -257,7 +528,7 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
             }
         }
 
-        @Operational({OpCode.CREATE, OpCode.CREATE2})
+        @Operational({OpCode.CREATE, OpCode.CREATE2, OpCode.CREATE_TTL})
         public static class CreateOperator extends AbstractCreate<Records.Response> implements Operator<Records.Response> {
     
             public CreateOperator(NameTrie<ZNodeNode> trie) {
@@ -276,20 +547,36 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
                     path = AbsoluteZNodePath.fromString(Sequential.fromInt(path, cversion).toString());
                 }
                 
-                long ephemeralOwner = mode.contains(CreateFlag.EPHEMERAL) ? request.getSessionId() : Stats.CreateStat.ephemeralOwnerNone();
+                long ephemeralOwner;
+                if (mode.isEphemeral()) {
+                    ephemeralOwner = request.getSessionId();
+                } else if (mode.isContainer()) {
+                    ephemeralOwner = Stats.CreateStat.ephemeralOwnerContainer();
+                } else if (mode.isTtl()) {
+                    ephemeralOwner = Stats.CreateStat.ephemeralOwnerTtl(((ICreateTTLRequest) record).getTtl());
+                } else {
+                    ephemeralOwner = Stats.CreateStat.ephemeralOwnerNone();
+                }
                 Stats.CreateStat createStat = Stats.CreateStat.of(request.zxid(), request.getTime(), ephemeralOwner);
-                byte[] bytes = record.getData();
+                // a payload decoded as a slice is stored as is
+                OffHeapPayloads.Payload payload = getPayload(record);
+                byte[] bytes = (payload != null) ? null : record.getData();
                 bytes = (bytes == null) ? ZNodeData.emptyBytes() : bytes;
                 ZNodeData data = ZNodeData.of(Stats.DataStat.initialVersion(request.zxid(), request.getTime()), bytes);
                 ZNodeAcl acl = ZNodeAcl.initialVersion(Acls.Acl.fromRecordList(record.getAcl()));
                 Stats.ChildrenStat childrenStat = Stats.ChildrenStat.initialVersion(request.zxid());
                 ZNodeState state = ZNodeState.of(createStat, data, acl, childrenStat);
+                if (payload != null) {
+                    state.setPayload(payload);
+                }
                 ZNodeLabel label = path.label();
                 ZNodeNode node = ZNodeNode.child(label, parent, state);
                 parent.put(label, node);
+                node.countAdded();
                 Operations.Responses.Create builder = 
-                        Operations.Responses.create().setPath(path);
-                if (OpCode.CREATE2 == request.record().opcode()) {
+                        Operations.Responses.create().setPath(path)
+                            .setTtl(OpCode.CREATE_TTL == request.record().opcode());
+                if ((OpCode.CREATE2 == request.record().opcode()) || (OpCode.CREATE_TTL == request.record().opcode())) {
                     builder.setStat(node.asStat());
                 }
                 return builder.build();
@@ -311,6 +598,7 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
                     ZNodeNode node,
                     ZNodeNode parent) {
                 get().remove(path);
+                node.countRemoved();
                 parent.state().getChildren().getAndIncrement(request.zxid());
                 return Operations.Responses.delete().build();
             }
@@ -326,8 +614,7 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
             @Override
             public IExistsResponse apply(TxnOperation.Request<?> request)
                     throws KeeperException {
-                IExistsRequest record = (IExistsRequest) request.record();
-                ZNodeLabelVector path = getPath(record);
+                ZNodeLabelVector path = getPath(request);
                 ZNodeNode node = getNode(get(), path);
                 return Operations.Responses.exists().setStat(node.asStat()).build();
             }
@@ -343,9 +630,12 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
             @Override
             public IGetDataResponse apply(TxnOperation.Request<?> request)
                     throws KeeperException {
-                IGetDataRequest record = (IGetDataRequest) request.record();
-                ZNodeLabelVector path = getPath(record);
+                ZNodeLabelVector path = getPath(request);
                 ZNodeNode node = getNode(get(), path);
+                OffHeapPayloads.Payload payload = node.state().getPayload();
+                if (payload != null) {
+                    return PayloadGetDataResponse.of(payload, node.asStat());
+                }
                 return Operations.Responses.getData().setData(node.state().getData().getData()).setStat(node.asStat()).build();
             }
         }
@@ -364,13 +654,36 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
                     ZNodeLabelVector path,
                     ZNodeNode node) {
                 node.state().getData().getStat().getAndIncrement(request.zxid(), request.getTime());
-                byte[] bytes = record.getData();
-                bytes = (bytes == null) ? ZNodeData.emptyBytes() : bytes;
-                node.state().getData().setData(bytes);
+                int length = node.state().getDataLength();
+                OffHeapPayloads.Payload payload = record.getPayload();
+                if (payload != null) {
+                    node.state().setPayload(payload);
+                } else {
+                    byte[] bytes = record.getData();
+                    bytes = (bytes == null) ? ZNodeData.emptyBytes() : bytes;
+                    node.state().getData().setData(bytes);
+                }
+                node.countResized(node.state().getDataLength() - length);
                 return Operations.Responses.setData().setStat(node.asStat()).build();
             }
         }
 
+        @Operational(OpCode.GET_ALL_CHILDREN_NUMBER)
+        public static class GetAllChildrenNumberOperator extends AbstractProcessor<IGetAllChildrenNumberResponse> implements Operator<IGetAllChildrenNumberResponse> {
+    
+            public GetAllChildrenNumberOperator(NameTrie<ZNodeNode> trie) {
+                super(trie);
+            }
+    
+            @Override
+            public IGetAllChildrenNumberResponse apply(TxnOperation.Request<?> request)
+                    throws KeeperException {
+                ZNodeLabelVector path = getPath(request);
+                ZNodeNode node = getNode(get(), path);
+                return Operations.Responses.getAllChildrenNumber().setTotalNumber(node.numDescendants()).build();
+            }
+        }
+
         @Operational(OpCode.GET_ACL)
         public static class GetAclOperator extends AbstractProcessor<IGetACLResponse> implements Operator<IGetACLResponse> {
     
@@ -381,8 +694,7 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
             @Override
             public IGetACLResponse apply(TxnOperation.Request<?> request)
                     throws KeeperException {
-                IGetACLRequest record = (IGetACLRequest) request.record();
-                ZNodeLabelVector path = getPath(record);
+                ZNodeLabelVector path = getPath(request);
                 ZNodeNode node = getNode(get(), path);
                 return Operations.Responses.getAcl().setAcl(node.state().getAcl().getAcl()).setStat(node.asStat()).build();
             }
@@ -399,7 +711,7 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
             public ISetACLResponse apply(TxnOperation.Request<?> request)
                     throws KeeperException {
                 ISetACLRequest record = (ISetACLRequest) request.record();
-                ZNodeLabelVector path = getPath(record);
+                ZNodeLabelVector path = getPath(request);
                 ZNodeNode node = getNode(get(), path);
                 if (! node.state().getAcl().compareVersion(record.getVersion())) {
                     throw new KeeperException.BadVersionException(path.toString());
@@ -421,7 +733,7 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
             @Override
             public Records.Response apply(TxnOperation.Request<?> request)
                     throws KeeperException {
-                ZNodeLabelVector path = getPath((Records.PathGetter) request.record());
+                ZNodeLabelVector path = getPath(request);
                 ZNodeNode node = getNode(get(), path);
                 Operations.Responses.GetChildren builder = Operations.Responses.getChildren();
                 builder.setChildren(ImmutableList.<ZNodeLabel>copyOf((Set) node.keySet()));
@@ -442,8 +754,7 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
             @Override
             public ISyncResponse apply(TxnOperation.Request<?> request)
                     throws KeeperException {
-                ISyncRequest record = (ISyncRequest) request.record();
-                ZNodePath path = getPath(record);
+                ZNodePath path = getPath(request);
                 getNode(get(), path);
                 return Operations.Responses.sync().setPath(path).build();        
             }
@@ -481,34 +792,38 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
             ZNodeNode node = trie.get(((Records.PathGetter) result).getPath());
             ZNodeNode parent = node.parent().get();
             node.remove();
+            node.countRemoved();
             parent.state().setChildren(parentStat);
             return null;
         }
     }
     
+    /**
+     * Puts back the removed node itself, 
+     * since nothing modifies a node once it is removed.
+     */
     @Operational(OpCode.DELETE)    
     public static class DeleteUndo extends AbstractUndo {
         
         protected final Stats.ChildrenStat parentStat;
-        protected final ZNodeState state;
+        protected final ZNodeNode node;
         
         public DeleteUndo(
                 Stats.ChildrenStat parentStat,
-                ZNodeState state,
+                ZNodeNode node,
                 TxnOperation.Request<?> request,
                 NameTrie<ZNodeNode> trie) {
             super(request, trie);
             this.parentStat = parentStat;
-            this.state = state;
+            this.node = node;
         }
 
         @Override
         public Void apply(Records.Response result) {
-            AbsoluteZNodePath path = AbsoluteZNodePath.fromString(((Records.PathGetter) request.record()).getPath());
-            ZNodeNode parent = trie.get(path.parent());
-            ZNodeLabel label = path.label();
-            ZNodeNode node = ZNodeNode.child(label, parent, state);
-            parent.put(label, node);
+            ZNodeNode parent = node.parent().get();
+            parent.put(node.parent().name(), node);
+            node.countAdded();
+            parent.state().setChildren(parentStat);
             return null;
         }
     }
@@ -529,7 +844,9 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
         @Override
         public Void apply(Records.Response result) {
             ZNodeNode node = trie.get(((Records.PathGetter) request.record()).getPath());
+            int length = node.state().getDataLength();
             node.state().getData().set(data);
+            node.countResized(data.getDataLength() - length);
             return null;
         }
     }
@@ -555,23 +872,28 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
         }
     }
 
+    /**
+     * Only looks up the node, and leaves checking the delete to the operator.
+     * 
+     * @return null if the node or its parent doesn't exist
+     */
     @Operational(OpCode.DELETE)
-    public static class DeleteCopyState extends AbstractDelete<DeleteUndo> {
+    public static class DeleteCopyState extends AbstractProcessor<DeleteUndo> {
 
         public DeleteCopyState(NameTrie<ZNodeNode> trie) {
             super(trie);
         }
 
         @Override
-        protected DeleteUndo doDelete(
-                TxnOperation.Request<?> request,
-                IDeleteRequest record,
-                ZNodeLabelVector path,
-                ZNodeNode node,
-                ZNodeNode parent) {
+        public DeleteUndo apply(TxnOperation.Request<?> request) throws KeeperException {
+            ZNodeNode node = get().get(getPath(request));
+            ZNodeNode parent = (node == null) ? null : node.parent().get();
+            if (parent == null) {
+                return null;
+            }
             return new DeleteUndo(
                     Stats.ChildrenStat.copyOf(parent.state().getChildren()),
-                    ZNodeState.copyOf(node.state()),
+                    node,
                     request,
                     get());
         }
@@ -814,7 +1136,17 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
         }
     }
 
-    public static class ZNodeState {
+    /**
+     * Stats are packed into primitive fields,
+     * and the stat objects returned by getters are views that write through,
+     * except for <code>getCreate()</code>, which returns a copy.
+     * 
+     * Data is either on the heap or an immutable off-heap payload,
+     * which <code>getData().getData()</code> copies to the heap.
+     * 
+     * The totals of the nodes below are maintained by <code>ZNodeNode</code>.
+     */
+    public static class ZNodeState implements Records.StatPersistedGetter {
         
         public static ZNodeState defaults() {
             return defaults(0);
@@ -830,63 +1162,237 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
         }
 
         public static ZNodeState copyOf(ZNodeState value) {
-            return of(Stats.CreateStat.copyOf(value.getCreate()),
-                    ZNodeData.copyOf(value.getData()),
-                    ZNodeAcl.copyOf(value.getAcl()),
-                    Stats.ChildrenStat.copyOf(value.getChildren()));
+            ZNodeState copy = shallowCopyOf(value);
+            if (copy.data != null) {
+                copy.data = Arrays.copyOf(copy.data, copy.data.length);
+            }
+            copy.acl = Lists.newArrayList(copy.acl);
+            return copy;
         }
-                
+
+        /**
+         * Shares data and ACLs.
+         */
+        public static ZNodeState shallowCopyOf(ZNodeState value) {
+            ZNodeState copy = new ZNodeState(
+                    value.czxid, value.ctime, value.ephemeralOwner,
+                    value.mzxid, value.mtime, value.version, value.data,
+                    value.acl, value.aversion,
+                    value.pzxid, value.cversion);
+            copy.payload = value.payload;
+            copy.descendants = value.descendants;
+            copy.descendantDataLength = value.descendantDataLength;
+            copy.descendantEphemerals = value.descendantEphemerals;
+            copy.quota = value.quota;
+            return copy;
+        }
+        
+        /**
+         * Copies stats, and shares data and ACLs.
+         */
         public static ZNodeState of(
-                Stats.CreateStat createStat,
+                Records.CreateStatGetter createStat,
                 ZNodeData data,
                 ZNodeAcl acl,
-                Stats.ChildrenStat childrenStat) {
-            return new ZNodeState(createStat, data, acl, childrenStat);
+                Records.ChildrenStatGetter childrenStat) {
+            Stats.DataStat dataStat = data.getStat();
+            return new ZNodeState(
+                    createStat.getCzxid(),
+                    createStat.getCtime(),
+                    createStat.getEphemeralOwner(),
+                    dataStat.getMzxid(),
+                    dataStat.getMtime(),
+                    dataStat.getVersion(),
+                    data.getData(),
+                    acl.getAcl(),
+                    acl.getAversion(),
+                    childrenStat.getPzxid(),
+                    childrenStat.getCversion());
         }
 
-        protected final Stats.CreateStat create;
-        protected final ZNodeData data;
-        protected final ZNodeAcl acl;
-        protected final Stats.ChildrenStat children;
+        protected long czxid;
+        protected long ctime;
+        protected long ephemeralOwner;
+        protected long mzxid;
+        protected long mtime;
+        protected long pzxid;
+        protected int version;
+        protected int aversion;
+        protected int cversion;
+        protected byte[] data;
+        protected OffHeapPayloads.Payload payload;
+        protected List<Acls.Acl> acl;
+        protected int descendants;
+        protected long descendantDataLength;
+        protected int descendantEphemerals;
+        protected Quota quota;
         
         public ZNodeState(
-                Stats.CreateStat create,
-                ZNodeData data,
-                ZNodeAcl acl,
-                Stats.ChildrenStat children) {
-            this.create = create;
+                long czxid,
+                long ctime,
+                long ephemeralOwner,
+                long mzxid,
+                long mtime,
+                int version,
+                byte[] data,
+                List<Acls.Acl> acl,
+                int aversion,
+                long pzxid,
+                int cversion) {
+            this.czxid = czxid;
+            this.ctime = ctime;
+            this.ephemeralOwner = ephemeralOwner;
+            this.mzxid = mzxid;
+            this.mtime = mtime;
+            this.version = version;
             this.data = data;
-            this.acl = acl;
-            this.children = children;
+            this.payload = null;
+            this.acl = checkNotNull(acl);
+            this.aversion = aversion;
+            this.pzxid = pzxid;
+            this.cversion = cversion;
+            this.descendants = 0;
+            this.descendantDataLength = 0L;
+            this.descendantEphemerals = 0;
+            this.quota = null;
         }
         
         public ZNodeData getData() {
-            return data;
+            return new DataView();
         }
         
         public void setData(ZNodeData data) {
-            this.data.set(data);
+            setData(data.getData(), data.getStat());
+        }
+        
+        public void setData(byte[] data, Records.DataStatGetter stat) {
+            this.data = checkNotNull(data);
+            this.payload = null;
+            this.mzxid = stat.getMzxid();
+            this.mtime = stat.getMtime();
+            this.version = stat.getVersion();
+        }
+        
+        /**
+         * @return null if data is on the heap
+         */
+        public OffHeapPayloads.Payload getPayload() {
+            return payload;
+        }
+        
+        public void setPayload(OffHeapPayloads.Payload payload) {
+            this.payload = checkNotNull(payload);
+            this.data = null;
+        }
+
+        /**
+         * Moves the data off heap if it is at least <code>minLength</code> bytes.
+         *
+         * @return true if the data was moved
+         */
+        public boolean storeOffHeap(OffHeapPayloads payloads, int minLength) {
+            if ((payload != null) || (data.length < minLength)) {
+                return false;
+            }
+            setPayload(payloads.store(data));
+            return true;
+        }
+
+        public int getDataLength() {
+            return (payload != null) ? payload.length() : data.length;
         }
         
         public Stats.CreateStat getCreate() {
-            return create;
+            return Stats.CreateStat.of(czxid, ctime, ephemeralOwner);
+        }
+        
+        public void setCreate(Records.CreateStatGetter create) {
+            this.czxid = create.getCzxid();
+            this.ctime = create.getCtime();
+            this.ephemeralOwner = create.getEphemeralOwner();
         }
         
         public ZNodeAcl getAcl() {
-            return acl;
+            return new AclView();
         }
         
         public Stats.ChildrenStat getChildren() {
-            return children;
+            return new ChildrenView();
         }
         
-        public void setChildren(Stats.ChildrenStat children) {
-            this.children.set(children);
+        public void setChildren(Records.ChildrenStatGetter children) {
+            this.pzxid = children.getPzxid();
+            this.cversion = children.getCversion();
+        }
+
+        public boolean isEphemeral() {
+            return Stats.CreateStat.isEphemeral(ephemeralOwner);
         }
         
-        public Stats.CompositeStatPersistedGetter asStatPersisted() {
-            return Stats.CompositeStatPersistedGetter.of(
-                    getCreate(), getData().getStat(), getAcl(), getChildren());
+        /**
+         * @return null if the subtree is unlimited
+         */
+        public Quota getQuota() {
+            return quota;
+        }
+        
+        public void setQuota(Quota quota) {
+            this.quota = quota;
+        }
+
+        @Override
+        public long getCzxid() {
+            return czxid;
+        }
+
+        @Override
+        public long getCtime() {
+            return ctime;
+        }
+
+        @Override
+        public long getEphemeralOwner() {
+            return ephemeralOwner;
+        }
+
+        @Override
+        public long getMzxid() {
+            return mzxid;
+        }
+
+        @Override
+        public long getMtime() {
+            return mtime;
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public int getAversion() {
+            return aversion;
+        }
+
+        @Override
+        public int getCversion() {
+            return cversion;
+        }
+
+        @Override
+        public long getPzxid() {
+            return pzxid;
+        }
+        
+        public Records.StatPersistedGetter asStatPersisted() {
+            return this;
+        }
+        
+        public Stats.ImmutableStat asStat(int numChildren) {
+            return Stats.ImmutableStat.of(
+                    czxid, mzxid, ctime, mtime, version, cversion, aversion, 
+                    ephemeralOwner, getDataLength(), numChildren, pzxid);
         }
         
         @Override
@@ -895,8 +1401,156 @@ public class ZNodeNode extends AbstractNameTrie.SimpleNode<ZNodeNode> {
                     .add("create", getCreate())
                     .add("children", getChildren())
                     .add("data", getData())
-                    .add("acl", getData())
+                    .add("acl", getAcl())
                     .toString();
         }
+        
+        protected final class DataView extends ZNodeData {
+            
+            public DataView() {
+                super(null, null);
+            }
+
+            @Override
+            public byte[] getData() {
+                return (ZNodeState.this.payload != null) ? ZNodeState.this.payload.toByteArray() : ZNodeState.this.data;
+            }
+            
+            @Override
+            public void setData(byte[] data) {
+                ZNodeState.this.data = checkNotNull(data);
+                ZNodeState.this.payload = null;
+            }
+            
+            @Override
+            public Stats.DataStat getStat() {
+                return new DataStatView();
+            }
+            
+            @Override
+            public int getDataLength() {
+                return ZNodeState.this.getDataLength();
+            }
+            
+            @Override
+            public void set(ZNodeData value) {
+                ZNodeState.this.setData(value);
+            }
+        }
+        
+        protected final class DataStatView extends Stats.DataStat {
+            
+            public DataStatView() {
+                super(0L, 0L, 0);
+            }
+
+            @Override
+            public long getMzxid() {
+                return ZNodeState.this.mzxid;
+            }
+
+            @Override
+            public long getMtime() {
+                return ZNodeState.this.mtime;
+            }
+
+            @Override
+            public int getVersion() {
+                return ZNodeState.this.version;
+            }
+
+            @Override
+            public void setMzxid(long mzxid) {
+                ZNodeState.this.mzxid = mzxid;
+            }
+
+            @Override
+            public void setMtime(long mtime) {
+                ZNodeState.this.mtime = mtime;
+            }
+
+            @Override
+            public void setVersion(int version) {
+                ZNodeState.this.version = version;
+            }
+
+            @Override
+            public int getAndIncrement(long mzxid, long mtime) {
+                int prev = ZNodeState.this.version;
+                setVersion(prev + 1);
+                setMtime(mtime);
+                setMzxid(mzxid);
+                return prev;
+            }
+        }
+        
+        protected final class ChildrenView extends Stats.ChildrenStat {
+            
+            public ChildrenView() {
+                super(0L, 0);
+            }
+
+            @Override
+            public int getCversion() {
+                return ZNodeState.this.cversion;
+            }
+
+            @Override
+            public long getPzxid() {
+                return ZNodeState.this.pzxid;
+            }
+
+            @Override
+            public void setCversion(int cversion) {
+                ZNodeState.this.cversion = cversion;
+            }
+
+            @Override
+            public void setPzxid(long pzxid) {
+                ZNodeState.this.pzxid = pzxid;
+            }
+
+            @Override
+            public int getAndIncrement(long pzxid) {
+                int prev = ZNodeState.this.cversion;
+                setCversion(prev + 1);
+                setPzxid(pzxid);
+                return prev;
+            }
+        }
+        
+        protected final class AclView extends ZNodeAcl {
+            
+            public AclView() {
+                super(ZNodeState.this.acl, ZNodeState.this.aversion);
+            }
+
+            @Override
+            public List<Acls.Acl> getAcl() {
+                return ZNodeState.this.acl;
+            }
+            
+            @Override
+            public void setAcl(List<Acls.Acl> acl) {
+                ZNodeState.this.acl = checkNotNull(acl);
+            }
+
+            @Override
+            public int getAversion() {
+                return ZNodeState.this.aversion;
+            }
+
+            @Override
+            public void setAversion(int aversion) {
+                ZNodeState.this.aversion = aversion;
+            }
+
+            @Override
+            public int getAndIncrement() {
+                int prev = ZNodeState.this.aversion;
+                setAversion(prev + 1);
+                return prev;
+            }
+        }
     }
 }
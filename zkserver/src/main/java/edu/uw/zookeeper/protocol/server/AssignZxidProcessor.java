@@ -33,6 +33,7 @@ public class AssignZxidProcessor implements
             break;
         case CREATE:
         case CREATE2:
+        case CREATE_TTL:
         case DELETE:
         case RECONFIG:
         case SET_DATA:
@@ -13,7 +13,9 @@ import edu.uw.zookeeper.net.ServerConnectionFactory;
 import edu.uw.zookeeper.netty.server.NettyServerModule;
 import edu.uw.zookeeper.protocol.Message;
 import edu.uw.zookeeper.protocol.ProtocolCodec;
+import edu.uw.zookeeper.protocol.ProtocolState;
 import edu.uw.zookeeper.server.ClientAddressConfiguration;
+import edu.uw.zookeeper.server.SimpleServer;
 
 public class ServerConnectionFactoryBuilder implements ZooKeeperApplication.RuntimeBuilder<ServerConnectionFactory<? extends ServerProtocolConnection<?,?>>, ServerConnectionFactoryBuilder> {
 
@@ -138,10 +140,12 @@ public class ServerConnectionFactoryBuilder implements ZooKeeperApplication.Runt
     }
 
     protected Factory<? extends ProtocolCodec<Message.Server, Message.Client, Message.Server, Message.Client>> getDefaultCodecFactory() {
+        // data that would be stored off heap is decoded off heap
+        final int minSliceLength = SimpleServer.ConfigurableOffHeapDataMinLength.get(runtime.getConfiguration());
         return new Factory<ServerProtocolCodec>() {
             @Override
             public ServerProtocolCodec get() {
-                return ServerProtocolCodec.defaults();
+                return ServerProtocolCodec.newInstance(ProtocolState.ANONYMOUS, minSliceLength);
             }
         };
     }
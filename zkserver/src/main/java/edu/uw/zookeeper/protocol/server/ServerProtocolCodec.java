@@ -1,6 +1,8 @@
 package edu.uw.zookeeper.protocol.server;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 
 import java.io.IOException;
 
@@ -24,35 +26,51 @@ import edu.uw.zookeeper.protocol.EncodableEncoder;
 import edu.uw.zookeeper.protocol.FourLetterRequest;
 import edu.uw.zookeeper.protocol.Frame;
 import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.Operation;
 import edu.uw.zookeeper.protocol.ProtocolCodec;
 import edu.uw.zookeeper.protocol.ProtocolState;
 import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.SharedResponseMessage;
 import edu.uw.zookeeper.protocol.TelnetCloseRequest;
-
-public class ServerProtocolCodec implements ProtocolCodec<Message.Server, Message.Client, Message.Server, Message.Client> {
+import edu.uw.zookeeper.protocol.proto.Records;
+import edu.uw.zookeeper.protocol.proto.SizeOutputArchive;
+
+/**
+ * Shared responses are written as their shared frame rather than encoded again,
+ * and off-heap payloads are written without copying them.
+ */
+public class ServerProtocolCodec implements ProtocolCodec<Message.Server, Message.Client, Message.Server, Message.Client>, Encoder.Shared<Message.Server, Message.Server>, Encoder.Sized<Message.Server, Message.Server>, Decoder.Pending<Optional<? extends Message.Client>, Message.Client> {
     
     public static ServerProtocolCodec defaults() {
         return newInstance(ProtocolState.ANONYMOUS);
     }
     
     public static ServerProtocolCodec newInstance(ProtocolState state) {
+        return newInstance(state, -1);
+    }
+    
+    /**
+     * @param minSliceLength request data at least this long is decoded as a slice of its frame
+     *        rather than copied, and a negative length disables it
+     */
+    public static ServerProtocolCodec newInstance(ProtocolState state, int minSliceLength) {
         Automatons.SynchronizedEventfulAutomaton<ProtocolState,Object,?> automaton =
                 Automatons.createSynchronizedEventful(
                         Automatons.createEventful(
                                 Automatons.createLogging(
                                         LogManager.getLogger(ServerProtocolCodec.class),
                                         ProtocolMessageAutomaton.asAutomaton(state))));
-        return new ServerProtocolCodec(automaton, ServerProtocolEncoder.create(automaton), ServerProtocolDecoder.create(automaton));
+        return new ServerProtocolCodec(automaton, ServerProtocolEncoder.create(automaton), ServerProtocolDecoder.create(automaton, minSliceLength));
     }
 
     protected final Automatons.EventfulAutomaton<ProtocolState, Object> automaton;
-    protected final Encoder<? super Message.Server, ?> encoder;
-    protected final Decoder<Optional<Message.Client>, ?> decoder;
+    protected final ServerProtocolEncoder encoder;
+    protected final Decoder.Pending<Optional<Message.Client>, ?> decoder;
     
     protected ServerProtocolCodec(
             Automatons.EventfulAutomaton<ProtocolState, Object> automaton,
-            Encoder<? super Message.Server, ?> encoder,
-            Decoder<Optional<Message.Client>, ?> decoder) {
+            ServerProtocolEncoder encoder,
+            Decoder.Pending<Optional<Message.Client>, ?> decoder) {
         this.automaton = automaton;
         this.encoder = encoder;
         this.decoder = decoder;
@@ -67,6 +85,28 @@ public class ServerProtocolCodec implements ProtocolCodec<Message.Server, Messag
         automaton.apply(input);
     }
 
+    /**
+     * Don't call concurrently!
+     */
+    @Override
+    public ByteBuf encoded(Message.Server input) throws IOException {
+        ByteBuf output = encoder.encoded(input);
+        if (output != null) {
+            automaton.apply(input);
+        }
+        return output;
+    }
+
+    @Override
+    public int encodedSize(Message.Server input) throws IOException {
+        return encoder.encodedSize(input);
+    }
+
+    @Override
+    public int pendingBytes() {
+        return decoder.pendingBytes();
+    }
+
     /**
      * Don't call concurrently!
      */
@@ -118,7 +158,8 @@ public class ServerProtocolCodec implements ProtocolCodec<Message.Server, Messag
 
     public static class ServerProtocolEncoder implements 
             Stateful<ProtocolState>,
-            Encoder<Message.Server, Message.Server> {
+            Encoder.Shared<Message.Server, Message.Server>,
+            Encoder.Sized<Message.Server, Message.Server> {
 
         public static ServerProtocolEncoder create(
                 Stateful<ProtocolState> stateful) {
@@ -126,7 +167,7 @@ public class ServerProtocolCodec implements ProtocolCodec<Message.Server, Messag
         }
         
         private final Stateful<ProtocolState> stateful;
-        private final Encoder<Encodable, ?> frameEncoder;
+        private final Encoder.Sized<Encodable, ?> frameEncoder;
         
         private ServerProtocolEncoder(
                 Stateful<ProtocolState> stateful) {
@@ -144,19 +185,52 @@ public class ServerProtocolCodec implements ProtocolCodec<Message.Server, Messag
             return Message.Server.class;
         }
 
+        /**
+         * A response with an off-heap payload is framed into a pooled direct composite buffer
+         * that gathers the payload, so that it is never copied before the socket.
+         */
+        @Override
+        public ByteBuf encoded(Message.Server input) throws IOException {
+            if (input instanceof SharedResponseMessage) {
+                checkSessionState();
+                return ((SharedResponseMessage<?>) input).frame();
+            }
+            if ((input instanceof Operation.ProtocolResponse) 
+                    && (((Operation.ProtocolResponse<?>) input).record() instanceof Records.PayloadGetter)
+                    && (((Records.PayloadGetter) ((Operation.ProtocolResponse<?>) input).record()).getPayload() != null)) {
+                checkSessionState();
+                CompositeByteBuf output = PooledByteBufAllocator.DEFAULT.compositeDirectBuffer();
+                try {
+                    frameEncoder.encode(input, output);
+                } catch (IOException e) {
+                    output.release();
+                    throw e;
+                } catch (RuntimeException e) {
+                    output.release();
+                    throw e;
+                }
+                return output;
+            }
+            return null;
+        }
+
+        /**
+         * @return negative unless <code>input</code> is framed 
+         *          and worth counting
+         */
+        @Override
+        public int encodedSize(Message.Server input) throws IOException {
+            return ((input instanceof Operation.ProtocolResponse) 
+                    && SizeOutputArchive.isSized(((Operation.ProtocolResponse<?>) input).record())) ? 
+                            frameEncoder.encodedSize(input) : -1;
+        }
+
         @Override
         public void encode(Message.Server input, ByteBuf output) throws IOException {
             ProtocolState state = state();
             if (input instanceof Message.ServerSession) {
-                switch (state) {
-                case CONNECTING:
-                case CONNECTED:
-                case DISCONNECTING:
-                    frameEncoder.encode(input, output);
-                    break;
-                default:
-                    throw new IllegalStateException(state.toString());
-                }          
+                checkSessionState();
+                frameEncoder.encode(input, output);
             } else {
                 switch (state) {
                 case ANONYMOUS:
@@ -168,26 +242,43 @@ public class ServerProtocolCodec implements ProtocolCodec<Message.Server, Messag
                 }
             }
         }
+        
+        protected void checkSessionState() {
+            ProtocolState state = state();
+            switch (state) {
+            case CONNECTING:
+            case CONNECTED:
+            case DISCONNECTING:
+                break;
+            default:
+                throw new IllegalStateException(state.toString());
+            }
+        }
     }
 
     public static class ServerProtocolDecoder implements 
             Stateful<ProtocolState>,
-            Decoder<Optional<Message.Client>, Message.Client> {
+            Decoder.Pending<Optional<Message.Client>, Message.Client> {
     
         public static ServerProtocolDecoder create(
                 Stateful<ProtocolState> stateful) {
-            return new ServerProtocolDecoder(stateful);
+            return create(stateful, -1);
+        }
+        
+        public static ServerProtocolDecoder create(
+                Stateful<ProtocolState> stateful, int minSliceLength) {
+            return new ServerProtocolDecoder(stateful, minSliceLength);
         }
         
         private final Stateful<ProtocolState> stateful;
-        private final Decoder<Optional<Message.ClientSession>, ?> sessionDecoder;
+        private final Decoder.Pending<Optional<Message.ClientSession>, ?> sessionDecoder;
         
         private ServerProtocolDecoder(
-                Stateful<ProtocolState> stateful) {
+                Stateful<ProtocolState> stateful, int minSliceLength) {
             this.stateful = stateful;
             this.sessionDecoder = Frame.FramedDecoder.create(
                     Frame.FrameDecoder.create(Range.closed(Integer.valueOf(0), Integer.valueOf(BinaryInputArchive.maxBuffer))),
-                    SessionRequestDecoder.create(stateful));
+                    SessionRequestDecoder.create(stateful, minSliceLength));
         }
 
         @Override
@@ -200,6 +291,11 @@ public class ServerProtocolCodec implements ProtocolCodec<Message.Server, Messag
             return Message.Client.class;
         }
 
+        @Override
+        public int pendingBytes() {
+            return sessionDecoder.pendingBytes();
+        }
+
         @Override
         public Optional<Message.Client> decode(ByteBuf input) throws IOException {
             Message.Client out = null;
@@ -232,13 +328,20 @@ public class ServerProtocolCodec implements ProtocolCodec<Message.Server, Messag
 
         public static SessionRequestDecoder create(
                 Stateful<ProtocolState> stateful) {
-            return new SessionRequestDecoder(stateful);
+            return create(stateful, -1);
+        }
+
+        public static SessionRequestDecoder create(
+                Stateful<ProtocolState> stateful, int minSliceLength) {
+            return new SessionRequestDecoder(stateful, minSliceLength);
         }
 
         private final Stateful<ProtocolState> stateful;
+        private final int minSliceLength;
 
-        private SessionRequestDecoder(Stateful<ProtocolState> stateful) {
+        private SessionRequestDecoder(Stateful<ProtocolState> stateful, int minSliceLength) {
             this.stateful = stateful;
+            this.minSliceLength = minSliceLength;
         }
 
         @Override
@@ -262,7 +365,7 @@ public class ServerProtocolCodec implements ProtocolCodec<Message.Server, Messag
                 break;
             case CONNECTING:
             case CONNECTED:
-                output = ProtocolRequestMessage.decode(input);
+                output = ProtocolRequestMessage.decode(input, minSliceLength);
                 break;
             default:
                 throw new IllegalStateException(state.toString());
@@ -3,10 +3,8 @@ package edu.uw.zookeeper.server;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-
-import org.apache.logging.log4j.LogManager;
+import java.util.concurrent.TimeoutException;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.util.concurrent.FutureCallback;
@@ -22,8 +20,6 @@ import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
 import edu.uw.zookeeper.protocol.ProtocolState;
 import edu.uw.zookeeper.protocol.Session;
 import edu.uw.zookeeper.protocol.SessionListener;
-import edu.uw.zookeeper.protocol.TimeOutActor;
-import edu.uw.zookeeper.protocol.TimeOutParameters;
 import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
 import edu.uw.zookeeper.protocol.proto.OpCode;
 import edu.uw.zookeeper.protocol.proto.Records;
@@ -34,28 +30,25 @@ public abstract class AbstractSessionExecutor implements SessionExecutor, Future
     protected final Automatons.EventfulAutomaton<ProtocolState, Object> state;
     protected final IConcurrentSet<SessionListener> listeners;
     protected final Session session;
-    protected final TimeOutActor<Message.ClientSession, Void> timer;
+    protected final SessionExpiry.Entry expiry;
     
     protected AbstractSessionExecutor(                
             Session session,
             Automatons.EventfulAutomaton<ProtocolState, Object> state,
             IConcurrentSet<SessionListener> listeners,
-            ScheduledExecutorService scheduler) {
+            SessionExpiry expiry) {
         this.session = checkNotNull(session);
         this.state = checkNotNull(state);
         this.listeners = checkNotNull(listeners);
-        this.timer = TimeOutActor.create(
-                TimeOutParameters.milliseconds(session.parameters().timeOut().value(TimeUnit.MILLISECONDS)), 
-                scheduler,
-                LogManager.getLogger(this));
+        this.expiry = expiry.register(
+                session.parameters().timeOut().value(TimeUnit.MILLISECONDS), 
+                new TimeOutListener());
         
-        new TimeOutListener();
         state.subscribe(this);
-        timer.run();
     }
     
-    public TimeOutActor<Message.ClientSession, Void> timer() {
-        return timer;
+    public SessionExpiry.Entry expiry() {
+        return expiry;
     }
 
     @Override
@@ -70,7 +63,7 @@ public abstract class AbstractSessionExecutor implements SessionExecutor, Future
 
     @Override
     public ListenableFuture<Message.ServerResponse<?>> submit(Message.ClientRequest<?> request) {
-        timer.send(request);
+        expiry.touch();
         state.apply(request);
         ListenableFuture<Message.ServerResponse<?>> future = doSubmit(request);
         new SubmitListener(future);
@@ -108,7 +101,7 @@ public abstract class AbstractSessionExecutor implements SessionExecutor, Future
             submit(request);
             break;
         case DISCONNECTED:
-            timer.cancel(false);
+            expiry.cancel();
             break;
         default:
             break;
@@ -136,23 +129,9 @@ public abstract class AbstractSessionExecutor implements SessionExecutor, Future
     
     protected class TimeOutListener implements Runnable {
 
-        public TimeOutListener() {
-            timer.addListener(this, MoreExecutors.directExecutor());
-        }
-        
         @Override
         public void run() {
-            if (timer.isDone()) {
-                if (!timer.isCancelled()) {
-                    try {
-                        timer.get();
-                    } catch (InterruptedException e) {
-                        throw new AssertionError(e);
-                    } catch (ExecutionException e) {
-                        onFailure(e.getCause());
-                    }
-                }
-            }
+            onFailure(new TimeoutException(AbstractSessionExecutor.this.toString()));
         }
     }
     
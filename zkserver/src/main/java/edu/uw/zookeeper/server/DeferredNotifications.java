@@ -0,0 +1,145 @@
+package edu.uw.zookeeper.server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Queue;
+
+import com.google.common.base.Function;
+import com.google.common.base.MoreObjects;
+
+import edu.uw.zookeeper.protocol.NotificationListener;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
+
+/**
+ * Listeners that hold notifications while deferring,
+ * so that they can be delivered after a batch of requests is applied.
+ * A message posted to many sessions is held once,
+ * so that deferring it doesn't depend on the number of sessions.
+ *
+ * Not threadsafe, so notifications must be posted only by the server thread.
+ */
+public final class DeferredNotifications implements Function<Long, NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> {
+
+    public static DeferredNotifications create(
+            Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners) {
+        return new DeferredNotifications(listeners);
+    }
+
+    private final Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners;
+    private final Queue<Runnable> deferred;
+    private boolean deferring;
+
+    protected DeferredNotifications(
+            Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners) {
+        this.listeners = listeners;
+        this.deferred = new ArrayDeque<Runnable>();
+        this.deferring = false;
+    }
+
+    public Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners() {
+        return listeners;
+    }
+
+    public void setDeferring(boolean deferring) {
+        this.deferring = deferring;
+    }
+
+    /**
+     * Moves deferred notifications, in order, to <code>to</code>.
+     */
+    public void drainTo(Collection<? super Runnable> to) {
+        Runnable next;
+        while ((next = deferred.poll()) != null) {
+            to.add(next);
+        }
+    }
+
+    /**
+     * Notifies each session of one message.
+     * 
+     * @param sessions not copied, so must not be modified
+     */
+    public void post(Operation.ProtocolResponse<IWatcherEvent> message, Collection<Long> sessions) {
+        Notification notification = new Notification(message, sessions);
+        if (deferring) {
+            deferred.add(notification);
+        } else {
+            notification.run();
+        }
+    }
+
+    @Override
+    public NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> apply(Long session) {
+        NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> listener = listeners.apply(session);
+        return (listener == null) ? null : new Deferred(listener);
+    }
+
+    protected final class Deferred implements NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> {
+
+        private final NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> listener;
+
+        public Deferred(NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void handleNotification(
+                final Operation.ProtocolResponse<IWatcherEvent> notification) {
+            if (deferring) {
+                deferred.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.handleNotification(notification);
+                    }
+                });
+            } else {
+                listener.handleNotification(notification);
+            }
+        }
+    }
+
+    /**
+     * One message to a collection of sessions,
+     * which may be delivered to each session separately.
+     */
+    public final class Notification implements Runnable {
+
+        private final Operation.ProtocolResponse<IWatcherEvent> message;
+        private final Collection<Long> sessions;
+
+        public Notification(
+                Operation.ProtocolResponse<IWatcherEvent> message,
+                Collection<Long> sessions) {
+            this.message = message;
+            this.sessions = sessions;
+        }
+
+        public Operation.ProtocolResponse<IWatcherEvent> message() {
+            return message;
+        }
+
+        public Collection<Long> sessions() {
+            return sessions;
+        }
+
+        public void deliver(Long session) {
+            NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> listener = listeners.apply(session);
+            if (listener != null) {
+                listener.handleNotification(message);
+            }
+        }
+
+        @Override
+        public void run() {
+            for (Long session: sessions) {
+                deliver(session);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("message", message).add("sessions", sessions.size()).toString();
+        }
+    }
+}
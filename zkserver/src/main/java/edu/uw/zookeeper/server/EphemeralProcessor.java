@@ -1,14 +1,16 @@
 package edu.uw.zookeeper.server;
 
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 
+import edu.uw.zookeeper.common.ConcurrentLongHashMap;
 import edu.uw.zookeeper.common.Processors;
 import edu.uw.zookeeper.common.Processors.ForwardingProcessor;
 import edu.uw.zookeeper.data.CreateFlag;
@@ -25,6 +27,13 @@ import edu.uw.zookeeper.protocol.proto.IMultiResponse;
 import edu.uw.zookeeper.protocol.proto.OpCode;
 import edu.uw.zookeeper.protocol.proto.Records;
 
+/**
+ * Tracks ephemeral nodes by owner, and deletes them when their owner is closed.
+ * 
+ * The nodes of a closed session are deleted by one multi transaction,
+ * so that a session that owns many nodes is cleaned up without
+ * applying a transaction per node.
+ */
 public class EphemeralProcessor extends ForwardingProcessor<TxnOperation.Request<?>, Records.Response> implements Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> {
 
     public static EphemeralProcessor create(
@@ -33,33 +42,51 @@ public class EphemeralProcessor extends ForwardingProcessor<TxnOperation.Request
     }
     
     protected final Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate;
-    protected final SetMultimap<Long, String> bySession;
+    protected final ConcurrentLongHashMap<Set<String>> bySession;
     protected final ConcurrentMap<String, Long> byPath;
     
     public EphemeralProcessor(
             Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate) {
         this.delegate = delegate;
-        this.bySession = Multimaps.synchronizedSetMultimap(HashMultimap.<Long, String>create());
+        this.bySession = ConcurrentLongHashMap.create();
         this.byPath = new MapMaker().makeMap();
     }
     
+    /**
+     * Tracks an existing ephemeral node, such as one restored from a snapshot.
+     */
+    public void add(long session, String path) {
+        Set<String> paths = bySession.get(session);
+        if (paths == null) {
+            paths = Sets.newConcurrentHashSet();
+            Set<String> existing = bySession.putIfAbsent(session, paths);
+            if (existing != null) {
+                paths = existing;
+            }
+        }
+        paths.add(path);
+        byPath.put(path, Long.valueOf(session));
+    }
+    
+    protected void remove(String path) {
+        Long owner = byPath.remove(path);
+        if (owner != null) {
+            Set<String> paths = bySession.get(owner.longValue());
+            if ((paths != null) && paths.remove(path) && paths.isEmpty()) {
+                bySession.remove(owner.longValue(), paths);
+            }
+        }
+    }
+    
     @Override
     public Records.Response apply(TxnOperation.Request<?> input) {
         Records.Request request = input.record();
         Records.Response response = delegate().apply(input);
-        Long session = input.getSessionId();
+        long session = input.getSessionId();
         if (request.opcode() == OpCode.CLOSE_SESSION) {
-            if (! (response instanceof Operation.Error)) {
-                for (String path: ImmutableSet.copyOf(bySession.get(session))) {
-                    apply(TxnRequest.of(
-                            input.getTime(), 
-                            input.zxid(), 
-                            SessionRequest.of(
-                                    input.getSessionId(), 
-                                    ProtocolRequestMessage.of(
-                                            input.xid(),
-                                            Operations.Requests.delete().setPath(ZNodePath.fromString(path)).build()))));
-                }
+            Set<String> paths = bySession.get(session);
+            if ((paths != null) && ! (response instanceof Operation.Error)) {
+                close(input, ImmutableSet.copyOf(paths));
             }
         } else {
             apply(session, request, response);
@@ -67,27 +94,62 @@ public class EphemeralProcessor extends ForwardingProcessor<TxnOperation.Request
         return response;
     }
     
-    protected Records.Response apply(Long session, Records.Request request, Records.Response response) {
+    /**
+     * Deletes the nodes of a closed session as part of its close transaction.
+     * 
+     * If the multi fails, which it shouldn't since every tracked node exists
+     * and has no children, each node is deleted separately.
+     */
+    protected void close(TxnOperation.Request<?> input, Set<String> paths) {
+        List<Records.MultiOpRequest> deletes = Lists.newArrayListWithCapacity(paths.size());
+        for (String path: paths) {
+            deletes.add(Operations.Requests.delete().setPath(ZNodePath.fromString(path)).build());
+        }
+        IMultiRequest request = new IMultiRequest(deletes);
+        Records.Response response = delegate().apply(TxnRequest.of(
+                input.getTime(), 
+                input.zxid(), 
+                SessionRequest.of(
+                        input.getSessionId(), 
+                        ProtocolRequestMessage.of(input.xid(), request))));
+        if (response instanceof IMultiResponse) {
+            boolean failed = false;
+            for (Records.MultiOpResponse result: (IMultiResponse) response) {
+                if (result instanceof Operation.Error) {
+                    failed = true;
+                    break;
+                }
+            }
+            if (! failed) {
+                apply(input.getSessionId(), request, response);
+                return;
+            }
+        }
+        for (Records.MultiOpRequest delete: deletes) {
+            apply(TxnRequest.of(
+                    input.getTime(), 
+                    input.zxid(), 
+                    SessionRequest.of(
+                            input.getSessionId(), 
+                            ProtocolRequestMessage.of(input.xid(), delete))));
+        }
+    }
+    
+    protected Records.Response apply(long session, Records.Request request, Records.Response response) {
         switch (response.opcode()) {
         case CREATE:
         case CREATE2:
         {
             CreateMode mode = CreateMode.valueOf(((Records.CreateModeGetter) request).getFlags());
             if (mode.contains(CreateFlag.EPHEMERAL)) {
-                String path = ((Records.PathGetter) response).getPath();
-                bySession.put(session, path);
-                byPath.put(path, session);
+                add(session, ((Records.PathGetter) response).getPath());
             }
         
             break;
         }
         case DELETE:
         {
-            String path = ((Records.PathGetter) request).getPath();
-            Long owner = byPath.remove(path);
-            if (owner != null) {
-                bySession.remove(owner, path);
-            }
+            remove(((Records.PathGetter) request).getPath());
             break;
         }
         case MULTI:
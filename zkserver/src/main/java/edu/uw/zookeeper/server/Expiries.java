@@ -0,0 +1,186 @@
+package edu.uw.zookeeper.server;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.protocol.proto.IDeleteRequest;
+import edu.uw.zookeeper.protocol.proto.Stats;
+
+/**
+ * Index of the containers and TTL nodes that may be deleted by the server,
+ * so that they are found without scanning the tree.
+ *
+ * A container is a candidate once its last child is deleted.
+ * A TTL node is queued by when it expires,
+ * and a change only updates its deadline,
+ * which is checked when it reaches the head of the queue.
+ *
+ * Candidates are deleted by conditional deletes,
+ * which fail if the node has gained a child, changed, 
+ * or been replaced by another node since,
+ * so the index only has to be correct about what it hasn't seen yet.
+ *
+ * Threadsafe.
+ */
+public final class Expiries {
+
+    public static Expiries create() {
+        return new Expiries();
+    }
+
+    // czxid by path
+    private final Map<String, Long> containers;
+    private final Map<String, Expiry> ttls;
+    private final PriorityQueue<Expiry> queue;
+
+    protected Expiries() {
+        this.containers = Maps.newLinkedHashMap();
+        this.ttls = Maps.newHashMap();
+        this.queue = new PriorityQueue<Expiry>(11, new Comparator<Expiry>() {
+            @Override
+            public int compare(Expiry a, Expiry b) {
+                return Long.compare(a.queued, b.queued);
+            }
+        });
+    }
+
+    /**
+     * Tracks a node that was created, changed, or emptied,
+     * or restored from a snapshot, and ignores other nodes.
+     */
+    public synchronized void add(String path, ZNodeNode node) {
+        long owner = node.state().getEphemeralOwner();
+        if (Stats.CreateStat.isContainer(owner)) {
+            // containers that never had a child are left alone
+            if (node.isEmpty() && (node.state().getCversion() > 0)) {
+                containers.put(path, Long.valueOf(node.state().getCzxid()));
+            }
+        } else if (Stats.CreateStat.isTtl(owner)) {
+            long deadline = node.state().getMtime() + Stats.CreateStat.ttlOf(owner);
+            int version = node.state().getVersion();
+            Expiry expiry = ttls.get(path);
+            if ((expiry == null) || (expiry.czxid != node.state().getCzxid())) {
+                expiry = new Expiry(path, node.state().getCzxid());
+                ttls.put(path, expiry);
+            }
+            expiry.deadline = deadline;
+            expiry.version = version;
+            if (! expiry.isQueued) {
+                expiry.queued = deadline;
+                expiry.isQueued = true;
+                queue.add(expiry);
+            }
+        }
+    }
+
+    public synchronized boolean isTtl(String path) {
+        return ttls.containsKey(path);
+    }
+
+    /**
+     * Stops tracking a deleted node.
+     */
+    public synchronized void remove(String path) {
+        containers.remove(path);
+        // a queued entry is dropped when it reaches the head
+        ttls.remove(path);
+    }
+
+    /**
+     * @param now in milliseconds since the epoch, like the mtime of a node
+     * @return deletes of the emptied containers and of the TTL nodes that have expired by now
+     */
+    public synchronized List<IDeleteRequest> expired(long now) {
+        List<IDeleteRequest> deletes = Lists.newArrayListWithCapacity(containers.size());
+        for (Map.Entry<String, Long> container: containers.entrySet()) {
+            deletes.add(new Delete(container.getKey(), Stats.VERSION_ANY, container.getValue().longValue()));
+        }
+        containers.clear();
+        Expiry expiry;
+        while (((expiry = queue.peek()) != null) && (expiry.queued <= now)) {
+            queue.poll();
+            expiry.isQueued = false;
+            if (ttls.get(expiry.path) != expiry) {
+                continue;
+            }
+            if (expiry.deadline > now) {
+                expiry.queued = expiry.deadline;
+                expiry.isQueued = true;
+                queue.add(expiry);
+            } else {
+                // unless it is deleted, it is queued again by its next change,
+                // or once it loses its last child
+                deletes.add(new Delete(expiry.path, expiry.version, expiry.czxid));
+            }
+        }
+        return deletes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return MoreObjects.toStringHelper(this).add("containers", containers.size()).add("ttls", ttls.size()).toString();
+    }
+
+    /**
+     * Server-only delete of an expired container or TTL node,
+     * like ZooKeeper's deleteContainer,
+     * that is applied only if the node at its path is still the one that expired.
+     * 
+     * Once applied, it is logged and replayed as an ordinary delete.
+     */
+    public static final class Delete extends IDeleteRequest {
+
+        private final long czxid;
+
+        public Delete(String path, int version, long czxid) {
+            super(path, version);
+            this.czxid = czxid;
+        }
+
+        public long getCzxid() {
+            return czxid;
+        }
+
+        /**
+         * @param now time of the transaction
+         */
+        public boolean isExpired(ZNodeNode node, long now) {
+            if ((node == null) || (node.state().getCzxid() != czxid)) {
+                return false;
+            }
+            long owner = node.state().getEphemeralOwner();
+            if (Stats.CreateStat.isContainer(owner)) {
+                return true;
+            }
+            return Stats.CreateStat.isTtl(owner) 
+                    && (node.state().getMtime() + Stats.CreateStat.ttlOf(owner) <= now);
+        }
+    }
+
+    protected static final class Expiry {
+
+        private final String path;
+        private final long czxid;
+        // guarded by the index
+        private long queued;
+        private boolean isQueued;
+        private long deadline;
+        private int version;
+
+        public Expiry(String path, long czxid) {
+            this.path = path;
+            this.czxid = czxid;
+            this.queued = 0L;
+            this.isQueued = false;
+            this.deadline = 0L;
+            this.version = Stats.VERSION_ANY;
+        }
+    }
+}
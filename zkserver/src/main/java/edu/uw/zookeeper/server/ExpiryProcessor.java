@@ -0,0 +1,124 @@
+package edu.uw.zookeeper.server;
+
+import java.util.Iterator;
+
+import org.apache.zookeeper.KeeperException;
+
+import edu.uw.zookeeper.common.Processors;
+import edu.uw.zookeeper.common.Processors.ForwardingProcessor;
+import edu.uw.zookeeper.data.CreateMode;
+import edu.uw.zookeeper.data.NameTrie;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.ZNodeLabelVector;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.proto.IErrorResponse;
+import edu.uw.zookeeper.protocol.proto.IMultiRequest;
+import edu.uw.zookeeper.protocol.proto.IMultiResponse;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Updates the index of containers and TTL nodes
+ * with the nodes that each applied transaction creates, changes, or empties,
+ * and rejects the deletes of the index whose nodes are no longer expired.
+ *
+ * Only TTL nodes and the parents of deleted nodes are looked up,
+ * so other transactions pay for little more than a switch.
+ */
+public class ExpiryProcessor extends ForwardingProcessor<TxnOperation.Request<?>, Records.Response> implements Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> {
+
+    public static ExpiryProcessor create(
+            Expiries expiries,
+            NameTrie<ZNodeNode> data,
+            Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate) {
+        return new ExpiryProcessor(expiries, data, delegate);
+    }
+
+    protected final Expiries expiries;
+    protected final NameTrie<ZNodeNode> data;
+    protected final Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate;
+
+    public ExpiryProcessor(
+            Expiries expiries,
+            NameTrie<ZNodeNode> data,
+            Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate) {
+        this.expiries = expiries;
+        this.data = data;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Records.Response apply(TxnOperation.Request<?> input) {
+        if ((input.record() instanceof Expiries.Delete)
+                && ! ((Expiries.Delete) input.record()).isExpired(
+                        ZNodeNode.find(data.root(), ((Expiries.Delete) input.record()).getPath()), 
+                        input.getTime())) {
+            return new IErrorResponse(KeeperException.Code.BADVERSION);
+        }
+        Records.Response response = delegate().apply(input);
+        apply(input.record(), response);
+        return response;
+    }
+
+    protected void apply(Records.Request request, Records.Response response) {
+        if (response instanceof Operation.Error) {
+            return;
+        }
+        switch (response.opcode()) {
+        case CREATE:
+        case CREATE2:
+        case CREATE_TTL:
+        {
+            // a new container has no children to lose yet
+            if (CreateMode.valueOf(((Records.CreateModeGetter) request).getFlags()).isTtl()) {
+                add(((Records.PathGetter) response).getPath());
+            }
+            break;
+        }
+        case SET_DATA:
+        {
+            String path = ((Records.PathGetter) request).getPath();
+            if (expiries.isTtl(path)) {
+                add(path);
+            }
+            break;
+        }
+        case DELETE:
+        {
+            String path = ((Records.PathGetter) request).getPath();
+            expiries.remove(path);
+            String parent = ZNodeLabelVector.headOf(path);
+            if (parent.length() > 1) {
+                add(parent);
+            }
+            break;
+        }
+        case MULTI:
+        {
+            Iterator<Records.MultiOpRequest> requests = ((IMultiRequest) request).iterator();
+            Iterator<Records.MultiOpResponse> responses = ((IMultiResponse) response).iterator();
+            while (requests.hasNext()) {
+                apply(requests.next(), responses.next());
+            }
+            break;
+        }
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Looks up without copying, since the index only reads the node.
+     */
+    protected void add(String path) {
+        ZNodeNode node = ZNodeNode.find(data.root(), path);
+        if (node != null) {
+            expiries.add(path, node);
+        }
+    }
+
+    @Override
+    protected Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate() {
+        return delegate;
+    }
+}
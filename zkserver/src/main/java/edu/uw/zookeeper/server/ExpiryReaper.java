@@ -0,0 +1,94 @@
+package edu.uw.zookeeper.server;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.MoreObjects;
+
+import edu.uw.zookeeper.ConfigurableTimeout;
+import edu.uw.zookeeper.common.Actor;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.common.TimeValue;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.Session;
+import edu.uw.zookeeper.protocol.SessionRequest;
+import edu.uw.zookeeper.protocol.proto.IDeleteRequest;
+
+/**
+ * Periodically submits the deletes of the expired containers and TTL nodes
+ * in an index to the server, as an uninitialized session like ZooKeeper's reaper,
+ * until the server terminates.
+ */
+public final class ExpiryReaper implements Runnable {
+
+    public static ExpiryReaper fromConfiguration(
+            Expiries expiries,
+            SimpleServer server,
+            ScheduledExecutorService scheduler,
+            Configuration configuration) {
+        return schedule(expiries, server, ConfigurableReapInterval.get(configuration), scheduler);
+    }
+
+    public static ExpiryReaper schedule(
+            Expiries expiries,
+            SimpleServer server,
+            TimeValue interval,
+            ScheduledExecutorService scheduler) {
+        ExpiryReaper reaper = new ExpiryReaper(expiries, server);
+        long millis = interval.value(TimeUnit.MILLISECONDS);
+        reaper.future = scheduler.scheduleWithFixedDelay(reaper, millis, millis, TimeUnit.MILLISECONDS);
+        return reaper;
+    }
+
+    @Configurable(path="server", arg="reapInterval", value="60 seconds", help="time")
+    public static class ConfigurableReapInterval extends ConfigurableTimeout {
+
+        public static TimeValue get(Configuration configuration) {
+            return new ConfigurableReapInterval().apply(configuration);
+        }
+    }
+
+    private final Logger logger;
+    private final Expiries expiries;
+    private final SimpleServer server;
+    private volatile ScheduledFuture<?> future;
+    // only accessed by the scheduled task
+    private int xid;
+
+    protected ExpiryReaper(Expiries expiries, SimpleServer server) {
+        this.logger = LogManager.getLogger(this);
+        this.expiries = expiries;
+        this.server = server;
+        this.future = null;
+        this.xid = 0;
+    }
+
+    @Override
+    public void run() {
+        if (server.state() == Actor.State.TERMINATED) {
+            future.cancel(false);
+            return;
+        }
+        List<IDeleteRequest> deletes = expiries.expired(System.currentTimeMillis());
+        if (deletes.isEmpty()) {
+            return;
+        }
+        logger.debug("Reaping {} nodes ({})", deletes.size(), this);
+        for (IDeleteRequest delete: deletes) {
+            server.submit(SessionRequest.of(
+                    Session.uninitialized().id(),
+                    ProtocolRequestMessage.of(++xid, delete)));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).addValue(expiries).toString();
+    }
+}
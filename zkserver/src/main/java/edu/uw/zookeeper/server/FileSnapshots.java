@@ -0,0 +1,760 @@
+package edu.uw.zookeeper.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.data.ACL;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.data.AbsoluteZNodePath;
+import edu.uw.zookeeper.data.Acls;
+import edu.uw.zookeeper.data.CopyOnWriteZNodeTrie;
+import edu.uw.zookeeper.data.NameTrie;
+import edu.uw.zookeeper.data.OffHeapPayloads;
+import edu.uw.zookeeper.data.ZNodeLabel;
+import edu.uw.zookeeper.data.ZNodeName;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.data.ZNodePath;
+import edu.uw.zookeeper.protocol.proto.ByteBufInputArchive;
+import edu.uw.zookeeper.protocol.proto.ByteBufOutputArchive;
+import edu.uw.zookeeper.protocol.proto.Stats;
+
+/**
+ * Snapshots stored as files named by the zxid of the last transaction they contain.
+ *
+ * The tree is captured by reference while it can't be modified,
+ * then encoded and written in the background.
+ * A view of a CopyOnWriteZNodeTrie is captured in the background as well.
+ * Node data and acls are never modified in place, so the
+ * captured references stay valid.
+ *
+ * A snapshot is divided into sections. The first section holds the
+ * nodes whose subtrees are too large to fit in a section, by path.
+ * Every other section holds consecutive sibling subtrees, so the
+ * sections after the first are decoded in parallel.
+ * Acl lists are stored once and shared by the restored nodes.
+ */
+public class FileSnapshots implements Snapshots {
+
+    public static final String PREFIX = "snapshot";
+    public static final int MAGIC = 0x5a4b534e;
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 24;
+    public static final int INDEX_ENTRY_LENGTH = 20;
+    public static final int DEFAULT_SECTION_SIZE = 1 << 14;
+
+    public static Snapshots fromConfiguration(
+            Configuration configuration,
+            ListeningExecutorService executor) throws IOException {
+        String logDir = FileTxnLog.ConfigurableDataLogDir.get(configuration);
+        String dir = ConfigurableDataDir.get(configuration);
+        if (dir.isEmpty()) {
+            dir = logDir;
+        }
+        if (dir.isEmpty()) {
+            return Snapshots.Disabled.DISABLED;
+        }
+        return open(
+                new File(dir),
+                logDir.isEmpty() ? null : new File(logDir),
+                ConfigurableRetainCount.get(configuration),
+                DEFAULT_SECTION_SIZE,
+                executor);
+    }
+
+    /**
+     * @param logDir log segments older than every retained snapshot are deleted from here, if not null
+     */
+    public static FileSnapshots open(
+            File dir,
+            File logDir,
+            int retain,
+            int sectionSize,
+            ListeningExecutorService executor) throws IOException {
+        checkArgument(retain > 0);
+        checkArgument(sectionSize > 0);
+        if (! dir.isDirectory() && ! dir.mkdirs()) {
+            throw new IOException(String.valueOf(dir));
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                if (file.getName().startsWith(PREFIX + '.') && file.getName().endsWith(".tmp")) {
+                    file.delete();
+                }
+            }
+        }
+        return new FileSnapshots(dir, logDir, retain, sectionSize, executor, LogManager.getLogger(FileSnapshots.class));
+    }
+
+    public static String nameOf(long zxid) {
+        return String.format("%s.%016x", PREFIX, zxid);
+    }
+
+    /**
+     * @return snapshot files in the directory by zxid
+     */
+    public static ImmutableSortedMap<Long, File> snapshots(File dir) {
+        ImmutableSortedMap.Builder<Long, File> snapshots = ImmutableSortedMap.naturalOrder();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                String name = file.getName();
+                if (file.isFile() && name.startsWith(PREFIX + '.')) {
+                    try {
+                        snapshots.put(Long.parseLong(name.substring(PREFIX.length() + 1), 16), file);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                }
+            }
+        }
+        return snapshots.build();
+    }
+
+    /**
+     * Not thread safe.
+     */
+    public static List<Captured> capture(NameTrie<ZNodeNode> data) {
+        List<Captured> nodes = Lists.newArrayList();
+        Deque<Captured> ancestors = new ArrayDeque<Captured>();
+        // parent pointers may refer to an older version of the parent,
+        // so track the parent of each pending node
+        Deque<ZNodeNode> pending = new ArrayDeque<ZNodeNode>();
+        Deque<Captured> parents = new ArrayDeque<Captured>();
+        pending.push(data.root());
+        while (! pending.isEmpty()) {
+            ZNodeNode node = pending.pop();
+            Captured parent = parents.isEmpty() ? null : parents.pop();
+            while (! ancestors.isEmpty() && (ancestors.peek() != parent)) {
+                ancestors.pop().end = nodes.size();
+            }
+            Captured captured = (parent == null)
+                    ? new Captured(nodes.size(), 0, -1, node.path(), node)
+                    : new Captured(nodes.size(), parent.depth + 1, parent.index, parent.path.join(node.parent().name()), node);
+            nodes.add(captured);
+            ancestors.push(captured);
+            for (ZNodeNode child: node.values()) {
+                pending.push(child);
+                parents.push(captured);
+            }
+        }
+        while (! ancestors.isEmpty()) {
+            ancestors.pop().end = nodes.size();
+        }
+        return nodes;
+    }
+
+    /**
+     * Writes captured nodes to a new file.
+     */
+    public static void write(List<Captured> nodes, long zxid, int sectionSize, File file) throws IOException {
+        List<int[]> sections = sections(nodes, sectionSize);
+
+        Map<List<Acls.Acl>, Integer> acls = Maps.newHashMap();
+        Map<List<Acls.Acl>, Integer> byReference = new IdentityHashMap<List<Acls.Acl>, Integer>();
+        ByteBuf aclTable = Unpooled.buffer();
+        ByteBufOutputArchive archive = new ByteBufOutputArchive(aclTable);
+        for (Captured node: nodes) {
+            Integer index = byReference.get(node.acl);
+            if (index == null) {
+                index = acls.get(node.acl);
+                if (index == null) {
+                    index = Integer.valueOf(acls.size());
+                    acls.put(node.acl, index);
+                    aclTable.writeInt(node.acl.size());
+                    for (Acls.Acl acl: node.acl) {
+                        acl.toRecord().serialize(archive, "acl");
+                    }
+                }
+                byReference.put(node.acl, index);
+            }
+            node.aclIndex = index.intValue();
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuf header = Unpooled.buffer(HEADER_LENGTH + aclTable.readableBytes())
+                    .writeInt(MAGIC)
+                    .writeInt(VERSION)
+                    .writeLong(zxid)
+                    .writeInt(aclTable.readableBytes())
+                    .writeInt(sections.size())
+                    .writeBytes(aclTable);
+            write(channel, header, 0L);
+            long indexPosition = header.writerIndex();
+            ByteBuf index = Unpooled.buffer(sections.size() * INDEX_ENTRY_LENGTH);
+            long position = indexPosition + index.capacity();
+            for (int i=0; i<sections.size(); ++i) {
+                ByteBuf buffer = PooledByteBufAllocator.DEFAULT.heapBuffer();
+                try {
+                    if (i == 0) {
+                        encodeFirst(nodes, sections.get(i), buffer);
+                    } else {
+                        encode(nodes, sections.get(i), buffer);
+                    }
+                    index.writeLong(position)
+                        .writeInt(buffer.readableBytes())
+                        .writeLong(FileTxnLog.checksum(buffer, buffer.readerIndex(), buffer.readableBytes()));
+                    position += write(channel, buffer, position);
+                } finally {
+                    buffer.release();
+                }
+            }
+            write(channel, index, indexPosition);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the header of a snapshot file.
+     */
+    public static Header header(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return header(file, channel);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Loads a snapshot file into an empty tree, decoding sections in parallel,
+     * then counts the subtrees in one pass.
+     *
+     * @return zxid of the snapshot
+     */
+    public static long restore(File file, final NameTrie<ZNodeNode> data, ListeningExecutorService executor) throws IOException {
+        checkArgument(data.root().isEmpty());
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final Header header = header(file, channel);
+            List<ByteBuf> sections = Lists.newArrayListWithCapacity(header.sections.length);
+            for (int i=0; i<header.sections.length; ++i) {
+                ByteBuf section = Unpooled.wrappedBuffer(channel.map(
+                        FileChannel.MapMode.READ_ONLY, header.sections[i][0], header.sections[i][1]));
+                if (FileTxnLog.checksum(section, 0, section.readableBytes()) != header.sections[i][2]) {
+                    throw new IOException(String.format("Corrupt section %d of %s", i, file));
+                }
+                sections.add(section);
+            }
+            if (sections.isEmpty()) {
+                throw new IOException(String.format("Empty snapshot %s", file));
+            }
+
+            // nodes with large subtrees, in order
+            ByteBuf spine = sections.get(0);
+            int count = spine.readInt();
+            for (int i=0; i<count; ++i) {
+                ZNodePath path = ZNodePath.fromString(readString(spine));
+                ZNodeNode.ZNodeState state = readState(spine, header.acls);
+                if (path.isRoot()) {
+                    ZNodeNode root = data.root();
+                    root.state().setCreate(state.getCreate());
+                    root.state().setData(state.getData());
+                    root.state().setChildren(state.getChildren());
+                    root.state().getAcl().setAcl(state.getAcl().getAcl());
+                    root.state().getAcl().setAversion(state.getAcl().getAversion());
+                } else {
+                    ZNodeLabel label = ((AbsoluteZNodePath) path).label();
+                    ZNodeNode parent = data.get(((AbsoluteZNodePath) path).parent());
+                    parent.put(label, ZNodeNode.child(label, parent, state));
+                }
+            }
+
+            List<ListenableFuture<Subtrees>> futures = Lists.newArrayListWithCapacity(sections.size() - 1);
+            for (final ByteBuf section: sections.subList(1, sections.size())) {
+                futures.add(executor.submit(new Callable<Subtrees>() {
+                    @Override
+                    public Subtrees call() throws Exception {
+                        return decode(section, data, header.acls);
+                    }
+                }));
+            }
+            for (ListenableFuture<Subtrees> future: futures) {
+                Subtrees subtrees;
+                try {
+                    subtrees = future.get();
+                } catch (InterruptedException e) {
+                    throw Throwables.propagate(e);
+                } catch (ExecutionException e) {
+                    Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                    throw Throwables.propagate(e.getCause());
+                }
+                for (ZNodeNode child: subtrees.children) {
+                    subtrees.parent.put(child.parent().name(), child);
+                }
+            }
+            ZNodeNode.recount(data.root());
+            return header.zxid;
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Configurable(path="server", arg="dataDir", help="path")
+    public static abstract class ConfigurableDataDir {
+
+        public static String get(Configuration configuration) {
+            Configurable configurable = ConfigurableDataDir.class.getAnnotation(Configurable.class);
+            Config config = configuration.withConfigurable(configurable)
+                    .getConfigOrEmpty(configurable.path());
+            return config.hasPath(configurable.arg()) ? config.getString(configurable.arg()) : "";
+        }
+    }
+
+    @Configurable(path="server", key="snapshotCount", value="100000", type=ConfigValueType.NUMBER)
+    public static abstract class ConfigurableSnapshotCount {
+
+        public static int get(Configuration configuration) {
+            Configurable configurable = ConfigurableSnapshotCount.class.getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    @Configurable(path="server", key="snapshotRetainCount", value="3", type=ConfigValueType.NUMBER)
+    public static abstract class ConfigurableRetainCount {
+
+        public static int get(Configuration configuration) {
+            Configurable configurable = ConfigurableRetainCount.class.getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+
+    /**
+     * Node state captured by reference, in pre-order.
+     */
+    public static final class Captured {
+
+        protected final int index;
+        protected final int depth;
+        protected final int parent;
+        protected final ZNodePath path;
+        protected final ZNodeName label;
+        protected final Stats.CreateStat create;
+        protected final long mzxid;
+        protected final long mtime;
+        protected final int version;
+        protected final List<Acls.Acl> acl;
+        protected final int aversion;
+        protected final long pzxid;
+        protected final int cversion;
+        protected final byte[] data;
+        protected final OffHeapPayloads.Payload payload;
+        protected int end;
+        protected int aclIndex;
+
+        protected Captured(int index, int depth, int parent, ZNodePath path, ZNodeNode node) {
+            ZNodeNode.ZNodeState state = node.state();
+            this.index = index;
+            this.depth = depth;
+            this.parent = parent;
+            this.path = path;
+            this.label = node.parent().name();
+            this.create = state.getCreate();
+            this.mzxid = state.getData().getStat().getMzxid();
+            this.mtime = state.getData().getStat().getMtime();
+            this.version = state.getData().getStat().getVersion();
+            this.acl = state.getAcl().getAcl();
+            this.aversion = state.getAcl().getAversion();
+            this.pzxid = state.getChildren().getPzxid();
+            this.cversion = state.getChildren().getCversion();
+            this.payload = state.getPayload();
+            this.data = (payload == null) ? state.getData().getData() : null;
+            this.end = index + 1;
+            this.aclIndex = -1;
+        }
+
+        public ZNodePath path() {
+            return path;
+        }
+
+        public int size() {
+            return end - index;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("path", path).add("size", size()).toString();
+        }
+    }
+
+    public static final class Header {
+
+        protected final long zxid;
+        protected final List<List<Acls.Acl>> acls;
+        protected final long[][] sections;
+
+        protected Header(long zxid, List<List<Acls.Acl>> acls, long[][] sections) {
+            this.zxid = zxid;
+            this.acls = acls;
+            this.sections = sections;
+        }
+
+        public long zxid() {
+            return zxid;
+        }
+
+        public int sections() {
+            return sections.length;
+        }
+    }
+
+    protected static final class Subtrees {
+
+        protected final ZNodeNode parent;
+        protected final List<ZNodeNode> children;
+
+        protected Subtrees(ZNodeNode parent, List<ZNodeNode> children) {
+            this.parent = parent;
+            this.children = children;
+        }
+    }
+
+    /**
+     * @return ranges of captured nodes, the first of which lists
+     *   the nodes outside of every other range
+     */
+    protected static List<int[]> sections(List<Captured> nodes, int sectionSize) {
+        List<int[]> sections = Lists.newArrayList();
+        List<Integer> spine = Lists.newArrayList();
+        int i = 0;
+        while (i < nodes.size()) {
+            Captured node = nodes.get(i);
+            if ((node.parent < 0) || (node.size() > sectionSize)) {
+                spine.add(Integer.valueOf(i));
+                ++i;
+            } else {
+                int end = node.end;
+                int size = node.size();
+                while ((end < nodes.size())
+                        && (nodes.get(end).parent == node.parent)
+                        && (size + nodes.get(end).size() <= sectionSize)) {
+                    size += nodes.get(end).size();
+                    end = nodes.get(end).end;
+                }
+                sections.add(new int[] { node.parent, i, end });
+                i = end;
+            }
+        }
+        int[] first = new int[spine.size()];
+        for (int j=0; j<first.length; ++j) {
+            first[j] = spine.get(j).intValue();
+        }
+        sections.add(0, first);
+        return sections;
+    }
+
+    protected static void encodeFirst(List<Captured> nodes, int[] section, ByteBuf output) {
+        output.writeInt(section.length);
+        for (int i: section) {
+            Captured node = nodes.get(i);
+            writeString(output, node.path.toString());
+            writeState(output, node);
+        }
+    }
+
+    protected static void encode(List<Captured> nodes, int[] section, ByteBuf output) {
+        Captured parent = nodes.get(section[0]);
+        writeString(output, parent.path.toString());
+        output.writeInt(section[2] - section[1]);
+        for (int i=section[1]; i<section[2]; ++i) {
+            Captured node = nodes.get(i);
+            output.writeInt(node.depth - parent.depth - 1);
+            writeString(output, node.label.toString());
+            writeState(output, node);
+        }
+    }
+
+    protected static long write(FileChannel channel, ByteBuf buffer, long position) throws IOException {
+        long written = 0L;
+        while (buffer.isReadable()) {
+            int n = channel.write(buffer.nioBuffer(), position + written);
+            buffer.skipBytes(n);
+            written += n;
+        }
+        return written;
+    }
+
+    protected static Header header(File file, FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_LENGTH) {
+            throw new IOException(String.format("Not a snapshot: %s", file));
+        }
+        ByteBuf buffer = Unpooled.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH));
+        if (buffer.readInt() != MAGIC) {
+            throw new IOException(String.format("Not a snapshot: %s", file));
+        }
+        int version = buffer.readInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported version %d: %s", version, file));
+        }
+        long zxid = buffer.readLong();
+        int aclLength = buffer.readInt();
+        int sectionCount = buffer.readInt();
+        long length = (long) aclLength + (long) sectionCount * INDEX_ENTRY_LENGTH;
+        if ((aclLength < 0) || (sectionCount < 0) || (channel.size() < HEADER_LENGTH + length)) {
+            throw new IOException(String.format("Truncated snapshot: %s", file));
+        }
+        buffer = Unpooled.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, length));
+        ByteBuf aclTable = buffer.readSlice(aclLength);
+        ByteBufInputArchive archive = new ByteBufInputArchive(aclTable);
+        ImmutableList.Builder<List<Acls.Acl>> acls = ImmutableList.builder();
+        while (aclTable.isReadable()) {
+            int n = aclTable.readInt();
+            ImmutableList.Builder<Acls.Acl> acl = ImmutableList.builder();
+            for (int i=0; i<n; ++i) {
+                ACL record = new ACL();
+                record.deserialize(archive, "acl");
+                acl.add(Acls.Acl.fromRecord(record));
+            }
+            acls.add(acl.build());
+        }
+        long[][] sections = new long[sectionCount][];
+        for (int i=0; i<sectionCount; ++i) {
+            sections[i] = new long[] { buffer.readLong(), buffer.readInt(), buffer.readLong() };
+            if (sections[i][0] + sections[i][1] > channel.size()) {
+                throw new IOException(String.format("Truncated snapshot: %s", file));
+            }
+        }
+        return new Header(zxid, acls.build(), sections);
+    }
+
+    protected static Subtrees decode(ByteBuf section, NameTrie<ZNodeNode> data, List<List<Acls.Acl>> acls) {
+        ZNodeNode parent = data.get(ZNodePath.fromString(readString(section)));
+        int count = section.readInt();
+        List<ZNodeNode> children = Lists.newArrayList();
+        List<ZNodeNode> ancestors = Lists.newArrayList();
+        for (int i=0; i<count; ++i) {
+            int depth = section.readInt();
+            ZNodeLabel label = ZNodeLabel.fromString(readString(section));
+            ZNodeNode.ZNodeState state = readState(section, acls);
+            while (ancestors.size() > depth) {
+                ancestors.remove(ancestors.size() - 1);
+            }
+            ZNodeNode node;
+            if (depth == 0) {
+                node = ZNodeNode.child(label, parent, state);
+                children.add(node);
+            } else {
+                ZNodeNode ancestor = ancestors.get(depth - 1);
+                node = ZNodeNode.child(label, ancestor, state);
+                ancestor.put(label, node);
+            }
+            ancestors.add(node);
+        }
+        return new Subtrees(parent, children);
+    }
+
+    protected static void writeString(ByteBuf output, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length).writeBytes(bytes);
+    }
+
+    protected static String readString(ByteBuf input) {
+        int length = input.readInt();
+        String value = input.toString(input.readerIndex(), length, StandardCharsets.UTF_8);
+        input.skipBytes(length);
+        return value;
+    }
+
+    protected static void writeState(ByteBuf output, Captured node) {
+        output.writeLong(node.create.getCzxid())
+            .writeLong(node.create.getCtime())
+            .writeLong(node.create.getEphemeralOwner())
+            .writeLong(node.mzxid)
+            .writeLong(node.mtime)
+            .writeInt(node.version)
+            .writeInt(node.aclIndex)
+            .writeInt(node.aversion)
+            .writeLong(node.pzxid)
+            .writeInt(node.cversion);
+        if (node.payload != null) {
+            output.writeInt(node.payload.length());
+            node.payload.writeTo(output);
+        } else {
+            output.writeInt(node.data.length)
+                .writeBytes(node.data);
+        }
+    }
+
+    protected static ZNodeNode.ZNodeState readState(ByteBuf input, List<List<Acls.Acl>> acls) {
+        long czxid = input.readLong();
+        long ctime = input.readLong();
+        long ephemeralOwner = input.readLong();
+        long mzxid = input.readLong();
+        long mtime = input.readLong();
+        int version = input.readInt();
+        List<Acls.Acl> acl = acls.get(input.readInt());
+        int aversion = input.readInt();
+        long pzxid = input.readLong();
+        int cversion = input.readInt();
+        byte[] bytes = new byte[input.readInt()];
+        input.readBytes(bytes);
+        return new ZNodeNode.ZNodeState(
+                czxid, ctime, ephemeralOwner,
+                mzxid, mtime, version, bytes,
+                acl, aversion,
+                pzxid, cversion);
+    }
+
+    protected final Logger logger;
+    protected final File dir;
+    protected final File logDir;
+    protected final int retain;
+    protected final int sectionSize;
+    protected final ListeningExecutorService executor;
+    protected volatile long lastZxid;
+
+    protected FileSnapshots(
+            File dir,
+            File logDir,
+            int retain,
+            int sectionSize,
+            ListeningExecutorService executor,
+            Logger logger) {
+        this.dir = dir;
+        this.logDir = logDir;
+        this.retain = retain;
+        this.sectionSize = sectionSize;
+        this.executor = executor;
+        this.logger = logger;
+        ImmutableSortedMap<Long, File> snapshots = snapshots(dir);
+        this.lastZxid = snapshots.isEmpty() ? 0L : snapshots.lastKey().longValue();
+
+        logger.info("{}", this);
+    }
+
+    public File dir() {
+        return dir;
+    }
+
+    @Override
+    public long lastZxid() {
+        return lastZxid;
+    }
+
+    @Override
+    public ListenableFuture<Long> snapshot(final NameTrie<ZNodeNode> data, final long zxid) {
+        // a view of a copy-on-write tree doesn't change, so it is captured in the background
+        final List<Captured> captured = (data instanceof CopyOnWriteZNodeTrie.View) ? null : capture(data);
+        return executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                List<Captured> nodes = (captured == null) ? capture(data) : captured;
+                File file = new File(dir, nameOf(zxid));
+                File tmp = new File(dir, file.getName() + ".tmp");
+                long start = System.currentTimeMillis();
+                try {
+                    write(nodes, zxid, sectionSize, tmp);
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    logger.warn("Failed to write snapshot 0x{} ({})", Long.toHexString(zxid), FileSnapshots.this, e);
+                    tmp.delete();
+                    throw e;
+                }
+                if (zxid > lastZxid) {
+                    lastZxid = zxid;
+                }
+                logger.info("Wrote {} nodes to {} in {} ms", nodes.size(), file, System.currentTimeMillis() - start);
+                purge();
+                return Long.valueOf(zxid);
+            }
+        });
+    }
+
+    @Override
+    public long restore(NameTrie<ZNodeNode> data) throws IOException {
+        for (File file: snapshots(dir).descendingMap().values()) {
+            long start = System.currentTimeMillis();
+            try {
+                long zxid = restore(file, data, executor);
+                logger.info("Restored {} in {} ms", file, System.currentTimeMillis() - start);
+                return zxid;
+            } catch (IOException e) {
+                logger.warn("Skipping {} ({})", file, this, e);
+                // start over from an empty tree
+                data.root().clear();
+            }
+        }
+        return 0L;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("dir", dir)
+                .add("lastZxid", String.format("0x%s", Long.toHexString(lastZxid)))
+                .toString();
+    }
+
+    /**
+     * Deletes snapshots beyond the retained count, and log segments
+     * that only contain transactions older than every retained snapshot.
+     */
+    protected synchronized void purge() {
+        ImmutableSortedMap<Long, File> snapshots = snapshots(dir);
+        if (snapshots.size() <= retain) {
+            return;
+        }
+        Long oldest = snapshots.descendingKeySet().asList().get(retain - 1);
+        for (File file: snapshots.headMap(oldest, false).values()) {
+            if (! file.delete()) {
+                logger.warn("Failed to delete {} ({})", file, this);
+            }
+        }
+        if (logDir != null) {
+            Map.Entry<Long, File> previous = null;
+            for (Map.Entry<Long, File> segment: FileTxnLog.segments(logDir).entrySet()) {
+                if (segment.getKey().longValue() > oldest.longValue() + 1L) {
+                    break;
+                }
+                if ((previous != null) && ! previous.getValue().delete()) {
+                    logger.warn("Failed to delete {} ({})", previous.getValue(), this);
+                }
+                previous = segment;
+            }
+        }
+    }
+}
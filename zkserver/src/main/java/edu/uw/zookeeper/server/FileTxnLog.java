@@ -0,0 +1,704 @@
+package edu.uw.zookeeper.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValueType;
+
+import edu.uw.zookeeper.common.Actors;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.common.Promise;
+import edu.uw.zookeeper.common.SettableFuturePromise;
+import edu.uw.zookeeper.common.TimeValue;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.TxnRequest;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.SessionRequest;
+import edu.uw.zookeeper.protocol.proto.ByteBufOutputArchive;
+
+/**
+ * Transaction log stored as a sequence of preallocated segment files,
+ * each named by the zxid of its first transaction.
+ *
+ * Transactions that are appended while a flush is in progress
+ * are written and synced together by the next flush.
+ *
+ * Each entry is a length and an Adler32 checksum, followed by
+ * the time, zxid, session, and request.
+ */
+public class FileTxnLog extends Actors.ExecutedQueuedActor<FileTxnLog.Entry> implements TxnLog {
+
+    public static final String PREFIX = "log";
+    public static final int MAGIC = 0x5a4b4c47;
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 8;
+
+    public static TxnLog fromConfiguration(
+            Configuration configuration,
+            Executor executor,
+            ScheduledExecutorService scheduler) throws IOException {
+        String dir = ConfigurableDataLogDir.get(configuration);
+        if (dir.isEmpty()) {
+            return TxnLog.Disabled.DISABLED;
+        }
+        return open(
+                new File(dir),
+                ConfigurableSyncPolicy.get(configuration),
+                ConfigurableSegmentSize.get(configuration),
+                executor,
+                scheduler);
+    }
+
+    public static FileTxnLog open(
+            File dir,
+            SyncPolicy policy,
+            long segmentSize,
+            Executor executor,
+            ScheduledExecutorService scheduler) throws IOException {
+        checkArgument(segmentSize > HEADER_LENGTH);
+        if (! dir.isDirectory() && ! dir.mkdirs()) {
+            throw new IOException(String.valueOf(dir));
+        }
+        long lastZxid = 0L;
+        for (File file: segments(dir).descendingMap().values()) {
+            Iterator<TxnOperation.Request<?>> txns = read(file);
+            if (txns.hasNext()) {
+                lastZxid = Iterators.getLast(txns).zxid();
+                break;
+            }
+        }
+        return new FileTxnLog(
+                dir,
+                policy,
+                segmentSize,
+                lastZxid,
+                executor,
+                scheduler,
+                Queues.<Entry>newConcurrentLinkedQueue(),
+                LogManager.getLogger(FileTxnLog.class));
+    }
+
+    public static String nameOf(long zxid) {
+        return String.format("%s.%016x", PREFIX, zxid);
+    }
+
+    /**
+     * @return segment files in the directory by starting zxid
+     */
+    public static ImmutableSortedMap<Long, File> segments(File dir) {
+        ImmutableSortedMap.Builder<Long, File> segments = ImmutableSortedMap.naturalOrder();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                String name = file.getName();
+                if (file.isFile() && name.startsWith(PREFIX + '.')) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(PREFIX.length() + 1), 16), file);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                }
+            }
+        }
+        return segments.build();
+    }
+
+    /**
+     * @return transactions in the segment, stopping at the first incomplete or corrupt entry
+     */
+    public static Iterator<TxnOperation.Request<?>> read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuf buffer = Unpooled.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            if ((buffer.readableBytes() < HEADER_LENGTH) || (buffer.readInt() != MAGIC)) {
+                throw new IOException(String.format("Not a transaction log: %s", file));
+            }
+            int version = buffer.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported version %d: %s", version, file));
+            }
+            return new SegmentIterator(file, buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static void encode(TxnOperation.Request<?> txn, ByteBuf output) throws IOException {
+        output.writeLong(txn.getTime());
+        output.writeLong(txn.zxid());
+        output.writeLong(txn.getSessionId());
+        ProtocolRequestMessage.serialize(txn, new ByteBufOutputArchive(output));
+    }
+
+    public static TxnOperation.Request<?> decode(ByteBuf input) throws IOException {
+        long time = input.readLong();
+        long zxid = input.readLong();
+        long session = input.readLong();
+        return TxnRequest.of(time, zxid, SessionRequest.of(session, ProtocolRequestMessage.decode(input)));
+    }
+
+    public static long checksum(ByteBuf buffer, int index, int length) {
+        Adler32 checksum = new Adler32();
+        checksum.update(buffer.nioBuffer(index, length));
+        return checksum.getValue();
+    }
+
+    @Configurable(path="server", arg="dataLogDir", help="path")
+    public static abstract class ConfigurableDataLogDir {
+
+        public static String get(Configuration configuration) {
+            Configurable configurable = ConfigurableDataLogDir.class.getAnnotation(Configurable.class);
+            Config config = configuration.withConfigurable(configurable)
+                    .getConfigOrEmpty(configurable.path());
+            return config.hasPath(configurable.arg()) ? config.getString(configurable.arg()) : "";
+        }
+    }
+
+    @Configurable(path="server", arg="syncPolicy", value="always", help="always|none|time")
+    public static abstract class ConfigurableSyncPolicy {
+
+        public static SyncPolicy get(Configuration configuration) {
+            Configurable configurable = ConfigurableSyncPolicy.class.getAnnotation(Configurable.class);
+            return SyncPolicy.fromString(
+                    configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getString(configurable.arg()));
+        }
+    }
+
+    @Configurable(path="server", key="logSegmentSize", value="67108864", type=ConfigValueType.NUMBER)
+    public static abstract class ConfigurableSegmentSize {
+
+        public static long get(Configuration configuration) {
+            Configurable configurable = ConfigurableSegmentSize.class.getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getLong(configurable.key());
+        }
+    }
+
+    /**
+     * When to force written transactions to disk.
+     */
+    public static final class SyncPolicy {
+
+        public static enum Type {
+            ALWAYS, PERIODIC, NONE;
+        }
+
+        public static SyncPolicy always() {
+            return new SyncPolicy(Type.ALWAYS, TimeValue.milliseconds(0));
+        }
+
+        public static SyncPolicy none() {
+            return new SyncPolicy(Type.NONE, TimeValue.milliseconds(0));
+        }
+
+        public static SyncPolicy periodic(TimeValue interval) {
+            return new SyncPolicy(Type.PERIODIC, interval);
+        }
+
+        public static SyncPolicy fromString(String text) {
+            for (Type type: Type.values()) {
+                if ((type != Type.PERIODIC) && type.name().equalsIgnoreCase(text)) {
+                    return new SyncPolicy(type, TimeValue.milliseconds(0));
+                }
+            }
+            return periodic(TimeValue.fromString(text));
+        }
+
+        private final Type type;
+        private final TimeValue interval;
+
+        private SyncPolicy(Type type, TimeValue interval) {
+            this.type = type;
+            this.interval = interval;
+        }
+
+        public Type type() {
+            return type;
+        }
+
+        public TimeValue interval() {
+            return interval;
+        }
+
+        @Override
+        public String toString() {
+            return (type == Type.PERIODIC) ? interval.toString() : type.name().toLowerCase();
+        }
+    }
+
+    protected static final class Entry {
+
+        public static Entry txn(TxnOperation.Request<?> txn) {
+            return new Entry(txn, null);
+        }
+
+        public static Entry sync(Promise<Void> promise) {
+            return new Entry(null, promise);
+        }
+
+        public static Entry flush() {
+            return FLUSH;
+        }
+
+        private static final Entry FLUSH = new Entry(null, null);
+
+        private final TxnOperation.Request<?> txn;
+        private final Promise<Void> promise;
+
+        private Entry(TxnOperation.Request<?> txn, Promise<Void> promise) {
+            this.txn = txn;
+            this.promise = promise;
+        }
+
+        public boolean isPending() {
+            return (this != FLUSH);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("txn", txn).add("promise", promise).toString();
+        }
+    }
+
+    protected static final class Segment implements Closeable {
+
+        public static Segment create(File file, long size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            ByteBuf header = Unpooled.buffer(HEADER_LENGTH).writeInt(MAGIC).writeInt(VERSION);
+            while (header.isReadable()) {
+                header.readBytes(channel, header.readableBytes());
+            }
+            // entries are zero-terminated, and the length of the file
+            // doesn't change with every write
+            raf.setLength(size);
+            channel.force(true);
+            return new Segment(file, raf);
+        }
+
+        private final File file;
+        private final RandomAccessFile raf;
+
+        private Segment(File file, RandomAccessFile raf) {
+            this.file = file;
+            this.raf = raf;
+        }
+
+        public File file() {
+            return file;
+        }
+
+        public long position() throws IOException {
+            return raf.getChannel().position();
+        }
+
+        public void write(ByteBuf buffer) throws IOException {
+            FileChannel channel = raf.getChannel();
+            while (buffer.isReadable()) {
+                buffer.readBytes(channel, buffer.readableBytes());
+            }
+        }
+
+        public void force() throws IOException {
+            raf.getChannel().force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                FileChannel channel = raf.getChannel();
+                channel.truncate(channel.position());
+                channel.force(true);
+            } finally {
+                raf.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).addValue(file).toString();
+        }
+    }
+
+    protected static final class SegmentIterator extends AbstractIterator<TxnOperation.Request<?>> {
+
+        private final File file;
+        private final ByteBuf buffer;
+
+        public SegmentIterator(File file, ByteBuf buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        @Override
+        protected TxnOperation.Request<?> computeNext() {
+            if (buffer.readableBytes() < 12) {
+                return endOfData();
+            }
+            int length = buffer.readInt();
+            if (length <= 0) {
+                return endOfData();
+            }
+            long checksum = buffer.readLong();
+            if ((buffer.readableBytes() < length) || (checksum(buffer, buffer.readerIndex(), length) != checksum)) {
+                LogManager.getLogger(FileTxnLog.class).warn("Truncated entry at {} in {}", buffer.readerIndex(), file);
+                return endOfData();
+            }
+            try {
+                return decode(buffer.readSlice(length));
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    protected static final class LogIterator extends AbstractIterator<TxnOperation.Request<?>> {
+
+        private final long zxid;
+        private final Iterator<File> files;
+        private Iterator<TxnOperation.Request<?>> txns;
+
+        public LogIterator(long zxid, Iterator<File> files) {
+            this.zxid = zxid;
+            this.files = files;
+            this.txns = ImmutableSet.<TxnOperation.Request<?>>of().iterator();
+        }
+
+        @Override
+        protected TxnOperation.Request<?> computeNext() {
+            while (true) {
+                while (txns.hasNext()) {
+                    TxnOperation.Request<?> next = txns.next();
+                    if (next.zxid() > zxid) {
+                        return next;
+                    }
+                }
+                if (! files.hasNext()) {
+                    return endOfData();
+                }
+                try {
+                    txns = read(files.next());
+                } catch (IOException e) {
+                    throw Throwables.propagate(e);
+                }
+            }
+        }
+    }
+
+    protected final File dir;
+    protected final SyncPolicy policy;
+    protected final long segmentSize;
+    protected final ScheduledExecutorService scheduler;
+    protected final AtomicInteger pending;
+    protected final ListenableFuture<Void> synced;
+    // entries applied since the last write
+    protected final List<Entry> group;
+    protected volatile long lastZxid;
+    protected volatile IOException failure;
+    protected Segment segment;
+    protected boolean dirty;
+    protected long lastSync;
+    protected ScheduledFuture<?> scheduledFlush;
+
+    protected FileTxnLog(
+            File dir,
+            SyncPolicy policy,
+            long segmentSize,
+            long lastZxid,
+            Executor executor,
+            ScheduledExecutorService scheduler,
+            Queue<Entry> mailbox,
+            Logger logger) {
+        super(executor, mailbox, logger);
+        this.dir = dir;
+        this.policy = policy;
+        this.segmentSize = segmentSize;
+        this.lastZxid = lastZxid;
+        this.scheduler = scheduler;
+        this.pending = new AtomicInteger(0);
+        this.synced = Futures.immediateFuture(null);
+        this.group = Lists.newArrayList();
+        this.failure = null;
+        this.segment = null;
+        this.dirty = false;
+        this.lastSync = System.currentTimeMillis();
+        this.scheduledFlush = null;
+
+        logger.info("{}", this);
+    }
+
+    public File dir() {
+        return dir;
+    }
+
+    public SyncPolicy policy() {
+        return policy;
+    }
+
+    @Override
+    public long lastZxid() {
+        return lastZxid;
+    }
+
+    @Override
+    public void append(TxnOperation.Request<?> txn) {
+        lastZxid = txn.zxid();
+        pending.incrementAndGet();
+        if (! send(Entry.txn(txn))) {
+            pending.decrementAndGet();
+            logger.warn("Dropped {} ({})", txn, this);
+        }
+    }
+
+    @Override
+    public ListenableFuture<Void> sync() {
+        if (failure != null) {
+            return Futures.immediateFailedFuture(failure);
+        }
+        if (pending.get() == 0) {
+            return synced;
+        }
+        Promise<Void> promise = SettableFuturePromise.create();
+        pending.incrementAndGet();
+        if (! send(Entry.sync(promise))) {
+            complete(Entry.sync(promise), (failure != null) ? failure : new ClosedChannelException());
+        }
+        return promise;
+    }
+
+    @Override
+    public Iterator<TxnOperation.Request<?>> from(long zxid) throws IOException {
+        ImmutableSortedMap<Long, File> segments = segments(dir);
+        // the segment that would contain the next zxid, and everything after
+        Long first = segments.floorKey(zxid + 1L);
+        if (first != null) {
+            segments = segments.tailMap(first, true);
+        }
+        return new LogIterator(zxid, segments.values().iterator());
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (state() != State.TERMINATED) {
+                flush();
+                stop();
+            }
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (segment != null) {
+                Segment segment = this.segment;
+                this.segment = null;
+                segment.close();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("dir", dir)
+                .add("policy", policy)
+                .add("lastZxid", String.format("0x%s", Long.toHexString(lastZxid)))
+                .toString();
+    }
+
+    @Override
+    protected synchronized void doRun() throws Exception {
+        flush();
+    }
+
+    /**
+     * Applies everything in the mailbox, then writes and syncs it as one group.
+     */
+    protected void flush() {
+        Entry next;
+        while ((next = next()) != null) {
+            apply(next);
+        }
+        if (group.isEmpty()) {
+            return;
+        }
+        IOException error = null;
+        try {
+            write(group);
+        } catch (IOException e) {
+            logger.error("Failed to write {} entries ({})", group.size(), this, e);
+            error = e;
+            failure = e;
+        }
+        for (Entry e: group) {
+            complete(e, error);
+        }
+        group.clear();
+        if (error != null) {
+            stop();
+        }
+    }
+
+    /**
+     * Rolls to a new segment before an entry that would cross 
+     * <code>segmentSize</code>, unless the segment is empty,
+     * so a group may span segments.
+     */
+    protected void write(List<Entry> group) throws IOException {
+        ByteBuf buffer = null;
+        boolean force = false;
+        try {
+            for (Entry e: group) {
+                if (e.txn != null) {
+                    if (buffer == null) {
+                        buffer = PooledByteBufAllocator.DEFAULT.directBuffer();
+                    }
+                    int beginIndex = buffer.writerIndex();
+                    buffer.writeInt(0).writeLong(0L);
+                    int bodyIndex = buffer.writerIndex();
+                    encode(e.txn, buffer);
+                    int length = buffer.writerIndex() - bodyIndex;
+                    buffer.setInt(beginIndex, length);
+                    buffer.setLong(beginIndex + 4, checksum(buffer, bodyIndex, length));
+                    if (segment != null) {
+                        long position = segment.position() + (beginIndex - buffer.readerIndex());
+                        if ((position > HEADER_LENGTH) 
+                                && (position + (buffer.writerIndex() - beginIndex) > segmentSize)) {
+                            segment.write(buffer.readSlice(beginIndex - buffer.readerIndex()));
+                            roll();
+                        }
+                    }
+                    if (segment == null) {
+                        segment = Segment.create(new File(dir, nameOf(e.txn.zxid())), segmentSize);
+                        logger.debug("Opened {} ({})", segment, this);
+                    }
+                } else if (! e.isPending()) {
+                    force = true;
+                }
+            }
+            if (buffer != null) {
+                segment.write(buffer);
+                dirty = true;
+            }
+        } finally {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+        if (dirty) {
+            switch (policy.type()) {
+            case ALWAYS:
+                force();
+                break;
+            case PERIODIC:
+            {
+                long remaining = policy.interval().value(TimeUnit.MILLISECONDS) - (System.currentTimeMillis() - lastSync);
+                if (force || (remaining <= 0L)) {
+                    force();
+                } else if ((scheduledFlush == null) || scheduledFlush.isDone()) {
+                    scheduledFlush = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            send(Entry.flush());
+                        }
+                    }, remaining, TimeUnit.MILLISECONDS);
+                }
+                break;
+            }
+            case NONE:
+                break;
+            }
+        }
+        if ((segment != null) && (segment.position() >= segmentSize)) {
+            roll();
+        }
+    }
+
+    /**
+     * Closing a segment also syncs it.
+     */
+    protected void roll() throws IOException {
+        Segment segment = this.segment;
+        this.segment = null;
+        dirty = false;
+        segment.close();
+        logger.debug("Closed {} ({})", segment, this);
+    }
+
+    protected void force() throws IOException {
+        segment.force();
+        dirty = false;
+        lastSync = System.currentTimeMillis();
+    }
+
+    protected void complete(Entry entry, Throwable error) {
+        if (! entry.isPending()) {
+            return;
+        }
+        if (entry.promise != null) {
+            if (error == null) {
+                entry.promise.set(null);
+            } else {
+                entry.promise.setException(error);
+            }
+        }
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Adds to the group written by the next flush.
+     */
+    @Override
+    protected boolean apply(Entry input) {
+        group.add(input);
+        return true;
+    }
+
+    @Override
+    protected void doStop() {
+        Throwable error = (failure != null) ? failure : new ClosedChannelException();
+        Entry next;
+        while ((next = mailbox.poll()) != null) {
+            complete(next, error);
+        }
+    }
+}
@@ -13,11 +13,15 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import com.google.common.base.CaseFormat;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Iterators;
 
 import edu.uw.zookeeper.common.ParameterizedFactory;
 import edu.uw.zookeeper.common.Processor;
+import edu.uw.zookeeper.data.CopyOnWriteZNodeTrie;
+import edu.uw.zookeeper.data.NameTrie;
+import edu.uw.zookeeper.data.ZNodeNode;
 import edu.uw.zookeeper.protocol.FourLetterRequest;
 import edu.uw.zookeeper.protocol.FourLetterWord;
 import edu.uw.zookeeper.protocol.FourLetterResponse;
@@ -277,20 +281,62 @@ public abstract class FourLetterCommands {
         }
     }
     
+    /**
+     * Reads the totals that the root of the tree keeps,
+     * from the published view of a copy-on-write tree without locking.
+     */
+    public static abstract class DataCommand implements Processor<FourLetterRequest, FourLetterResponse> {
+
+        protected final ReentrantReadWriteLock lock;
+        protected final NameTrie<ZNodeNode> data;
+        
+        protected DataCommand(
+                ReentrantReadWriteLock lock,
+                NameTrie<ZNodeNode> data) {
+            this.lock = lock;
+            this.data = data;
+        }
+        
+        @Override
+        public FourLetterResponse apply(FourLetterRequest input) {
+            if (data instanceof CopyOnWriteZNodeTrie) {
+                return FourLetterResponse.fromString(apply(((CopyOnWriteZNodeTrie) data).published().root()));
+            }
+            lock.readLock().lock();
+            try {
+                return FourLetterResponse.fromString(apply(data.root()));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        protected abstract String apply(ZNodeNode root);
+    }
+    
     @FourLetterCommand(FourLetterWord.SRVR)
-    public static class SrvrCommand implements Processor<FourLetterRequest, FourLetterResponse> {
+    public static class SrvrCommand extends DataCommand {
 
         public static final String FORMAT = "Zookeeper version: %s%n%s%s%sNode count: %d%n";
         
         public static final String READ_ONLY = "READ-ONLY mode; serving only read-only clients";
         
         public static final String STAT_FORMAT = "Clients:%n%s%n";
+
+        public SrvrCommand(
+                SimpleServer.Builder<?> server) {
+            this(server.getLock(), server.getData());
+        }
+        
+        public SrvrCommand(
+                ReentrantReadWriteLock lock,
+                NameTrie<ZNodeNode> data) {
+            super(lock, data);
+        }
         
         @Override
-        public FourLetterResponse apply(FourLetterRequest input) {
-            return FourLetterResponse.fromString(
-                    String.format(
-                            FORMAT, ZOOKEEPER_VERSION, "", "", "", 0));
+        protected String apply(ZNodeNode root) {
+            return String.format(
+                    FORMAT, ZOOKEEPER_VERSION, "", "", "", root.numDescendants() + 1);
         }
     }
 
@@ -298,13 +344,23 @@ public abstract class FourLetterCommands {
     public static class StatCommand extends SrvrCommand {
 
         public static final String STAT_FORMAT = "Clients:%n%s%n";
+
+        public StatCommand(
+                SimpleServer.Builder<?> server) {
+            super(server);
+        }
+        
+        public StatCommand(
+                ReentrantReadWriteLock lock,
+                NameTrie<ZNodeNode> data) {
+            super(lock, data);
+        }
         
         @Override
-        public FourLetterResponse apply(FourLetterRequest input) {
-            return FourLetterResponse.fromString(
-                    String.format(
-                            FORMAT, ZOOKEEPER_VERSION, "",
-                            String.format(STAT_FORMAT, ""), "", 0));
+        protected String apply(ZNodeNode root) {
+            return String.format(
+                    FORMAT, ZOOKEEPER_VERSION, "",
+                    String.format(STAT_FORMAT, ""), "", root.numDescendants() + 1);
         }
     }
 
@@ -404,23 +460,41 @@ public abstract class FourLetterCommands {
         
         @Override
         protected String apply() {
+            ImmutableSetMultimap<String, Long> byPath = dataWatches.byPath();
             return FourLetterWords.Wchs.toString(
-                    new Wchs(dataWatches.bySession().keySet().size(), 
-                            dataWatches.byPath().keySet().size(), 
-                            dataWatches.bySession().size()));
+                    new Wchs(byPath.inverse().keySet().size(), 
+                            byPath.keySet().size(), 
+                            byPath.size()));
         }
     }
 
     @FourLetterCommand(FourLetterWord.MNTR)
-    public static class MntrCommand implements Processor<FourLetterRequest, FourLetterResponse> {
+    public static class MntrCommand extends DataCommand {
+
+        public MntrCommand(
+                SimpleServer.Builder<?> server) {
+            this(server.getLock(), server.getData());
+        }
+        
+        public MntrCommand(
+                ReentrantReadWriteLock lock,
+                NameTrie<ZNodeNode> data) {
+            super(lock, data);
+        }
         
         @Override
-        public FourLetterResponse apply(FourLetterRequest input) {
+        protected String apply(ZNodeNode root) {
+            Map<FourLetterWords.Mntr.MntrKey, String> counts = ImmutableMap.of(
+                    FourLetterWords.Mntr.MntrKey.ZK_ZNODE_COUNT, String.valueOf(root.numDescendants() + 1),
+                    FourLetterWords.Mntr.MntrKey.ZK_EPHEMERALS_COUNT, String.valueOf(root.subtreeEphemerals()),
+                    FourLetterWords.Mntr.MntrKey.ZK_APPROXIMATE_DATA_SIZE, String.valueOf(root.subtreeDataLength()));
             ImmutableSortedMap.Builder<FourLetterWords.Mntr.MntrKey, String> properties = ImmutableSortedMap.naturalOrder();
             for (FourLetterWords.Mntr.MntrKey k: FourLetterWords.Mntr.MntrKey.values()) {
                 Class<?> type = k.type();
                 String v;
-                if (type == String.class) {
+                if (counts.containsKey(k)) {
+                    v = counts.get(k);
+                } else if (type == String.class) {
                     v = "";
                 } else if (type == Integer.class) {
                     v = String.valueOf(0);
@@ -438,7 +512,7 @@ public abstract class FourLetterCommands {
             if (! values.isEmpty()) {
                 builder.append('\n');
             }
-            return FourLetterResponse.fromString(builder.toString());
+            return builder.toString();
         }
     }
 
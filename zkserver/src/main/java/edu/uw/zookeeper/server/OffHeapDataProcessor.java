@@ -0,0 +1,68 @@
+package edu.uw.zookeeper.server;
+
+import org.apache.zookeeper.KeeperException;
+
+import edu.uw.zookeeper.common.Processors;
+import edu.uw.zookeeper.common.Processors.ForwardingProcessor;
+import edu.uw.zookeeper.data.NameTrie;
+import edu.uw.zookeeper.data.OffHeapPayloads;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Moves the data written by a create or set data off heap,
+ * unless it was decoded off heap.
+ */
+public class OffHeapDataProcessor extends ForwardingProcessor<TxnOperation.Request<?>, Records.Response> implements Processors.CheckedProcessor<TxnOperation.Request<?>, Records.Response, KeeperException> {
+
+    public static OffHeapDataProcessor create(
+            OffHeapPayloads payloads,
+            int minLength,
+            NameTrie<ZNodeNode> data,
+            Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException> delegate) {
+        return new OffHeapDataProcessor(payloads, minLength, data, delegate);
+    }
+
+    protected final OffHeapPayloads payloads;
+    protected final int minLength;
+    protected final NameTrie<ZNodeNode> data;
+    protected final Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException> delegate;
+
+    public OffHeapDataProcessor(
+            OffHeapPayloads payloads,
+            int minLength,
+            NameTrie<ZNodeNode> data,
+            Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException> delegate) {
+        this.payloads = payloads;
+        this.minLength = minLength;
+        this.data = data;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Records.Response apply(TxnOperation.Request<?> input) throws KeeperException {
+        Records.Response response = delegate().apply(input);
+        Records.DataGetter record = (Records.DataGetter) input.record();
+        // a payload decoded as a slice is already off heap
+        if ((ZNodeNode.AbstractProcessor.getPayload(record) != null)
+                || (ZNodeNode.AbstractProcessor.getDataLength(record) < minLength)) {
+            return response;
+        }
+        // sequential nodes are named by the response
+        String path = (input.record().opcode() == OpCode.SET_DATA) ?
+                ((Records.PathGetter) input.record()).getPath() :
+                    ((Records.PathGetter) response).getPath();
+        ZNodeNode node = data.get(path);
+        if (node != null) {
+            node.state().storeOffHeap(payloads, minLength);
+        }
+        return response;
+    }
+
+    @Override
+    protected Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException> delegate() {
+        return delegate;
+    }
+}
@@ -0,0 +1,66 @@
+package edu.uw.zookeeper.server;
+
+import org.apache.zookeeper.KeeperException;
+
+import edu.uw.zookeeper.common.Processors;
+import edu.uw.zookeeper.data.PreparedRequest;
+import edu.uw.zookeeper.data.ZNodePath;
+import edu.uw.zookeeper.protocol.Message;
+import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+import edu.uw.zookeeper.protocol.SessionOperation;
+import edu.uw.zookeeper.protocol.ZxidReference;
+import edu.uw.zookeeper.protocol.proto.IErrorResponse;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Validates write requests before they are applied,
+ * so that malformed requests are rejected without taking the write lock
+ * or consuming a zxid, and so that the path is not parsed again
+ * under the write lock.
+ *
+ * Threadsafe.
+ */
+public class PrepRequestProcessor implements Processors.CheckedProcessor<SessionOperation.Request<?>, SessionOperation.Request<?>, KeeperException> {
+
+    public static PrepRequestProcessor create(ZxidReference zxids) {
+        return new PrepRequestProcessor(zxids);
+    }
+
+    protected final ZxidReference zxids;
+
+    protected PrepRequestProcessor(ZxidReference zxids) {
+        this.zxids = zxids;
+    }
+
+    /**
+     * Multi operations are validated when they are applied,
+     * since the result of each operation is reported separately.
+     *
+     * @return the request to apply, with its validated path if it has one
+     */
+    @Override
+    public SessionOperation.Request<?> apply(SessionOperation.Request<?> input) throws KeeperException {
+        Records.Request record = input.record();
+        if ((record instanceof Records.PathGetter) && (record.opcode() != OpCode.MULTI)) {
+            String path = ((Records.PathGetter) record).getPath();
+            try {
+                return prepare(input, ZNodePath.validated(path));
+            } catch (IllegalArgumentException e) {
+                throw new KeeperException.BadArgumentsException(path);
+            }
+        }
+        return input;
+    }
+
+    /**
+     * @return response to a request that failed validation
+     */
+    public Message.ServerResponse<?> reject(SessionOperation.Request<?> input, KeeperException error) {
+        return ProtocolResponseMessage.of(input.xid(), zxids.get(), new IErrorResponse(error.code()));
+    }
+
+    protected static <T extends Records.Request> PreparedRequest<T> prepare(SessionOperation.Request<T> input, ZNodePath path) {
+        return PreparedRequest.of(input, path);
+    }
+}
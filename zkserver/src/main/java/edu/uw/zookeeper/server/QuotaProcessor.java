@@ -0,0 +1,151 @@
+package edu.uw.zookeeper.server;
+
+import java.util.Iterator;
+
+import org.apache.zookeeper.Quotas;
+
+import com.google.common.base.Objects;
+
+import edu.uw.zookeeper.common.Processors;
+import edu.uw.zookeeper.common.Processors.ForwardingProcessor;
+import edu.uw.zookeeper.data.AbstractNameTrie;
+import edu.uw.zookeeper.data.NameTrie;
+import edu.uw.zookeeper.data.Quota;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.proto.IMultiRequest;
+import edu.uw.zookeeper.protocol.proto.IMultiResponse;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Sets the quota of a node from its <code>zookeeper_limits</code> node
+ * whenever either is created, or the limits change or are deleted,
+ * so that the operators enforce quotas without looking them up.
+ * 
+ * Malformed limits are ignored, like ZooKeeper does.
+ */
+public class QuotaProcessor extends ForwardingProcessor<TxnOperation.Request<?>, Records.Response> implements Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> {
+
+    public static QuotaProcessor create(
+            NameTrie<ZNodeNode> data,
+            Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate) {
+        return new QuotaProcessor(data, delegate);
+    }
+    
+    /**
+     * Sets the quotas of a restored tree.
+     * 
+     * @return number of quotas set
+     */
+    public static int restore(NameTrie<ZNodeNode> data) {
+        ZNodeNode quotas = ZNodeNode.find(data.root(), Quotas.quotaZookeeper);
+        if (quotas == null) {
+            return 0;
+        }
+        int count = 0;
+        Iterator<ZNodeNode> nodes = AbstractNameTrie.preOrder(quotas);
+        while (nodes.hasNext()) {
+            String path = Quota.limitedBy(nodes.next().path().toString());
+            if ((path != null) && (update(data, path) != null)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Looks up nodes without copying them, and only copies the limited node
+     * if its quota changes, so that the write is made to the current tree
+     * before it is published.
+     * 
+     * @param path limited path
+     * @return quota of <code>path</code>, or null
+     */
+    protected static Quota update(NameTrie<ZNodeNode> data, String path) {
+        ZNodeNode node = ZNodeNode.find(data.root(), path);
+        if (node == null) {
+            return null;
+        }
+        Quota quota = null;
+        ZNodeNode limits = ZNodeNode.find(data.root(), Quota.limitsOf(path));
+        if (limits != null) {
+            try {
+                quota = Quota.fromBytes(limits.state().getData().getData());
+            } catch (IllegalArgumentException e) {
+                quota = null;
+            }
+            if ((quota != null) && quota.isUnlimited()) {
+                quota = null;
+            }
+        }
+        if (! Objects.equal(quota, node.state().getQuota())) {
+            data.get(path).state().setQuota(quota);
+        }
+        return quota;
+    }
+
+    protected final NameTrie<ZNodeNode> data;
+    protected final Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate;
+
+    public QuotaProcessor(
+            NameTrie<ZNodeNode> data,
+            Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate) {
+        this.data = data;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Records.Response apply(TxnOperation.Request<?> input) {
+        Records.Response response = delegate().apply(input);
+        apply(input.record(), response);
+        return response;
+    }
+
+    protected void apply(Records.Request request, Records.Response response) {
+        if (response instanceof Operation.Error) {
+            return;
+        }
+        switch (response.opcode()) {
+        case CREATE:
+        case CREATE2:
+        case CREATE_TTL:
+        {
+            String path = ((Records.PathGetter) response).getPath();
+            String limited = Quota.limitedBy(path);
+            if (limited != null) {
+                update(data, limited);
+            } else if (ZNodeNode.find(data.root(), Quota.limitsOf(path)) != null) {
+                // limits that outlived an earlier node at this path
+                update(data, path);
+            }
+            break;
+        }
+        case SET_DATA:
+        case DELETE:
+        {
+            String limited = Quota.limitedBy(((Records.PathGetter) request).getPath());
+            if (limited != null) {
+                update(data, limited);
+            }
+            break;
+        }
+        case MULTI:
+        {
+            Iterator<Records.MultiOpRequest> requests = ((IMultiRequest) request).iterator();
+            Iterator<Records.MultiOpResponse> responses = ((IMultiResponse) response).iterator();
+            while (requests.hasNext()) {
+                apply(requests.next(), responses.next());
+            }
+            break;
+        }
+        default:
+            break;
+        }
+    }
+
+    @Override
+    protected Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate() {
+        return delegate;
+    }
+}
@@ -0,0 +1,147 @@
+package edu.uw.zookeeper.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.MoreObjects;
+
+import edu.uw.zookeeper.common.Actors;
+import edu.uw.zookeeper.common.ConcurrentLongHashMap;
+
+/**
+ * Delivers notifications and responses on a fixed number of lanes,
+ * each a serial executor over a shared pool,
+ * where each session is assigned to one lane.
+ *
+ * A session sees its notifications and responses in the order they were dispatched,
+ * while a notification of many sessions is delivered by the lanes concurrently.
+ * The sessions of a notification are partitioned by lane once when it is dispatched,
+ * so that each lane walks only its own sessions.
+ *
+ * Threadsafe, but tasks must be dispatched by one thread to keep their order.
+ */
+public final class SessionDispatcher {
+
+    public static SessionDispatcher create(int lanes, Executor executor) {
+        checkArgument(lanes > 0);
+        Actors.ActorExecutor[] executors = new Actors.ActorExecutor[lanes];
+        for (int i=0; i<lanes; ++i) {
+            executors[i] = Actors.ActorExecutor.newInstance(executor);
+        }
+        return new SessionDispatcher(executors);
+    }
+
+    private final Actors.ActorExecutor[] lanes;
+
+    protected SessionDispatcher(Actors.ActorExecutor[] lanes) {
+        this.lanes = lanes;
+    }
+
+    public int lanes() {
+        return lanes.length;
+    }
+
+    public int laneOf(long session) {
+        return (ConcurrentLongHashMap.hash(session) & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    public Executor executorOf(long session) {
+        return lanes[laneOf(session)];
+    }
+
+    /**
+     * @param done if not null, run once every session has been notified
+     */
+    public void dispatch(DeferredNotifications.Notification notification, Runnable done) {
+        if (lanes.length == 1) {
+            lanes[0].execute(new Deliver(notification, null, done, null));
+            return;
+        }
+        Collection<Long> sessions = notification.sessions();
+        int[] laneOfSession = new int[sessions.size()];
+        int[] counts = new int[lanes.length];
+        int i = 0;
+        for (Long session: sessions) {
+            int lane = laneOf(session.longValue());
+            laneOfSession[i++] = lane;
+            ++counts[lane];
+        }
+        Long[][] partitions = new Long[lanes.length][];
+        int count = 0;
+        for (int lane=0; lane<lanes.length; ++lane) {
+            if (counts[lane] > 0) {
+                partitions[lane] = new Long[counts[lane]];
+                counts[lane] = 0;
+                ++count;
+            }
+        }
+        if (count == 0) {
+            if (done != null) {
+                done.run();
+            }
+            return;
+        }
+        i = 0;
+        for (Long session: sessions) {
+            int lane = laneOfSession[i++];
+            partitions[lane][counts[lane]++] = session;
+        }
+        AtomicInteger remaining = new AtomicInteger(count);
+        for (int lane=0; lane<lanes.length; ++lane) {
+            if (partitions[lane] != null) {
+                lanes[lane].execute(new Deliver(notification, partitions[lane], done, remaining));
+            }
+        }
+    }
+
+    /**
+     * Delivers what was already dispatched.
+     */
+    public void stop() {
+        for (Actors.ActorExecutor lane: lanes) {
+            lane.stop();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("lanes", lanes.length).toString();
+    }
+
+    protected final class Deliver implements Runnable {
+
+        private final DeferredNotifications.Notification notification;
+        // null for every session
+        private final Long[] sessions;
+        private final Runnable done;
+        private final AtomicInteger remaining;
+
+        public Deliver(
+                DeferredNotifications.Notification notification,
+                Long[] sessions,
+                Runnable done,
+                AtomicInteger remaining) {
+            this.notification = notification;
+            this.sessions = sessions;
+            this.done = done;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public void run() {
+            if (sessions == null) {
+                notification.run();
+            } else {
+                for (Long session: sessions) {
+                    notification.deliver(session);
+                }
+            }
+            if ((done != null) && ((remaining == null) || (remaining.decrementAndGet() == 0))) {
+                done.run();
+            }
+        }
+    }
+}
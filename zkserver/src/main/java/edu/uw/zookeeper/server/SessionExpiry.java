@@ -0,0 +1,269 @@
+package edu.uw.zookeeper.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.Lists;
+
+import edu.uw.zookeeper.ConfigurableTimeout;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
+import edu.uw.zookeeper.common.TimeValue;
+
+/**
+ * Expires sessions on a hashed timing wheel shared by the server,
+ * rather than scheduling a task per session.
+ *
+ * Deadlines are rounded up to the next tick,
+ * so touching a session more than once per tick only compares deadlines,
+ * and otherwise moves its entry between two slots without allocating.
+ * A single periodic task expires the entries in a slot as its tick passes.
+ *
+ * Threadsafe.
+ */
+public final class SessionExpiry {
+
+    public static SessionExpiry fromConfiguration(ScheduledExecutorService scheduler, Configuration configuration) {
+        return create(ConfigurableExpiryTick.get(configuration), DEFAULT_SLOTS, scheduler);
+    }
+
+    /**
+     * @param slots rounded up to a power of two
+     */
+    public static SessionExpiry create(TimeValue tick, int slots, ScheduledExecutorService scheduler) {
+        long millis = tick.value(TimeUnit.MILLISECONDS);
+        checkArgument(millis > 0L, String.valueOf(tick));
+        checkArgument(slots > 0, String.valueOf(slots));
+        return new SessionExpiry(millis, Integer.highestOneBit((slots << 1) - 1), scheduler);
+    }
+
+    @Configurable(path="sessions", arg="expiryTick", value="100 milliseconds", help="time")
+    public static class ConfigurableExpiryTick extends ConfigurableTimeout {
+
+        public static TimeValue get(Configuration configuration) {
+            return new ConfigurableExpiryTick().apply(configuration);
+        }
+    }
+
+    // about a minute of 100 ms ticks, so most deadlines are within one turn
+    public static final int DEFAULT_SLOTS = 512;
+
+    private final Logger logger;
+    private final long tick;
+    private final Slot[] wheel;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean started;
+    // only accessed by the ticker
+    private long lastTick;
+
+    protected SessionExpiry(long tick, int slots, ScheduledExecutorService scheduler) {
+        this.logger = LogManager.getLogger(this);
+        this.tick = tick;
+        this.scheduler = checkNotNull(scheduler);
+        this.started = new AtomicBoolean(false);
+        this.wheel = new Slot[slots];
+        for (int i=0; i<slots; ++i) {
+            wheel[i] = new Slot();
+        }
+        this.lastTick = 0L;
+    }
+
+    /**
+     * @param timeOut in milliseconds, where a non-positive timeout never expires
+     * @param expired called from the scheduler once the entry expires
+     */
+    public Entry register(long timeOut, Runnable expired) {
+        Entry entry = new Entry(timeOut, checkNotNull(expired));
+        if (timeOut > 0L) {
+            if (started.compareAndSet(false, true)) {
+                lastTick = now() / tick;
+                scheduler.scheduleAtFixedRate(new Ticker(), tick, tick, TimeUnit.MILLISECONDS);
+            }
+            entry.touch();
+        }
+        return entry;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("tick", tick).add("slots", wheel.length).toString();
+    }
+
+    protected static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    protected Slot slotOf(long deadline) {
+        return wheel[(int) (deadline & (wheel.length - 1))];
+    }
+
+    public final class Entry {
+
+        private final long timeOut;
+        private final Runnable expired;
+        // in ticks
+        private volatile long deadline;
+        // guarded by the slot
+        private volatile Slot slot;
+        private Entry previous;
+        private Entry next;
+        private volatile boolean done;
+
+        protected Entry(long timeOut, Runnable expired) {
+            this.timeOut = timeOut;
+            this.expired = expired;
+            this.deadline = 0L;
+            this.slot = null;
+            this.previous = null;
+            this.next = null;
+            this.done = false;
+        }
+
+        public long getTimeOut() {
+            return timeOut;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Postpones expiry by the timeout.
+         */
+        public void touch() {
+            if (timeOut <= 0L) {
+                return;
+            }
+            long deadline = (now() + timeOut + tick - 1L) / tick;
+            if (deadline == this.deadline) {
+                return;
+            }
+            synchronized (this) {
+                if (done || (deadline == this.deadline)) {
+                    return;
+                }
+                if (! unlink()) {
+                    return;
+                }
+                Slot to = slotOf(deadline);
+                synchronized (to) {
+                    this.deadline = deadline;
+                    to.link(this);
+                }
+            }
+        }
+
+        /**
+         * Stops the entry from expiring.
+         */
+        public void cancel() {
+            synchronized (this) {
+                if (! done) {
+                    done = true;
+                    unlink();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("timeOut", timeOut).add("deadline", deadline * tick).add("done", done).toString();
+        }
+
+        // false if expired concurrently
+        private boolean unlink() {
+            Slot from = slot;
+            if (from != null) {
+                synchronized (from) {
+                    if (slot != from) {
+                        return false;
+                    }
+                    from.unlink(this);
+                }
+            } else if (deadline != 0L) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    protected static final class Slot {
+
+        private Entry first = null;
+
+        protected void link(Entry entry) {
+            entry.slot = this;
+            entry.previous = null;
+            entry.next = first;
+            if (first != null) {
+                first.previous = entry;
+            }
+            first = entry;
+        }
+
+        protected void unlink(Entry entry) {
+            if (entry.previous == null) {
+                first = entry.next;
+            } else {
+                entry.previous.next = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.previous = entry.previous;
+            }
+            entry.previous = null;
+            entry.next = null;
+            entry.slot = null;
+        }
+    }
+
+    protected final class Ticker implements Runnable {
+
+        @Override
+        public void run() {
+            long now = now() / tick;
+            // each slot only needs to be visited once to catch up
+            if (now - lastTick > wheel.length) {
+                lastTick = now - wheel.length;
+            }
+            List<Entry> expired = null;
+            while (lastTick < now) {
+                ++lastTick;
+                Slot slot = slotOf(lastTick);
+                synchronized (slot) {
+                    Entry next = slot.first;
+                    while (next != null) {
+                        Entry entry = next;
+                        next = entry.next;
+                        if (entry.deadline <= lastTick) {
+                            slot.unlink(entry);
+                            entry.done = true;
+                            if (expired == null) {
+                                expired = Lists.newArrayList();
+                            }
+                            expired.add(entry);
+                        }
+                    }
+                }
+            }
+            if (expired != null) {
+                logger.debug("Expired {} sessions", expired.size());
+                for (Entry entry: expired) {
+                    try {
+                        entry.expired.run();
+                    } catch (RuntimeException e) {
+                        logger.warn("Error expiring {}", entry, e);
+                    }
+                }
+            }
+        }
+    }
+}
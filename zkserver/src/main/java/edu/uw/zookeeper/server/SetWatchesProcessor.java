@@ -0,0 +1,118 @@
+package edu.uw.zookeeper.server;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.zookeeper.KeeperException;
+
+import com.google.common.collect.Lists;
+
+import edu.uw.zookeeper.common.Processors;
+import edu.uw.zookeeper.common.Reference;
+import edu.uw.zookeeper.data.NameTrie;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.data.ZNodePath;
+import edu.uw.zookeeper.protocol.proto.ISetWatchesRequest;
+import edu.uw.zookeeper.protocol.proto.ISetWatchesResponse;
+import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Restores the watches of a reconnecting session,
+ * so that the client doesn't have to read every watched node again.
+ *
+ * Each node is compared to the last zxid that the client saw.
+ * The session is notified immediately of nodes that changed since then,
+ * and the remaining watches are set in one pass per type.
+ * Must be applied by the server thread, so that no write is applied
+ * between comparing the nodes and setting the watches.
+ */
+public class SetWatchesProcessor implements Processors.CheckedProcessor<TxnOperation.Request<?>, ISetWatchesResponse, KeeperException>, Reference<NameTrie<ZNodeNode>> {
+
+    public static SetWatchesProcessor create(
+            NameTrie<ZNodeNode> trie,
+            Watches dataWatches,
+            Watches childWatches) {
+        return new SetWatchesProcessor(trie, dataWatches, childWatches);
+    }
+
+    protected final NameTrie<ZNodeNode> trie;
+    protected final Watches dataWatches;
+    protected final Watches childWatches;
+
+    protected SetWatchesProcessor(
+            NameTrie<ZNodeNode> trie,
+            Watches dataWatches,
+            Watches childWatches) {
+        this.trie = trie;
+        this.dataWatches = dataWatches;
+        this.childWatches = childWatches;
+    }
+
+    @Override
+    public NameTrie<ZNodeNode> get() {
+        return trie;
+    }
+
+    @Override
+    public ISetWatchesResponse apply(TxnOperation.Request<?> input) throws KeeperException {
+        ISetWatchesRequest record = (ISetWatchesRequest) input.record();
+        long zxid = record.getRelativeZxid();
+        List<String> data = Lists.newArrayListWithCapacity(record.getDataWatches().size() + record.getExistWatches().size());
+        List<String> children = Lists.newArrayListWithCapacity(record.getChildWatches().size());
+        // events are delivered only once every path is validated
+        List<IWatcherEvent> events = Lists.newArrayList();
+        for (String path: record.getDataWatches()) {
+            ZNodeNode node = getNode(path);
+            if (node == null) {
+                events.add(WatcherEventProcessor.deleted(path));
+            } else if (node.state().getMzxid() > zxid) {
+                events.add(WatcherEventProcessor.data(path));
+            } else {
+                data.add(path);
+            }
+        }
+        for (String path: record.getExistWatches()) {
+            if (getNode(path) != null) {
+                events.add(WatcherEventProcessor.created(path));
+            } else {
+                data.add(path);
+            }
+        }
+        for (String path: record.getChildWatches()) {
+            ZNodeNode node = getNode(path);
+            if (node == null) {
+                events.add(WatcherEventProcessor.deleted(path));
+            } else if (node.state().getPzxid() > zxid) {
+                events.add(WatcherEventProcessor.children(path));
+            } else {
+                children.add(path);
+            }
+        }
+
+        List<Long> session = Collections.singletonList(Long.valueOf(input.getSessionId()));
+        for (IWatcherEvent event: events) {
+            dataWatches.deliver(event, session);
+        }
+        if (! data.isEmpty()) {
+            dataWatches.putAll(input.getSessionId(), data);
+        }
+        if (! children.isEmpty()) {
+            childWatches.putAll(input.getSessionId(), children);
+        }
+        return Records.newInstance(ISetWatchesResponse.class);
+    }
+
+    /**
+     * Looks up without copying, since restoring watches only reads the node.
+     */
+    protected ZNodeNode getNode(String path) throws KeeperException.BadArgumentsException {
+        try {
+            ZNodePath.validate(path);
+        } catch (IllegalArgumentException e) {
+            throw new KeeperException.BadArgumentsException(path);
+        }
+        return ZNodeNode.find(trie.root(), path);
+    }
+}
@@ -41,7 +41,7 @@ public class SimpleConnectExecutor<T extends AbstractSessionExecutor> implements
         if (request instanceof ConnectMessage.Request.RenewRequest) {
             T executor = executors.get(Long.valueOf(request.getSessionId()));
             if (executor != null) {
-                executor.timer().send(request);
+                executor.expiry().touch();
             }
         }
         ConnectMessage.Response response;
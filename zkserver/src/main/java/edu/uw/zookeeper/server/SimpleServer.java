@@ -1,50 +1,174 @@
 package edu.uw.zookeeper.server;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
 
+import com.typesafe.config.ConfigValueType;
+
 import com.google.common.base.Function;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 import edu.uw.zookeeper.ZooKeeperApplication;
+import edu.uw.zookeeper.common.Actors;
 import edu.uw.zookeeper.common.Actors.ExecutedQueuedActor;
+import edu.uw.zookeeper.common.ConcurrentLongHashMap;
+import edu.uw.zookeeper.common.Configurable;
+import edu.uw.zookeeper.common.Configuration;
 import edu.uw.zookeeper.common.Processor;
 import edu.uw.zookeeper.common.Processors;
 import edu.uw.zookeeper.common.PromiseTask;
 import edu.uw.zookeeper.common.RuntimeModule;
 import edu.uw.zookeeper.common.TaskExecutor;
+import edu.uw.zookeeper.data.CopyOnWriteZNodeTrie;
+import edu.uw.zookeeper.data.IndexedZNodeTrie;
 import edu.uw.zookeeper.data.NameTrie;
+import edu.uw.zookeeper.data.OffHeapPayloads;
 import edu.uw.zookeeper.data.ZNodeNode;
-import edu.uw.zookeeper.data.SimpleLabelTrie;
 import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.TxnRequest;
 import edu.uw.zookeeper.protocol.Message;
 import edu.uw.zookeeper.protocol.NotificationListener;
 import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.ProtocolRequestMessage;
+import edu.uw.zookeeper.protocol.Session;
 import edu.uw.zookeeper.protocol.SessionOperation;
+import edu.uw.zookeeper.protocol.SessionRequest;
 import edu.uw.zookeeper.protocol.proto.IDisconnectResponse;
 import edu.uw.zookeeper.protocol.proto.IPingResponse;
 import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
 import edu.uw.zookeeper.protocol.proto.OpCode;
 import edu.uw.zookeeper.protocol.proto.Records;
+import edu.uw.zookeeper.protocol.proto.Stats;
 import edu.uw.zookeeper.protocol.server.AssignZxidProcessor;
 import edu.uw.zookeeper.protocol.server.ZxidEpochIncrementer;
 import edu.uw.zookeeper.protocol.server.ZxidGenerator;
 
 public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>>> implements TaskExecutor<SessionOperation.Request<?>, Message.ServerResponse<?>> {
     
+    /**
+     * Requests that don't modify the tree or sessions.
+     */
+    public static final ImmutableSet<OpCode> READS = Sets.immutableEnumSet(
+            OpCode.EXISTS,
+            OpCode.GET_DATA,
+            OpCode.GET_ACL,
+            OpCode.GET_CHILDREN,
+            OpCode.GET_CHILDREN2,
+            OpCode.GET_ALL_CHILDREN_NUMBER);
+    
+    public static boolean isRead(SessionOperation.Request<?> request) {
+        return READS.contains(request.record().opcode());
+    }
+    
+    @Configurable(path="server", key="batchSize", value="64", type=ConfigValueType.NUMBER)
+    public static abstract class ConfigurableBatchSize {
+
+        public static int get(Configuration configuration) {
+            Configurable configurable = ConfigurableBatchSize.class.getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+    
+    @Configurable(path="server", key="maxPendingResponses", value="4096", type=ConfigValueType.NUMBER)
+    public static abstract class ConfigurableMaxPendingResponses {
+
+        public static int get(Configuration configuration) {
+            Configurable configurable = ConfigurableMaxPendingResponses.class.getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+    
+    /**
+     * Number of prepared writes waiting to be applied
+     * beyond which sessions stop preparing more.
+     */
+    @Configurable(path="server", key="maxQueuedRequests", value="4096", type=ConfigValueType.NUMBER)
+    public static abstract class ConfigurableMaxQueuedRequests {
+
+        public static int get(Configuration configuration) {
+            Configurable configurable = ConfigurableMaxQueuedRequests.class.getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+    
+    /**
+     * Number of serial lanes that deliver notifications and responses.
+     */
+    @Configurable(path="server", key="dispatchLanes", value="4", type=ConfigValueType.NUMBER)
+    public static abstract class ConfigurableDispatchLanes {
+
+        public static int get(Configuration configuration) {
+            Configurable configurable = ConfigurableDispatchLanes.class.getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+    
+    /**
+     * Data at least this long is stored off heap, and a negative length disables it.
+     */
+    @Configurable(path="server", key="offHeapDataMinLength", value="-1", type=ConfigValueType.NUMBER)
+    public static abstract class ConfigurableOffHeapDataMinLength {
+
+        public static int get(Configuration configuration) {
+            Configurable configurable = ConfigurableOffHeapDataMinLength.class.getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getInt(configurable.key());
+        }
+    }
+    
+    @Configurable(path="server", key="copyOnWriteData", value="true", type=ConfigValueType.BOOLEAN)
+    public static abstract class ConfigurableCopyOnWrite {
+
+        public static boolean get(Configuration configuration) {
+            Configurable configurable = ConfigurableCopyOnWrite.class.getAnnotation(Configurable.class);
+            return configuration.withConfigurable(configurable)
+                        .getConfigOrEmpty(configurable.path())
+                            .getBoolean(configurable.key());
+        }
+    }
+    
     public static abstract class Builder<C extends Builder<C>> implements ZooKeeperApplication.RuntimeBuilder<SimpleServer, C> {
 
         protected final RuntimeModule runtime;
@@ -52,6 +176,8 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
         protected final NameTrie<ZNodeNode> data;
         protected final SessionManager sessions;
         protected final ReentrantReadWriteLock lock;
+        protected final TxnLog txnLog;
+        protected final Snapshots snapshots;
         protected final Watches dataWatches;
         protected final Watches childWatches;
         protected final Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners;
@@ -61,6 +187,8 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
                 NameTrie<ZNodeNode> data,
                 SessionManager sessions,
                 ReentrantReadWriteLock lock,
+                TxnLog txnLog,
+                Snapshots snapshots,
                 Watches dataWatches,
                 Watches childWatches,
                 Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners,
@@ -73,6 +201,8 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
             this.runtime = runtime;
             this.listeners = listeners;
             this.lock = lock;
+            this.txnLog = txnLog;
+            this.snapshots = snapshots;
         }
         
         @Override
@@ -82,7 +212,7 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
 
         @Override
         public C setRuntimeModule(RuntimeModule runtime) {
-            return newInstance(zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+            return newInstance(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
         }
         
         public ReentrantReadWriteLock getLock() {
@@ -90,7 +220,23 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
         }
         
         public C setLock(ReentrantReadWriteLock lock) {
-            return newInstance(zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+            return newInstance(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
+        }
+        
+        public TxnLog getTxnLog() {
+            return txnLog;
+        }
+        
+        public C setTxnLog(TxnLog txnLog) {
+            return newInstance(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
+        }
+        
+        public Snapshots getSnapshots() {
+            return snapshots;
+        }
+        
+        public C setSnapshots(Snapshots snapshots) {
+            return newInstance(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
         }
         
         public Watches getDataWatches() {
@@ -98,7 +244,7 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
         }
         
         public C setDataWatches(Watches dataWatches) {
-            return newInstance(zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+            return newInstance(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
         }
         
         public Watches getChildWatches() {
@@ -106,7 +252,7 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
         }
         
         public C setChildWatches(Watches childWatches) {
-            return newInstance(zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+            return newInstance(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
         }
         
         public ZxidGenerator getZxids() {
@@ -114,11 +260,12 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
         }
         
         public C setZxids(ZxidGenerator zxids) {
-            return newInstance(zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+            return newInstance(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
         }
         
         public ZxidGenerator getDefaultZxids() {
-            return ZxidEpochIncrementer.fromZero();
+            return ZxidEpochIncrementer.of(new AtomicLong(
+                    Math.max(getTxnLog().lastZxid(), getSnapshots().lastZxid())));
         }
         
         public NameTrie<ZNodeNode> getData() {
@@ -126,11 +273,15 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
         }
 
         public C setData(NameTrie<ZNodeNode> data) {
-            return newInstance(zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+            return newInstance(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
         }
         
         public NameTrie<ZNodeNode> getDefaultData() {
-            return SimpleLabelTrie.forRoot(ZNodeNode.root());
+            if (ConfigurableCopyOnWrite.get(getRuntimeModule().getConfiguration())) {
+                return CopyOnWriteZNodeTrie.forRoot(ZNodeNode.root());
+            } else {
+                return IndexedZNodeTrie.create();
+            }
         }
 
         public SessionManager getSessions() {
@@ -138,7 +289,7 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
         }
 
         public C setSessions(SessionManager sessions) {
-            return newInstance(zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+            return newInstance(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
         }
 
         public Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> getListeners() {
@@ -146,7 +297,7 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
         }
 
         public C setListeners(Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners) {
-            return newInstance(zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+            return newInstance(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
         }
         
         @SuppressWarnings("unchecked")
@@ -156,6 +307,12 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
             if (getLock() == null) {
                 return setLock(getDefaultLock()).setDefaults();
             }
+            if (getTxnLog() == null) {
+                return setTxnLog(getDefaultTxnLog()).setDefaults();
+            }
+            if (getSnapshots() == null) {
+                return setSnapshots(getDefaultSnapshots()).setDefaults();
+            }
             if (getZxids() == null) {
                 return setZxids(getDefaultZxids()).setDefaults();
             }
@@ -166,7 +323,7 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
                 return setSessions(getDefaultSessions()).setDefaults();
             }
             if (getListeners() == null) {
-                return setListeners(getDefaultListeners()).setDefaults();
+                return setListeners(DeferredNotifications.create(getDefaultListeners())).setDefaults();
             }
             if (getDataWatches() == null) {
                 return setDataWatches(getDefaultWatches()).setDefaults();
@@ -187,16 +344,88 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
                 NameTrie<ZNodeNode> data,
                 SessionManager sessions,
                 ReentrantReadWriteLock lock,
+                TxnLog txnLog,
+                Snapshots snapshots,
                 Watches dataWatches,
                 Watches childWatches,
                 Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners,
                 RuntimeModule runtime);
 
         protected SimpleServer doBuild() {
-            return SimpleServer.newInstance(
+            Expiries expiries = Expiries.create();
+            recover(expiries);
+            if (getData() instanceof CopyOnWriteZNodeTrie) {
+                ((CopyOnWriteZNodeTrie) getData()).publish();
+            }
+            SimpleServer server = SimpleServer.newInstance(
                     getLock(),
-                    getDefaultProcessor(), 
+                    getTxnLog(),
+                    getDefaultProcessor(expiries), 
+                    getDefaultReadProcessor(),
+                    getDefaultPrepProcessor(),
+                    ConfigurableMaxQueuedRequests.get(getRuntimeModule().getConfiguration()),
+                    ConfigurableBatchSize.get(getRuntimeModule().getConfiguration()),
+                    ConfigurableMaxPendingResponses.get(getRuntimeModule().getConfiguration()),
+                    ConfigurableDispatchLanes.get(getRuntimeModule().getConfiguration()),
+                    (getListeners() instanceof DeferredNotifications) ? (DeferredNotifications) getListeners() : null,
+                    (getData() instanceof CopyOnWriteZNodeTrie) ? (CopyOnWriteZNodeTrie) getData() : null,
                     getRuntimeModule().getExecutors().get(ExecutorService.class));
+            ExpiryReaper.fromConfiguration(
+                    expiries, 
+                    server, 
+                    getRuntimeModule().getExecutors().get(ScheduledExecutorService.class), 
+                    getRuntimeModule().getConfiguration());
+            return server;
+        }
+        
+        /**
+         * Restores the latest snapshot and replays the log after it,
+         * then closes the sessions that still own ephemeral nodes, 
+         * since no session survives a restart.
+         * 
+         * Containers and TTL nodes are indexed, and quotas are set,
+         * as they are restored and replayed.
+         */
+        protected void recover(Expiries expiries) {
+            EphemeralProcessor processor = getRecoveryProcessor(expiries);
+            int offHeapMinLength = ConfigurableOffHeapDataMinLength.get(getRuntimeModule().getConfiguration());
+            int count = 0;
+            try {
+                long zxid = getSnapshots().restore(getData());
+                QuotaProcessor.restore(getData());
+                for (ZNodeNode node: getData()) {
+                    if (node.state().isEphemeral()) {
+                        processor.add(node.state().getEphemeralOwner(), node.path().toString());
+                    } else if (node.state().getEphemeralOwner() != Stats.CreateStat.ephemeralOwnerNone()) {
+                        expiries.add(node.path().toString(), node);
+                    }
+                    if (offHeapMinLength >= 0) {
+                        node.state().storeOffHeap(OffHeapPayloads.getInstance(), offHeapMinLength);
+                    }
+                }
+                Iterator<TxnOperation.Request<?>> txns = getTxnLog().from(zxid);
+                while (txns.hasNext()) {
+                    processor.apply(txns.next());
+                    ++count;
+                }
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            for (Long session: ImmutableSet.copyOf(processor.bySession.keySet())) {
+                TxnOperation.Request<?> txn = TxnRequest.of(
+                        System.currentTimeMillis(), 
+                        getZxids().next(), 
+                        SessionRequest.of(
+                                session, 
+                                ProtocolRequestMessage.of(
+                                        0, 
+                                        Records.Requests.getInstance().get(OpCode.CLOSE_SESSION))));
+                processor.apply(txn);
+                getTxnLog().append(txn);
+            }
+            if (count > 0) {
+                LogManager.getLogger(SimpleServer.class).info("Recovered {} transactions to zxid 0x{}", count, Long.toHexString(getTxnLog().lastZxid()));
+            }
         }
 
         protected abstract Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> getDefaultListeners();
@@ -207,27 +436,136 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
             return new ReentrantReadWriteLock();
         }
         
+        protected TxnLog getDefaultTxnLog() {
+            try {
+                return FileTxnLog.fromConfiguration(
+                        getRuntimeModule().getConfiguration(), 
+                        getRuntimeModule().getExecutors().get(ExecutorService.class),
+                        getRuntimeModule().getExecutors().get(ScheduledExecutorService.class));
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        
+        protected Snapshots getDefaultSnapshots() {
+            try {
+                return FileSnapshots.fromConfiguration(
+                        getRuntimeModule().getConfiguration(), 
+                        getRuntimeModule().getExecutors().get(ListeningExecutorService.class));
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        
         protected Watches getDefaultWatches() {
             return Watches.create(getListeners());
         }
 
-        protected Processor<SessionOperation.Request<?>, Message.ServerResponse<?>> getDefaultProcessor() {
+        protected Processor<SessionOperation.Request<?>, Message.ServerResponse<?>> getDefaultProcessor(Expiries expiries) {
             Processor<SessionOperation.Request<?>, Message.ServerResponse<?>> processor = 
                     Processors.bridge(
                             ToTxnRequestProcessor.create(
                                     AssignZxidProcessor.newInstance(getZxids())), 
                             ProtocolResponseProcessor.create(
-                                    getDefaultTxnProcessor()));
+                                    getDefaultTxnProcessor(expiries)));
             return processor;
         }
         
-        protected Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> getDefaultTxnProcessor() {
+        protected Map<OpCode, Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException>> getDataProcessors() {
             Map<OpCode, Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException>> processors = Maps.newEnumMap(OpCode.class);
             processors = ZNodeNode.Operators.of(getData(), processors);
+            int offHeapMinLength = ConfigurableOffHeapDataMinLength.get(getRuntimeModule().getConfiguration());
+            if (offHeapMinLength >= 0) {
+                for (OpCode opcode: ImmutableList.of(OpCode.CREATE, OpCode.CREATE2, OpCode.CREATE_TTL, OpCode.SET_DATA)) {
+                    processors.put(opcode, 
+                            OffHeapDataProcessor.create(
+                                    OffHeapPayloads.getInstance(), 
+                                    offHeapMinLength, 
+                                    getData(), 
+                                    processors.get(opcode)));
+                }
+            }
             processors.put(OpCode.MULTI, 
                     ZNodeNode.MultiOperator.of(
                             getData(), 
                             ByOpcodeTxnRequestProcessor.create(ImmutableMap.copyOf(processors))));
+            return processors;
+        }
+        
+        /**
+         * Applies logged transactions without sessions or watches.
+         */
+        protected EphemeralProcessor getRecoveryProcessor(Expiries expiries) {
+            Map<OpCode, Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException>> processors = getDataProcessors();
+            processors.put(OpCode.CLOSE_SESSION, 
+                    new Processors.CheckedProcessor<TxnOperation.Request<?>, IDisconnectResponse, KeeperException>() {
+                        @Override
+                        public IDisconnectResponse apply(
+                                TxnOperation.Request<?> request) {
+                            return Records.newInstance(IDisconnectResponse.class);
+                        }
+            });
+            return EphemeralProcessor.create(
+                    ExpiryProcessor.create(
+                        expiries,
+                        getData(),
+                        QuotaProcessor.create(
+                            getData(),
+                            RequestErrorProcessor.<TxnOperation.Request<?>>create(
+                                    ByOpcodeTxnRequestProcessor.create(
+                                            ImmutableMap.copyOf(processors))))));
+        }
+        
+        /**
+         * Must be safe to call concurrently with the server.
+         * 
+         * Reads of a CopyOnWriteZNodeTrie are applied to its published view without locking,
+         * except for reads that set a watch, which take the read lock so that 
+         * no write is applied between the read and setting the watch.
+         * Otherwise every read takes the read lock.
+         */
+        protected Processor<SessionOperation.Request<?>, Message.ServerResponse<?>> getDefaultReadProcessor() {
+            NameTrie<ZNodeNode> data = getData();
+            Predicate<? super SessionOperation.Request<?>> locked = Predicates.alwaysTrue();
+            if (data instanceof CopyOnWriteZNodeTrie) {
+                data = ((CopyOnWriteZNodeTrie) data).published();
+                locked = new Predicate<SessionOperation.Request<?>>() {
+                    @Override
+                    public boolean apply(SessionOperation.Request<?> input) {
+                        return (input.record() instanceof Records.WatchGetter) 
+                                && ((Records.WatchGetter) input.record()).getWatch();
+                    }
+                };
+            }
+            Map<OpCode, Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException>> processors = Maps.newEnumMap(OpCode.class);
+            for (Map.Entry<OpCode, Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException>> e: ZNodeNode.Operators.of(data).entrySet()) {
+                if (READS.contains(e.getKey())) {
+                    processors.put(e.getKey(), e.getValue());
+                }
+            }
+            return ReadLocked.create(
+                    getLock(),
+                    locked,
+                    Processors.bridge(
+                        ToTxnRequestProcessor.create(
+                                AssignZxidProcessor.newInstance(getZxids())), 
+                        ProtocolResponseProcessor.create(
+                                RequestErrorProcessor.<TxnOperation.Request<?>>create(
+                                        WatcherEventProcessor.create(
+                                                ByOpcodeTxnRequestProcessor.create(
+                                                        ImmutableMap.copyOf(processors)),
+                                                getDataWatches(), getChildWatches())))));
+        }
+        
+        /**
+         * Must be safe to call concurrently with the server.
+         */
+        protected PrepRequestProcessor getDefaultPrepProcessor() {
+            return PrepRequestProcessor.create(getZxids());
+        }
+        
+        protected Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> getDefaultTxnProcessor(Expiries expiries) {
+            Map<OpCode, Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException>> processors = getDataProcessors();
             processors.put(OpCode.CLOSE_SESSION, 
                     new Processors.CheckedProcessor<TxnOperation.Request<?>, IDisconnectResponse, KeeperException>() {
                         @Override
@@ -249,12 +587,27 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
                     return Records.newInstance(IPingResponse.class);
                 }
             });
-            return EphemeralProcessor.create(
-                    RequestErrorProcessor.<TxnOperation.Request<?>>create(
-                            WatcherEventProcessor.create(
-                                            ByOpcodeTxnRequestProcessor.create(
-                                                    ImmutableMap.copyOf(processors)),
-                                            getDataWatches(), getChildWatches())));
+            processors.put(OpCode.SET_WATCHES, 
+                    SetWatchesProcessor.create(getData(), getDataWatches(), getChildWatches()));
+            return SnapshotProcessor.create(
+                    getSnapshots(),
+                    getData(),
+                    FileSnapshots.ConfigurableSnapshotCount.get(getRuntimeModule().getConfiguration()),
+                    TxnLogProcessor.create(
+                        getTxnLog(),
+                        EphemeralProcessor.create(
+                            ExpiryProcessor.create(
+                                expiries,
+                                getData(),
+                                QuotaProcessor.create(
+                                    getData(),
+                                    RequestErrorProcessor.<TxnOperation.Request<?>>create(
+                                            WatcherEventProcessor.create(
+                                                            ByOpcodeTxnRequestProcessor.create(
+                                                                    ImmutableMap.copyOf(processors)),
+                                                            getDataWatches(), getChildWatches(),
+                                                            Watches.persistent(getListeners()),
+                                                            Watches.persistent(getListeners()))))))));
         }
     }
     
@@ -262,53 +615,282 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
             ReentrantReadWriteLock lock,
             Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> processor,
             Executor executor) {
+        return newInstance(lock, TxnLog.Disabled.DISABLED, processor, executor);
+    }
+    
+    public static SimpleServer newInstance(
+            ReentrantReadWriteLock lock,
+            TxnLog txnLog,
+            Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> processor,
+            Executor executor) {
+        return newInstance(lock, txnLog, processor, null, executor);
+    }
+    
+    /**
+     * @param readProcessor if not null, applies read requests concurrently
+     */
+    public static SimpleServer newInstance(
+            ReentrantReadWriteLock lock,
+            TxnLog txnLog,
+            Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> processor,
+            Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> readProcessor,
+            Executor executor) {
+        return newInstance(lock, txnLog, processor, readProcessor, null, Integer.MAX_VALUE, 1, Integer.MAX_VALUE, 1, null, null, executor);
+    }
+    
+    /**
+     * @param prepProcessor if not null, validates and parses write requests
+     *          before they are queued for the server
+     * @param maxQueuedRequests number of writes waiting to be applied
+     *          beyond which sessions stop forwarding more
+     * @param batchSize maximum number of requests applied per acquisition of the write lock
+     * @param maxPendingResponses number of applied requests waiting to be responded to 
+     *          beyond which no more requests are applied
+     * @param lanes number of serial lanes that deliver notifications and responses
+     * @param notifications if not null, notifications are delivered with responses
+     * @param data if not null, published after each batch is handed to the responder
+     */
+    public static SimpleServer newInstance(
+            ReentrantReadWriteLock lock,
+            TxnLog txnLog,
+            Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> processor,
+            Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> readProcessor,
+            PrepRequestProcessor prepProcessor,
+            int maxQueuedRequests,
+            int batchSize,
+            int maxPendingResponses,
+            int lanes,
+            DeferredNotifications notifications,
+            CopyOnWriteZNodeTrie data,
+            Executor executor) {
         return new SimpleServer(
                 lock,
+                txnLog,
                 processor,
+                readProcessor,
+                prepProcessor,
+                maxQueuedRequests,
+                batchSize,
+                maxPendingResponses,
+                notifications,
+                data,
+                SessionDispatcher.create(lanes, executor),
                 executor,
                 Queues.<PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>>>newConcurrentLinkedQueue(),
                 LogManager.getLogger(SimpleServer.class));
     }
 
     protected final ReentrantReadWriteLock lock;
+    protected final TxnLog txnLog;
     protected final Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> processor;
+    protected final Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> readProcessor;
+    protected final PrepRequestProcessor prepProcessor;
+    protected final int maxQueuedRequests;
+    // writes in the mailbox
+    protected final AtomicInteger queued;
+    // sessions waiting for the mailbox to drain
+    protected final Queue<SessionQueue> blocked;
+    protected final ConcurrentLongHashMap<SessionQueue> sessions;
+    protected final int batchSize;
+    protected final int maxPendingResponses;
+    protected final DeferredNotifications notifications;
+    protected final CopyOnWriteZNodeTrie data;
+    protected final SessionDispatcher dispatcher;
+    protected final Responder responder;
     
     protected SimpleServer(
             ReentrantReadWriteLock lock,
+            TxnLog txnLog,
             Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> processor,
+            Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> readProcessor,
+            PrepRequestProcessor prepProcessor,
+            int maxQueuedRequests,
+            int batchSize,
+            int maxPendingResponses,
+            DeferredNotifications notifications,
+            CopyOnWriteZNodeTrie data,
+            SessionDispatcher dispatcher,
             Executor executor,
             Queue<PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>>> mailbox,
             Logger logger) {
         super(executor, mailbox, logger);
+        checkArgument(maxQueuedRequests > 0);
+        checkArgument(batchSize > 0);
+        checkArgument(maxPendingResponses > 0);
         this.lock = lock;
+        this.txnLog = txnLog;
         this.processor = processor;
+        this.readProcessor = readProcessor;
+        this.prepProcessor = prepProcessor;
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.queued = new AtomicInteger(0);
+        this.blocked = Queues.newConcurrentLinkedQueue();
+        this.batchSize = batchSize;
+        this.maxPendingResponses = maxPendingResponses;
+        this.notifications = notifications;
+        this.data = data;
+        this.dispatcher = dispatcher;
+        this.sessions = ConcurrentLongHashMap.create();
+        this.responder = new Responder();
+    }
+    
+    public TxnLog txnLog() {
+        return txnLog;
     }
     
     @Override
     public ListenableFuture<Message.ServerResponse<?>> submit(SessionOperation.Request<?> request) {
         PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> task = PromiseTask.<SessionOperation.Request<?>, Message.ServerResponse<?>>of(request);
-        if (! send(task)) { 
+        boolean sent;
+        if (readProcessor == null) {
+            sent = send(task);
+        } else {
+            long session = request.getSessionId();
+            SessionQueue queue = sessions.get(session);
+            if (queue == null) {
+                queue = new SessionQueue(session);
+                SessionQueue existing = sessions.putIfAbsent(session, queue);
+                if (existing != null) {
+                    queue = existing;
+                }
+            }
+            sent = queue.send(task);
+        }
+        if (! sent) { 
             task.cancel(true);
         }
         return task;
     }
 
+    /**
+     * Not ready while too many responses are pending,
+     * until the responder catches up.
+     */
+    @Override
+    public boolean isReady() {
+        return super.isReady() && (responder.pending() < maxPendingResponses);
+    }
+
+    @Override
+    protected boolean doSend(PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> message) {
+        queued.incrementAndGet();
+        if (! super.doSend(message)) {
+            queued.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Wakes blocked sessions once there is room in the mailbox.
+     */
+    @Override
+    protected PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> next() {
+        PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> next = super.next();
+        if ((next != null) && (queued.decrementAndGet() < maxQueuedRequests)) {
+            SessionQueue queue;
+            while ((queue = blocked.poll()) != null) {
+                queue.ready.run();
+            }
+        }
+        return next;
+    }
+    
+    protected boolean isQueueable() {
+        return queued.get() < maxQueuedRequests;
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        List<PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>>> batch = Lists.newArrayListWithCapacity(batchSize);
+        PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> next;
+        while ((state() != State.TERMINATED) 
+                && (responder.pending() < maxPendingResponses) 
+                && ((next = next()) != null)) {
+            batch.add(next);
+            while ((batch.size() < batchSize) && ((next = next()) != null)) {
+                batch.add(next);
+            }
+            apply(batch);
+            batch.clear();
+        }
+    }
+
     @Override
     protected boolean apply(PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> input) {
+        apply(ImmutableList.of(input));
+        return true;
+    }
+    
+    /**
+     * Applies a batch of requests under one acquisition of the write lock.
+     * 
+     * The notifications and responses of the batch are handed to the responder,
+     * which dispatches them in order once the log is durable,
+     * so that notifications are delivered outside of the write lock.
+     * Only then is the tree published, still under the write lock,
+     * so that readers never see part of a batch, 
+     * or a change before the notifications of it.
+     * The responder holds the batch until it is published,
+     * so that a session never reads before its own writes.
+     */
+    protected void apply(List<PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>>> batch) {
+        List<Runnable> releases = Lists.newArrayListWithCapacity(batch.size());
+        SettableFuture<Void> published = (data == null) ? null : SettableFuture.<Void>create();
         lock.writeLock().lock();
+        if (notifications != null) {
+            notifications.setDeferring(true);
+        }
         try {
-            if (! input.isDone()) {
+            for (PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> input: batch) {
+                if (input.isDone()) {
+                    continue;
+                }
+                logger.debug("Applying {} ({})", input, this);
+                Message.ServerResponse<?> response = null;
+                Exception error = null;
                 try {
-                    Message.ServerResponse<?> response = processor.apply(input.task());
-                    input.set(response);
+                    response = processor.apply(input.task());
                 } catch (Exception e) {
-                    input.setException(e);
+                    error = e;
                 }
+                if (notifications != null) {
+                    notifications.drainTo(releases);
+                }
+                releases.add(new Release(input, response, error));
+            }
+            if (! releases.isEmpty()) {
+                ListenableFuture<?> synced = txnLog.sync();
+                if (data != null) {
+                    synced = Futures.allAsList(ImmutableList.<ListenableFuture<?>>of(synced, published));
+                }
+                responder.send(new Responses(synced, releases));
+            }
+            if (data != null) {
+                data.publish();
+                published.set(null);
             }
         } finally {
+            if (notifications != null) {
+                notifications.setDeferring(false);
+            }
             lock.writeLock().unlock();
         }
-        return true;
+    }
+    
+    /**
+     * Responses are released by the responder once the log is durable,
+     * behind every batch already handed to it,
+     * so that they follow the notifications of any change they could have seen.
+     */
+    protected void release(
+            PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> task,
+            Message.ServerResponse<?> response,
+            Exception error) {
+        Release release = new Release(task, response, error);
+        if (! responder.send(new Responses(txnLog.sync(), ImmutableList.<Runnable>of(release)))) {
+            task.cancel(true);
+        }
     }
     
     @Override
@@ -317,5 +899,316 @@ public class SimpleServer extends ExecutedQueuedActor<PromiseTask<SessionOperati
         while ((task = mailbox.poll()) != null) {
             task.cancel(true);
         }
+        for (SessionQueue queue: Iterables.consumingIterable(sessions.values())) {
+            queue.stop();
+        }
+        responder.stop();
+        dispatcher.stop();
+        try {
+            txnLog.close();
+        } catch (IOException e) {
+            logger.warn("Error closing {} ({})", txnLog, this, e);
+        }
+    }
+    
+    /**
+     * Orders the requests of one session.
+     * 
+     * Reads are applied on this actor's thread,
+     * once every earlier write of the session has completed.
+     * Writes are prepared here, outside of the write lock, 
+     * and forwarded to the server in order without waiting,
+     * since a read always completes before the next request is dispatched.
+     * Writes rejected by the prep processor are answered here, like reads.
+     * Forwarding stops while the server's mailbox is full.
+     */
+    protected final class SessionQueue extends Actors.ExecutedPeekingQueuedActor<PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>>> {
+
+        protected final long session;
+        // reschedules when a write settles or the server drains, unless stopped
+        protected final Runnable ready;
+        // last write forwarded to the server
+        protected volatile ListenableFuture<?> last;
+        // response to the next write, if it was rejected
+        protected volatile Message.ServerResponse<?> rejected;
+        
+        public SessionQueue(long session) {
+            super(SimpleServer.this.executor, 
+                    Queues.<PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>>>newConcurrentLinkedQueue(), 
+                    SimpleServer.this.logger);
+            this.session = session;
+            this.ready = new Runnable() {
+                @Override
+                public void run() {
+                    schedule();
+                }
+            };
+            this.last = null;
+            this.rejected = null;
+        }
+        
+        @Override
+        public boolean isReady() {
+            PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> next = mailbox.peek();
+            if (next == null) {
+                return false;
+            }
+            if (isRead(next.task()) || (rejected != null)) {
+                return isSettled();
+            }
+            return isQueueable();
+        }
+        
+        protected boolean isSettled() {
+            return (last == null) || last.isDone();
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("session", Session.toString(session)).toString();
+        }
+
+        @Override
+        protected boolean apply(PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> input) {
+            if (isRead(input.task())) {
+                if (! isSettled()) {
+                    return false;
+                }
+                if (! mailbox.remove(input)) {
+                    return false;
+                }
+                if (! input.isDone()) {
+                    Message.ServerResponse<?> response = null;
+                    Exception error = null;
+                    try {
+                        response = readProcessor.apply(input.task());
+                    } catch (Exception e) {
+                        error = e;
+                    }
+                    release(input, response, error);
+                }
+            } else {
+                SessionOperation.Request<?> request = input.task();
+                if (rejected == null) {
+                    if (! isQueueable()) {
+                        blocked.add(this);
+                        if (! isQueueable()) {
+                            return false;
+                        }
+                    }
+                    if ((prepProcessor != null) && ! input.isDone()) {
+                        try {
+                            request = prepProcessor.apply(request);
+                        } catch (KeeperException e) {
+                            rejected = prepProcessor.reject(request, e);
+                        }
+                    }
+                }
+                if (rejected != null) {
+                    if (! isSettled()) {
+                        return false;
+                    }
+                    Message.ServerResponse<?> response = rejected;
+                    rejected = null;
+                    if (mailbox.remove(input)) {
+                        release(input, response, null);
+                    }
+                    return true;
+                }
+                if (! mailbox.remove(input)) {
+                    return false;
+                }
+                last = input;
+                if (! SimpleServer.this.send(PromiseTask.<SessionOperation.Request<?>, Message.ServerResponse<?>>of(request, input))) {
+                    input.cancel(true);
+                }
+                if (input.task().record().opcode() == OpCode.CLOSE_SESSION) {
+                    input.addListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (sessions.remove(session, SessionQueue.this)) {
+                                stop();
+                            }
+                        }
+                    }, MoreExecutors.directExecutor());
+                }
+                input.addListener(ready, MoreExecutors.directExecutor());
+            }
+            return true;
+        }
+
+        @Override
+        protected void doStop() {
+            Future<?> task;
+            while ((task = mailbox.poll()) != null) {
+                task.cancel(true);
+            }
+        }
+    }
+    
+    protected static final class Responses {
+        
+        private final ListenableFuture<?> synced;
+        private final List<Runnable> releases;
+        
+        public Responses(ListenableFuture<?> synced, List<Runnable> releases) {
+            this.synced = synced;
+            this.releases = releases;
+        }
+    }
+    
+    /**
+     * Dispatches the notifications and responses of applied batches, 
+     * in order, once each batch is durable.
+     * 
+     * They are pending until the dispatcher has delivered them.
+     */
+    protected final class Responder extends Actors.ExecutedPeekingQueuedActor<Responses> {
+
+        private final AtomicInteger pending;
+        private final Runnable synced;
+        private final Runnable delivered;
+        
+        public Responder() {
+            super(SimpleServer.this.executor, 
+                    Queues.<Responses>newConcurrentLinkedQueue(), 
+                    SimpleServer.this.logger);
+            this.pending = new AtomicInteger(0);
+            this.synced = new Runnable() {
+                @Override
+                public void run() {
+                    schedule();
+                }
+            };
+            this.delivered = new Runnable() {
+                @Override
+                public void run() {
+                    if (pending.decrementAndGet() < maxPendingResponses) {
+                        SimpleServer.this.schedule();
+                    }
+                }
+            };
+        }
+        
+        public int pending() {
+            return pending.get();
+        }
+        
+        @Override
+        public boolean isReady() {
+            Responses next = mailbox.peek();
+            return (next != null) && next.synced.isDone();
+        }
+
+        @Override
+        protected boolean doSend(Responses message) {
+            pending.addAndGet(message.releases.size());
+            if (! super.doSend(message)) {
+                pending.addAndGet(-message.releases.size());
+                return false;
+            }
+            if (! message.synced.isDone()) {
+                message.synced.addListener(synced, MoreExecutors.directExecutor());
+            }
+            return true;
+        }
+
+        @Override
+        protected boolean apply(Responses input) {
+            if (! input.synced.isDone() || ! mailbox.remove(input)) {
+                return false;
+            }
+            for (final Runnable release: input.releases) {
+                if (release instanceof DeferredNotifications.Notification) {
+                    dispatcher.dispatch((DeferredNotifications.Notification) release, delivered);
+                } else {
+                    dispatcher.executorOf(((Release) release).task.task().getSessionId()).execute(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    release.run();
+                                    delivered.run();
+                                }
+                            });
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected void doStop() {
+            Responses next;
+            while ((next = mailbox.poll()) != null) {
+                for (Runnable release: next.releases) {
+                    if (release instanceof Release) {
+                        ((Release) release).task.cancel(true);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Applies the requests that match a filter under the read lock.
+     */
+    public static final class ReadLocked implements Processor<SessionOperation.Request<?>, Message.ServerResponse<?>> {
+        
+        public static ReadLocked create(
+                ReentrantReadWriteLock lock,
+                Predicate<? super SessionOperation.Request<?>> locked,
+                Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> delegate) {
+            return new ReadLocked(lock, locked, delegate);
+        }
+        
+        private final ReentrantReadWriteLock lock;
+        private final Predicate<? super SessionOperation.Request<?>> locked;
+        private final Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> delegate;
+        
+        protected ReadLocked(
+                ReentrantReadWriteLock lock,
+                Predicate<? super SessionOperation.Request<?>> locked,
+                Processor<? super SessionOperation.Request<?>, ? extends Message.ServerResponse<?>> delegate) {
+            this.lock = lock;
+            this.locked = locked;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Message.ServerResponse<?> apply(SessionOperation.Request<?> input) throws Exception {
+            if (! locked.apply(input)) {
+                return delegate.apply(input);
+            }
+            lock.readLock().lock();
+            try {
+                return delegate.apply(input);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+    
+    protected static final class Release implements Runnable {
+        
+        private final PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> task;
+        private final Message.ServerResponse<?> response;
+        private final Exception error;
+        
+        public Release(
+                PromiseTask<SessionOperation.Request<?>, Message.ServerResponse<?>> task,
+                Message.ServerResponse<?> response,
+                Exception error) {
+            this.task = task;
+            this.response = response;
+            this.error = error;
+        }
+
+        @Override
+        public void run() {
+            if (error != null) {
+                task.setException(error);
+            } else {
+                task.set(response);
+            }
+        }
     }
 }
@@ -3,18 +3,17 @@ package edu.uw.zookeeper.server;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Supplier;
-import com.google.common.collect.MapMaker;
 import com.google.common.hash.Hashing;
 
 import edu.uw.zookeeper.ServerInetAddressView;
 import edu.uw.zookeeper.ZooKeeperApplication;
+import edu.uw.zookeeper.common.ConcurrentLongHashMap;
 import edu.uw.zookeeper.common.ParameterizedFactory;
 import edu.uw.zookeeper.common.RuntimeModule;
 import edu.uw.zookeeper.common.TaskExecutor;
@@ -105,7 +104,7 @@ public class SimpleServerExecutor<T extends SessionExecutor> implements ServerEx
     public static class ServerBuilder extends SimpleServer.Builder<ServerBuilder> {
 
         public static ServerBuilder defaults(ServerConnectionFactoryBuilder connections) {
-            return new ServerBuilder(connections, new SimpleServerSupplier(null), null, null, null, null, null, null, null, null, null);
+            return new ServerBuilder(connections, new SimpleServerSupplier(null), null, null, null, null, null, null, null, null, null, null, null);
         }
         
         protected static class SimpleServerSupplier implements Supplier<SimpleServer> {
@@ -128,33 +127,35 @@ public class SimpleServerExecutor<T extends SessionExecutor> implements ServerEx
         }
         
         protected final ServerConnectionFactoryBuilder connections;
-        protected final ConcurrentMap<Long, SimpleSessionExecutor> sessionExecutors;
+        protected final ConcurrentLongHashMap<SimpleSessionExecutor> sessionExecutors;
         protected final SimpleServerSupplier server;
         
         protected ServerBuilder(
                 ServerConnectionFactoryBuilder connections,
                 SimpleServerSupplier server,
-                ConcurrentMap<Long, SimpleSessionExecutor> sessionExecutors,
+                ConcurrentLongHashMap<SimpleSessionExecutor> sessionExecutors,
                 ZxidGenerator zxids,
                 NameTrie<ZNodeNode> data,
                 SessionManager sessions,
                 ReentrantReadWriteLock lock,
+                TxnLog txnLog,
+                Snapshots snapshots,
                 Watches dataWatches,
                 Watches childWatches,
                 Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners,
                 RuntimeModule runtime) {
-            super(zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+            super(zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
             this.connections = checkNotNull(connections);
             this.server = checkNotNull(server);
             this.sessionExecutors = sessionExecutors;
         }
 
-        public ConcurrentMap<Long, SimpleSessionExecutor> getSessionExecutors() {
+        public ConcurrentLongHashMap<SimpleSessionExecutor> getSessionExecutors() {
             return sessionExecutors;
         }
 
-        public ServerBuilder setSessionExecutors(ConcurrentMap<Long, SimpleSessionExecutor> sessionExecutors) {
-            return newInstance(connections, server, sessionExecutors, zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+        public ServerBuilder setSessionExecutors(ConcurrentLongHashMap<SimpleSessionExecutor> sessionExecutors) {
+            return newInstance(connections, server, sessionExecutors, zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
         }
 
         @Override
@@ -171,26 +172,30 @@ public class SimpleServerExecutor<T extends SessionExecutor> implements ServerEx
                 NameTrie<ZNodeNode> data,
                 SessionManager sessions,
                 ReentrantReadWriteLock lock,
+                TxnLog txnLog,
+                Snapshots snapshots,
                 Watches dataWatches,
                 Watches childWatches,
                 Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners,
                 RuntimeModule runtime) {
-            return newInstance(connections, server, sessionExecutors, zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+            return newInstance(connections, server, sessionExecutors, zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
         }
 
         protected ServerBuilder newInstance(
                 ServerConnectionFactoryBuilder connections,
                 SimpleServerSupplier server,
-                ConcurrentMap<Long, SimpleSessionExecutor> sessionExecutors,
+                ConcurrentLongHashMap<SimpleSessionExecutor> sessionExecutors,
                 ZxidGenerator zxids,
                 NameTrie<ZNodeNode> data,
                 SessionManager sessions,
                 ReentrantReadWriteLock lock,
+                TxnLog txnLog,
+                Snapshots snapshots,
                 Watches dataWatches,
                 Watches childWatches,
                 Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners,
                 RuntimeModule runtime) {
-            return new ServerBuilder(connections, server, sessionExecutors, zxids, data, sessions, lock, dataWatches, childWatches, listeners, runtime);
+            return new ServerBuilder(connections, server, sessionExecutors, zxids, data, sessions, lock, txnLog, snapshots, dataWatches, childWatches, listeners, runtime);
         }
 
         @Override
@@ -217,13 +222,15 @@ public class SimpleServerExecutor<T extends SessionExecutor> implements ServerEx
                     getRuntimeModule().getConfiguration());
         }
         
-        protected ConcurrentMap<Long, SimpleSessionExecutor> getDefaultSessionExecutors() {
-            return new MapMaker().makeMap();
+        protected ConcurrentLongHashMap<SimpleSessionExecutor> getDefaultSessionExecutors() {
+            return ConcurrentLongHashMap.create();
         }
 
         protected ParameterizedFactory<Session, SimpleSessionExecutor> getDefaultSessionFactory() {
             return SimpleSessionExecutor.factory(
-                    getRuntimeModule().getExecutors().get(ScheduledExecutorService.class), 
+                    SessionExpiry.fromConfiguration(
+                            getRuntimeModule().getExecutors().get(ScheduledExecutorService.class),
+                            getRuntimeModule().getConfiguration()), 
                     server);
         }
         
@@ -235,10 +242,10 @@ public class SimpleServerExecutor<T extends SessionExecutor> implements ServerEx
 
     protected final TaskExecutor<? super FourLetterRequest, ? extends FourLetterResponse> anonymousExecutor;
     protected final TaskExecutor<ConnectMessage.Request, ? extends ConnectMessage.Response> connectExecutor;
-    protected final ConcurrentMap<Long, T> sessionExecutors;
+    protected final ConcurrentLongHashMap<T> sessionExecutors;
     
     public SimpleServerExecutor(
-            ConcurrentMap<Long, T> sessionExecutors,
+            ConcurrentLongHashMap<T> sessionExecutors,
             TaskExecutor<ConnectMessage.Request, ? extends ConnectMessage.Response> connectExecutor,
             TaskExecutor<? super FourLetterRequest, ? extends FourLetterResponse> anonymousExecutor) {
         this.anonymousExecutor = anonymousExecutor;
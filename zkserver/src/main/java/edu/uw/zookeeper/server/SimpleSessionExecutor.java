@@ -2,8 +2,6 @@ package edu.uw.zookeeper.server;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.util.concurrent.ScheduledExecutorService;
-
 import org.apache.logging.log4j.LogManager;
 
 import net.engio.mbassy.common.IConcurrentSet;
@@ -26,9 +24,9 @@ import edu.uw.zookeeper.protocol.SessionRequest;
 public final class SimpleSessionExecutor extends AbstractSessionExecutor {
 
     public static ParameterizedFactory<Session, SimpleSessionExecutor> factory(
-            final ScheduledExecutorService scheduler,
+            final SessionExpiry expiry,
             final Supplier<? extends TaskExecutor<? super SessionOperation.Request<?>, Message.ServerResponse<?>>> server) {
-        checkNotNull(scheduler);
+        checkNotNull(expiry);
         checkNotNull(server);
         return new ParameterizedFactory<Session, SimpleSessionExecutor>() {
             @Override
@@ -44,7 +42,7 @@ public final class SimpleSessionExecutor extends AbstractSessionExecutor {
                         value, 
                         automaton,
                         new StrongConcurrentSet<SessionListener>(), 
-                        scheduler, 
+                        expiry, 
                         server.get());
             }
         };
@@ -56,9 +54,9 @@ public final class SimpleSessionExecutor extends AbstractSessionExecutor {
             Session session,
             Automatons.EventfulAutomaton<ProtocolState,Object> state,
             IConcurrentSet<SessionListener> listeners,
-            ScheduledExecutorService scheduler,
+            SessionExpiry expiry,
             TaskExecutor<? super SessionOperation.Request<?>, Message.ServerResponse<?>> server) {
-        super(session, state, listeners, scheduler);
+        super(session, state, listeners, expiry);
         this.server = checkNotNull(server);
     }
     
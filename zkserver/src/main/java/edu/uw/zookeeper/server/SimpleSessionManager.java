@@ -1,8 +1,6 @@
 package edu.uw.zookeeper.server;
 
 import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -10,6 +8,7 @@ import org.apache.logging.log4j.Logger;
 import com.google.common.base.Function;
 import com.google.common.collect.Iterators;
 
+import edu.uw.zookeeper.common.ConcurrentLongHashMap;
 import edu.uw.zookeeper.common.Configuration;
 import edu.uw.zookeeper.common.ParameterizedFactory;
 import edu.uw.zookeeper.protocol.Session;
@@ -19,7 +18,7 @@ public class SimpleSessionManager<T extends SessionExecutor> extends AbstractSes
 
     public static <T extends SessionExecutor> SimpleSessionManager<T> fromConfiguration(
             short id,
-            ConcurrentMap<Long, T> sessions,
+            ConcurrentLongHashMap<T> sessions,
             ParameterizedFactory<? super Session, ? extends T> factory,
             Configuration configuration) {
         DefaultSessionParametersPolicy policy = DefaultSessionParametersPolicy.fromConfiguration(id, configuration);
@@ -28,18 +27,18 @@ public class SimpleSessionManager<T extends SessionExecutor> extends AbstractSes
     
     public static <T extends SessionExecutor> SimpleSessionManager<T> create(
             ParameterizedFactory<? super Session, ? extends T> factory,
-            Map<Long, T> sessions,
+            ConcurrentLongHashMap<T> sessions,
             SessionParametersPolicy policy) {
         return new SimpleSessionManager<T>(factory, sessions, policy);
     }
     
     protected final Logger logger;
-    protected final Map<Long, T> executors;
+    protected final ConcurrentLongHashMap<T> executors;
     protected final ParameterizedFactory<? super Session, ? extends T> factory;
     
     protected SimpleSessionManager(
             ParameterizedFactory<? super Session, ? extends T> factory,
-            Map<Long, T> sessions,
+            ConcurrentLongHashMap<T> sessions,
             SessionParametersPolicy policy) {
         super(policy);
         this.logger = LogManager.getLogger(getClass());
@@ -47,13 +46,13 @@ public class SimpleSessionManager<T extends SessionExecutor> extends AbstractSes
         this.executors = sessions;
     }
     
-    public Map<Long, T> executors() {
+    public ConcurrentLongHashMap<T> executors() {
         return executors;
     }
 
     @Override
     public Session remove(long id) {
-        SessionExecutor executor = executors.remove(Long.valueOf(id));
+        SessionExecutor executor = executors.remove(id);
         if (executor != null) {
             if (logger.isDebugEnabled()) {
                 logger.debug("Removed session {}", Session.toString(id));
@@ -65,13 +64,13 @@ public class SimpleSessionManager<T extends SessionExecutor> extends AbstractSes
 
     @Override
     public Session get(long id) {
-        T executor = executors.get(Long.valueOf(id));
+        T executor = executors.get(id);
         return (executor != null) ? executor.session() : null;
     }
 
     @Override
     public Session put(Session session) {
-        Long k = Long.valueOf(session.id());
+        long k = session.id();
         T existing = executors.get(k);
         if (existing != null) {
             if (existing.session().equals(session)) {
@@ -0,0 +1,72 @@
+package edu.uw.zookeeper.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.common.Processors;
+import edu.uw.zookeeper.common.Processors.ForwardingProcessor;
+import edu.uw.zookeeper.data.CopyOnWriteZNodeTrie;
+import edu.uw.zookeeper.data.NameTrie;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.data.ZNodeNode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Takes a snapshot after every <code>count</code> logged transactions,
+ * unless the previous snapshot is still being written.
+ * A CopyOnWriteZNodeTrie is snapshotted from a view of its current tree,
+ * which later writes copy, so it doesn't block them.
+ * 
+ * Not thread safe.
+ */
+public class SnapshotProcessor extends ForwardingProcessor<TxnOperation.Request<?>, Records.Response> implements Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> {
+
+    public static SnapshotProcessor create(
+            Snapshots snapshots,
+            NameTrie<ZNodeNode> data,
+            int count,
+            Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate) {
+        return new SnapshotProcessor(snapshots, data, count, delegate);
+    }
+
+    protected final Snapshots snapshots;
+    protected final NameTrie<ZNodeNode> data;
+    protected final int count;
+    protected final Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate;
+    protected int logged;
+    protected ListenableFuture<Long> last;
+
+    public SnapshotProcessor(
+            Snapshots snapshots,
+            NameTrie<ZNodeNode> data,
+            int count,
+            Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate) {
+        checkArgument(count > 0);
+        this.snapshots = snapshots;
+        this.data = data;
+        this.count = count;
+        this.delegate = delegate;
+        this.logged = 0;
+        this.last = null;
+    }
+
+    @Override
+    public Records.Response apply(TxnOperation.Request<?> input) {
+        Records.Response response = delegate().apply(input);
+        if (TxnLogProcessor.isLogged(input, response)) {
+            if ((++logged >= count) && ((last == null) || last.isDone())) {
+                logged = 0;
+                last = snapshots.snapshot(
+                        (data instanceof CopyOnWriteZNodeTrie) ? ((CopyOnWriteZNodeTrie) data).snapshot() : data, 
+                        input.zxid());
+            }
+        }
+        return response;
+    }
+
+    @Override
+    protected Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate() {
+        return delegate;
+    }
+}
@@ -0,0 +1,60 @@
+package edu.uw.zookeeper.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.data.NameTrie;
+import edu.uw.zookeeper.data.ZNodeNode;
+
+/**
+ * Point-in-time images of the data tree, used to bound log replay on restart.
+ */
+public interface Snapshots extends Closeable {
+
+    /**
+     * @return zxid of the latest snapshot, or 0 if there is none
+     */
+    long lastZxid();
+
+    /**
+     * Must be called while <code>data</code> can't be modified,
+     * which always holds for a view of a CopyOnWriteZNodeTrie.
+     * Returns after capturing the tree; writing continues in the background.
+     *
+     * @return future that is set to <code>zxid</code> once the snapshot is durable
+     */
+    ListenableFuture<Long> snapshot(NameTrie<ZNodeNode> data, long zxid);
+
+    /**
+     * Loads the latest snapshot into an empty tree.
+     *
+     * @return zxid of the restored snapshot, or 0 if there is none
+     */
+    long restore(NameTrie<ZNodeNode> data) throws IOException;
+
+    public static enum Disabled implements Snapshots {
+        DISABLED;
+
+        @Override
+        public long lastZxid() {
+            return 0L;
+        }
+
+        @Override
+        public ListenableFuture<Long> snapshot(NameTrie<ZNodeNode> data, long zxid) {
+            return Futures.immediateFuture(Long.valueOf(zxid));
+        }
+
+        @Override
+        public long restore(NameTrie<ZNodeNode> data) {
+            return 0L;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package edu.uw.zookeeper.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import edu.uw.zookeeper.data.TxnOperation;
+
+/**
+ * Write-ahead log of the transactions applied by a server.
+ */
+public interface TxnLog extends Closeable {
+
+    /**
+     * @return zxid of the last appended transaction
+     */
+    long lastZxid();
+
+    /**
+     * Not necessarily durable until a subsequent sync completes.
+     */
+    void append(TxnOperation.Request<?> txn);
+
+    /**
+     * @return future that is set once every previously appended transaction is durable
+     */
+    ListenableFuture<Void> sync();
+
+    /**
+     * @return logged transactions with a zxid greater than <code>zxid</code>, in order
+     */
+    Iterator<TxnOperation.Request<?>> from(long zxid) throws IOException;
+
+    /**
+     * Nothing is logged, so state is lost on restart.
+     */
+    public static enum Disabled implements TxnLog {
+        DISABLED;
+
+        private final ListenableFuture<Void> synced = Futures.immediateFuture(null);
+
+        @Override
+        public long lastZxid() {
+            return 0L;
+        }
+
+        @Override
+        public void append(TxnOperation.Request<?> txn) {
+        }
+
+        @Override
+        public ListenableFuture<Void> sync() {
+            return synced;
+        }
+
+        @Override
+        public Iterator<TxnOperation.Request<?>> from(long zxid) {
+            return ImmutableSet.<TxnOperation.Request<?>>of().iterator();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package edu.uw.zookeeper.server;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+
+import edu.uw.zookeeper.common.Processors;
+import edu.uw.zookeeper.common.Processors.ForwardingProcessor;
+import edu.uw.zookeeper.data.TxnOperation;
+import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.proto.OpCode;
+import edu.uw.zookeeper.protocol.proto.Records;
+
+/**
+ * Appends applied transactions that change state to a log.
+ *
+ * Failed transactions don't change state, so they aren't logged.
+ */
+public class TxnLogProcessor extends ForwardingProcessor<TxnOperation.Request<?>, Records.Response> implements Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> {
+
+    public static final Set<OpCode> LOGGED = Sets.immutableEnumSet(EnumSet.of(
+            OpCode.CREATE,
+            OpCode.CREATE2,
+            OpCode.CREATE_TTL,
+            OpCode.DELETE,
+            OpCode.SET_DATA,
+            OpCode.SET_ACL,
+            OpCode.MULTI,
+            OpCode.CLOSE_SESSION));
+
+    public static boolean isLogged(TxnOperation.Request<?> request, Records.Response response) {
+        return LOGGED.contains(request.record().opcode()) && ! (response instanceof Operation.Error);
+    }
+
+    public static TxnLogProcessor create(
+            TxnLog log,
+            Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate) {
+        return new TxnLogProcessor(log, delegate);
+    }
+
+    protected final TxnLog log;
+    protected final Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate;
+
+    public TxnLogProcessor(
+            TxnLog log,
+            Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate) {
+        this.log = log;
+        this.delegate = delegate;
+    }
+
+    public TxnLog log() {
+        return log;
+    }
+
+    @Override
+    public Records.Response apply(TxnOperation.Request<?> input) {
+        Records.Response response = delegate().apply(input);
+        if (isLogged(input, response)) {
+            log.append(input);
+        }
+        return response;
+    }
+
+    @Override
+    protected Processors.UncheckedProcessor<TxnOperation.Request<?>, Records.Response> delegate() {
+        return delegate;
+    }
+}
@@ -1,7 +1,11 @@
 package edu.uw.zookeeper.server;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Watcher;
@@ -10,13 +14,17 @@ import org.apache.zookeeper.Watcher.Event.KeeperState;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Sets;
 
 import edu.uw.zookeeper.common.Processors;
 import edu.uw.zookeeper.common.Processors.ForwardingProcessor;
+import edu.uw.zookeeper.data.AddWatchMode;
 import edu.uw.zookeeper.data.Operations;
 import edu.uw.zookeeper.data.ZNodeLabelVector;
+import edu.uw.zookeeper.data.ZNodePath;
 import edu.uw.zookeeper.data.TxnOperation;
 import edu.uw.zookeeper.protocol.Operation;
+import edu.uw.zookeeper.protocol.proto.IAddWatchRequest;
 import edu.uw.zookeeper.protocol.proto.IMultiRequest;
 import edu.uw.zookeeper.protocol.proto.IMultiResponse;
 import edu.uw.zookeeper.protocol.proto.IRemoveWatchesRequest;
@@ -24,13 +32,35 @@ import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
 import edu.uw.zookeeper.protocol.proto.OpCode;
 import edu.uw.zookeeper.protocol.proto.Records;
 
+/**
+ * Sets and triggers watches.
+ * 
+ * One-shot watches are set by reads, and persistent watches by ADD_WATCH.
+ * Recursive watches are matched by looking up each ancestor of a changed node,
+ * so the cost of a change doesn't depend on the number of watches.
+ * A session is notified at most once per event.
+ * The parent of nodes created or deleted by a multi is notified once,
+ * after the events of the nodes.
+ */
 public class WatcherEventProcessor extends ForwardingProcessor<TxnOperation.Request<?>, Records.Response> implements Processors.CheckedProcessor<TxnOperation.Request<?>, Records.Response, KeeperException> {
 
     public static WatcherEventProcessor create(
             Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException> delegate,
             Watches dataWatches,
             Watches childWatches) {
-        return new WatcherEventProcessor(delegate, dataWatches, childWatches);
+        return create(delegate, dataWatches, childWatches, null, null);
+    }
+
+    /**
+     * @param persistentWatches if null, ADD_WATCH is unsupported
+     */
+    public static WatcherEventProcessor create(
+            Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException> delegate,
+            Watches dataWatches,
+            Watches childWatches,
+            Watches persistentWatches,
+            Watches recursiveWatches) {
+        return new WatcherEventProcessor(delegate, dataWatches, childWatches, persistentWatches, recursiveWatches);
     }
 
     public static IWatcherEvent created(String path) {
@@ -56,14 +86,21 @@ public class WatcherEventProcessor extends ForwardingProcessor<TxnOperation.Requ
     protected final Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException> delegate;
     protected final Watches dataWatches;
     protected final Watches childWatches;
+    protected final Watches persistentWatches;
+    protected final Watches recursiveWatches;
 
     protected WatcherEventProcessor(
             Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException> delegate,
             Watches dataWatches,
-            Watches childWatches) {
+            Watches childWatches,
+            Watches persistentWatches,
+            Watches recursiveWatches) {
+        checkArgument((persistentWatches == null) == (recursiveWatches == null));
         this.delegate = delegate;
         this.dataWatches = dataWatches;
         this.childWatches = childWatches;
+        this.persistentWatches = persistentWatches;
+        this.recursiveWatches = recursiveWatches;
     }
     
     @Override
@@ -72,6 +109,8 @@ public class WatcherEventProcessor extends ForwardingProcessor<TxnOperation.Requ
         Records.Response response = null;
         if (input.record().opcode() == OpCode.REMOVE_WATCHES) {
             response = Operations.Responses.removeWatches().build();
+        } else if (input.record().opcode() == OpCode.ADD_WATCH) {
+            response = Operations.Responses.addWatch().build();
         } else {
             try {
                 response = delegate().apply(input);
@@ -83,7 +122,14 @@ public class WatcherEventProcessor extends ForwardingProcessor<TxnOperation.Requ
         return apply(input.getSessionId(), input.record(), response, exception);
     }
     
-    protected Records.Response apply(Long session, Records.Request request, Records.Response response, KeeperException exception) throws KeeperException {
+    protected Records.Response apply(long session, Records.Request request, Records.Response response, KeeperException exception) throws KeeperException {
+        return apply(session, request, response, exception, null);
+    }
+    
+    /**
+     * @param parents if not null, collects the parents whose children changed instead of notifying them
+     */
+    protected Records.Response apply(long session, Records.Request request, Records.Response response, KeeperException exception, Set<String> parents) throws KeeperException {
         switch (request.opcode()) {
         case GET_DATA:
         case EXISTS:
@@ -99,13 +145,18 @@ public class WatcherEventProcessor extends ForwardingProcessor<TxnOperation.Requ
             break;
         case CREATE:
         case CREATE2:
+        case CREATE_TTL:
         {
             if ((response != null) && !(response instanceof Operation.Error)) {
                 String path = ((Records.PathGetter) response).getPath();
                 String parent = ZNodeLabelVector.headOf(path);
-                dataWatches.post(created(path));
+                post(created(path), dataWatches, true);
                 if (parent.length() > 0) {
-                    childWatches.post(children(parent));
+                    if (parents != null) {
+                        parents.add(parent);
+                    } else {
+                        post(children(parent), childWatches, false);
+                    }
                 }
             }
             break;
@@ -115,9 +166,13 @@ public class WatcherEventProcessor extends ForwardingProcessor<TxnOperation.Requ
             if ((response != null) && !(response instanceof Operation.Error)) {
                 String path = ((Records.PathGetter) request).getPath();
                 String parent = ZNodeLabelVector.headOf(path);
-                dataWatches.post(deleted(path));
+                post(deleted(path), dataWatches, true);
                 if (parent.length() > 0) {
-                    childWatches.post(children(parent));
+                    if (parents != null) {
+                        parents.add(parent);
+                    } else {
+                        post(children(parent), childWatches, false);
+                    }
                 }
             }
             break;
@@ -126,7 +181,7 @@ public class WatcherEventProcessor extends ForwardingProcessor<TxnOperation.Requ
         {
             if ((response != null) && !(response instanceof Operation.Error)) {
                 String path = ((Records.PathGetter) request).getPath();
-                dataWatches.post(data(path));
+                post(data(path), dataWatches, true);
             }
             break;
         }
@@ -134,31 +189,74 @@ public class WatcherEventProcessor extends ForwardingProcessor<TxnOperation.Requ
         {
             Iterator<? extends Records.MultiOpRequest> requests = ((IMultiRequest) request).iterator();
             Iterator<? extends Records.MultiOpResponse> responses = (response != null) ? ((IMultiResponse) response).iterator() : Iterators.cycle(Operations.Responses.error().setError(exception.code()).build());
+            Set<String> changed = Sets.newLinkedHashSet();
             while (requests.hasNext()) {
-                apply(session, requests.next(), responses.next(), exception);
+                apply(session, requests.next(), responses.next(), exception, changed);
+            }
+            for (String parent: changed) {
+                post(children(parent), childWatches, false);
             }
             break;
         }
-        case REMOVE_WATCHES:
+        case ADD_WATCH:
         {
-            String path = ((IRemoveWatchesRequest) request).getPath();
-            List<Watches> types;
-            switch (Watcher.WatcherType.fromInt(((IRemoveWatchesRequest) request).getType())) {
-            case Any:
-                types = ImmutableList.of(dataWatches, childWatches);
+            String path = ((IAddWatchRequest) request).getPath();
+            if (persistentWatches == null) {
+                exception = new KeeperException.UnimplementedException();
+                break;
+            }
+            try {
+                ZNodePath.validate(path);
+            } catch (IllegalArgumentException e) {
+                exception = new KeeperException.BadArgumentsException(path);
+                break;
+            }
+            AddWatchMode mode;
+            try {
+                mode = AddWatchMode.valueOf(((IAddWatchRequest) request).getMode());
+            } catch (IllegalArgumentException e) {
+                exception = new KeeperException.BadArgumentsException(path);
                 break;
-            case Children:
-                types = ImmutableList.of(childWatches);
+            }
+            switch (mode) {
+            case PERSISTENT:
+                persistentWatches.put(session, path);
                 break;
-            case Data:
-                types = ImmutableList.of(dataWatches);
+            case PERSISTENT_RECURSIVE:
+                recursiveWatches.put(session, path);
                 break;
-            default:
-                throw new AssertionError();
+            }
+            break;
+        }
+        case REMOVE_WATCHES:
+        {
+            String path = ((IRemoveWatchesRequest) request).getPath();
+            int type = ((IRemoveWatchesRequest) request).getType();
+            List<Watches> types;
+            if ((persistentWatches != null) && (type == AddWatchMode.PERSISTENT.watcherType())) {
+                types = ImmutableList.of(persistentWatches);
+            } else if ((persistentWatches != null) && (type == AddWatchMode.PERSISTENT_RECURSIVE.watcherType())) {
+                types = ImmutableList.of(recursiveWatches);
+            } else {
+                switch (Watcher.WatcherType.fromInt(type)) {
+                case Any:
+                    types = (persistentWatches == null) ? 
+                            ImmutableList.of(dataWatches, childWatches) : 
+                                ImmutableList.of(dataWatches, childWatches, persistentWatches, recursiveWatches);
+                    break;
+                case Children:
+                    types = ImmutableList.of(childWatches);
+                    break;
+                case Data:
+                    types = ImmutableList.of(dataWatches);
+                    break;
+                default:
+                    throw new AssertionError();
+                }
             }
             boolean removed = false;
             for (Watches watches: types) {
-                if (watches.byPath().remove(path, session)) {
+                if (watches.remove(session, path)) {
                     if (!removed) {
                         removed = true;
                     }
@@ -175,6 +273,10 @@ public class WatcherEventProcessor extends ForwardingProcessor<TxnOperation.Requ
         {
             dataWatches.remove(session);
             childWatches.remove(session);
+            if (persistentWatches != null) {
+                persistentWatches.remove(session);
+                recursiveWatches.remove(session);
+            }
             break;
         }
         default:
@@ -188,6 +290,40 @@ public class WatcherEventProcessor extends ForwardingProcessor<TxnOperation.Requ
         }
     }
 
+    /**
+     * @param recursive whether the event triggers recursive watches of the path and its ancestors
+     */
+    protected void post(IWatcherEvent event, Watches watches, boolean recursive) {
+        String path = event.getPath();
+        Long[] triggered = watches.trigger(path);
+        if (persistentWatches == null) {
+            if (triggered != null) {
+                watches.deliver(event, Arrays.asList(triggered));
+            }
+            return;
+        }
+        Set<Long> sessions = union(null, triggered);
+        sessions = union(sessions, persistentWatches.trigger(path));
+        if (recursive && ! recursiveWatches.isEmpty()) {
+            for (String ancestor = path; ancestor.length() > 0; ancestor = ZNodeLabelVector.headOf(ancestor)) {
+                sessions = union(sessions, recursiveWatches.trigger(ancestor));
+            }
+        }
+        if (sessions != null) {
+            watches.deliver(event, sessions);
+        }
+    }
+    
+    protected static Set<Long> union(Set<Long> sessions, Long[] triggered) {
+        if (triggered != null) {
+            if (sessions == null) {
+                sessions = Sets.newLinkedHashSet();
+            }
+            sessions.addAll(Arrays.asList(triggered));
+        }
+        return sessions;
+    }
+
     @Override
     protected Processors.CheckedProcessor<TxnOperation.Request<?>, ? extends Records.Response, KeeperException> delegate() {
         return delegate;
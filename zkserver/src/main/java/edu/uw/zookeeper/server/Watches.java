@@ -1,95 +1,482 @@
 package edu.uw.zookeeper.server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.google.common.base.Function;
 import com.google.common.base.MoreObjects;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
 
+import edu.uw.zookeeper.common.ConcurrentLongHashMap;
 import edu.uw.zookeeper.data.WatchEvent;
 import edu.uw.zookeeper.protocol.NotificationListener;
 import edu.uw.zookeeper.protocol.Operation;
-import edu.uw.zookeeper.protocol.ProtocolResponseMessage;
+import edu.uw.zookeeper.protocol.SharedResponseMessage;
 import edu.uw.zookeeper.protocol.proto.IWatcherEvent;
 import edu.uw.zookeeper.protocol.proto.OpCodeXid;
 
 /**
- * Not thread safe.
+ * Watches of one type, indexed by path and by session.
+ * One-shot watches are removed when triggered, and persistent watches are not.
+ *
+ * Each session with watches is assigned a small index, which is reused once the session is removed,
+ * and each watched path keeps the indices of its watchers,
+ * as an array while there are few and as a bitset once that is smaller.
+ * A watched path is stored once, as the key of its watchers,
+ * and each session keeps a list of the watchers it belongs to,
+ * which is compacted lazily as watches are triggered.
+ *
+ * Threadsafe, and locks per path and per session,
+ * so that watches can be set by concurrent reads while others are triggered.
+ * Lock order is session before path.
+ * The multimap views are copies, which are only consistent while requests can't be applied.
  */
 public final class Watches {
 
     public static Watches create(
             Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners) {
-        return create(listeners, HashMultimap.<String, Long>create(), HashMultimap.<Long, String>create());
+        return new Watches(false, listeners);
     }
-    
-    public static Watches create(
-            Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners,
-            SetMultimap<String, Long> byPath,
-            SetMultimap<Long, String> bySession) {
-        return new Watches(listeners, byPath, bySession);
+
+    public static Watches persistent(
+            Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners) {
+        return new Watches(true, listeners);
     }
 
-    private final SetMultimap<String, Long> byPath;
-    private final SetMultimap<Long, String> bySession;
+    private final boolean persistent;
+    private final ConcurrentMap<String, PathWatches> byPath;
+    private final ConcurrentLongHashMap<SessionWatches> bySession;
+    private final Indices indices;
     private final Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners;
     private final Logger logger;
-    
+
     protected Watches(
-            Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners,
-            SetMultimap<String, Long> byPath,
-            SetMultimap<Long, String> bySession) {
+            boolean persistent,
+            Function<Long, ? extends NotificationListener<Operation.ProtocolResponse<IWatcherEvent>>> listeners) {
         this.logger = LogManager.getLogger(this);
-        this.byPath = byPath;
-        this.bySession = bySession;
+        this.persistent = persistent;
+        this.byPath = new MapMaker().makeMap();
+        this.bySession = ConcurrentLongHashMap.create();
+        this.indices = new Indices();
         this.listeners = listeners;
     }
-    
-    public SetMultimap<String,Long> byPath() {
-        return byPath;
+
+    /**
+     * @return copy of the watching sessions of each path
+     */
+    public ImmutableSetMultimap<String, Long> byPath() {
+        ImmutableSetMultimap.Builder<String, Long> watches = ImmutableSetMultimap.builder();
+        for (PathWatches watchers: byPath.values()) {
+            synchronized (watchers) {
+                if (! watchers.removed) {
+                    for (Long session: watchers.resolve(indices.sessions)) {
+                        watches.put(watchers.path, session);
+                    }
+                }
+            }
+        }
+        return watches.build();
+    }
+
+    /**
+     * @return copy of the watched paths of each session
+     */
+    public ImmutableSetMultimap<Long, String> bySession() {
+        return byPath().inverse();
     }
-    
-    public SetMultimap<Long, String> bySession() {
-        return bySession;
+
+    public boolean isPersistent() {
+        return persistent;
     }
-    
-    public void post(final IWatcherEvent event) {
+
+    public boolean isEmpty() {
+        return byPath.isEmpty();
+    }
+
+    /**
+     * Triggers the watches of the event's path.
+     */
+    public void post(IWatcherEvent event) {
+        Long[] sessions = trigger(event.getPath());
+        if (sessions != null) {
+            deliver(event, Arrays.asList(sessions));
+        }
+    }
+
+    /**
+     * Triggers the watches of a path without notifying,
+     * so that sessions can be notified once for watches of more than one type.
+     * 
+     * @return watching sessions, or null if none
+     */
+    public Long[] trigger(String path) {
+        PathWatches watchers = persistent ? byPath.get(path) : byPath.remove(path);
+        if (watchers == null) {
+            return null;
+        }
+        synchronized (watchers) {
+            if (persistent) {
+                if (watchers.removed) {
+                    return null;
+                }
+            } else {
+                watchers.removed = true;
+            }
+            return watchers.resolve(indices.sessions);
+        }
+    }
+
+    /**
+     * @param sessions not copied, so must not be modified
+     */
+    public void deliver(IWatcherEvent event, Collection<Long> sessions) {
         if (logger.isDebugEnabled()) {
             logger.debug("{}", WatchEvent.fromRecord(event));
         }
-        final ProtocolResponseMessage<IWatcherEvent> message = ProtocolResponseMessage.of(
-                OpCodeXid.NOTIFICATION.xid(), 
+        // encoded once for every connection
+        final SharedResponseMessage<IWatcherEvent> message = SharedResponseMessage.of(
+                OpCodeXid.NOTIFICATION.xid(),
                 OpCodeXid.NOTIFICATION_ZXID,
                 event);
-        String path = event.getPath();
-        for (Long session: byPath.removeAll(path)) {
-            bySession.remove(session, path);
-            NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> listener = listeners.apply(session);
-            if (listener != null) {
-                listener.handleNotification(message);
+        if (listeners instanceof DeferredNotifications) {
+            ((DeferredNotifications) listeners).post(message, sessions);
+        } else {
+            for (Long session: sessions) {
+                NotificationListener<Operation.ProtocolResponse<IWatcherEvent>> listener = listeners.apply(session);
+                if (listener != null) {
+                    listener.handleNotification(message);
+                }
             }
         }
     }
-    
-    public void put(Long session, String path) {
-        byPath.put(path, session);
-        bySession.put(session, path);
+
+    /**
+     * @return false if the session already watches the path
+     */
+    public boolean put(long session, String path) {
+        return putAll(session, Collections.singletonList(path)) > 0;
     }
-    
-    public Set<String> remove(Long session) {
-        Set<String> paths = bySession.removeAll(session);
-        for (String path: paths) {
-            byPath.remove(path, session);
+
+    /**
+     * Sets watches of one session while taking its lock once,
+     * such as when a reconnecting session restores its watches.
+     * 
+     * @return number of watches that weren't already set
+     */
+    public int putAll(long session, Iterable<String> paths) {
+        while (true) {
+            SessionWatches watches = sessionOf(session);
+            synchronized (watches) {
+                if (watches.paths == null) {
+                    // removed concurrently
+                    continue;
+                }
+                int count = 0;
+                for (String path: paths) {
+                    if (put(watches, path)) {
+                        ++count;
+                    }
+                }
+                return count;
+            }
+        }
+    }
+
+    /**
+     * @return false if the session doesn't watch the path
+     */
+    public boolean remove(long session, String path) {
+        SessionWatches watches = bySession.get(session);
+        if (watches == null) {
+            return false;
+        }
+        synchronized (watches) {
+            PathWatches watchers = byPath.get(path);
+            // the index may have been reused if the session was removed
+            if ((watchers == null) || (watches.paths == null)) {
+                return false;
+            }
+            synchronized (watchers) {
+                return remove(watchers, watches.index);
+            }
+        }
+    }
+
+    /**
+     * Removes all watches of a session.
+     *
+     * @return number of watches removed
+     */
+    public int remove(long session) {
+        SessionWatches watches = bySession.remove(session);
+        if (watches == null) {
+            return 0;
         }
-        return paths;
+        int count = 0;
+        synchronized (watches) {
+            for (PathWatches watchers: watches.paths) {
+                synchronized (watchers) {
+                    if (remove(watchers, watches.index)) {
+                        ++count;
+                    }
+                }
+            }
+            watches.paths = null;
+        }
+        indices.release(watches);
+        return count;
     }
-    
+
     @Override
     public String toString() {
-        return MoreObjects.toStringHelper(this).toString();
+        return MoreObjects.toStringHelper(this).add("persistent", persistent).add("paths", byPath.size()).add("sessions", bySession.size()).toString();
+    }
+
+    protected SessionWatches sessionOf(long session) {
+        SessionWatches watches = bySession.get(session);
+        if (watches == null) {
+            watches = indices.acquire(session);
+            SessionWatches existing = bySession.putIfAbsent(session, watches);
+            if (existing != null) {
+                indices.release(watches);
+                watches = existing;
+            }
+        }
+        return watches;
+    }
+
+    // called holding the session's lock
+    protected boolean put(SessionWatches watches, String path) {
+        while (true) {
+            PathWatches watchers = byPath.get(path);
+            if (watchers == null) {
+                watchers = new PathWatches(path);
+                PathWatches existing = byPath.putIfAbsent(path, watchers);
+                if (existing != null) {
+                    watchers = existing;
+                }
+            }
+            synchronized (watchers) {
+                if (! watchers.removed) {
+                    if (! watchers.add(watches.index)) {
+                        return false;
+                    }
+                    watches.add(watchers);
+                    return true;
+                }
+            }
+        }
+    }
+
+    // called holding the watchers' lock
+    protected boolean remove(PathWatches watchers, int index) {
+        if (watchers.removed || ! watchers.remove(index)) {
+            return false;
+        }
+        if (watchers.size == 0) {
+            watchers.removed = true;
+            byPath.remove(watchers.path, watchers);
+        }
+        return true;
+    }
+
+    protected static final class SessionWatches {
+
+        protected static final int MIN_COMPACT_SIZE = 16;
+
+        protected final Long id;
+        protected final int index;
+        // may include watchers that were triggered, null once removed
+        // guarded by this
+        protected List<PathWatches> paths;
+        protected int compactSize;
+
+        public SessionWatches(long id, int index) {
+            this.id = Long.valueOf(id);
+            this.index = index;
+            this.paths = new ArrayList<PathWatches>(2);
+            this.compactSize = MIN_COMPACT_SIZE;
+        }
+
+        public void add(PathWatches watchers) {
+            if (paths.size() >= compactSize) {
+                Set<PathWatches> live = Sets.newIdentityHashSet();
+                for (PathWatches e: paths) {
+                    synchronized (e) {
+                        if (! e.removed && e.contains(index)) {
+                            live.add(e);
+                        }
+                    }
+                }
+                paths = new ArrayList<PathWatches>(live);
+                compactSize = Math.max(MIN_COMPACT_SIZE, paths.size() * 2);
+            }
+            paths.add(watchers);
+        }
+    }
+
+    /**
+     * Session indices watching one path.
+     *
+     * Not threadsafe.
+     */
+    protected static final class PathWatches {
+
+        protected static final int MIN_ARRAY_SIZE = 8;
+
+        protected final String path;
+        // set once triggered or empty, after which it is no longer in the index
+        protected boolean removed;
+        protected int size;
+        // one of these is null
+        protected int[] members;
+        protected long[] bits;
+
+        public PathWatches(String path) {
+            this.path = path;
+            this.removed = false;
+            this.size = 0;
+            this.members = new int[1];
+            this.bits = null;
+        }
+
+        public boolean contains(int index) {
+            if (members != null) {
+                for (int i=0; i<size; ++i) {
+                    if (members[i] == index) {
+                        return true;
+                    }
+                }
+                return false;
+            } else {
+                int word = index >>> 6;
+                return (word < bits.length) && ((bits[word] & (1L << index)) != 0L);
+            }
+        }
+
+        public boolean add(int index) {
+            if (contains(index)) {
+                return false;
+            }
+            if ((members != null) && (size == members.length)) {
+                int highest = index;
+                for (int i=0; i<size; ++i) {
+                    highest = Math.max(highest, members[i]);
+                }
+                // switch to a bitset once it is no larger than the grown array
+                int words = (highest >>> 6) + 1;
+                if ((size >= MIN_ARRAY_SIZE) && (words <= size)) {
+                    bits = new long[words];
+                    for (int i=0; i<size; ++i) {
+                        bits[members[i] >>> 6] |= 1L << members[i];
+                    }
+                    members = null;
+                } else {
+                    members = Arrays.copyOf(members, size * 2);
+                }
+            }
+            if (members != null) {
+                members[size] = index;
+            } else {
+                int word = index >>> 6;
+                if (word >= bits.length) {
+                    bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+                }
+                bits[word] |= 1L << index;
+            }
+            ++size;
+            return true;
+        }
+
+        public boolean remove(int index) {
+            if (members != null) {
+                for (int i=0; i<size; ++i) {
+                    if (members[i] == index) {
+                        members[i] = members[--size];
+                        return true;
+                    }
+                }
+                return false;
+            } else {
+                int word = index >>> 6;
+                if ((word >= bits.length) || ((bits[word] & (1L << index)) == 0L)) {
+                    return false;
+                }
+                bits[word] &= ~(1L << index);
+                --size;
+                return true;
+            }
+        }
+
+        public Long[] resolve(SessionWatches[] sessions) {
+            Long[] resolved = new Long[size];
+            if (members != null) {
+                for (int i=0; i<size; ++i) {
+                    resolved[i] = sessions[members[i]].id;
+                }
+            } else {
+                int n = 0;
+                for (int word=0; word<bits.length; ++word) {
+                    long w = bits[word];
+                    while (w != 0L) {
+                        resolved[n++] = sessions[(word << 6) + Long.numberOfTrailingZeros(w)].id;
+                        w &= w - 1L;
+                    }
+                }
+            }
+            return resolved;
+        }
+    }
+
+    /**
+     * Dense indices of sessions with watches, so that watchers can be stored as small integers.
+     */
+    protected static final class Indices {
+
+        // written while holding this, and published by the watchers' locks
+        protected volatile SessionWatches[] sessions;
+        protected int[] free;
+        protected int freeCount;
+        protected int next;
+
+        public Indices() {
+            this.sessions = new SessionWatches[16];
+            this.free = new int[16];
+            this.freeCount = 0;
+            this.next = 0;
+        }
+
+        public synchronized SessionWatches acquire(long session) {
+            int index;
+            if (freeCount > 0) {
+                index = free[--freeCount];
+            } else {
+                index = next++;
+                if (index == sessions.length) {
+                    sessions = Arrays.copyOf(sessions, index * 2);
+                }
+            }
+            SessionWatches watches = new SessionWatches(session, index);
+            sessions[index] = watches;
+            return watches;
+        }
+
+        public synchronized void release(SessionWatches watches) {
+            sessions[watches.index] = null;
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, freeCount * 2);
+            }
+            free[freeCount++] = watches.index;
+        }
     }
-}
\ No newline at end of file
+}